@@ -24,6 +24,9 @@ dependencies {
     implementation("androidx.constraintlayout:constraintlayout:2.0.4")
     implementation("com.google.dagger:dagger:2.49")
     ksp("com.google.dagger:dagger-compiler:2.49")
+    testImplementation("junit:junit:4.13.2")
+    // XmlPullParserFactory is only a stub in android.jar.
+    testImplementation("net.sf.kxml:kxml2:2.3.0")
     androidTestImplementation("androidx.test:rules:1.4.0")
     androidTestImplementation("androidx.annotation:annotation:1.2.0")
 }
@@ -84,6 +87,19 @@ android {
         jvmTarget = "11"
     }
 
+    testOptions {
+        // Lets code under test call android.util.Log and similar.
+        unitTests.isReturnDefaultValues = true
+        // Benchmarks take a while, they only run with -Pbenchmarks.
+        unitTests.all {
+            useJUnit {
+                if (!project.hasProperty("benchmarks")) {
+                    excludeCategories("com.nutomic.syncthingandroid.Benchmark")
+                }
+            }
+        }
+    }
+
     // Otherwise libsyncthing.so doesn't appear where it should in installs
     // based on app bundles, and thus nothing works.
     packaging {
@@ -26,12 +26,15 @@ import android.widget.Toast;
 
 import androidx.core.content.ContextCompat;
 
-import com.google.gson.Gson;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.databinding.ActivityDeviceBinding;
 import com.nutomic.syncthingandroid.model.Connections;
 import com.nutomic.syncthingandroid.model.Device;
+import com.nutomic.syncthingandroid.model.ModelGson;
+import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.service.SyncthingService;
+import com.nutomic.syncthingandroid.service.ThroughputSampler;
 import com.nutomic.syncthingandroid.util.Compression;
 import com.nutomic.syncthingandroid.util.TextWatcherAdapter;
 import com.nutomic.syncthingandroid.util.Util;
@@ -74,6 +77,19 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
     private Dialog mDiscardDialog;
     private Dialog mCompressionDialog;
 
+    /**
+     * Repository whose connections this activity currently observes, or null.
+     */
+    private StatusRepository mStatusRepository;
+
+    private final RestApi.OnResultListener1<Connections> mConnectionsObserver = this::onReceiveConnections;
+
+    private final long[] mPeakRates = new long[2];
+    private final long[] mLastHourIn = new long[ThroughputSampler.MINUTES];
+    private final long[] mLastHourOut = new long[ThroughputSampler.MINUTES];
+    private final long[] mLastDayIn = new long[ThroughputSampler.HOURS];
+    private final long[] mLastDayOut = new long[ThroughputSampler.HOURS];
+
     private final DialogInterface.OnClickListener mCompressionEntrySelectedListener = new DialogInterface.OnClickListener() {
         @Override
         public void onClick(DialogInterface dialog, int which) {
@@ -151,7 +167,7 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
 
         if (savedInstanceState != null){
             if (mDevice == null) {
-                mDevice = new Gson().fromJson(savedInstanceState.getString("device"), Device.class);
+                mDevice = ModelGson.get().fromJson(savedInstanceState.getString("device"), Device.class);
             }
             restoreDialogStates(savedInstanceState);
         }
@@ -189,6 +205,7 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
             syncthingService.getNotificationHandler().cancelConsentNotification(getIntent().getIntExtra(EXTRA_NOTIFICATION_ID, 0));
             syncthingService.unregisterOnServiceStateChangeListener(this::onServiceStateChange);
         }
+        stopObservingConnections();
         binding.id.removeTextChangedListener(mIdTextWatcher);
         binding.name.removeTextChangedListener(mNameTextWatcher);
         binding.addresses.removeTextChangedListener(mAddressesTextWatcher);
@@ -211,7 +228,7 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString("device", new Gson().toJson(mDevice));
+        outState.putString("device", ModelGson.get().toJson(mDevice));
         if (mIsCreateMode){
             outState.putBoolean(IS_SHOWING_DISCARD_DIALOG, mDiscardDialog != null && mDiscardDialog.isShowing());
             Util.dismissDialogSafe(mDiscardDialog, this);
@@ -232,18 +249,59 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
     }
 
     /**
-     * Sets version and current address of the device.
-     * <p/>
-     * NOTE: This is only called once on startup, should be called more often to properly display
-     * version/address changes.
+     * Sets version, current address, transfer rate and transfer history of the device.
+     * Called whenever connections are polled while the activity exists.
      */
     private void onReceiveConnections(Connections connections) {
         boolean viewsExist = binding.syncthingVersion != null && binding.currentAddress != null;
-        if (viewsExist && connections.connections.containsKey(mDevice.deviceID)) {
+        Connections.Connection connection = connections.connections.get(mDevice.deviceID);
+        if (viewsExist && connection != null) {
             binding.currentAddress.setVisibility(VISIBLE);
             binding.syncthingVersion.setVisibility(VISIBLE);
-            binding.currentAddress.setText(connections.connections.get(mDevice.deviceID).address);
-            binding.syncthingVersion.setText(connections.connections.get(mDevice.deviceID).clientVersion);
+            binding.currentAddress.setText(connection.address);
+            binding.syncthingVersion.setText(connection.clientVersion);
+            updateTransferViews(connection);
+        }
+    }
+
+    /**
+     * Shows transfer rates and the history kept by {@link ThroughputSampler}, which does not
+     * need any additional requests.
+     */
+    private void updateTransferViews(Connections.Connection connection) {
+        ThroughputSampler sampler = ThroughputSampler.get(this);
+        sampler.getPeakRates(mDevice.deviceID, mPeakRates);
+        sampler.getLastHour(mDevice.deviceID, mLastHourIn, mLastHourOut);
+        sampler.getLastDay(mDevice.deviceID, mLastDayIn, mLastDayOut);
+
+        binding.transferRate.setVisibility(VISIBLE);
+        binding.transferRate.setText(getString(R.string.device_transfer_rate,
+                Util.readableTransferRate(this, connection.inBits),
+                Util.readableTransferRate(this, connection.outBits),
+                Util.readableTransferRate(this, mPeakRates[0]),
+                Util.readableTransferRate(this, mPeakRates[1])));
+        binding.transferHistory.setVisibility(VISIBLE);
+        binding.transferHistory.setText(getString(R.string.device_transfer_history,
+                Util.readableFileSize(this, sum(mLastHourIn)),
+                Util.readableFileSize(this, sum(mLastHourOut)),
+                Util.readableFileSize(this, sum(mLastDayIn)),
+                Util.readableFileSize(this, sum(mLastDayOut))));
+        binding.transferChart.setVisibility(VISIBLE);
+        binding.transferChart.setData(mLastDayIn, mLastDayOut);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private void stopObservingConnections() {
+        if (mStatusRepository != null) {
+            mStatusRepository.connections().removeObserver(mConnectionsObserver);
+            mStatusRepository = null;
         }
     }
 
@@ -269,7 +327,9 @@ public class DeviceActivity extends SyncthingActivity implements View.OnClickLis
             }
         }
 
-        getApi().getConnections(this::onReceiveConnections);
+        stopObservingConnections();
+        mStatusRepository = getApi().getStatusRepository();
+        mStatusRepository.connections().observe(mConnectionsObserver);
 
         updateViewsAndSetListeners();
     }
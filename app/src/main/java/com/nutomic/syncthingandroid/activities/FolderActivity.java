@@ -25,11 +25,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.material.materialswitch.MaterialSwitch;
-import com.google.gson.Gson;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.databinding.FragmentFolderBinding;
 import com.nutomic.syncthingandroid.model.Device;
 import com.nutomic.syncthingandroid.model.Folder;
+import com.nutomic.syncthingandroid.model.ModelGson;
 import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.RestApi;
 import com.nutomic.syncthingandroid.service.SyncthingService;
@@ -148,7 +148,7 @@ public class FolderActivity extends SyncthingActivity
 
         if (mIsCreateMode) {
             if (savedInstanceState != null) {
-                mFolder = new Gson().fromJson(savedInstanceState.getString("folder"), Folder.class);
+                mFolder = ModelGson.get().fromJson(savedInstanceState.getString("folder"), Folder.class);
                 if (savedInstanceState.getBoolean(IS_SHOW_DISCARD_DIALOG)){
                     showDiscardDialog();
                 }
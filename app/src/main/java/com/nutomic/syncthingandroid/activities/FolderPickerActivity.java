@@ -6,6 +6,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
@@ -33,13 +34,16 @@ import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.service.SyncthingServiceBinder;
+import com.nutomic.syncthingandroid.util.DirectoryLister;
 import com.nutomic.syncthingandroid.util.Util;
 
 import java.io.File;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -60,9 +64,13 @@ public class FolderPickerActivity extends SyncthingActivity
 
     public static final int DIRECTORY_REQUEST_CODE = 234;
 
+    private static final String PREF_SHOW_FILES = "folder_picker_show_files";
+
     private ListView mListView;
+    private TextView mEmptyView;
     private FileAdapter mFilesAdapter;
     private RootsAdapter mRootsAdapter;
+    private final DirectoryLister mDirectoryLister = new DirectoryLister();
 
     /**
      * Location of null means that the list of roots is displayed.
@@ -94,18 +102,20 @@ public class FolderPickerActivity extends SyncthingActivity
         setContentView(R.layout.activity_folder_picker);
         mListView = findViewById(android.R.id.list);
         mListView.setOnItemClickListener(this);
-        mListView.setEmptyView(findViewById(android.R.id.empty));
+        mEmptyView = findViewById(android.R.id.empty);
+        mListView.setEmptyView(mEmptyView);
         mFilesAdapter = new FileAdapter(this);
         mRootsAdapter = new RootsAdapter(this);
-        mListView.setAdapter(mFilesAdapter);
-
-        populateRoots();
 
         if (getIntent().hasExtra(EXTRA_INITIAL_DIRECTORY)) {
             displayFolder(new File(getIntent().getStringExtra(EXTRA_INITIAL_DIRECTORY)));
         } else {
-            displayRoot();
+            // Shows no folder options until the roots are listed.
+            mListView.setAdapter(mRootsAdapter);
+            mEmptyView.setText(R.string.api_loading);
         }
+        new PopulateRootsTask(this, getIntent().getStringExtra(EXTRA_ROOT_DIRECTORY),
+                mPreferences.getBoolean("advanced_folder_picker", false)).execute();
 
         Boolean prefUseRoot = mPreferences.getBoolean(Constants.PREF_USE_ROOT, false);
         if (!prefUseRoot) {
@@ -118,40 +128,72 @@ public class FolderPickerActivity extends SyncthingActivity
      * If a root directory is specified it is added to {@link #mRootsAdapter} otherwise
      * all available storage devices/folders from various APIs are inserted into
      * {@link #mRootsAdapter}.
+     *
+     * Checking whether the roots exist needs file system access, so it is done in the
+     * background.
      */
-    @SuppressLint("NewApi")
-    private void populateRoots() {
-        ArrayList<File> roots = new ArrayList<>();
-        roots.addAll(Arrays.asList(getExternalFilesDirs(null)));
-        roots.remove(getExternalFilesDir(null));
-
-        String rootDir = getIntent().getStringExtra(EXTRA_ROOT_DIRECTORY);
-        if (getIntent().hasExtra(EXTRA_ROOT_DIRECTORY) && !TextUtils.isEmpty(rootDir)) {
-            roots.add(new File(rootDir));
-        } else {
-            roots.add(Environment.getExternalStorageDirectory());
-            roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
-            roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES));
-            roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
-            roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
-            roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS));
-
-            // Add paths that might not be accessible to Syncthing.
-            if (mPreferences.getBoolean("advanced_folder_picker", false)) {
-                Collections.addAll(roots, new File("/storage/").listFiles());
-                roots.add(new File("/"));
-            }
+    private static class PopulateRootsTask extends AsyncTask<Void, Void, List<File>> {
+        private final WeakReference<FolderPickerActivity> refActivity;
+        private final Context mContext;
+        private final String mRootDirectory;
+        private final boolean mAdvancedFolderPicker;
+
+        PopulateRootsTask(FolderPickerActivity activity, @Nullable String rootDirectory,
+                          boolean advancedFolderPicker) {
+            refActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mRootDirectory = rootDirectory;
+            mAdvancedFolderPicker = advancedFolderPicker;
         }
-        // Remove any invalid directories.
-        Iterator<File> it = roots.iterator();
-        while (it.hasNext()) {
-            File f = it.next();
-            if (f == null || !f.exists() || !f.isDirectory()) {
-                it.remove();
+
+        @Override
+        @SuppressLint("NewApi")
+        protected List<File> doInBackground(Void... voids) {
+            ArrayList<File> roots = new ArrayList<>();
+            roots.addAll(Arrays.asList(mContext.getExternalFilesDirs(null)));
+            roots.remove(mContext.getExternalFilesDir(null));
+
+            if (!TextUtils.isEmpty(mRootDirectory)) {
+                roots.add(new File(mRootDirectory));
+            } else {
+                roots.add(Environment.getExternalStorageDirectory());
+                roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
+                roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES));
+                roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
+                roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
+                roots.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS));
+
+                // Add paths that might not be accessible to Syncthing.
+                if (mAdvancedFolderPicker) {
+                    File[] storages = new File("/storage/").listFiles();
+                    if (storages != null) {
+                        Collections.addAll(roots, storages);
+                    }
+                    roots.add(new File("/"));
+                }
+            }
+            // Remove any invalid directories. isDirectory() is false for missing files.
+            Iterator<File> it = roots.iterator();
+            while (it.hasNext()) {
+                File f = it.next();
+                if (f == null || !f.isDirectory()) {
+                    it.remove();
+                }
             }
+            return new ArrayList<>(Sets.newTreeSet(roots));
         }
 
-        mRootsAdapter.addAll(Sets.newTreeSet(roots));
+        @Override
+        protected void onPostExecute(List<File> roots) {
+            FolderPickerActivity activity = refActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                return;
+            }
+            activity.mRootsAdapter.addAll(roots);
+            if (activity.mLocation == null) {
+                activity.displayRoot();
+            }
+        }
     }
 
     @Override
@@ -164,6 +206,7 @@ public class FolderPickerActivity extends SyncthingActivity
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDirectoryLister.shutdown();
         SyncthingService syncthingService = getService();
         if (syncthingService != null) {
             syncthingService.unregisterOnServiceStateChangeListener(this::onServiceStateChange);
@@ -172,11 +215,12 @@ public class FolderPickerActivity extends SyncthingActivity
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
-        if (mListView.getAdapter() == mRootsAdapter)
+        if (mListView.getAdapter() == mRootsAdapter || mLocation == null)
             return true;
 
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.folder_picker, menu);
+        menu.findItem(R.id.show_files).setChecked(mPreferences.getBoolean(PREF_SHOW_FILES, true));
         return true;
     }
 
@@ -203,6 +247,11 @@ public class FolderPickerActivity extends SyncthingActivity
                 setResult(Activity.RESULT_OK, intent);
                 finish();
                 return true;
+            case R.id.show_files:
+                item.setChecked(!item.isChecked());
+                mPreferences.edit().putBoolean(PREF_SHOW_FILES, item.isChecked()).apply();
+                displayFolder(mLocation);
+                return true;
             case android.R.id.home:
                 finish();
                 return true;
@@ -217,6 +266,9 @@ public class FolderPickerActivity extends SyncthingActivity
     private void createFolder(String name) {
         File newFolder = new File(mLocation, name);
         if (newFolder.mkdir()) {
+            // The modification time may not change if another entry was added within its
+            // resolution.
+            DirectoryLister.invalidate(mLocation);
             displayFolder(newFolder);
         } else {
             Toast.makeText(this, R.string.create_folder_failed, Toast.LENGTH_SHORT).show();
@@ -224,37 +276,33 @@ public class FolderPickerActivity extends SyncthingActivity
     }
 
     /**
-     * Refreshes the ListView to show the contents of the folder in {@code }mLocation.peek()}.
+     * Refreshes the ListView to show the contents of the folder. Entries are added as they
+     * are listed in the background.
      */
     private void displayFolder(File folder) {
         mLocation = folder;
         mFilesAdapter.clear();
-        File[] contents = mLocation.listFiles();
-        // In case we don't have read access to the folder, just display nothing.
-        if (contents == null)
-            contents = new File[]{};
-
-        Arrays.sort(contents, (f1, f2) -> {
-            if (f1.isDirectory() && f2.isFile())
-                return -1;
-            if (f1.isFile() && f2.isDirectory())
-                return 1;
-            return f1.getName().compareTo(f2.getName());
-        });
-
-        for (File f : contents) {
-            mFilesAdapter.add(f);
-        }
         mListView.setAdapter(mFilesAdapter);
+        mEmptyView.setText(R.string.api_loading);
+        boolean directoriesOnly = !mPreferences.getBoolean(PREF_SHOW_FILES, true);
+        mDirectoryLister.list(folder, directoriesOnly, (directories, files, complete) -> {
+            mFilesAdapter.addEntries(directories, files);
+            if (complete) {
+                mEmptyView.setText(R.string.directory_empty);
+            }
+        });
     }
 
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-        @SuppressWarnings("unchecked")
-        ArrayAdapter<File> adapter = (ArrayAdapter<File>) mListView.getAdapter();
-        File f = adapter.getItem(i);
-        if (f.isDirectory()) {
-            displayFolder(f);
+        if (mListView.getAdapter() == mRootsAdapter) {
+            displayFolder(mRootsAdapter.getItem(i));
+            invalidateOptions();
+            return;
+        }
+        DirectoryLister.Entry entry = mFilesAdapter.getItem(i);
+        if (entry.isDirectory) {
+            displayFolder(entry.file);
             invalidateOptions();
         }
     }
@@ -263,20 +311,43 @@ public class FolderPickerActivity extends SyncthingActivity
         invalidateOptionsMenu();
     }
 
-    private class FileAdapter extends ArrayAdapter<File> {
+    private class FileAdapter extends ArrayAdapter<DirectoryLister.Entry> {
+
+        /**
+         * Directories are shown first, this is the position of the first file.
+         */
+        private int mDirectoryCount = 0;
 
         public FileAdapter(Context context) {
             super(context, R.layout.item_folder_picker);
         }
 
+        /**
+         * Appends directories and files to their respective part of the list.
+         */
+        void addEntries(List<DirectoryLister.Entry> directories, List<DirectoryLister.Entry> files) {
+            setNotifyOnChange(false);
+            for (DirectoryLister.Entry directory : directories) {
+                insert(directory, mDirectoryCount++);
+            }
+            addAll(files);
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mDirectoryCount = 0;
+        }
+
         @Override
         @NonNull
         public View getView(int position, View convertView, @NonNull ViewGroup parent) {
             convertView = super.getView(position, convertView, parent);
             TextView title = convertView.findViewById(android.R.id.text1);
-            File f = getItem(position);
-            title.setText(f.getName());
-            int textColor = (f.isDirectory())
+            DirectoryLister.Entry entry = getItem(position);
+            title.setText(entry.file.getName());
+            int textColor = entry.isDirectory
                     ? android.R.color.primary_text_light
                     : android.R.color.tertiary_text_light;
             title.setTextColor(ContextCompat.getColor(getContext(), textColor));
@@ -340,11 +411,13 @@ public class FolderPickerActivity extends SyncthingActivity
      * contents of that folder.
      */
     private void displayRoot() {
+        mDirectoryLister.cancel();
         mFilesAdapter.clear();
         if (mRootsAdapter.getCount() == 1) {
             displayFolder(mRootsAdapter.getItem(0));
         } else {
             mListView.setAdapter(mRootsAdapter);
+            mEmptyView.setText(R.string.directory_empty);
             mLocation = null;
         }
         invalidateOptions();
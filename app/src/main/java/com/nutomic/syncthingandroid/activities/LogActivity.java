@@ -3,34 +3,83 @@ package com.nutomic.syncthingandroid.activities;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import androidx.core.view.MenuItemCompat;
-import androidx.appcompat.widget.ShareActionProvider;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.widget.ScrollView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
+import androidx.appcompat.widget.SearchView;
+
 import com.nutomic.syncthingandroid.R;
+import com.nutomic.syncthingandroid.service.LogIndex;
+import com.nutomic.syncthingandroid.service.LogPump;
+import com.nutomic.syncthingandroid.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Shows the log information from Syncthing.
+ *
+ * The Syncthing log is read through the {@link LogIndex} of the log file. Only the lines that
+ * are currently visible are read from disk, new lines are appended as they are written.
+ * Filtering and search run on a background thread.
  */
 public class LogActivity extends SyncthingActivity {
 
     private final static String TAG = "LogActivity";
 
-    private TextView mLog;
+    /**
+     * Number of Android log lines to show, and of log lines to share.
+     */
+    private final static int LOG_LINES = 300;
+
+    /**
+     * Number of lines read from the log file at once, and number of such pages kept in memory.
+     */
+    private final static int PAGE_SIZE = 100;
+    private final static int MAX_CACHED_PAGES = 20;
+
+    /**
+     * Interval in ms in which the log index is checked for new lines.
+     */
+    private final static long TAIL_INTERVAL = 1000;
+
+    private ListView mListView;
     private boolean mSyncthingLog = true;
     private AsyncTask mFetchLogTask = null;
-    private ScrollView mScrollView;
-    private Intent mShareIntent;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable mTailRunnable = this::tail;
+    private LogIndex mLogIndex;
+    private SyncthingLogAdapter mSyncthingLogAdapter;
+    private ArrayAdapter<String> mAndroidLogAdapter;
+
+    private int mMinLevel = LogIndex.LEVEL_DEBUG;
+    private String mFacility = null;
+    private String mQuery = null;
 
     /**
      * Initialize Log.
@@ -40,23 +89,53 @@ public class LogActivity extends SyncthingActivity {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_log);
-        setTitle(R.string.syncthing_log_title);
 
         if (savedInstanceState != null) {
             mSyncthingLog = savedInstanceState.getBoolean("syncthingLog");
+            mMinLevel = savedInstanceState.getInt("minLevel", LogIndex.LEVEL_DEBUG);
+            mFacility = savedInstanceState.getString("facility");
+            mQuery = savedInstanceState.getString("query");
             invalidateOptionsMenu();
         }
+        setTitle(mSyncthingLog ? R.string.syncthing_log_title : R.string.android_log_title);
 
-        mLog = findViewById(R.id.log);
-        mScrollView = findViewById(R.id.scroller);
+        mListView = findViewById(R.id.log);
+        mListView.setEmptyView(findViewById(R.id.empty));
+        mLogIndex = LogPump.get(this).getIndex();
+        mSyncthingLogAdapter = new SyncthingLogAdapter();
+        mAndroidLogAdapter = new ArrayAdapter<>(this, R.layout.item_log_line);
 
         updateLog();
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mTailRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mTailRunnable);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mFetchLogTask != null) {
+            mFetchLogTask.cancel(true);
+        }
+        mExecutor.shutdownNow();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putBoolean("syncthingLog", mSyncthingLog);
+        outState.putInt("minLevel", mMinLevel);
+        outState.putString("facility", mFacility);
+        outState.putString("query", mQuery);
     }
 
     @Override
@@ -64,105 +143,407 @@ public class LogActivity extends SyncthingActivity {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.log_list, menu);
 
-        MenuItem switchLog = menu.findItem(R.id.switch_logs);
-        switchLog.setTitle(mSyncthingLog ? R.string.view_android_log : R.string.view_syncthing_log);
-
-        // Add the share button
-        MenuItem shareItem = menu.findItem(R.id.menu_share);
-        ShareActionProvider actionProvider = (ShareActionProvider) MenuItemCompat.getActionProvider(shareItem);
-        mShareIntent = new Intent();
-        mShareIntent.setAction(Intent.ACTION_SEND);
-        mShareIntent.setType("text/plain");
-        mShareIntent.putExtra(android.content.Intent.EXTRA_TEXT, mLog.getText());
-        actionProvider.setShareIntent(mShareIntent);
+        MenuItem searchItem = menu.findItem(R.id.menu_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_log));
+        if (!TextUtils.isEmpty(mQuery)) {
+            searchItem.expandActionView();
+            searchView.setQuery(mQuery, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setQuery(query);
+                searchView.clearFocus();
+                return true;
+            }
 
+            @Override
+            public boolean onQueryTextChange(String query) {
+                // Only search on submit, unless the query was cleared.
+                if (TextUtils.isEmpty(query)) {
+                    setQuery(null);
+                }
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.switch_logs)
+                .setTitle(mSyncthingLog ? R.string.view_android_log : R.string.view_syncthing_log);
+        menu.findItem(R.id.menu_search).setVisible(mSyncthingLog);
+        menu.findItem(R.id.menu_log_level).setVisible(mSyncthingLog);
+        menu.findItem(R.id.menu_log_facility).setVisible(mSyncthingLog);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.switch_logs:
                 mSyncthingLog = !mSyncthingLog;
-                if (mSyncthingLog) {
-                    item.setTitle(R.string.view_android_log);
-                    setTitle(R.string.syncthing_log_title);
-                } else {
-                    item.setTitle(R.string.view_syncthing_log);
-                    setTitle(R.string.android_log_title);
-                }
+                setTitle(mSyncthingLog ? R.string.syncthing_log_title : R.string.android_log_title);
+                invalidateOptionsMenu();
                 updateLog();
                 return true;
+            case R.id.menu_log_level:
+                Util.getAlertDialogBuilder(this)
+                        .setTitle(R.string.log_level_title)
+                        .setSingleChoiceItems(R.array.log_level_entries, mMinLevel, (dialog, which) -> {
+                            mMinLevel = which;
+                            mSyncthingLogAdapter.reset();
+                            dialog.dismiss();
+                        })
+                        .show();
+                return true;
+            case R.id.menu_log_facility:
+                showFacilityDialog();
+                return true;
+            case R.id.menu_share:
+                shareLog();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    private void showFacilityDialog() {
+        List<String> facilities = mLogIndex.getFacilities();
+        List<String> entries = new ArrayList<>();
+        entries.add(getString(R.string.log_facility_all));
+        entries.addAll(facilities);
+        int checked = (mFacility != null) ? facilities.indexOf(mFacility) + 1 : 0;
+        Util.getAlertDialogBuilder(this)
+                .setTitle(R.string.log_facility_title)
+                .setSingleChoiceItems(entries.toArray(new String[0]), checked, (dialog, which) -> {
+                    mFacility = (which == 0) ? null : facilities.get(which - 1);
+                    mSyncthingLogAdapter.reset();
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    private void setQuery(String query) {
+        if (TextUtils.equals(query, mQuery)) {
+            return;
+        }
+        mQuery = query;
+        mSyncthingLogAdapter.reset();
+    }
+
     private void updateLog() {
         if (mFetchLogTask != null) {
             mFetchLogTask.cancel(true);
+            mFetchLogTask = null;
+        }
+        if (mSyncthingLog) {
+            mListView.setAdapter(mSyncthingLogAdapter);
+            mSyncthingLogAdapter.reset();
+        } else {
+            mAndroidLogAdapter.clear();
+            mListView.setAdapter(mAndroidLogAdapter);
+            mFetchLogTask = new UpdateLogTask(this).execute();
         }
-        mLog.setText(R.string.retrieving_logs);
-        mFetchLogTask = new UpdateLogTask(this).execute();
     }
 
-    private static class UpdateLogTask extends AsyncTask<Void, Void, String> {
+    /**
+     * Checks the log index for new lines, and repeats while the activity is resumed.
+     */
+    private void tail() {
+        if (mSyncthingLog) {
+            mSyncthingLogAdapter.update();
+        }
+        mHandler.postDelayed(mTailRunnable, TAIL_INTERVAL);
+    }
+
+    /**
+     * Shares the last lines of the log that is shown, with the current filter applied.
+     */
+    private void shareLog() {
+        if (!mSyncthingLog) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < mAndroidLogAdapter.getCount(); i++) {
+                lines.add(mAndroidLogAdapter.getItem(i));
+            }
+            startShareIntent(lines);
+            return;
+        }
+        int[] lines = mSyncthingLogAdapter.getLastLines(LOG_LINES);
+        long generation = mSyncthingLogAdapter.mGeneration;
+        mExecutor.execute(() -> {
+            try {
+                String[] texts = mLogIndex.readLines(lines, generation);
+                if (texts != null) {
+                    mHandler.post(() -> startShareIntent(Arrays.asList(texts)));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read log file", e);
+            }
+        });
+    }
+
+    private void startShareIntent(List<String> lines) {
+        if (isFinishing()) {
+            return;
+        }
+        Intent shareIntent = new Intent();
+        shareIntent.setAction(Intent.ACTION_SEND);
+        shareIntent.setType("text/plain");
+        shareIntent.putExtra(android.content.Intent.EXTRA_TEXT,
+                TextUtils.join(System.getProperty("line.separator"), lines));
+        startActivity(Intent.createChooser(shareIntent, getString(R.string.share_title)));
+    }
+
+    /**
+     * Lists the lines of the log index that match the current filter. Line numbers are filtered
+     * on the background thread and appended as the index grows, while the text of each line is
+     * read in pages once it is displayed.
+     *
+     * All methods must be called from the main thread.
+     */
+    private class SyncthingLogAdapter extends BaseAdapter {
+
+        /**
+         * Numbers of the index lines that match the filter, in mLines[0, mCount).
+         */
+        private int[] mLines = new int[0];
+        private int mCount = 0;
+
+        /**
+         * Index generation and size up to which mLines was filtered.
+         */
+        private long mGeneration = -1;
+        private int mFilteredSize = 0;
+
+        /**
+         * Incremented whenever the filter changes, to drop results of outdated tasks.
+         */
+        private int mFilterVersion = 0;
+        private boolean mUpdatePending = false;
+
+        private final LruCache<Integer, String[]> mPages = new LruCache<>(MAX_CACHED_PAGES);
+        private final Set<Integer> mLoadingPages = new HashSet<>();
+
+        /**
+         * Filters the log again from the start, after the filter changed.
+         */
+        void reset() {
+            mFilterVersion++;
+            mGeneration = -1;
+            mFilteredSize = 0;
+            mUpdatePending = false;
+            update();
+        }
+
+        /**
+         * Filters lines that were added to the index since the last update, or all lines if the
+         * log file was rotated.
+         */
+        void update() {
+            if (mUpdatePending || (mGeneration == mLogIndex.getGeneration()
+                    && mFilteredSize == mLogIndex.size())) {
+                return;
+            }
+            mUpdatePending = true;
+            int version = mFilterVersion;
+            long generation = mGeneration;
+            int from = mFilteredSize;
+            int minLevel = mMinLevel;
+            String facility = mFacility;
+            String query = mQuery;
+            mExecutor.execute(() -> {
+                long currentGeneration = mLogIndex.getGeneration();
+                boolean rotated = currentGeneration != generation;
+                int size = mLogIndex.size();
+                int[] lines = mLogIndex.filter(rotated ? 0 : from, size, currentGeneration,
+                        minLevel, facility);
+                if (lines != null && !TextUtils.isEmpty(query)) {
+                    lines = search(lines, currentGeneration, query);
+                }
+                int[] result = lines;
+                mHandler.post(() -> onFiltered(version, rotated, currentGeneration, size, result));
+            });
+        }
+
+        /**
+         * Returns the lines that contain the query, ignoring case. Runs on the background thread.
+         */
+        private int[] search(int[] lines, long generation, String query) {
+            String needle = query.toLowerCase(Locale.getDefault());
+            int[] matches = new int[lines.length];
+            int count = 0;
+            try {
+                for (int start = 0; start < lines.length; start += PAGE_SIZE) {
+                    int[] page = Arrays.copyOfRange(lines, start,
+                            Math.min(start + PAGE_SIZE, lines.length));
+                    String[] texts = mLogIndex.readLines(page, generation);
+                    if (texts == null) {
+                        return null;
+                    }
+                    for (int i = 0; i < texts.length; i++) {
+                        if (texts[i].toLowerCase(Locale.getDefault()).contains(needle)) {
+                            matches[count++] = page[i];
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to search log file", e);
+                return null;
+            }
+            return Arrays.copyOf(matches, count);
+        }
+
+        private void onFiltered(int version, boolean rotated, long generation, int size,
+                                int[] lines) {
+            if (version != mFilterVersion) {
+                return;
+            }
+            mUpdatePending = false;
+            if (lines == null) {
+                // Log file was rotated meanwhile, the next update starts over.
+                return;
+            }
+            if (rotated) {
+                mLines = lines;
+                mCount = lines.length;
+                mPages.evictAll();
+                mLoadingPages.clear();
+            } else {
+                if (mCount + lines.length > mLines.length) {
+                    mLines = Arrays.copyOf(mLines,
+                            Math.max(mCount + lines.length, mLines.length * 2));
+                }
+                System.arraycopy(lines, 0, mLines, mCount, lines.length);
+                mCount += lines.length;
+            }
+            mGeneration = generation;
+            mFilteredSize = size;
+            notifyDataSetChanged();
+            if (rotated && mCount > 0) {
+                mListView.setSelection(mCount - 1);
+            }
+        }
+
+        /**
+         * Returns the numbers of the last matching lines, oldest first.
+         */
+        int[] getLastLines(int count) {
+            return Arrays.copyOfRange(mLines, Math.max(0, mCount - count), mCount);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String getItem(int position) {
+            int page = position / PAGE_SIZE;
+            String[] texts = mPages.get(page);
+            // The last page may have been loaded before more lines were appended to it.
+            if (texts == null || position % PAGE_SIZE >= texts.length) {
+                loadPage(page);
+                return null;
+            }
+            return texts[position % PAGE_SIZE];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) ((convertView != null)
+                    ? convertView
+                    : LayoutInflater.from(parent.getContext())
+                            .inflate(R.layout.item_log_line, parent, false));
+            String text = getItem(position);
+            view.setText((text != null) ? text : "");
+            return view;
+        }
+
+        private void loadPage(int page) {
+            if (!mLoadingPages.add(page)) {
+                return;
+            }
+            int version = mFilterVersion;
+            long generation = mGeneration;
+            int[] lines = Arrays.copyOfRange(mLines, page * PAGE_SIZE,
+                    Math.min((page + 1) * PAGE_SIZE, mCount));
+            mExecutor.execute(() -> {
+                String[] texts = null;
+                try {
+                    texts = mLogIndex.readLines(lines, generation);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read log file", e);
+                }
+                String[] result = texts;
+                mHandler.post(() -> {
+                    if (version != mFilterVersion || generation != mGeneration) {
+                        return;
+                    }
+                    mLoadingPages.remove(page);
+                    if (result != null) {
+                        mPages.put(page, result);
+                        notifyDataSetChanged();
+                    }
+                });
+            });
+        }
+    }
+
+    private static class UpdateLogTask extends AsyncTask<Void, Void, List<String>> {
         private WeakReference<LogActivity> refLogActivity;
 
         UpdateLogTask(LogActivity context) {
             refLogActivity = new WeakReference<>(context);
         }
 
-        protected String doInBackground(Void... params) {
+        protected List<String> doInBackground(Void... params) {
             // Get a reference to the activity if it is still there.
             LogActivity logActivity = refLogActivity.get();
             if (logActivity == null || logActivity.isFinishing()) {
                 cancel(true);
-                return "";
+                return new ArrayList<>();
             }
-            return getLog(logActivity.mSyncthingLog);
+            return getAndroidLog();
         }
 
-        protected void onPostExecute(String log) {
+        protected void onPostExecute(List<String> log) {
             // Get a reference to the activity if it is still there.
             LogActivity logActivity = refLogActivity.get();
             if (logActivity == null || logActivity.isFinishing()) {
                 return;
             }
-            logActivity.mLog.setText(log);
-            if (logActivity.mShareIntent != null) {
-                logActivity.mShareIntent.putExtra(android.content.Intent.EXTRA_TEXT, log);
-            }
+            logActivity.mAndroidLogAdapter.clear();
+            logActivity.mAndroidLogAdapter.addAll(log);
             // Scroll to bottom
-            logActivity.mScrollView.post(() -> logActivity.mScrollView.scrollTo(0, logActivity.mLog.getBottom()));
+            if (!log.isEmpty()) {
+                logActivity.mListView.setSelection(log.size() - 1);
+            }
         }
 
         /**
-         * Queries logcat to obtain a log.
-         *
-         * @param syncthingLog Filter on Syncthing's native messages.
+         * Queries logcat to obtain the Android log.
          */
-        private String getLog(final boolean syncthingLog) {
+        private List<String> getAndroidLog() {
+            List<String> log = new ArrayList<>();
             Process process = null;
             try {
-                ProcessBuilder pb;
-                if (syncthingLog) {
-                    pb = new ProcessBuilder("/system/bin/logcat", "-t", "300", "-v", "time", "-s", "SyncthingNativeCode");
-                } else {
-                    pb = new ProcessBuilder("/system/bin/logcat", "-t", "300", "-v", "time", "*:i ps:s art:s");
-                }
+                ProcessBuilder pb = new ProcessBuilder("/system/bin/logcat", "-t", String.valueOf(LOG_LINES), "-v", "time", "*:i ps:s art:s");
                 pb.redirectErrorStream(true);
                 process = pb.start();
                 BufferedReader bufferedReader = new BufferedReader(
                         new InputStreamReader(process.getInputStream(), "UTF-8"), 8192);
-                StringBuilder log = new StringBuilder();
                 String line;
-                String sep = System.getProperty("line.separator");
                 while ((line = bufferedReader.readLine()) != null) {
-                    log.append(line);
-                    log.append(sep);
+                    log.add(line);
                 }
-                return log.toString();
             } catch (IOException e) {
                 Log.w(TAG, "Error reading Android log", e);
             } finally {
@@ -170,7 +551,7 @@ public class LogActivity extends SyncthingActivity {
                     process.destroy();
                 }
             }
-            return "";
+            return log;
         }
     }
 
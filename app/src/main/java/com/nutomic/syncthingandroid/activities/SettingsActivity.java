@@ -25,11 +25,13 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.SyncthingApp;
+import com.nutomic.syncthingandroid.http.ApiClient;
 import com.nutomic.syncthingandroid.model.Config;
 import com.nutomic.syncthingandroid.model.Device;
 import com.nutomic.syncthingandroid.model.Options;
 import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.NotificationHandler;
+import com.nutomic.syncthingandroid.service.ResourceGovernor;
 import com.nutomic.syncthingandroid.service.RestApi;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.util.Languages;
@@ -91,6 +93,8 @@ public class SettingsActivity extends SyncthingActivity {
         private static final String KEY_EXPORT_CONFIG = "export_config";
         private static final String KEY_IMPORT_CONFIG = "import_config";
         private static final String KEY_UNDO_IGNORED_DEVICES_FOLDERS = "undo_ignored_devices_folders";
+        private static final String KEY_API_CLIENT_STATS = "api_client_stats";
+        private static final String KEY_RESOURCE_GOVERNOR_LOG = "resource_governor_log";
         private static final String KEY_ST_RESET_DATABASE = "st_reset_database";
         private static final String KEY_ST_RESET_DELTAS = "st_reset_deltas";
 
@@ -184,6 +188,8 @@ public class SettingsActivity extends SyncthingActivity {
             Preference environmentVariables         = findPreference("environment_variables");
             Preference stResetDatabase              = findPreference("st_reset_database");
             Preference stResetDeltas                = findPreference("st_reset_deltas");
+            Preference apiClientStats               = findPreference(KEY_API_CLIENT_STATS);
+            Preference resourceGovernorLog          = findPreference(KEY_RESOURCE_GOVERNOR_LOG);
 
             mUseRoot                        = (CheckBoxPreference) findPreference(Constants.PREF_USE_ROOT);
             mUseWakelock                    = (CheckBoxPreference) findPreference(Constants.PREF_USE_WAKE_LOCK);
@@ -205,6 +211,10 @@ public class SettingsActivity extends SyncthingActivity {
             environmentVariables.setOnPreferenceChangeListener(this);
             stResetDatabase.setOnPreferenceClickListener(this);
             stResetDeltas.setOnPreferenceClickListener(this);
+            apiClientStats.setOnPreferenceClickListener(this);
+            apiClientStats.setSummary(ApiClient.get(getActivity()).getStatsSummary());
+            resourceGovernorLog.setOnPreferenceClickListener(this);
+            resourceGovernorLog.setSummary(ResourceGovernor.get(getActivity()).getDecisionLog());
 
             /* Experimental options */
             mUseRoot.setOnPreferenceClickListener(this);
@@ -466,6 +476,12 @@ public class SettingsActivity extends SyncthingActivity {
                         mPendingConfig = true;
                     }
                     return true;
+                case KEY_API_CLIENT_STATS:
+                    preference.setSummary(ApiClient.get(getActivity()).getStatsSummary());
+                    return true;
+                case KEY_RESOURCE_GOVERNOR_LOG:
+                    preference.setSummary(ResourceGovernor.get(getActivity()).getDecisionLog());
+                    return true;
                 case KEY_EXPORT_CONFIG:
                     Util.getAlertDialogBuilder(getActivity())
                             .setMessage(R.string.dialog_confirm_export)
@@ -10,6 +10,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
@@ -21,18 +22,16 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.common.io.Files;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.databinding.ActivityShareBinding;
 import com.nutomic.syncthingandroid.model.Folder;
+import com.nutomic.syncthingandroid.service.RestApi;
 import com.nutomic.syncthingandroid.service.SyncthingService;
+import com.nutomic.syncthingandroid.util.FileCopier;
 import com.nutomic.syncthingandroid.util.Util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -71,7 +70,7 @@ public class ShareActivity extends StateDialogActivity
         if (currentState != SyncthingService.State.ACTIVE || getApi() == null)
             return;
 
-        List<Folder> folders = getApi().getFolders();
+        List<Folder> folders = new ArrayList<>(getApi().getConfigSnapshot().getFolders());
 
         // Get the index of the previously selected folder.
         int folderIndex = 0;
@@ -155,8 +154,8 @@ public class ShareActivity extends StateDialogActivity
             if (files.size() == 1)
                 files.entrySet().iterator().next().setValue(binding.name.getText().toString());
             Folder folder = (Folder) mFoldersSpinner.getSelectedItem();
-            File directory = new File(folder.path, getSavedSubDirectory());
-            CopyFilesTask mCopyFilesTask = new CopyFilesTask(this, files, folder, directory);
+            CopyFilesTask mCopyFilesTask =
+                    new CopyFilesTask(this, files, folder, getSavedSubDirectory());
             mCopyFilesTask.execute();
         });
 
@@ -278,83 +277,124 @@ public class ShareActivity extends StateDialogActivity
         return savedSubDirectory;
     }
 
-    private static class CopyFilesTask extends AsyncTask<Void, Void, Boolean> {
+    private static class CopyFilesTask extends AsyncTask<Void, Long, Void> {
+
+        /**
+         * Minimum time between progress updates in ms.
+         */
+        private static final long PROGRESS_INTERVAL = 200;
+
         private WeakReference<ShareActivity> refShareActivity;
         private ProgressDialog mProgress;
         private final Map<Uri, String> mFiles;
         private final Folder mFolder;
         private final File mDirectory;
-        private int mCopied = 0, mIgnored = 0;
+        private final String mSubDirectory;
+        private final FileCopier mCopier;
+        private long mLastProgressTime = 0;
 
-        CopyFilesTask(ShareActivity context, Map<Uri, String> files, Folder folder, File directory) {
+        CopyFilesTask(ShareActivity context, Map<Uri, String> files, Folder folder,
+                      String subDirectory) {
             refShareActivity = new WeakReference<>(context);
             this.mFiles = files;
             this.mFolder = folder;
-            this.mDirectory = directory;
+            this.mDirectory = new File(folder.path, subDirectory);
+            this.mSubDirectory = subDirectory.replaceAll("^/+|/+$", "");
+            this.mCopier = new FileCopier(context.getContentResolver(), this::onCopyProgress);
         }
 
         protected void onPreExecute() {
             // Get a reference to the activity if it is still there.
             ShareActivity shareActivity = refShareActivity.get();
             // shareActivity cannot be null before the task executes.
-            mProgress = ProgressDialog.show(shareActivity, null,
-                    shareActivity.getString(R.string.copy_progress), true);
+            mProgress = new ProgressDialog(shareActivity);
+            mProgress.setMessage(shareActivity.getString(R.string.copy_progress));
+            mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mProgress.setMax(100);
+            mProgress.setProgressNumberFormat(null);
+            mProgress.setCancelable(true);
+            mProgress.setCanceledOnTouchOutside(false);
+            mProgress.setOnCancelListener(dialog -> cancel(true));
+            mProgress.show();
         }
 
-        protected Boolean doInBackground(Void... params) {
+        protected Void doInBackground(Void... params) {
             // Get a reference to the activity if it is still there.
             ShareActivity shareActivity = refShareActivity.get();
             if (shareActivity == null || shareActivity.isFinishing()) {
                 cancel(true);
-                return true;
+                return null;
             }
 
-            boolean isError = false;
-            for (Map.Entry<Uri, String> entry : mFiles.entrySet()) {
-                InputStream inputStream = null;
-                try {
-                    File outFile = new File(mDirectory, entry.getValue());
-                    if (outFile.isFile()) {
-                        mIgnored++;
-                        continue;
-                    }
-                    inputStream = shareActivity.getContentResolver().openInputStream(entry.getKey());
-                    Files.asByteSink(outFile).writeFrom(inputStream);
-                    mCopied++;
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, String.format("Can't find input file \"%s\" to copy",
-                            entry.getKey()), e);
-                    isError = true;
-                } catch (IOException e) {
-                    Log.e(TAG, String.format("IO exception during file \"%s\" sharing",
-                            entry.getKey()), e);
-                    isError = true;
-                } finally {
-                    try {
-                        if (inputStream != null)
-                            inputStream.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Exception on input/output stream close", e);
-                    }
-                }
+            try {
+                mCopier.copy(mFiles, mDirectory);
+            } catch (InterruptedException e) {
+                Log.i(TAG, "Sharing files was cancelled");
+            }
+            return null;
+        }
+
+        /**
+         * Called on worker threads of {@link FileCopier}, publishProgress() may be called from
+         * any thread.
+         */
+        private synchronized void onCopyProgress(long copiedBytes, long totalBytes) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastProgressTime < PROGRESS_INTERVAL) {
+                return;
+            }
+            mLastProgressTime = now;
+            publishProgress(copiedBytes, totalBytes);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            long copiedBytes = values[0];
+            long totalBytes = Math.max(copiedBytes, values[1]);
+            ShareActivity shareActivity = refShareActivity.get();
+            if (shareActivity == null || totalBytes == 0) {
+                return;
             }
-            return isError;
+            mProgress.setProgress((int) (100 * copiedBytes / totalBytes));
+            mProgress.setProgressNumberFormat(shareActivity.getString(R.string.copy_progress_bytes,
+                    Util.readableFileSize(shareActivity, copiedBytes),
+                    Util.readableFileSize(shareActivity, totalBytes)));
+        }
+
+        protected void onPostExecute(Void result) {
+            onFinished();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            mCopier.cancel();
+            onFinished();
         }
 
-        protected void onPostExecute(Boolean isError) {
+        private void onFinished() {
             // Get a reference to the activity if it is still there.
             ShareActivity shareActivity = refShareActivity.get();
-            if (shareActivity == null || shareActivity.isFinishing()) {
+            if (shareActivity == null) {
+                return;
+            }
+            // Let syncthing pick up the new files right away.
+            RestApi restApi = shareActivity.getApi();
+            if (mCopier.getCopiedCount() > 0 && restApi != null) {
+                restApi.scanFolder(mFolder.id, mSubDirectory);
+            }
+            if (shareActivity.isFinishing()) {
                 return;
             }
             Util.dismissDialogSafe(mProgress, shareActivity);
-            Toast.makeText(shareActivity, mIgnored > 0 ?
-                            shareActivity.getResources().getQuantityString(R.plurals.copy_success_partially, mCopied,
-                                    mCopied, mFolder.label, mIgnored) :
-                            shareActivity.getResources().getQuantityString(R.plurals.copy_success, mCopied, mCopied,
+            int copied = mCopier.getCopiedCount();
+            int skipped = mCopier.getSkippedCount();
+            Toast.makeText(shareActivity, skipped > 0 ?
+                            shareActivity.getResources().getQuantityString(R.plurals.copy_success_partially, copied,
+                                    copied, mFolder.label, skipped) :
+                            shareActivity.getResources().getQuantityString(R.plurals.copy_success, copied, copied,
                                     mFolder.label),
                     Toast.LENGTH_LONG).show();
-            if (isError) {
+            if (mCopier.getFailedCount() > 0) {
                 Toast.makeText(shareActivity, shareActivity.getString(R.string.copy_exception),
                         Toast.LENGTH_SHORT).show();
             }
@@ -25,25 +25,16 @@ import android.widget.Toast;
 
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.databinding.ActivityWebGuiBinding;
+import com.nutomic.syncthingandroid.http.PinnedCertificate;
 import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.service.SyncthingServiceBinder;
 import com.nutomic.syncthingandroid.util.ConfigXml;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SignatureException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.Map;
@@ -57,8 +48,6 @@ public class WebGuiActivity extends StateDialogActivity
 
     private static final String TAG = "WebGuiActivity";
 
-    private X509Certificate mCaCert;
-
     private ConfigXml mConfig;
 
     private ActivityWebGuiBinding binding;
@@ -74,21 +63,15 @@ public class WebGuiActivity extends StateDialogActivity
         @Override
         public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
             try {
-                // Use reflection to access the private mX509Certificate field of SslCertificate
-                SslCertificate sslCert = error.getCertificate();
-                Field f = sslCert.getClass().getDeclaredField("mX509Certificate");
-                f.setAccessible(true);
-                X509Certificate cert = (X509Certificate)f.get(sslCert);
+                X509Certificate cert = getX509Certificate(error.getCertificate());
                 if (cert == null) {
                     Log.w(TAG, "X509Certificate reference invalid");
                     handler.cancel();
                     return;
                 }
-                cert.verify(mCaCert.getPublicKey());
+                PinnedCertificate.get(WebGuiActivity.this).verify(cert);
                 handler.proceed();
-            } catch (NoSuchFieldException|IllegalAccessException|CertificateException|
-                    NoSuchAlgorithmException|InvalidKeyException|NoSuchProviderException|
-                    SignatureException e) {
+            } catch (NoSuchFieldException|IllegalAccessException|CertificateException e) {
                 Log.w(TAG, e);
                 handler.cancel();
             }
@@ -125,7 +108,10 @@ public class WebGuiActivity extends StateDialogActivity
         setContentView(binding.getRoot());
 
         mConfig = new ConfigXml(this);
-        loadCaCert();
+        if (!Constants.getHttpsCertFile(this).exists()) {
+            Toast.makeText(WebGuiActivity.this, R.string.config_file_missing, Toast.LENGTH_LONG).show();
+            finish();
+        }
 
         binding.webview.getSettings().setJavaScriptEnabled(true);
         binding.webview.getSettings().setDomStorageEnabled(true);
@@ -204,31 +190,17 @@ public class WebGuiActivity extends StateDialogActivity
     }
 
     /**
-     * Reads the SyncthingService.HTTPS_CERT_FILE Ca Cert key and loads it in memory
+     * Returns the certificate wrapped by sslCert, which is only public API since Android 10.
      */
-    private void loadCaCert() {
-        InputStream inStream = null;
-        File httpsCertFile = Constants.getHttpsCertFile(this);
-        if (!httpsCertFile.exists()) {
-            Toast.makeText(WebGuiActivity.this, R.string.config_file_missing, Toast.LENGTH_LONG).show();
-            finish();
-            return;
-        }
-        try {
-            inStream = new FileInputStream(httpsCertFile);
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            mCaCert = (X509Certificate)
-                    cf.generateCertificate(inStream);
-        } catch (FileNotFoundException|CertificateException e) {
-            throw new IllegalArgumentException("Untrusted Certificate", e);
-        } finally {
-            try {
-                if (inStream != null)
-                    inStream.close();
-            } catch (IOException e) {
-                Log.w(TAG, e);
-            }
+    private static X509Certificate getX509Certificate(SslCertificate sslCert)
+            throws NoSuchFieldException, IllegalAccessException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return sslCert.getX509Certificate();
         }
+        // Use reflection to access the private mX509Certificate field of SslCertificate
+        Field f = sslCert.getClass().getDeclaredField("mX509Certificate");
+        f.setAccessible(true);
+        return (X509Certificate) f.get(sslCert);
     }
 
     /**
@@ -13,17 +13,18 @@ import android.widget.ListView;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.activities.DeviceActivity;
 import com.nutomic.syncthingandroid.activities.SyncthingActivity;
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
+import com.nutomic.syncthingandroid.model.Connections;
 import com.nutomic.syncthingandroid.model.Device;
-import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.views.DevicesAdapter;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * Displays a list of all existing devices.
@@ -35,14 +36,22 @@ public class DeviceListFragment extends ListFragment implements SyncthingService
 
     private DevicesAdapter mAdapter;
 
-    private Timer mTimer;
+    /**
+     * {@link ConfigSnapshot#devicesVersion} of the config shown in the list.
+     */
+    private long mListedConfigVersion = -1;
+
+    /**
+     * Repository this fragment currently observes, or null.
+     */
+    private StatusRepository mStatusRepository;
+
+    private final RestApi.OnResultListener1<Connections> mConnectionsObserver = this::onReceiveConnections;
 
     @Override
     public void onPause() {
         super.onPause();
-        if (mTimer != null) {
-            mTimer.cancel();
-        }
+        stopObserving();
     }
 
     @Override
@@ -50,17 +59,34 @@ public class DeviceListFragment extends ListFragment implements SyncthingService
         if (currentState != SyncthingService.State.ACTIVE)
             return;
 
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (getActivity() == null)
-                    return;
+        SyncthingActivity activity = (SyncthingActivity) getActivity();
+        RestApi restApi = (activity != null) ? activity.getApi() : null;
+        if (restApi == null)
+            return;
 
-                getActivity().runOnUiThread(DeviceListFragment.this::updateList);
-            }
+        stopObserving();
+        // Snapshot versions restart with every RestApi instance.
+        mListedConfigVersion = -1;
+        updateList();
+        mStatusRepository = restApi.getStatusRepository();
+        mStatusRepository.connections().observe(mConnectionsObserver);
+    }
 
-        }, 0, Constants.GUI_UPDATE_INTERVAL);
+    private void stopObserving() {
+        if (mStatusRepository != null) {
+            mStatusRepository.connections().removeObserver(mConnectionsObserver);
+            mStatusRepository = null;
+        }
+    }
+
+    /**
+     * Refreshes the list on every connection update, which also picks up config changes.
+     */
+    private void onReceiveConnections(Connections connections) {
+        updateList();
+        if (mAdapter != null) {
+            mAdapter.setConnections(connections);
+        }
     }
 
     @Override
@@ -86,10 +112,18 @@ public class DeviceListFragment extends ListFragment implements SyncthingService
         if (restApi == null || !restApi.isConfigLoaded()) {
             return;
         }
-        List<Device> devices = restApi.getDevices(false);
-        if (devices == null) {
+        ConfigSnapshot config = restApi.getConfigSnapshot();
+        if (mAdapter != null && config.devicesVersion == mListedConfigVersion) {
             return;
         }
+        mListedConfigVersion = config.devicesVersion;
+        String localDeviceId = restApi.getLocalDeviceId();
+        List<Device> devices = new ArrayList<>();
+        for (Device device : config.getDevices()) {
+            if (!device.deviceID.equals(localDeviceId)) {
+                devices.add(device);
+            }
+        }
         if (mAdapter == null) {
             mAdapter = new DevicesAdapter(activity);
             setListAdapter(mAdapter);
@@ -100,7 +134,6 @@ public class DeviceListFragment extends ListFragment implements SyncthingService
         mAdapter.clear();
         Collections.sort(devices, DEVICES_COMPARATOR);
         mAdapter.addAll(devices);
-        mAdapter.updateConnections(restApi);
         mAdapter.notifyDataSetChanged();
         setListShown(true);
     }
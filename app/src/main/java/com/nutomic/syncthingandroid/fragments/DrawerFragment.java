@@ -24,8 +24,8 @@ import com.nutomic.syncthingandroid.http.ImageGetRequest;
 import com.nutomic.syncthingandroid.model.Connections;
 import com.nutomic.syncthingandroid.model.SystemInfo;
 import com.nutomic.syncthingandroid.model.SystemVersion;
-import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.util.Util;
 
@@ -33,8 +33,6 @@ import java.net.URL;
 import java.text.NumberFormat;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * Displays information about the local device.
@@ -50,19 +48,22 @@ public class DrawerFragment extends Fragment implements View.OnClickListener {
     private TextView mVersion;
     private TextView mExitButton;
 
-    private Timer mTimer;
+    private boolean mDrawerOpen = false;
+
+    /**
+     * Repository this fragment currently observes, or null.
+     */
+    private StatusRepository mStatusRepository;
+
+    private final RestApi.OnResultListener1<SystemInfo> mSystemInfoObserver = this::onReceiveSystemInfo;
+    private final RestApi.OnResultListener1<SystemVersion> mSystemVersionObserver = this::onReceiveSystemVersion;
+    private final RestApi.OnResultListener1<Connections> mConnectionsObserver = this::onReceiveConnections;
 
     private MainActivity mActivity;
 
     public void onDrawerOpened() {
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateGui();
-            }
-
-        }, 0, Constants.GUI_UPDATE_INTERVAL);
+        mDrawerOpen = true;
+        updateGui();
     }
 
     @Override
@@ -72,10 +73,8 @@ public class DrawerFragment extends Fragment implements View.OnClickListener {
     }
 
     public void onDrawerClosed() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer = null;
-        }
+        mDrawerOpen = false;
+        stopObserving();
     }
 
     @Override
@@ -133,11 +132,12 @@ public class DrawerFragment extends Fragment implements View.OnClickListener {
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putBoolean("active", mTimer != null);
+        outState.putBoolean("active", mDrawerOpen);
     }
 
     /**
-     * Invokes status callbacks.
+     * Starts observing status of the current RestApi instance, which invokes the status
+     * callbacks with the latest values.
      */
     private void updateGui() {
         MainActivity mainActivity = (MainActivity) getActivity();
@@ -149,18 +149,35 @@ public class DrawerFragment extends Fragment implements View.OnClickListener {
         }
 
         RestApi mApi = mainActivity.getApi();
-        if (mApi != null) {
-            mApi.getSystemInfo(this::onReceiveSystemInfo);
-            mApi.getSystemVersion(this::onReceiveSystemVersion);
-            mApi.getConnections(this::onReceiveConnections);
+        StatusRepository repository = (mApi != null) ? mApi.getStatusRepository() : null;
+        if (repository == mStatusRepository) {
+            return;
+        }
+        stopObserving();
+        if (repository != null) {
+            mStatusRepository = repository;
+            repository.systemInfo().observe(mSystemInfoObserver);
+            repository.systemVersion().observe(mSystemVersionObserver);
+            repository.connections().observe(mConnectionsObserver);
         }
     }
 
+    private void stopObserving() {
+        if (mStatusRepository == null) {
+            return;
+        }
+        mStatusRepository.systemInfo().removeObserver(mSystemInfoObserver);
+        mStatusRepository.systemVersion().removeObserver(mSystemVersionObserver);
+        mStatusRepository.connections().removeObserver(mConnectionsObserver);
+        mStatusRepository = null;
+    }
+
     /**
-     * This will not do anything if gui updates are already scheduled.
+     * Observes the current RestApi instance if the drawer is open. Otherwise this does
+     * nothing, as status is fetched once the drawer is opened.
      */
     public void requestGuiUpdate() {
-        if (mTimer == null) {
+        if (mDrawerOpen) {
             updateGui();
         }
     }
@@ -199,6 +216,8 @@ public class DrawerFragment extends Fragment implements View.OnClickListener {
      * Populates views with status received via {@link RestApi#getConnections}.
      */
     private void onReceiveConnections(Connections connections) {
+        if (getActivity() == null)
+            return;
         Connections.Connection c = connections.total;
         mDownload.setText(Util.readableTransferRate(mActivity, c.inBits));
         mUpload.setText(Util.readableTransferRate(mActivity, c.outBits));
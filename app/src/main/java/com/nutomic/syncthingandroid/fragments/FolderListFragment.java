@@ -12,15 +12,16 @@ import android.widget.AdapterView;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.activities.FolderActivity;
 import com.nutomic.syncthingandroid.activities.SyncthingActivity;
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
 import com.nutomic.syncthingandroid.model.Folder;
-import com.nutomic.syncthingandroid.service.Constants;
+import com.nutomic.syncthingandroid.model.FolderStatus;
 import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.views.FoldersAdapter;
 
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
 
 /**
  * Displays a list of all existing folders.
@@ -30,14 +31,23 @@ public class FolderListFragment extends ListFragment implements SyncthingService
 
     private FoldersAdapter mAdapter;
 
-    private Timer mTimer;
+    /**
+     * {@link ConfigSnapshot#foldersVersion} of the config shown in the list.
+     */
+    private long mListedConfigVersion = -1;
+
+    /**
+     * Repository this fragment currently observes, or null.
+     */
+    private StatusRepository mStatusRepository;
+
+    private final RestApi.OnResultListener1<Map<String, FolderStatus>> mFolderStatusObserver =
+            this::onReceiveFolderStatuses;
 
     @Override
     public void onPause() {
         super.onPause();
-        if (mTimer != null) {
-            mTimer.cancel();
-        }
+        stopObserving();
     }
 
     @Override
@@ -45,17 +55,34 @@ public class FolderListFragment extends ListFragment implements SyncthingService
         if (currentState != SyncthingService.State.ACTIVE)
             return;
 
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (getActivity() == null)
-                    return;
+        SyncthingActivity activity = (SyncthingActivity) getActivity();
+        RestApi restApi = (activity != null) ? activity.getApi() : null;
+        if (restApi == null)
+            return;
+
+        stopObserving();
+        // Snapshot versions restart with every RestApi instance.
+        mListedConfigVersion = -1;
+        updateList();
+        mStatusRepository = restApi.getStatusRepository();
+        mStatusRepository.folderStatuses().observe(mFolderStatusObserver);
+    }
 
-                getActivity().runOnUiThread(FolderListFragment.this::updateList);
-            }
+    private void stopObserving() {
+        if (mStatusRepository != null) {
+            mStatusRepository.folderStatuses().removeObserver(mFolderStatusObserver);
+            mStatusRepository = null;
+        }
+    }
 
-        }, 0, Constants.GUI_UPDATE_INTERVAL);
+    /**
+     * Refreshes the list on every status update, which also picks up config changes.
+     */
+    private void onReceiveFolderStatuses(Map<String, FolderStatus> folderStatuses) {
+        updateList();
+        if (mAdapter != null) {
+            mAdapter.setFolderStatuses(folderStatuses);
+        }
     }
 
     @Override
@@ -81,10 +108,12 @@ public class FolderListFragment extends ListFragment implements SyncthingService
         if (restApi == null || !restApi.isConfigLoaded()) {
             return;
         }
-        List<Folder> folders = restApi.getFolders();
-        if (folders == null) {
+        ConfigSnapshot config = restApi.getConfigSnapshot();
+        if (mAdapter != null && config.foldersVersion == mListedConfigVersion) {
             return;
         }
+        mListedConfigVersion = config.foldersVersion;
+        List<Folder> folders = config.getFolders();
         if (mAdapter == null) {
             mAdapter = new FoldersAdapter(activity);
             setListAdapter(mAdapter);
@@ -94,7 +123,6 @@ public class FolderListFragment extends ListFragment implements SyncthingService
         mAdapter.setNotifyOnChange(false);
         mAdapter.clear();
         mAdapter.addAll(folders);
-        mAdapter.updateFolderStatus(restApi);
         mAdapter.notifyDataSetChanged();
         setListShown(true);
     }
@@ -0,0 +1,553 @@
+package com.nutomic.syncthingandroid.http;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * HTTP client for the REST API of the local syncthing instance, shared by all {@link ApiRequest}s.
+ *
+ * There is one SSLContext and trust manager per process, so HttpURLConnection can keep TLS
+ * connections alive in its pool and resume TLS sessions when a new connection is needed.
+ * Event long-polls run on their own queue so they never hold up interactive requests.
+ * Responses are never cached.
+ *
+ * Responses are decoded on the network threads of the queues, which also limits how many are
+ * decoded at the same time. Only the decoded result is delivered to the main thread.
+ *
+ * Identical GET requests share a single network call while one of them is in flight, and
+ * responses of some paths are cached for a short time, see {@link #getCacheTtl}. Any other
+ * request clears the cache, as it may change what the API returns.
+ */
+public class ApiClient {
+
+    private static final String TAG = "ApiClient";
+
+    /**
+     * Number of network threads for interactive requests, matches Volley's default.
+     */
+    private static final int INTERACTIVE_THREADS = 4;
+
+    /**
+     * Only one event long-poll is open at any time.
+     */
+    private static final int EVENT_THREADS = 1;
+
+    /**
+     * Short enough that a screen polling at GUI_UPDATE_INTERVAL always gets a fresh response,
+     * but callers asking at about the same time share one.
+     */
+    private static final long CACHE_TTL = 2000;
+
+    /**
+     * Syncthing uses a self signed certificate for localhost, which is pinned by
+     * {@link SyncthingTrustManager} instead. This must be a single instance, as
+     * HttpURLConnection only reuses pooled connections with the same verifier.
+     */
+    private static final HostnameVerifier HOSTNAME_VERIFIER = (hostname, session) -> true;
+
+    private static ApiClient sInstance;
+
+    private final SSLSocketFactory mSslSocketFactory;
+    private final RequestQueue mInteractiveQueue;
+    private final RequestQueue mEventQueue;
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicLong mHandshakeCount = new AtomicLong();
+    private final AtomicLong mResumedHandshakeCount = new AtomicLong();
+    private final Stats mInteractiveStats = new Stats();
+    private final Stats mEventStats = new Stats();
+    private final Map<String, PathStats> mPathStats = new ConcurrentHashMap<>();
+
+    /**
+     * GET requests that other callers may join, by URL. Must be locked upon access.
+     */
+    private final Map<String, CoalescedRequest> mInFlightRequests = new HashMap<>();
+
+    /**
+     * Recent responses by URL. Must be locked upon access.
+     */
+    private final Map<String, CachedResponse> mCache = new HashMap<>();
+
+    /**
+     * Incremented whenever the cache is cleared, so responses to requests sent before are
+     * not cached.
+     */
+    private final AtomicLong mCacheGeneration = new AtomicLong();
+
+    /**
+     * Decodes cached responses, so they are never decoded on the main thread either.
+     */
+    private final ExecutorService mCacheExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mCacheMisses = new AtomicLong();
+    private final AtomicLong mCoalescedRequests = new AtomicLong();
+
+    private static class CachedResponse {
+        final String body;
+        final long time;
+
+        CachedResponse(String body, long time) {
+            this.body = body;
+            this.time = time;
+        }
+    }
+
+    public static ApiClient get(Context context) {
+        synchronized (ApiClient.class) {
+            if (sInstance == null) {
+                sInstance = new ApiClient(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private ApiClient(Context context) {
+        mSslSocketFactory = createSslSocketFactory(context);
+        NetworkStack stack = new NetworkStack();
+        mInteractiveQueue = new RequestQueue(new NoCache(),
+                new TimedNetwork(stack, mInteractiveStats), INTERACTIVE_THREADS);
+        mEventQueue = new RequestQueue(new NoCache(),
+                new TimedNetwork(stack, mEventStats), EVENT_THREADS);
+        mInteractiveQueue.start();
+        mEventQueue.start();
+    }
+
+    RequestQueue getInteractiveQueue() {
+        return mInteractiveQueue;
+    }
+
+    RequestQueue getEventQueue() {
+        return mEventQueue;
+    }
+
+    /**
+     * Returns the time in ms a GET response of the given path may be reused, or 0.
+     *
+     * Only responses that every caller decodes without side effects are cached. Connections
+     * are not, as each of them is a throughput sample, and folder status is requested after
+     * changes, so it must be fresh.
+     */
+    static long getCacheTtl(String path) {
+        switch (path) {
+            case GetRequest.URI_SYSTEM:
+            case GetRequest.URI_VERSION:
+                return CACHE_TTL;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns whether a GET of the given path may share the response of a request that was
+     * sent before.
+     */
+    static boolean isCoalescable(String path) {
+        switch (path) {
+            case GetRequest.URI_CONFIG:
+                // A config reload must see changes saved after an earlier request was answered.
+            case GetRequest.URI_STATUS:
+                // Requested after events that changed the folder, see getCacheTtl().
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Sends a request, unless a GET can be answered from the cache or by joining an identical
+     * request in flight.
+     */
+    void send(int method, String url, String path, String apiKey, @Nullable String body,
+              CoalescedRequest.Waiter waiter) {
+        if (method != Request.Method.GET) {
+            invalidateCache();
+            mInteractiveQueue.add(new CoalescedRequest(this, method, url, path, apiKey, body, waiter));
+            return;
+        }
+
+        long ttl = getCacheTtl(path);
+        if (ttl > 0) {
+            String cached = getCachedResponse(url, ttl);
+            if (cached != null) {
+                mCacheHits.incrementAndGet();
+                mCacheExecutor.execute(() -> mMainThreadHandler.post(waiter.onResponse(cached)));
+                return;
+            }
+            mCacheMisses.incrementAndGet();
+        }
+
+        CoalescedRequest request;
+        synchronized (mInFlightRequests) {
+            CoalescedRequest inFlight = mInFlightRequests.get(url);
+            if (inFlight != null && inFlight.addWaiter(waiter)) {
+                mCoalescedRequests.incrementAndGet();
+                return;
+            }
+            request = new CoalescedRequest(this, method, url, path, apiKey, null, waiter);
+            if (isCoalescable(path)) {
+                mInFlightRequests.put(url, request);
+            }
+        }
+        mInteractiveQueue.add(request);
+    }
+
+    /**
+     * Called when a request finished, before its response is decoded. Later callers can't join
+     * it anymore, but may get the cached response.
+     *
+     * @param body The response, or null if the request failed.
+     */
+    void onRequestFinished(CoalescedRequest request, @Nullable String body) {
+        String url = request.getUrl();
+        if (body != null && request.getMethod() == Request.Method.GET
+                && getCacheTtl(request.getPath()) > 0) {
+            synchronized (mCache) {
+                if (request.getCacheGeneration() == mCacheGeneration.get()) {
+                    mCache.put(url, new CachedResponse(body, SystemClock.elapsedRealtime()));
+                }
+            }
+        }
+        synchronized (mInFlightRequests) {
+            if (mInFlightRequests.get(url) == request) {
+                mInFlightRequests.remove(url);
+            }
+        }
+    }
+
+    private String getCachedResponse(String url, long ttl) {
+        synchronized (mCache) {
+            CachedResponse cached = mCache.get(url);
+            if (cached == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - cached.time >= ttl) {
+                mCache.remove(url);
+                return null;
+            }
+            return cached.body;
+        }
+    }
+
+    /**
+     * Called before a change is sent. Later GETs neither use cached responses nor join
+     * requests that were sent before the change.
+     */
+    void invalidateCache() {
+        synchronized (mCache) {
+            mCacheGeneration.incrementAndGet();
+            mCache.clear();
+        }
+        synchronized (mInFlightRequests) {
+            // The requests still answer their callers.
+            mInFlightRequests.clear();
+        }
+    }
+
+    long getCacheGeneration() {
+        return mCacheGeneration.get();
+    }
+
+    /**
+     * Returns timeout and retries for a request to the given path.
+     *
+     * The API is served from localhost, so a request that has not been answered within a few
+     * seconds is not going to succeed by retrying it many times.
+     */
+    static RetryPolicy getRetryPolicy(int method, String path) {
+        if (method != Request.Method.GET) {
+            // Posting config or actions is not necessarily idempotent.
+            return new DefaultRetryPolicy(10000, 0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+        }
+        switch (path) {
+            case "":
+                // Readiness check, the caller polls again on failure.
+                return new DefaultRetryPolicy(1000, 0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+            case GetRequest.URI_STATUS:
+            case GetRequest.URI_REPORT:
+                // Walks the database of the folder.
+                return new DefaultRetryPolicy(15000, 1, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+            default:
+                return new DefaultRetryPolicy(5000, 1, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+        }
+    }
+
+    private SSLSocketFactory createSslSocketFactory(Context context) {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{
+                    new SyncthingTrustManager(PinnedCertificate.get(context))},
+                    new SecureRandom());
+            return new CountingSocketFactory(sslContext.getSocketFactory());
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+    }
+
+    /**
+     * Records the time spent decoding a response of the given path on a network thread.
+     */
+    void recordParseTime(String path, long nanos) {
+        getPathStats(path).mParse.record(nanos);
+    }
+
+    /**
+     * Records the time spent delivering a response of the given path on the main thread.
+     */
+    void recordMainThreadTime(String path, long nanos) {
+        getPathStats(path).mMainThread.record(nanos);
+    }
+
+    private PathStats getPathStats(String path) {
+        PathStats stats = mPathStats.get(path);
+        if (stats == null) {
+            mPathStats.putIfAbsent(path, new PathStats());
+            stats = mPathStats.get(path);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a summary of connection and request counters, for display in debug settings.
+     */
+    public String getStatsSummary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.US,
+                "connections=%d, handshakes=%d (resumed %d)\ninteractive: %s\nevents: %s\n"
+                        + "cache hits=%d, misses=%d, coalesced=%d",
+                mConnectionCount.get(), mHandshakeCount.get(), mResumedHandshakeCount.get(),
+                mInteractiveStats, mEventStats, mCacheHits.get(), mCacheMisses.get(),
+                mCoalescedRequests.get()));
+        for (Map.Entry<String, PathStats> e : new TreeMap<>(mPathStats).entrySet()) {
+            summary.append('\n').append(e.getKey().isEmpty() ? "/" : e.getKey())
+                    .append(": ").append(e.getValue());
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Request counters of a queue.
+     */
+    private static class Stats {
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        private final AtomicLong mTotalLatency = new AtomicLong();
+        private final AtomicLong mMaxLatency = new AtomicLong();
+
+        private void record(long latency, boolean success) {
+            mRequests.incrementAndGet();
+            if (!success) {
+                mFailures.incrementAndGet();
+            }
+            mTotalLatency.addAndGet(latency);
+            long max;
+            do {
+                max = mMaxLatency.get();
+            } while (latency > max && !mMaxLatency.compareAndSet(max, latency));
+        }
+
+        @Override
+        public String toString() {
+            long requests = mRequests.get();
+            long average = (requests > 0) ? mTotalLatency.get() / requests : 0;
+            return String.format(Locale.US, "requests=%d, failed=%d, avg=%d ms, max=%d ms",
+                    requests, mFailures.get(), average, mMaxLatency.get());
+        }
+    }
+
+    /**
+     * Count, total and maximum of a duration in nanoseconds.
+     */
+    private static class Timer {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private void record(long nanos) {
+            mCount.incrementAndGet();
+            mTotal.addAndGet(nanos);
+            long max;
+            do {
+                max = mMax.get();
+            } while (nanos > max && !mMax.compareAndSet(max, nanos));
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            long average = (count > 0) ? mTotal.get() / count : 0;
+            return String.format(Locale.US, "n=%d, avg=%.1f ms, max=%.1f ms", count,
+                    average / (double) TimeUnit.MILLISECONDS.toNanos(1),
+                    mMax.get() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Where the time handling the responses of an API path was spent.
+     */
+    private static class PathStats {
+        private final Timer mParse = new Timer();
+        private final Timer mMainThread = new Timer();
+
+        @Override
+        public String toString() {
+            return "parse " + mParse + ", main thread " + mMainThread;
+        }
+    }
+
+    /**
+     * Records the latency of each request including reading the response body.
+     */
+    private static class TimedNetwork extends BasicNetwork {
+        private final Stats mStats;
+
+        TimedNetwork(BaseHttpStack stack, Stats stats) {
+            super(stack);
+            mStats = stats;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            long start = SystemClock.elapsedRealtime();
+            boolean success = false;
+            try {
+                NetworkResponse response = super.performRequest(request);
+                success = true;
+                return response;
+            } finally {
+                mStats.record(SystemClock.elapsedRealtime() - start, success);
+            }
+        }
+    }
+
+    /**
+     * Extends {@link HurlStack}, uses the shared socket factory and disables hostname
+     * verification.
+     */
+    private class NetworkStack extends HurlStack {
+
+        NetworkStack() {
+            super(null, mSslSocketFactory);
+        }
+
+        @Override
+        protected HttpURLConnection createConnection(URL url) throws IOException {
+            HttpURLConnection connection = super.createConnection(url);
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setHostnameVerifier(HOSTNAME_VERIFIER);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Counts new connections and TLS handshakes, including those that resumed a session.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            mConnectionCount.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                long createdTime = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(event -> {
+                    mHandshakeCount.incrementAndGet();
+                    // A resumed session was created by an earlier connection.
+                    if (event.getSession().getCreationTime() < createdTime) {
+                        mResumedHandshakeCount.incrementAndGet();
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return count(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return count(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return count(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -4,35 +4,33 @@ package com.nutomic.syncthingandroid.http;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.RequestQueue;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.ImageRequest;
+import com.android.volley.toolbox.RequestFuture;
 import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
-import com.nutomic.syncthingandroid.service.Constants;
+import com.google.common.collect.Multimap;
 
-import java.io.File;
-import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Map;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class ApiRequest {
 
@@ -41,12 +39,35 @@ public abstract class ApiRequest {
     /**
      * The name of the HTTP header used for the syncthing API key.
      */
-    private static final String HEADER_API_KEY = "X-API-Key";
+    static final String HEADER_API_KEY = "X-API-Key";
+
+    /**
+     * Additional time in ms {@link #connectBlocking} waits for Volley to deliver a response
+     * after the request timeout elapsed.
+     */
+    private static final int BLOCKING_REQUEST_GRACE_MS = 5000;
 
     public interface OnSuccessListener {
         void onSuccess(String result);
     }
 
+    /**
+     * Decodes a response body into the object delivered to {@link OnParsedListener}.
+     *
+     * Called on a network thread, so expensive work like parsing JSON and updating thread safe
+     * models belongs here. A RuntimeException is delivered to the OnErrorListener.
+     */
+    public interface ResponseParser<T> {
+        T parse(String response);
+    }
+
+    /**
+     * Receives the result of a {@link ResponseParser} on the main thread.
+     */
+    public interface OnParsedListener<T> {
+        void onParsed(T result);
+    }
+
     public interface OnImageSuccessListener {
         void onImageSuccess(Bitmap result);
     }
@@ -55,16 +76,6 @@ public abstract class ApiRequest {
         void onError(VolleyError error);
     }
 
-    private static RequestQueue sVolleyQueue;
-
-    private RequestQueue getVolleyQueue() {
-        if (sVolleyQueue == null) {
-            Context context = mContext.getApplicationContext();
-            sVolleyQueue = Volley.newRequestQueue(context, new NetworkStack());
-        }
-        return sVolleyQueue;
-    }
-
     private final Context mContext;
     private final URL mUrl;
     private final String mPath;
@@ -87,6 +98,19 @@ public abstract class ApiRequest {
         return uriBuilder.build();
     }
 
+    /**
+     * Like {@link #buildUri(Map)}, for parameters that are given more than once.
+     */
+    Uri buildUri(Multimap<String, String> params) {
+        Uri.Builder uriBuilder = Uri.parse(mUrl.toString())
+                .buildUpon()
+                .path(mPath);
+        for (Map.Entry<String, String> entry : params.entries()) {
+            uriBuilder.appendQueryParameter(entry.getKey(), entry.getValue());
+        }
+        return uriBuilder.build();
+    }
+
     /**
      * Opens the connection, then returns success status and response string.
      */
@@ -95,7 +119,10 @@ public abstract class ApiRequest {
         Log.v(TAG, "Performing request to " + uri.toString());
         StringRequest request = new StringRequest(requestMethod, uri.toString(), reply -> {
             if (listener != null) {
+                long start = SystemClock.elapsedRealtimeNanos();
                 listener.onSuccess(reply);
+                ApiClient.get(mContext).recordMainThreadTime(mPath,
+                        SystemClock.elapsedRealtimeNanos() - start);
             }
         }, error -> {
             if (errorListener != null) {
@@ -115,11 +142,105 @@ public abstract class ApiRequest {
             }
         };
 
-        // Some requests seem to be slow or fail, make sure this doesn't break the app
-        // (eg if an event request fails, new event requests won't be triggered).
-        request.setRetryPolicy(new DefaultRetryPolicy(5000, 5,
+        request.setRetryPolicy(ApiClient.getRetryPolicy(requestMethod, mPath));
+        if (requestMethod != Request.Method.GET) {
+            ApiClient.get(mContext).invalidateCache();
+        }
+        ApiClient.get(mContext).getInteractiveQueue().add(request);
+    }
+
+    /**
+     * Opens the connection, decodes the response with parser on a network thread and delivers
+     * the result on the main thread.
+     *
+     * GET requests may be answered from a response cached by {@link ApiClient}, or share the
+     * response of an identical request in flight.
+     */
+    <T> void connect(int requestMethod, Uri uri, @Nullable String requestBody,
+                     ResponseParser<T> parser, @Nullable OnParsedListener<T> listener,
+                     @Nullable OnErrorListener errorListener) {
+        Log.v(TAG, "Performing request to " + uri.toString());
+        ApiClient client = ApiClient.get(mContext);
+        CoalescedRequest.Waiter waiter = new CoalescedRequest.Waiter() {
+            @Override
+            public Runnable onResponse(String response) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                T result;
+                try {
+                    result = parser.parse(response);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to parse response of " + uri, e);
+                    ParseError error = new ParseError(e);
+                    return () -> onError(error);
+                } finally {
+                    client.recordParseTime(mPath, SystemClock.elapsedRealtimeNanos() - start);
+                }
+                return () -> {
+                    if (listener != null) {
+                        long deliveryStart = SystemClock.elapsedRealtimeNanos();
+                        listener.onParsed(result);
+                        client.recordMainThreadTime(mPath,
+                                SystemClock.elapsedRealtimeNanos() - deliveryStart);
+                    }
+                };
+            }
+
+            @Override
+            public void onError(VolleyError error) {
+                if (errorListener != null) {
+                    errorListener.onError(error);
+                } else {
+                    Log.w(TAG, "Request to " + uri + " failed, " + error.getMessage());
+                }
+            }
+        };
+        client.send(requestMethod, uri.toString(), mPath, mApiKey, requestBody, waiter);
+    }
+
+    /**
+     * Opens the connection and blocks the calling thread until the response body arrived.
+     *
+     * The body is returned undecoded, so callers can parse it incrementally instead of building
+     * an intermediate String. Volley delivers the response on the main thread, so this must never
+     * be called from there.
+     *
+     * @param timeoutMs Time the server may take to answer, e.g. while holding a long-poll open.
+     */
+    InputStream connectBlocking(int requestMethod, Uri uri, int timeoutMs)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Log.v(TAG, "Performing blocking request to " + uri.toString());
+        RequestFuture<byte[]> future = RequestFuture.newFuture();
+        Request<byte[]> request = new Request<byte[]>(requestMethod, uri.toString(), future) {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response));
+            }
+
+            @Override
+            protected void deliverResponse(byte[] response) {
+                future.onResponse(response);
+            }
+
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                return ImmutableMap.of(HEADER_API_KEY, mApiKey);
+            }
+        };
+
+        // Don't retry, the caller decides when to poll again. HurlStack uses the same timeout for
+        // reading, so the pooled keep-alive connection stays open for the whole long-poll.
+        request.setRetryPolicy(new DefaultRetryPolicy(timeoutMs, 0,
                 DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
-        getVolleyQueue().add(request);
+        request.setShouldCache(false);
+        future.setRequest(request);
+        ApiClient.get(mContext).getEventQueue().add(request);
+        try {
+            return new ByteArrayInputStream(
+                    future.get(timeoutMs + BLOCKING_REQUEST_GRACE_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException | TimeoutException e) {
+            request.cancel();
+            throw e;
+        }
     }
 
     /**
@@ -143,39 +264,7 @@ public abstract class ApiRequest {
             }
         };
 
-        getVolleyQueue().add(imageRequest);
-    }
-
-    /**
-     * Extends {@link HurlStack}, uses {@link #getSslSocketFactory()} and disables hostname
-     * verification.
-     */
-    private class NetworkStack extends HurlStack {
-
-        public NetworkStack() {
-            super(null, getSslSocketFactory());
-        }
-        @Override
-        protected HttpURLConnection createConnection(URL url) throws IOException {
-            if (mUrl.toString().startsWith("https://")) {
-                HttpsURLConnection connection = (HttpsURLConnection) super.createConnection(url);
-                connection.setHostnameVerifier((hostname, session) -> true);
-                return connection;
-            }
-            return super.createConnection(url);
-        }
-    }
-
-    private SSLSocketFactory getSslSocketFactory() {
-        try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            File httpsCertPath = Constants.getHttpsCertFile(mContext);
-            sslContext.init(null, new TrustManager[]{new SyncthingTrustManager(httpsCertPath)},
-                    new SecureRandom());
-            return sslContext.getSocketFactory();
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            Log.w(TAG, e);
-            return null;
-        }
+        imageRequest.setRetryPolicy(ApiClient.getRetryPolicy(Request.Method.GET, mPath));
+        ApiClient.get(mContext).getInteractiveQueue().add(imageRequest);
     }
 }
@@ -0,0 +1,150 @@
+package com.nutomic.syncthingandroid.http;
+
+import androidx.annotation.Nullable;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request whose response is decoded separately for each caller waiting for it.
+ *
+ * {@link ApiClient} lets callers asking for the same URI join a GET request while it is in
+ * flight, so they all share a single network call.
+ */
+class CoalescedRequest extends Request<List<Runnable>> {
+
+    /**
+     * A caller waiting for the response.
+     */
+    interface Waiter {
+        /**
+         * Decodes the response on a network thread.
+         *
+         * @return Delivers the decoded result, is run on the main thread.
+         */
+        Runnable onResponse(String response);
+
+        /**
+         * Called on the main thread if the request failed.
+         */
+        void onError(VolleyError error);
+    }
+
+    private final ApiClient mClient;
+    private final String mPath;
+    private final String mApiKey;
+    @Nullable private final String mBody;
+
+    /**
+     * {@link ApiClient#getCacheGeneration} when the request was created.
+     */
+    private final long mCacheGeneration;
+
+    /**
+     * Must be locked upon access, together with mClosed.
+     */
+    private final List<Waiter> mWaiters = new ArrayList<>();
+    private boolean mClosed = false;
+
+    CoalescedRequest(ApiClient client, int method, String url, String path, String apiKey,
+                     @Nullable String body, Waiter waiter) {
+        super(method, url, null);
+        mClient = client;
+        mPath = path;
+        mApiKey = apiKey;
+        mCacheGeneration = client.getCacheGeneration();
+        mBody = body;
+        mWaiters.add(waiter);
+        setRetryPolicy(ApiClient.getRetryPolicy(method, path));
+        setShouldCache(false);
+    }
+
+    String getPath() {
+        return mPath;
+    }
+
+    long getCacheGeneration() {
+        return mCacheGeneration;
+    }
+
+    /**
+     * Adds another caller, unless the response is being delivered already.
+     *
+     * @return False if the waiter was not added and needs a new request.
+     */
+    boolean addWaiter(Waiter waiter) {
+        synchronized (mWaiters) {
+            if (mClosed) {
+                return false;
+            }
+            mWaiters.add(waiter);
+            return true;
+        }
+    }
+
+    private List<Waiter> close() {
+        synchronized (mWaiters) {
+            mClosed = true;
+            return new ArrayList<>(mWaiters);
+        }
+    }
+
+    @Override
+    protected Response<List<Runnable>> parseNetworkResponse(NetworkResponse response) {
+        String body = decodeBody(response);
+        mClient.onRequestFinished(this, body);
+        List<Runnable> deliveries = new ArrayList<>();
+        for (Waiter waiter : close()) {
+            deliveries.add(waiter.onResponse(body));
+        }
+        return Response.success(deliveries, null);
+    }
+
+    @Override
+    protected void deliverResponse(List<Runnable> deliveries) {
+        for (Runnable delivery : deliveries) {
+            delivery.run();
+        }
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+        mClient.onRequestFinished(this, null);
+        for (Waiter waiter : close()) {
+            waiter.onError(error);
+        }
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return ImmutableMap.of(ApiRequest.HEADER_API_KEY, mApiKey);
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return Optional.fromNullable(mBody).transform(String::getBytes).orNull();
+    }
+
+    /**
+     * Decodes the body with the charset from the response headers, like
+     * {@link com.android.volley.toolbox.StringRequest}.
+     */
+    private static String decodeBody(NetworkResponse response) {
+        try {
+            return new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            return new String(response.data);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.nutomic.syncthingandroid.http;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.Nullable;
+
+import java.net.URL;
+import java.util.Collections;
+
+/**
+ * Replaces or deletes part of the config, so only the changed objects have to be sent instead
+ * of the whole config.
+ */
+public class ConfigRequest extends ApiRequest {
+
+    public static final String URI_CONFIG_FOLDERS = "/rest/config/folders";
+    public static final String URI_CONFIG_DEVICES = "/rest/config/devices";
+
+    /**
+     * @param path   One of the URIs above, optionally followed by "/" and an object id.
+     * @param method {@link com.android.volley.Request.Method#PUT} to replace, or
+     *               {@link com.android.volley.Request.Method#DELETE} to remove the object.
+     */
+    public ConfigRequest(Context context, URL url, String path, String apiKey, int method,
+                         @Nullable String body, @Nullable OnSuccessListener listener,
+                         @Nullable OnErrorListener errorListener) {
+        super(context, url, path, apiKey);
+        Uri uri = buildUri(Collections.emptyMap());
+        connect(method, uri, body, listener, errorListener);
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.nutomic.syncthingandroid.http;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.android.volley.Request;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Performs a blocking long-poll GET request to {@link GetRequest#URI_EVENTS}.
+ *
+ * Syncthing holds the request open until new events are available or the timeout expires, so
+ * this must only be used from a background thread.
+ */
+public class EventPollRequest extends ApiRequest {
+
+    /**
+     * Time in seconds the read timeout exceeds the long-poll timeout, so an empty response
+     * is not mistaken for a dead connection.
+     */
+    private static final int READ_TIMEOUT_MARGIN = 10;
+
+    public EventPollRequest(Context context, URL url, String apiKey) {
+        super(context, url, GetRequest.URI_EVENTS, apiKey);
+    }
+
+    /**
+     * Returns the events with an id greater than sinceId, waiting up to timeoutS seconds
+     * for new events to arrive if there are none yet.
+     *
+     * @return The JSON array of events, to be decoded by the caller.
+     */
+    public InputStream poll(long sinceId, long limit, int timeoutS)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Uri uri = buildUri(ImmutableMap.of(
+                "since", String.valueOf(sinceId),
+                "limit", String.valueOf(limit),
+                "timeout", String.valueOf(timeoutS)));
+        int timeoutMs = (int) TimeUnit.SECONDS.toMillis(timeoutS + READ_TIMEOUT_MARGIN);
+        return connectBlocking(Request.Method.GET, uri, timeoutMs);
+    }
+
+}
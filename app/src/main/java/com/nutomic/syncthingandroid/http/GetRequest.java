@@ -34,4 +34,17 @@ public class GetRequest extends ApiRequest {
         connect(Request.Method.GET, uri, null, listener, null);
     }
 
+    /**
+     * Decodes the response with parser on a network thread, and delivers only the result to
+     * listener on the main thread.
+     */
+    public <T> GetRequest(Context context, URL url, String path, String apiKey,
+                          @Nullable Map<String, String> params, ResponseParser<T> parser,
+                          OnParsedListener<T> listener) {
+        super(context, url, path, apiKey);
+        Map<String, String> safeParams = Optional.fromNullable(params).or(Collections.emptyMap());
+        Uri uri = buildUri(safeParams);
+        connect(Request.Method.GET, uri, null, parser, listener, null);
+    }
+
 }
@@ -0,0 +1,157 @@
+package com.nutomic.syncthingandroid.http;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.io.BaseEncoding;
+import com.nutomic.syncthingandroid.service.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The https certificate of the local syncthing instance, which all connections to it are
+ * checked against. Used by {@link SyncthingTrustManager} and the web GUI.
+ *
+ * The certificate is read from disk once and again only if the file's modification time or size
+ * changed. A peer certificate is trusted if its public key matches the pinned one by SHA-256, or
+ * else if it is signed by the pinned certificate. The result is memoized per peer certificate,
+ * so repeated handshakes neither hit the disk nor verify signatures.
+ */
+public class PinnedCertificate {
+
+    private static final String TAG = "PinnedCertificate";
+
+    /**
+     * Number of peer certificates whose verification result is kept. Syncthing only ever
+     * presents one certificate at a time, this leaves room for a regenerated one.
+     */
+    private static final int MAX_MEMOIZED_RESULTS = 8;
+
+    private static PinnedCertificate sInstance;
+
+    private final File mCertFile;
+
+    /**
+     * Object that must be locked upon accessing the fields below.
+     */
+    private final Object mLock = new Object();
+
+    private X509Certificate mCert;
+    private byte[] mPublicKeyHash;
+    private long mCertModified;
+    private long mCertSize;
+
+    /**
+     * Verification results by SHA-256 of the encoded peer certificate, for the current mCert.
+     */
+    private final Map<String, Boolean> mVerified =
+            new LinkedHashMap<String, Boolean>(MAX_MEMOIZED_RESULTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_MEMOIZED_RESULTS;
+                }
+            };
+
+    public static PinnedCertificate get(Context context) {
+        synchronized (PinnedCertificate.class) {
+            if (sInstance == null) {
+                sInstance = new PinnedCertificate(Constants.getHttpsCertFile(context));
+            }
+            return sInstance;
+        }
+    }
+
+    private PinnedCertificate(File certFile) {
+        mCertFile = certFile;
+    }
+
+    /**
+     * Throws if the given certificate does not belong to the local syncthing instance.
+     */
+    public void verify(X509Certificate peer) throws CertificateException {
+        String fingerprint = BaseEncoding.base16().encode(sha256(peer.getEncoded()));
+        X509Certificate cert;
+        byte[] publicKeyHash;
+        synchronized (mLock) {
+            reloadIfChanged();
+            Boolean verified = mVerified.get(fingerprint);
+            if (verified != null) {
+                if (!verified) {
+                    throw new CertificateException("Untrusted Certificate!");
+                }
+                return;
+            }
+            cert = mCert;
+            publicKeyHash = mPublicKeyHash;
+        }
+
+        boolean verified = verify(peer, cert, publicKeyHash);
+        synchronized (mLock) {
+            // Don't memoize a result for a certificate that was replaced meanwhile.
+            if (cert == mCert) {
+                mVerified.put(fingerprint, verified);
+            }
+        }
+        if (!verified) {
+            throw new CertificateException("Untrusted Certificate!");
+        }
+    }
+
+    private static boolean verify(X509Certificate peer, X509Certificate cert, byte[] publicKeyHash)
+            throws CertificateException {
+        if (Arrays.equals(sha256(peer.getPublicKey().getEncoded()), publicKeyHash)) {
+            return true;
+        }
+        try {
+            peer.verify(cert.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Certificate not signed by syncthing: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads the certificate if it was not read yet or the file changed. Must be called with
+     * mLock held.
+     */
+    private void reloadIfChanged() throws CertificateException {
+        long modified = mCertFile.lastModified();
+        long size = mCertFile.length();
+        if (mCert != null && modified == mCertModified && size == mCertSize) {
+            return;
+        }
+        try (InputStream is = new FileInputStream(mCertFile)) {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            mCert = (X509Certificate) cf.generateCertificate(is);
+        } catch (IOException e) {
+            mCert = null;
+            throw new CertificateException("Failed to read " + mCertFile, e);
+        }
+        mPublicKeyHash = sha256(mCert.getPublicKey().getEncoded());
+        mCertModified = modified;
+        mCertSize = size;
+        mVerified.clear();
+        Log.v(TAG, "Loaded certificate from " + mCertFile);
+    }
+
+    private static byte[] sha256(byte[] data) throws CertificateException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+    }
+}
@@ -15,15 +15,19 @@ import java.util.Collections;
 
 /**
  * Polls to load the web interface, until it is available.
+ *
+ * The service calls {@link #pollNow} as soon as the binary reports that the API is listening,
+ * so polling is only a fallback. The interval between attempts is doubled after each failure.
  */
 public class PollWebGuiAvailableTask extends ApiRequest {
 
     private static final String TAG = "PollWebGuiAvailableTask";
     /**
-     * Interval in ms, at which connections to the web gui are performed on first start
-     * to find out if it's online.
+     * Initial and maximum interval in ms, at which connections to the web gui are performed
+     * on start to find out if it's online.
      */
     private static final long WEB_GUI_POLL_INTERVAL = 100;
+    private static final long WEB_GUI_POLL_INTERVAL_MAX = 3200;
 
     private final Handler mHandler = new Handler();
 
@@ -31,6 +35,16 @@ public class PollWebGuiAvailableTask extends ApiRequest {
 
     private Integer logIncidence = 0;
 
+    private long mPollInterval = WEB_GUI_POLL_INTERVAL;
+    private final Runnable mPollRunnable = this::performRequest;
+
+    /**
+     * True while a request is in flight, and whether to retry immediately if it fails.
+     * Only accessed from the main thread.
+     */
+    private boolean mRequestPending = false;
+    private boolean mRetryImmediately = false;
+
     /**
      * Object that must be locked upon accessing mListener
      */
@@ -48,14 +62,33 @@ public class PollWebGuiAvailableTask extends ApiRequest {
         synchronized(mListenerLock) {
             mListener = null;
         }
+        mHandler.removeCallbacks(mPollRunnable);
+    }
+
+    /**
+     * Checks availability right away instead of waiting for the next poll, because the web
+     * gui is expected to be online now. Must be called from the main thread.
+     */
+    public void pollNow() {
+        mPollInterval = WEB_GUI_POLL_INTERVAL;
+        if (mRequestPending) {
+            // The pending request may have been sent before the gui was listening.
+            mRetryImmediately = true;
+            return;
+        }
+        mHandler.removeCallbacks(mPollRunnable);
+        performRequest();
     }
 
     private void performRequest() {
+        mRequestPending = true;
+        mRetryImmediately = false;
         Uri uri = buildUri(Collections.emptyMap());
         connect(Request.Method.GET, uri, null, this::onSuccess, this::onError);
     }
 
     private void onSuccess(String result) {
+        mRequestPending = false;
         synchronized(mListenerLock) {
             if (mListener != null) {
                 mListener.onSuccess(result);
@@ -66,6 +99,7 @@ public class PollWebGuiAvailableTask extends ApiRequest {
     }
 
     private void onError(VolleyError error) {
+        mRequestPending = false;
         synchronized(mListenerLock) {
             if (mListener == null) {
                 Log.v(TAG, "Cancelled callback and outstanding requests");
@@ -73,7 +107,12 @@ public class PollWebGuiAvailableTask extends ApiRequest {
             }
         }
 
-        mHandler.postDelayed(this::performRequest, WEB_GUI_POLL_INTERVAL);
+        if (mRetryImmediately) {
+            performRequest();
+        } else {
+            mHandler.postDelayed(mPollRunnable, mPollInterval);
+            mPollInterval = Math.min(mPollInterval * 2, WEB_GUI_POLL_INTERVAL_MAX);
+        }
         Throwable cause = error.getCause();
         if (cause == null || cause.getClass().equals(ConnectException.class)) {
             // Reduce lag caused by massively logging the same line while waiting.
@@ -3,6 +3,8 @@ package com.nutomic.syncthingandroid.http;
 import android.content.Context;
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
+
 import com.android.volley.Request;
 
 import java.net.URL;
@@ -13,10 +15,11 @@ public class PostConfigRequest extends ApiRequest {
     private static final String URI_CONFIG = "/rest/system/config";
 
     public PostConfigRequest(Context context, URL url, String apiKey, String config,
-                             OnSuccessListener listener) {
+                             @Nullable OnSuccessListener listener,
+                             @Nullable OnErrorListener errorListener) {
         super(context, url, URI_CONFIG, apiKey);
         Uri uri = buildUri(Collections.emptyMap());
-        connect(Request.Method.POST, uri, config, listener, null);
+        connect(Request.Method.POST, uri, config, listener, errorListener);
     }
 
 }
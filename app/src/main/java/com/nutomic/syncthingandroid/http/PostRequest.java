@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 
 import com.android.volley.Request;
 import com.google.common.base.Optional;
+import com.google.common.collect.Multimap;
 
 import java.net.URL;
 import java.util.Collections;
@@ -14,13 +15,31 @@ import java.util.Map;
 public class PostRequest extends ApiRequest {
 
     public static final String URI_DB_OVERRIDE = "/rest/db/override";
+    public static final String URI_DB_SCAN = "/rest/db/scan";
+    public static final String URI_SYSTEM_RESTART = "/rest/system/restart";
+    public static final String URI_SYSTEM_SHUTDOWN = "/rest/system/shutdown";
 
     public PostRequest(Context context, URL url, String path, String apiKey,
         	           @Nullable Map<String, String> params, OnSuccessListener listener) {
+        this(context, url, path, apiKey, params, listener, null);
+    }
+
+    public PostRequest(Context context, URL url, String path, String apiKey,
+                       @Nullable Map<String, String> params, @Nullable OnSuccessListener listener,
+                       @Nullable OnErrorListener errorListener) {
         super(context, url, path, apiKey);
         Map<String, String> safeParams = Optional.fromNullable(params).or(Collections.emptyMap());
         Uri uri = buildUri(safeParams);
-        connect(Request.Method.POST, uri, null, listener, null);
+        connect(Request.Method.POST, uri, null, listener, errorListener);
+    }
+
+    /**
+     * For parameters that are given more than once, e.g. several "sub" paths of a scan.
+     */
+    public PostRequest(Context context, URL url, String path, String apiKey,
+                       Multimap<String, String> params) {
+        super(context, url, path, apiKey);
+        connect(Request.Method.POST, buildUri(params), null, null, null);
     }
 
 }
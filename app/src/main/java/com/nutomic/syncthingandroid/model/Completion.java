@@ -4,101 +4,173 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class caches remote folder and device synchronization
  * completion indicators defined in {@link CompletionInfo#CompletionInfo}
  * according to syncthing's REST "/completion" JSON result schema.
  * Completion model of syncthing's web UI is completion[deviceId][folderId]
+ *
+ * Sums over the folders of each device are updated along with every change, so device
+ * completion is available in constant time. All methods are thread safe, as the model is
+ * updated from event callbacks and read while processing API responses.
  */
 public class Completion {
 
     private static final String TAG = "Completion";
 
-    HashMap<String, HashMap<String, CompletionInfo>> deviceFolderMap =
-        new HashMap<String, HashMap<String, CompletionInfo>>();
-
     /**
-     * Removes a folder from the cache model.
+     * Completion of all folders shared with a device, and running sums over them.
      */
-    private void removeFolder(String folderId) {
-        for (HashMap<String, CompletionInfo> folderMap : deviceFolderMap.values()) {
-            if (folderMap.containsKey(folderId)) {
-                folderMap.remove(folderId);
-                break;
+    private static class DeviceCompletion {
+        final Map<String, CompletionInfo> folders = new HashMap<>();
+        double sumCompletion = 0;
+        long globalBytes = 0;
+        long needBytes = 0;
+
+        void add(CompletionInfo info) {
+            sumCompletion += info.completion;
+            globalBytes += info.globalBytes;
+            needBytes += info.needBytes;
+        }
+
+        void subtract(CompletionInfo info) {
+            sumCompletion -= info.completion;
+            globalBytes -= info.globalBytes;
+            needBytes -= info.needBytes;
+        }
+
+        void put(String folderId, CompletionInfo info) {
+            CompletionInfo previous = folders.put(folderId, info);
+            if (previous != null) {
+                subtract(previous);
+            }
+            add(info);
+        }
+
+        void remove(String folderId) {
+            CompletionInfo previous = folders.remove(folderId);
+            if (previous != null) {
+                subtract(previous);
+            }
+            if (folders.isEmpty()) {
+                // Avoid accumulating floating point errors.
+                sumCompletion = 0;
             }
         }
     }
 
+    /**
+     * Object that must be locked upon accessing mDevices.
+     */
+    private final Object mLock = new Object();
+
+    private final Map<String, DeviceCompletion> mDevices = new HashMap<>();
+
     /**
      * Updates device and folder information in the cache model
      * after a config update.
+     *
+     * Devices and folder shares that are no longer in the config are removed, new ones are
+     * added as complete until an event tells otherwise.
      */
     public void updateFromConfig(List<Device> newDevices, List<Folder> newFolders) {
-        HashMap<String, CompletionInfo> folderMap;
-
-        // Handle devices that were removed from the config.
-        List<String> removedDevices = new ArrayList<>();;
-        Boolean deviceFound;
-        for (String deviceId : deviceFolderMap.keySet()) {
-            deviceFound = false;
-            for (Device device : newDevices) {
-                if (device.deviceID.equals(deviceId)) {
-                    deviceFound = true;
-                    break;
+        // Folders shared with each device, according to the new config.
+        Map<String, Set<String>> shares = new HashMap<>();
+        for (Device device : newDevices) {
+            shares.put(device.deviceID, new HashSet<>());
+        }
+        for (Folder folder : newFolders) {
+            for (Folder.Device device : folder.getDevices()) {
+                Set<String> folders = shares.get(device.deviceID);
+                if (folders != null) {
+                    folders.add(folder.id);
                 }
             }
-            if (!deviceFound) {
-                removedDevices.add(deviceId);
-            }
-        }
-        for (String deviceId : removedDevices) {
-            Log.v(TAG, "updateFromConfig: Remove device '" + deviceId + "' from cache model");
-            deviceFolderMap.remove(deviceId);
         }
 
-        // Handle devices that were added to the config.
-        for (Device device : newDevices) {
-            if (!deviceFolderMap.containsKey(device.deviceID)) {
-                Log.v(TAG, "updateFromConfig: Add device '" + device.deviceID + "' to cache model");
-                deviceFolderMap.put(device.deviceID, new HashMap<String, CompletionInfo>());
+        synchronized (mLock) {
+            // Handle devices that were removed from the config.
+            for (Iterator<String> it = mDevices.keySet().iterator(); it.hasNext(); ) {
+                String deviceId = it.next();
+                if (!shares.containsKey(deviceId)) {
+                    Log.v(TAG, "updateFromConfig: Remove device '" + deviceId + "' from cache model");
+                    it.remove();
+                }
             }
-        }
 
-        // Handle folders that were removed from the config.
-        List<String> removedFolders = new ArrayList<>();;
-        Boolean folderFound;
-        for (Map.Entry<String, HashMap<String, CompletionInfo>> device : deviceFolderMap.entrySet()) {
-            for (String folderId : device.getValue().keySet()) {
-                folderFound = false;
-                for (Folder folder : newFolders) {
-                    if (folder.id.equals(folderId)) {
-                        folderFound = true;
-                        break;
+            for (Map.Entry<String, Set<String>> share : shares.entrySet()) {
+                String deviceId = share.getKey();
+                Set<String> folderIds = share.getValue();
+                DeviceCompletion device = mDevices.get(deviceId);
+                if (device == null) {
+                    Log.v(TAG, "updateFromConfig: Add device '" + deviceId + "' to cache model");
+                    device = new DeviceCompletion();
+                    mDevices.put(deviceId, device);
+                }
+
+                // Handle folders that were removed or are no longer shared with the device.
+                for (String folderId : new HashSet<>(device.folders.keySet())) {
+                    if (!folderIds.contains(folderId)) {
+                        Log.v(TAG, "updateFromConfig: Remove folder '" + folderId +
+                                "' shared with device '" + deviceId + "' from cache model");
+                        device.remove(folderId);
                     }
                 }
-                if (!folderFound) {
-                    removedFolders.add(folderId);
+
+                // Handle folders that were added to the config.
+                for (String folderId : folderIds) {
+                    if (!device.folders.containsKey(folderId)) {
+                        Log.v(TAG, "updateFromConfig: Add folder '" + folderId +
+                                "' shared with device '" + deviceId + "' to cache model.");
+                        device.put(folderId, new CompletionInfo());
+                    }
                 }
             }
         }
-        for (String folderId : removedFolders) {
-            Log.v(TAG, "updateFromConfig: Remove folder '" + folderId + "' from cache model");
-            removeFolder(folderId);
-        }
+    }
 
-        // Handle folders that were added to the config.
-        for (Folder folder : newFolders) {
-            for (Device device : newDevices) {
-                if (folder.getDevice(device.deviceID) != null) {
-                    // folder is shared with device.
-                    folderMap = deviceFolderMap.get(device.deviceID);
-                    if (!folderMap.containsKey(folder.id)) {
-                        Log.v(TAG, "updateFromConfig: Add folder '" + folder.id +
-                                    "' shared with device '" + device.deviceID + "' to cache model.");
-                        folderMap.put(folder.id, new CompletionInfo());
+    /**
+     * Applies the changes of a config diff to the cache model, without looking at the parts
+     * of the config that did not change.
+     *
+     * The result is the same as calling {@link #updateFromConfig} with the new config.
+     */
+    public void applyConfigDiff(ConfigDiff diff) {
+        synchronized (mLock) {
+            for (Device device : diff.removedDevices) {
+                Log.v(TAG, "applyConfigDiff: Remove device '" + device.deviceID + "' from cache model");
+                mDevices.remove(device.deviceID);
+            }
+            for (Folder folder : diff.removedFolders) {
+                for (DeviceCompletion device : mDevices.values()) {
+                    device.remove(folder.id);
+                }
+            }
+            for (Device device : diff.addedDevices) {
+                Log.v(TAG, "applyConfigDiff: Add device '" + device.deviceID + "' to cache model");
+                mDevices.put(device.deviceID, new DeviceCompletion());
+            }
+            // Sharing with a new device also changes the folder, so all new shares are covered.
+            List<Folder> folders = new ArrayList<>(diff.addedFolders);
+            folders.addAll(diff.changedFolders);
+            for (Folder folder : folders) {
+                Set<String> sharedWith = new HashSet<>();
+                for (Folder.Device device : folder.getDevices()) {
+                    sharedWith.add(device.deviceID);
+                }
+                for (Map.Entry<String, DeviceCompletion> e : mDevices.entrySet()) {
+                    DeviceCompletion device = e.getValue();
+                    boolean shared = sharedWith.contains(e.getKey());
+                    if (shared && !device.folders.containsKey(folder.id)) {
+                        device.put(folder.id, new CompletionInfo());
+                    } else if (!shared) {
+                        device.remove(folder.id);
                     }
                 }
             }
@@ -110,19 +182,30 @@ public class Completion {
      * shared with the device.
      */
     public int getDeviceCompletion(String deviceId) {
-        int folderCount = 0;
-        double sumCompletion = 0;
-        HashMap<String, CompletionInfo> folderMap = deviceFolderMap.get(deviceId);
-        if (folderMap != null) {
-            for (Map.Entry<String, CompletionInfo> folder : folderMap.entrySet()) {
-                sumCompletion += folder.getValue().completion;
-                folderCount++;
+        synchronized (mLock) {
+            DeviceCompletion device = mDevices.get(deviceId);
+            if (device == null || device.folders.isEmpty()) {
+                return 100;
             }
+            return (int) Math.floor(device.sumCompletion / device.folders.size());
         }
-        if (folderCount == 0) {
-            return 100;
-        } else {
-            return (int) Math.floor(sumCompletion / folderCount);
+    }
+
+    /**
+     * Calculates remote device sync completion percentage by the bytes it needs across all
+     * folders shared with the device, so large folders weigh more than small ones. This is how
+     * the web UI calculates it.
+     *
+     * Falls back to {@link #getDeviceCompletion} if no folder sizes are known yet.
+     */
+    public int getDeviceBytesCompletion(String deviceId) {
+        synchronized (mLock) {
+            DeviceCompletion device = mDevices.get(deviceId);
+            if (device == null || device.globalBytes <= 0) {
+                return getDeviceCompletion(deviceId);
+            }
+            long haveBytes = Math.max(0, device.globalBytes - device.needBytes);
+            return (int) Math.floor(100.0 * haveBytes / device.globalBytes);
         }
     }
 
@@ -131,11 +214,15 @@ public class Completion {
      */
     public void setCompletionInfo(String deviceId, String folderId,
                                     CompletionInfo completionInfo) {
-        // Add device parent node if it does not exist.
-        if (!deviceFolderMap.containsKey(deviceId)) {
-            deviceFolderMap.put(deviceId, new HashMap<String, CompletionInfo>());
+        synchronized (mLock) {
+            // Add device parent node if it does not exist.
+            DeviceCompletion device = mDevices.get(deviceId);
+            if (device == null) {
+                device = new DeviceCompletion();
+                mDevices.put(deviceId, device);
+            }
+            // Add folder or update existing folder entry.
+            device.put(folderId, completionInfo);
         }
-        // Add folder or update existing folder entry.
-        deviceFolderMap.get(deviceId).put(folderId, completionInfo);
     }
 }
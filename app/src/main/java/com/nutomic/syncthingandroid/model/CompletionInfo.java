@@ -11,13 +11,18 @@ package com.nutomic.syncthingandroid.model;
 public class CompletionInfo {
     public double completion = 100;
 
+    /**
+     * Size of the folder and the part of it the remote device still needs, used to weight
+     * folders by size in {@link Completion#getDeviceBytesCompletion}.
+     */
+    public long globalBytes = 0;
+    public long needBytes = 0;
+
     /**
      * The following values are only returned by the REST API call
      * to ""/completion". We will need them in the future to show
      * more statistics in the device UI.
      */
-    // public long globalBytes = 0;
-    // public long needBytes = 0;
     // public long needDeletes = 0;
     // public long needItems = 0;
 }
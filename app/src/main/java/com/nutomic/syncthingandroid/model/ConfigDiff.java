@@ -0,0 +1,132 @@
+package com.nutomic.syncthingandroid.model;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes between a published config and a new one, e.g. received with a "ConfigSaved" event.
+ *
+ * Folders and devices are matched by id and compared field by field through their JSON
+ * representation, so no model class needs to implement equals().
+ */
+public class ConfigDiff {
+
+    /**
+     * Added and changed entries are objects of the new config, removed entries those of the
+     * old one. None of them must be modified.
+     */
+    public final List<Folder> addedFolders;
+    public final List<Folder> changedFolders;
+    public final List<Folder> removedFolders;
+    public final List<Device> addedDevices;
+    public final List<Device> changedDevices;
+    public final List<Device> removedDevices;
+
+    public final boolean optionsChanged;
+    public final boolean guiChanged;
+
+    /**
+     * True if any other part of the config changed, e.g. ignored devices or the version.
+     */
+    public final boolean otherChanged;
+
+    private ConfigDiff(List<Folder> addedFolders, List<Folder> changedFolders,
+                       List<Folder> removedFolders, List<Device> addedDevices,
+                       List<Device> changedDevices, List<Device> removedDevices,
+                       boolean optionsChanged, boolean guiChanged, boolean otherChanged) {
+        this.addedFolders = Collections.unmodifiableList(addedFolders);
+        this.changedFolders = Collections.unmodifiableList(changedFolders);
+        this.removedFolders = Collections.unmodifiableList(removedFolders);
+        this.addedDevices = Collections.unmodifiableList(addedDevices);
+        this.changedDevices = Collections.unmodifiableList(changedDevices);
+        this.removedDevices = Collections.unmodifiableList(removedDevices);
+        this.optionsChanged = optionsChanged;
+        this.guiChanged = guiChanged;
+        this.otherChanged = otherChanged;
+    }
+
+    /**
+     * Compares the config of the snapshot with the new config. Neither is modified.
+     */
+    public static ConfigDiff compute(ConfigSnapshot oldSnapshot, Config newConfig) {
+        Gson gson = ModelGson.get();
+        Config oldConfig = oldSnapshot.getConfig();
+
+        List<Folder> addedFolders = new ArrayList<>();
+        List<Folder> changedFolders = new ArrayList<>();
+        List<Folder> removedFolders = new ArrayList<>();
+        Map<String, Folder> oldFolders = new HashMap<>();
+        for (Folder folder : oldConfig.folders) {
+            oldFolders.put(folder.id, folder);
+        }
+        for (Folder folder : newConfig.folders) {
+            Folder oldFolder = oldFolders.remove(folder.id);
+            if (oldFolder == null) {
+                addedFolders.add(folder);
+            } else if (!isSame(gson, oldFolder, folder)) {
+                changedFolders.add(folder);
+            }
+        }
+        removedFolders.addAll(oldFolders.values());
+
+        List<Device> addedDevices = new ArrayList<>();
+        List<Device> changedDevices = new ArrayList<>();
+        List<Device> removedDevices = new ArrayList<>();
+        Map<String, Device> oldDevices = new HashMap<>();
+        for (Device device : oldConfig.devices) {
+            oldDevices.put(device.deviceID, device);
+        }
+        for (Device device : newConfig.devices) {
+            Device oldDevice = oldDevices.remove(device.deviceID);
+            if (oldDevice == null) {
+                addedDevices.add(device);
+            } else if (!isSame(gson, oldDevice, device)) {
+                changedDevices.add(device);
+            }
+        }
+        removedDevices.addAll(oldDevices.values());
+
+        boolean otherChanged = oldConfig.version != newConfig.version
+                || !isSame(gson, oldConfig.remoteIgnoredDevices, newConfig.remoteIgnoredDevices);
+        return new ConfigDiff(addedFolders, changedFolders, removedFolders, addedDevices,
+                changedDevices, removedDevices,
+                !isSame(gson, oldConfig.options, newConfig.options),
+                !isSame(gson, oldConfig.gui, newConfig.gui), otherChanged);
+    }
+
+    private static boolean isSame(Gson gson, Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        // JsonElement implements equals() structurally.
+        return gson.toJsonTree(a).equals(gson.toJsonTree(b));
+    }
+
+    public boolean hasFolderChanges() {
+        return !addedFolders.isEmpty() || !changedFolders.isEmpty() || !removedFolders.isEmpty();
+    }
+
+    public boolean hasDeviceChanges() {
+        return !addedDevices.isEmpty() || !changedDevices.isEmpty() || !removedDevices.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return !hasFolderChanges() && !hasDeviceChanges() && !optionsChanged && !guiChanged
+                && !otherChanged;
+    }
+
+    @Override
+    public String toString() {
+        return "folders +" + addedFolders.size() + " ~" + changedFolders.size() + " -"
+                + removedFolders.size() + ", devices +" + addedDevices.size() + " ~"
+                + changedDevices.size() + " -" + removedDevices.size()
+                + ", options " + (optionsChanged ? "changed" : "unchanged")
+                + ", gui " + (guiChanged ? "changed" : "unchanged")
+                + ", other " + (otherChanged ? "changed" : "unchanged");
+    }
+}
@@ -0,0 +1,116 @@
+package com.nutomic.syncthingandroid.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the syncthing config, published by
+ * {@link com.nutomic.syncthingandroid.service.RestApi} whenever the config changes.
+ *
+ * Readers can keep and share a snapshot without locking or copying. The contained model
+ * objects are shared by all readers and must not be modified. RestApi provides copies of
+ * them for editing.
+ */
+public class ConfigSnapshot {
+
+    /**
+     * Compares folders by labels, uses the folder ID as fallback if the label is empty
+     */
+    private final static Comparator<Folder> FOLDERS_COMPARATOR = (lhs, rhs) -> {
+        String lhsLabel = lhs.label != null && !lhs.label.isEmpty() ? lhs.label : lhs.id;
+        String rhsLabel = rhs.label != null && !rhs.label.isEmpty() ? rhs.label : rhs.id;
+
+        return lhsLabel.compareTo(rhsLabel);
+    };
+
+    /**
+     * Increases by one for every snapshot published, so readers can cheaply detect changes.
+     */
+    public final long version;
+
+    /**
+     * Version of the last snapshot that changed folders or devices. Lists showing only one of
+     * them don't need to be rebuilt when another part of the config changed.
+     */
+    public final long foldersVersion;
+    public final long devicesVersion;
+
+    private final Config mConfig;
+    private final List<Folder> mFolders;
+    private final List<Device> mDevices;
+    private final Map<String, Folder> mFoldersById = new HashMap<>();
+    private final Map<String, Device> mDevicesById = new HashMap<>();
+
+    /**
+     * @param config Config owned by this snapshot, must not be modified afterwards.
+     */
+    public ConfigSnapshot(Config config, long version) {
+        this(config, version, version, version);
+    }
+
+    /**
+     * @param config Config owned by this snapshot, must not be modified afterwards.
+     */
+    public ConfigSnapshot(Config config, long version, long foldersVersion, long devicesVersion) {
+        this.version = version;
+        this.foldersVersion = foldersVersion;
+        this.devicesVersion = devicesVersion;
+        mConfig = config;
+
+        List<Folder> folders = new ArrayList<>(config.folders);
+        Collections.sort(folders, FOLDERS_COMPARATOR);
+        mFolders = Collections.unmodifiableList(folders);
+        for (Folder folder : folders) {
+            mFoldersById.put(folder.id, folder);
+        }
+
+        mDevices = Collections.unmodifiableList(new ArrayList<>(config.devices));
+        for (Device device : mDevices) {
+            mDevicesById.put(device.deviceID, device);
+        }
+    }
+
+    /**
+     * Returns all folders, sorted by label.
+     */
+    public List<Folder> getFolders() {
+        return mFolders;
+    }
+
+    /**
+     * Returns the folder with the given id, or null if there is none.
+     */
+    public Folder getFolder(String folderId) {
+        return mFoldersById.get(folderId);
+    }
+
+    /**
+     * Returns all devices including the local device.
+     */
+    public List<Device> getDevices() {
+        return mDevices;
+    }
+
+    /**
+     * Returns the device with the given id, or null if there is none.
+     */
+    public Device getDevice(String deviceId) {
+        return mDevicesById.get(deviceId);
+    }
+
+    public Options getOptions() {
+        return mConfig.options;
+    }
+
+    public Config.Gui getGui() {
+        return mConfig.gui;
+    }
+
+    Config getConfig() {
+        return mConfig;
+    }
+}
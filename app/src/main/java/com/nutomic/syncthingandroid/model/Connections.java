@@ -18,17 +18,9 @@ public class Connections {
         public String address;
 
         // These fields are not sent from Syncthing, but are populated on the client side.
+        // Transfer rates in bits per second are set by ThroughputSampler.
         public int completion;
         public long inBits;
         public long outBits;
-
-        public void setTransferRate(Connection previous, long msElapsed) {
-            long secondsElapsed = msElapsed / 1000;
-            long inBytes = 8 * (inBytesTotal - previous.inBytesTotal) / secondsElapsed;
-            long outBytes = 8 * (outBytesTotal - previous.outBytesTotal) / secondsElapsed;
-            inBits = Math.max(0, inBytes);
-            outBits = Math.max(0, outBytes);
-
-        }
     }
 }
@@ -1,7 +1,15 @@
 package com.nutomic.syncthingandroid.model;
 
-import java.util.Map;
+import java.util.List;
 
+/**
+ * According to syncthing REST API
+ * https://docs.syncthing.net/dev/events.html
+ *
+ * data holds one of the typed payloads below for the matching event type,
+ * see {@link ModelGson}. Payloads of all other event types are decoded as
+ * generic Gson objects, e.g. a Map.
+ */
 public class Event {
 
     public int id;
@@ -10,4 +18,73 @@ public class Event {
     public String time;
     public Object data;
 
+    /**
+     * https://docs.syncthing.net/events/itemfinished.html
+     */
+    public static class ItemFinished {
+        public String folder;
+        public String item;
+        public String type;
+        public String action;
+        public String error;
+    }
+
+    /**
+     * https://docs.syncthing.net/events/foldercompletion.html
+     */
+    public static class FolderCompletion {
+        public String device;
+        public String folder;
+        public double completion;
+        public long globalBytes;
+        public long needBytes;
+        public long needDeletes;
+        public long needItems;
+    }
+
+    /**
+     * https://docs.syncthing.net/events/foldersummary.html
+     */
+    public static class FolderSummary {
+        public String folder;
+        public FolderStatus summary;
+    }
+
+    /**
+     * https://docs.syncthing.net/events/statechanged.html
+     */
+    public static class StateChanged {
+        public String folder;
+        public String from;
+        public String to;
+        public String error;
+    }
+
+    /**
+     * https://docs.syncthing.net/events/pendingdeviceschanged.html
+     */
+    public static class PendingDevicesChanged {
+        public List<PendingDevice> added;
+        public List<PendingDevice> removed;
+    }
+
+    public static class PendingDevice {
+        public String deviceID;
+        public String name;
+        public String address;
+    }
+
+    /**
+     * https://docs.syncthing.net/events/pendingfolderschanged.html
+     */
+    public static class PendingFoldersChanged {
+        public List<PendingFolder> added;
+        public List<PendingFolder> removed;
+    }
+
+    public static class PendingFolder {
+        public String deviceID;
+        public String folderID;
+        public String folderLabel;
+    }
 }
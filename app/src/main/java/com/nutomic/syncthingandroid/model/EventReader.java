@@ -0,0 +1,58 @@
+package com.nutomic.syncthingandroid.model;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Decodes the array of events returned by /rest/events one event at a time, so a large backlog
+ * never exists as a full JSON tree.
+ */
+public class EventReader implements Closeable {
+
+    private static final TypeAdapter<Event> sEventAdapter = ModelGson.get().getAdapter(Event.class);
+
+    private final JsonReader mReader;
+    private boolean mStarted = false;
+
+    public EventReader(InputStream in) {
+        mReader = new JsonReader(new InputStreamReader(in, Charsets.UTF_8));
+    }
+
+    /**
+     * Returns the next event, or null after the last one.
+     *
+     * @throws IOException Also if the response is not a valid array of events, so callers can
+     *                     treat it like a failed request.
+     */
+    @Nullable
+    public Event next() throws IOException {
+        try {
+            if (!mStarted) {
+                mReader.beginArray();
+                mStarted = true;
+            }
+            if (!mReader.hasNext()) {
+                mReader.endArray();
+                return null;
+            }
+            return sEventAdapter.read(mReader);
+        } catch (RuntimeException e) {
+            // Gson reports malformed input as JsonParseException, IllegalStateException or
+            // NumberFormatException among others.
+            throw new IOException("Failed to decode events", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
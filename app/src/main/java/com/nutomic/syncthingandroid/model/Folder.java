@@ -6,6 +6,7 @@ import com.nutomic.syncthingandroid.service.Constants;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -67,6 +68,13 @@ public class Folder {
         return null;
     }
 
+    /**
+     * Returns the devices this folder is shared with.
+     */
+    public List<Device> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
     public void removeDevice(String deviceId) {
         for (Iterator<Device> it = devices.iterator(); it.hasNext();) {
             String currentId = it.next().deviceID;
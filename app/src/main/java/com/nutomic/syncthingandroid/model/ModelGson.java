@@ -0,0 +1,693 @@
+package com.nutomic.syncthingandroid.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provides the Gson instance shared by all users of the model classes.
+ *
+ * Models that are polled periodically or received in large numbers are decoded by the
+ * hand-written type adapters below instead of reflection. The config models are only decoded
+ * after a config change and keep using Gson's reflective adapters, so settings are never lost
+ * because a field was forgotten in a manual mapping.
+ */
+public final class ModelGson {
+
+    private static final Gson sGson = new GsonBuilder()
+            .registerTypeAdapter(Connections.class, new ConnectionsAdapter())
+            .registerTypeAdapter(Connections.Connection.class, new ConnectionAdapter())
+            .registerTypeAdapter(FolderStatus.class, new FolderStatusAdapter())
+            .registerTypeAdapter(SystemInfo.class, new SystemInfoAdapter())
+            .registerTypeAdapter(SystemVersion.class, new SystemVersionAdapter())
+            .registerTypeAdapter(Event.ItemFinished.class, new ItemFinishedAdapter())
+            .registerTypeAdapter(Event.FolderCompletion.class, new FolderCompletionAdapter())
+            .registerTypeAdapter(Event.FolderSummary.class, new FolderSummaryAdapter())
+            .registerTypeAdapter(Event.StateChanged.class, new StateChangedAdapter())
+            .registerTypeAdapter(Event.PendingDevice.class, new PendingDeviceAdapter())
+            .registerTypeAdapter(Event.PendingFolder.class, new PendingFolderAdapter())
+            .registerTypeAdapterFactory(new EventAdapterFactory())
+            .create();
+
+    /**
+     * Maps event types to the class their data is decoded to.
+     */
+    private static final Map<String, Class<?>> EVENT_DATA_TYPES = new HashMap<>();
+    static {
+        EVENT_DATA_TYPES.put("ItemFinished", Event.ItemFinished.class);
+        EVENT_DATA_TYPES.put("FolderCompletion", Event.FolderCompletion.class);
+        EVENT_DATA_TYPES.put("FolderSummary", Event.FolderSummary.class);
+        EVENT_DATA_TYPES.put("StateChanged", Event.StateChanged.class);
+        EVENT_DATA_TYPES.put("PendingDevicesChanged", Event.PendingDevicesChanged.class);
+        EVENT_DATA_TYPES.put("PendingFoldersChanged", Event.PendingFoldersChanged.class);
+        EVENT_DATA_TYPES.put("ConfigSaved", Config.class);
+    }
+
+    private ModelGson() {
+    }
+
+    public static Gson get() {
+        return sGson;
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextLong();
+    }
+
+    private static int readInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    private static double readDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextDouble();
+    }
+
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        return in.nextBoolean();
+    }
+
+    /**
+     * Returns false and consumes the value if it is null.
+     */
+    private static boolean beginObjectOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        in.beginObject();
+        return true;
+    }
+
+    private static class EventAdapterFactory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Event.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new EventAdapter(gson);
+        }
+    }
+
+    /**
+     * Decodes the event data according to the event type, see {@link #EVENT_DATA_TYPES}.
+     */
+    private static class EventAdapter extends TypeAdapter<Event> {
+        private final Gson mGson;
+
+        EventAdapter(Gson gson) {
+            mGson = gson;
+        }
+
+        @Override
+        public void write(JsonWriter out, Event event) throws IOException {
+            if (event == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(event.id);
+            out.name("globalID").value(event.globalID);
+            out.name("type").value(event.type);
+            out.name("time").value(event.time);
+            out.name("data");
+            if (event.data == null) {
+                out.nullValue();
+            } else {
+                mGson.toJson(event.data, event.data.getClass(), out);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Event read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event event = new Event();
+            // Syncthing sends the type before the data, buffer the data if it ever does not.
+            JsonElement bufferedData = null;
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id":       event.id = readInt(in);         break;
+                    case "globalID": event.globalID = readInt(in);   break;
+                    case "type":     event.type = readString(in);    break;
+                    case "time":     event.time = readString(in);    break;
+                    case "data":
+                        if (event.type != null) {
+                            event.data = mGson.getAdapter(getDataType(event.type)).read(in);
+                        } else {
+                            bufferedData = mGson.getAdapter(JsonElement.class).read(in);
+                        }
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            if (bufferedData != null) {
+                event.data = mGson.fromJson(bufferedData, getDataType(event.type));
+            }
+            return event;
+        }
+
+        private Class<?> getDataType(String eventType) {
+            Class<?> dataType = EVENT_DATA_TYPES.get(eventType);
+            return dataType != null ? dataType : Object.class;
+        }
+    }
+
+    private static class ItemFinishedAdapter extends TypeAdapter<Event.ItemFinished> {
+        @Override
+        public void write(JsonWriter out, Event.ItemFinished data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("folder").value(data.folder);
+            out.name("item").value(data.item);
+            out.name("type").value(data.type);
+            out.name("action").value(data.action);
+            out.name("error").value(data.error);
+            out.endObject();
+        }
+
+        @Override
+        public Event.ItemFinished read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.ItemFinished data = new Event.ItemFinished();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "folder": data.folder = readString(in); break;
+                    case "item":   data.item = readString(in);   break;
+                    case "type":   data.type = readString(in);   break;
+                    case "action": data.action = readString(in); break;
+                    case "error":  data.error = readString(in);  break;
+                    default:       in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    private static class FolderCompletionAdapter extends TypeAdapter<Event.FolderCompletion> {
+        @Override
+        public void write(JsonWriter out, Event.FolderCompletion data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("device").value(data.device);
+            out.name("folder").value(data.folder);
+            out.name("completion").value(data.completion);
+            out.name("globalBytes").value(data.globalBytes);
+            out.name("needBytes").value(data.needBytes);
+            out.name("needDeletes").value(data.needDeletes);
+            out.name("needItems").value(data.needItems);
+            out.endObject();
+        }
+
+        @Override
+        public Event.FolderCompletion read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.FolderCompletion data = new Event.FolderCompletion();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "device":      data.device = readString(in);    break;
+                    case "folder":      data.folder = readString(in);    break;
+                    case "completion":  data.completion = readDouble(in); break;
+                    case "globalBytes": data.globalBytes = readLong(in); break;
+                    case "needBytes":   data.needBytes = readLong(in);   break;
+                    case "needDeletes": data.needDeletes = readLong(in); break;
+                    case "needItems":   data.needItems = readLong(in);   break;
+                    default:            in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    private static class FolderSummaryAdapter extends TypeAdapter<Event.FolderSummary> {
+        private final FolderStatusAdapter mFolderStatusAdapter = new FolderStatusAdapter();
+
+        @Override
+        public void write(JsonWriter out, Event.FolderSummary data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("folder").value(data.folder);
+            out.name("summary");
+            mFolderStatusAdapter.write(out, data.summary);
+            out.endObject();
+        }
+
+        @Override
+        public Event.FolderSummary read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.FolderSummary data = new Event.FolderSummary();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "folder":  data.folder = readString(in);                 break;
+                    case "summary": data.summary = mFolderStatusAdapter.read(in); break;
+                    default:        in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    private static class StateChangedAdapter extends TypeAdapter<Event.StateChanged> {
+        @Override
+        public void write(JsonWriter out, Event.StateChanged data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("folder").value(data.folder);
+            out.name("from").value(data.from);
+            out.name("to").value(data.to);
+            out.name("error").value(data.error);
+            out.endObject();
+        }
+
+        @Override
+        public Event.StateChanged read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.StateChanged data = new Event.StateChanged();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "folder": data.folder = readString(in); break;
+                    case "from":   data.from = readString(in);   break;
+                    case "to":     data.to = readString(in);     break;
+                    case "error":  data.error = readString(in);  break;
+                    default:       in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    private static class PendingDeviceAdapter extends TypeAdapter<Event.PendingDevice> {
+        @Override
+        public void write(JsonWriter out, Event.PendingDevice device) throws IOException {
+            if (device == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("deviceID").value(device.deviceID);
+            out.name("name").value(device.name);
+            out.name("address").value(device.address);
+            out.endObject();
+        }
+
+        @Override
+        public Event.PendingDevice read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.PendingDevice device = new Event.PendingDevice();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "deviceID": device.deviceID = readString(in); break;
+                    case "name":     device.name = readString(in);     break;
+                    case "address":  device.address = readString(in);  break;
+                    default:         in.skipValue();
+                }
+            }
+            in.endObject();
+            return device;
+        }
+    }
+
+    private static class PendingFolderAdapter extends TypeAdapter<Event.PendingFolder> {
+        @Override
+        public void write(JsonWriter out, Event.PendingFolder folder) throws IOException {
+            if (folder == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("deviceID").value(folder.deviceID);
+            out.name("folderID").value(folder.folderID);
+            out.name("folderLabel").value(folder.folderLabel);
+            out.endObject();
+        }
+
+        @Override
+        public Event.PendingFolder read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Event.PendingFolder folder = new Event.PendingFolder();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "deviceID":    folder.deviceID = readString(in);    break;
+                    case "folderID":    folder.folderID = readString(in);    break;
+                    case "folderLabel": folder.folderLabel = readString(in); break;
+                    default:            in.skipValue();
+                }
+            }
+            in.endObject();
+            return folder;
+        }
+    }
+
+    private static class ConnectionsAdapter extends TypeAdapter<Connections> {
+        private final ConnectionAdapter mConnectionAdapter = new ConnectionAdapter();
+
+        @Override
+        public void write(JsonWriter out, Connections connections) throws IOException {
+            if (connections == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("total");
+            mConnectionAdapter.write(out, connections.total);
+            out.name("connections");
+            if (connections.connections == null) {
+                out.nullValue();
+            } else {
+                out.beginObject();
+                for (Map.Entry<String, Connections.Connection> e : connections.connections.entrySet()) {
+                    out.name(e.getKey());
+                    mConnectionAdapter.write(out, e.getValue());
+                }
+                out.endObject();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Connections read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Connections connections = new Connections();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "total":
+                        connections.total = mConnectionAdapter.read(in);
+                        break;
+                    case "connections":
+                        if (!beginObjectOrNull(in)) {
+                            break;
+                        }
+                        connections.connections = new HashMap<>();
+                        while (in.hasNext()) {
+                            String deviceId = in.nextName();
+                            connections.connections.put(deviceId, mConnectionAdapter.read(in));
+                        }
+                        in.endObject();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return connections;
+        }
+    }
+
+    private static class ConnectionAdapter extends TypeAdapter<Connections.Connection> {
+        @Override
+        public void write(JsonWriter out, Connections.Connection c) throws IOException {
+            if (c == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("paused").value(c.paused);
+            out.name("clientVersion").value(c.clientVersion);
+            out.name("at").value(c.at);
+            out.name("connected").value(c.connected);
+            out.name("inBytesTotal").value(c.inBytesTotal);
+            out.name("outBytesTotal").value(c.outBytesTotal);
+            out.name("type").value(c.type);
+            out.name("address").value(c.address);
+            out.name("completion").value(c.completion);
+            out.name("inBits").value(c.inBits);
+            out.name("outBits").value(c.outBits);
+            out.endObject();
+        }
+
+        @Override
+        public Connections.Connection read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            Connections.Connection c = new Connections.Connection();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "paused":        c.paused = readBoolean(in);      break;
+                    case "clientVersion": c.clientVersion = readString(in); break;
+                    case "at":            c.at = readString(in);           break;
+                    case "connected":     c.connected = readBoolean(in);   break;
+                    case "inBytesTotal":  c.inBytesTotal = readLong(in);   break;
+                    case "outBytesTotal": c.outBytesTotal = readLong(in);  break;
+                    case "type":          c.type = readString(in);         break;
+                    case "address":       c.address = readString(in);      break;
+                    case "completion":    c.completion = readInt(in);      break;
+                    case "inBits":        c.inBits = readLong(in);         break;
+                    case "outBits":       c.outBits = readLong(in);        break;
+                    default:              in.skipValue();
+                }
+            }
+            in.endObject();
+            return c;
+        }
+    }
+
+    private static class FolderStatusAdapter extends TypeAdapter<FolderStatus> {
+        @Override
+        public void write(JsonWriter out, FolderStatus s) throws IOException {
+            if (s == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("globalBytes").value(s.globalBytes);
+            out.name("globalDeleted").value(s.globalDeleted);
+            out.name("globalDirectories").value(s.globalDirectories);
+            out.name("globalFiles").value(s.globalFiles);
+            out.name("globalSymlinks").value(s.globalSymlinks);
+            out.name("ignorePatterns").value(s.ignorePatterns);
+            out.name("invalid").value(s.invalid);
+            out.name("localBytes").value(s.localBytes);
+            out.name("localDeleted").value(s.localDeleted);
+            out.name("localDirectories").value(s.localDirectories);
+            out.name("localSymlinks").value(s.localSymlinks);
+            out.name("localFiles").value(s.localFiles);
+            out.name("inSyncBytes").value(s.inSyncBytes);
+            out.name("inSyncFiles").value(s.inSyncFiles);
+            out.name("needBytes").value(s.needBytes);
+            out.name("needDeletes").value(s.needDeletes);
+            out.name("needDirectories").value(s.needDirectories);
+            out.name("needFiles").value(s.needFiles);
+            out.name("needSymlinks").value(s.needSymlinks);
+            out.name("pullErrors").value(s.pullErrors);
+            out.name("sequence").value(s.sequence);
+            out.name("state").value(s.state);
+            out.name("stateChanged").value(s.stateChanged);
+            out.name("version").value(s.version);
+            out.name("error").value(s.error);
+            out.name("watchError").value(s.watchError);
+            out.endObject();
+        }
+
+        @Override
+        public FolderStatus read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            FolderStatus s = new FolderStatus();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "globalBytes":       s.globalBytes = readLong(in);       break;
+                    case "globalDeleted":     s.globalDeleted = readLong(in);     break;
+                    case "globalDirectories": s.globalDirectories = readLong(in); break;
+                    case "globalFiles":       s.globalFiles = readLong(in);       break;
+                    case "globalSymlinks":    s.globalSymlinks = readLong(in);    break;
+                    case "ignorePatterns":    s.ignorePatterns = readBoolean(in); break;
+                    case "invalid":           s.invalid = readString(in);         break;
+                    case "localBytes":        s.localBytes = readLong(in);        break;
+                    case "localDeleted":      s.localDeleted = readLong(in);      break;
+                    case "localDirectories":  s.localDirectories = readLong(in);  break;
+                    case "localSymlinks":     s.localSymlinks = readLong(in);     break;
+                    case "localFiles":        s.localFiles = readLong(in);        break;
+                    case "inSyncBytes":       s.inSyncBytes = readLong(in);       break;
+                    case "inSyncFiles":       s.inSyncFiles = readLong(in);       break;
+                    case "needBytes":         s.needBytes = readLong(in);         break;
+                    case "needDeletes":       s.needDeletes = readLong(in);       break;
+                    case "needDirectories":   s.needDirectories = readLong(in);   break;
+                    case "needFiles":         s.needFiles = readLong(in);         break;
+                    case "needSymlinks":      s.needSymlinks = readLong(in);      break;
+                    case "pullErrors":        s.pullErrors = readLong(in);        break;
+                    case "sequence":          s.sequence = readLong(in);          break;
+                    case "state":             s.state = readString(in);           break;
+                    case "stateChanged":      s.stateChanged = readString(in);    break;
+                    case "version":           s.version = readLong(in);           break;
+                    case "error":             s.error = readString(in);           break;
+                    case "watchError":        s.watchError = readString(in);      break;
+                    default:                  in.skipValue();
+                }
+            }
+            in.endObject();
+            return s;
+        }
+    }
+
+    private static class SystemInfoAdapter extends TypeAdapter<SystemInfo> {
+        @Override
+        public void write(JsonWriter out, SystemInfo info) throws IOException {
+            if (info == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("alloc").value(info.alloc);
+            out.name("cpuPercent").value(info.cpuPercent);
+            out.name("goroutines").value(info.goroutines);
+            out.name("myID").value(info.myID);
+            out.name("sys").value(info.sys);
+            out.name("discoveryEnabled").value(info.discoveryEnabled);
+            out.name("discoveryMethods").value(info.discoveryMethods);
+            out.name("discoveryErrors");
+            if (info.discoveryErrors == null) {
+                out.nullValue();
+            } else {
+                out.beginObject();
+                for (Map.Entry<String, String> e : info.discoveryErrors.entrySet()) {
+                    out.name(e.getKey()).value(e.getValue());
+                }
+                out.endObject();
+            }
+            out.name("urVersionMax").value(info.urVersionMax);
+            out.endObject();
+        }
+
+        @Override
+        public SystemInfo read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            SystemInfo info = new SystemInfo();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "alloc":            info.alloc = readLong(in);               break;
+                    case "cpuPercent":       info.cpuPercent = readDouble(in);        break;
+                    case "goroutines":       info.goroutines = readInt(in);           break;
+                    case "myID":             info.myID = readString(in);              break;
+                    case "sys":              info.sys = readLong(in);                 break;
+                    case "discoveryEnabled": info.discoveryEnabled = readBoolean(in); break;
+                    case "discoveryMethods": info.discoveryMethods = readInt(in);     break;
+                    case "urVersionMax":     info.urVersionMax = readInt(in);         break;
+                    case "discoveryErrors":
+                        if (!beginObjectOrNull(in)) {
+                            break;
+                        }
+                        info.discoveryErrors = new HashMap<>();
+                        while (in.hasNext()) {
+                            String name = in.nextName();
+                            info.discoveryErrors.put(name, readString(in));
+                        }
+                        in.endObject();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return info;
+        }
+    }
+
+    private static class SystemVersionAdapter extends TypeAdapter<SystemVersion> {
+        @Override
+        public void write(JsonWriter out, SystemVersion version) throws IOException {
+            if (version == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("arch").value(version.arch);
+            out.name("codename").value(version.codename);
+            out.name("longVersion").value(version.longVersion);
+            out.name("os").value(version.os);
+            out.name("version").value(version.version);
+            out.endObject();
+        }
+
+        @Override
+        public SystemVersion read(JsonReader in) throws IOException {
+            if (!beginObjectOrNull(in)) {
+                return null;
+            }
+            SystemVersion version = new SystemVersion();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "arch":        version.arch = readString(in);        break;
+                    case "codename":    version.codename = readString(in);    break;
+                    case "longVersion": version.longVersion = readString(in); break;
+                    case "os":          version.os = readString(in);          break;
+                    case "version":     version.version = readString(in);     break;
+                    default:            in.skipValue();
+                }
+            }
+            in.endObject();
+            return version;
+        }
+    }
+}
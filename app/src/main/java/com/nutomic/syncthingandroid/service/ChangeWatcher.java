@@ -0,0 +1,474 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
+import com.nutomic.syncthingandroid.model.Folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects changed files in syncthing folders on the app side, and asks syncthing to rescan only
+ * the changed parts.
+ *
+ * Syncthing's own watcher needs an inotify watch per directory. On large trees it exceeds
+ * Android's limit, which can only be raised with root, and syncthing falls back to periodic
+ * full rescans. This watcher needs few watches: a {@link FileObserver} on the root and the top
+ * level directories of each folder, and a {@link ContentObserver} on the MediaStore, which
+ * reports media files at any depth.
+ *
+ * Changed paths are collected until no change happened for {@link #DEBOUNCE_DELAY}, merged
+ * into common parent directories and sent as one scan request per folder. Paths syncthing itself
+ * just synced are skipped, see {@link RecentlySyncedItems}.
+ */
+public class ChangeWatcher {
+
+    private static final String TAG = "ChangeWatcher";
+
+    /**
+     * Time in ms without changes after which collected changes are sent.
+     */
+    private static final long DEBOUNCE_DELAY = TimeUnit.SECONDS.toMillis(3);
+
+    /**
+     * Maximum time in ms a change is held while more changes keep coming.
+     */
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Leaves most of the inotify limit to syncthing's own watcher.
+     */
+    private static final int MAX_WATCHES_PER_FOLDER = 32;
+
+    /**
+     * Maximum number of paths per scan request, more are merged into parent directories.
+     */
+    private static final int MAX_PATHS_PER_SCAN = 16;
+
+    /**
+     * Number of changes in the same directory above which the whole directory is scanned.
+     */
+    private static final int SIBLING_MERGE_THRESHOLD = 4;
+
+    private static final int FILE_OBSERVER_MASK = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+
+    private final Context mContext;
+    private final RestApi mApi;
+    private final RecentlySyncedItems mRecentlySyncedItems;
+
+    /**
+     * Watches are set up and changes are sent on this thread.
+     */
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private final Handler mHandler;
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = this::flush;
+
+    private final ContentObserver mMediaStoreObserver;
+
+    private final RestApi.OnConfigChangedListener mConfigListener = this::onConfigChanged;
+
+    /**
+     * {@link ConfigSnapshot#foldersVersion} of the watched folders. Main thread only.
+     */
+    private long mWatchedFoldersVersion = -1;
+
+    /**
+     * Watched folders and their observers. Only accessed on mThread.
+     */
+    private List<WatchedFolder> mFolders = Collections.emptyList();
+    private final List<FileObserver> mFileObservers = new ArrayList<>();
+
+    /**
+     * Changed paths relative to the folder root by folder id, and the time the oldest of them
+     * was reported. Must be locked upon access.
+     */
+    private final Map<String, Set<String>> mPendingPaths = new HashMap<>();
+    private long mFirstPendingTime = 0;
+
+    private final AtomicLong mChangeCount = new AtomicLong();
+    private final AtomicLong mScannedPathCount = new AtomicLong();
+
+    private static class WatchedFolder {
+        final String id;
+        final File root;
+
+        /**
+         * Absolute and canonical path of the root, as other apps may report either.
+         */
+        final Set<String> rootPaths = new HashSet<>();
+
+        WatchedFolder(String id, File root) {
+            this.id = id;
+            this.root = root;
+            rootPaths.add(root.getAbsolutePath());
+            try {
+                rootPaths.add(root.getCanonicalPath());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to resolve " + root, e);
+            }
+        }
+
+        /**
+         * Returns the path relative to the folder root, or null if it is not in this folder.
+         */
+        String relativize(String absolutePath) {
+            for (String rootPath : rootPaths) {
+                if (absolutePath.equals(rootPath)) {
+                    return "";
+                }
+                if (absolutePath.startsWith(rootPath + "/")) {
+                    return absolutePath.substring(rootPath.length() + 1);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Watches a single directory of a folder, without its subdirectories.
+     */
+    private class DirectoryObserver extends FileObserver {
+        private final String mFolderId;
+        private final String mRelativeDirectory;
+
+        @SuppressWarnings("deprecation") // FileObserver(File, int) requires API level 29.
+        DirectoryObserver(WatchedFolder folder, String relativeDirectory) {
+            super(new File(folder.root, relativeDirectory).getPath(), FILE_OBSERVER_MASK);
+            mFolderId = folder.id;
+            mRelativeDirectory = relativeDirectory;
+        }
+
+        @Override
+        public void onEvent(int event, @Nullable String name) {
+            if (name == null || isIgnored(name)) {
+                return;
+            }
+            onPathChanged(mFolderId,
+                    mRelativeDirectory.isEmpty() ? name : mRelativeDirectory + "/" + name);
+        }
+    }
+
+    public ChangeWatcher(Context context, RestApi api, RecentlySyncedItems recentlySyncedItems) {
+        mContext = context.getApplicationContext();
+        mApi = api;
+        mRecentlySyncedItems = recentlySyncedItems;
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMediaStoreObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, @Nullable Uri uri) {
+                if (uri != null) {
+                    onMediaStoreChange(uri);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts watching the configured folders. Must be called from the main thread.
+     */
+    public void start() {
+        try {
+            mContext.getContentResolver().registerContentObserver(
+                    MediaStore.Files.getContentUri("external"), true, mMediaStoreObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Failed to observe MediaStore", e);
+        }
+        mApi.addOnConfigChangedListener(mConfigListener);
+        onConfigChanged();
+    }
+
+    /**
+     * Stops watching and drops changes that were not sent yet. Must be called from the main
+     * thread.
+     */
+    public void stop() {
+        mApi.removeOnConfigChangedListener(mConfigListener);
+        mContext.getContentResolver().unregisterContentObserver(mMediaStoreObserver);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(this::stopWatching);
+        mThread.quitSafely();
+        Log.d(TAG, "Stopped, changes=" + mChangeCount.get()
+                + ", scanned paths=" + mScannedPathCount.get());
+    }
+
+    /**
+     * Watches the new folders if folders were changed. Other config changes are ignored.
+     */
+    private void onConfigChanged() {
+        ConfigSnapshot config = mApi.getConfigSnapshot();
+        if (config == null || config.foldersVersion == mWatchedFoldersVersion) {
+            return;
+        }
+        mWatchedFoldersVersion = config.foldersVersion;
+        List<Folder> folders = config.getFolders();
+        mHandler.post(() -> watchFolders(folders));
+    }
+
+    /**
+     * Replaces all watches with watches on the given folders.
+     */
+    private void watchFolders(List<Folder> folders) {
+        stopWatching();
+        List<WatchedFolder> watchedFolders = new ArrayList<>();
+        for (Folder folder : folders) {
+            // Without syncthing's watcher the user chose to rely on periodic rescans.
+            if (folder.paused || !folder.fsWatcherEnabled || TextUtils.isEmpty(folder.path)) {
+                continue;
+            }
+            WatchedFolder watchedFolder = new WatchedFolder(folder.id, new File(folder.path));
+            watchedFolders.add(watchedFolder);
+            watchDirectory(watchedFolder, "");
+            File[] directories = watchedFolder.root.listFiles(File::isDirectory);
+            if (directories == null) {
+                continue;
+            }
+            Arrays.sort(directories);
+            int watches = 1;
+            for (File directory : directories) {
+                if (watches == MAX_WATCHES_PER_FOLDER) {
+                    Log.d(TAG, "Not watching all top level directories of folder " + folder.id);
+                    break;
+                }
+                if (!isIgnored(directory.getName())) {
+                    watchDirectory(watchedFolder, directory.getName());
+                    watches++;
+                }
+            }
+        }
+        mFolders = watchedFolders;
+        Log.d(TAG, "Watching " + mFileObservers.size() + " directories in "
+                + watchedFolders.size() + " folders");
+    }
+
+    private void watchDirectory(WatchedFolder folder, String relativeDirectory) {
+        FileObserver observer = new DirectoryObserver(folder, relativeDirectory);
+        observer.startWatching();
+        mFileObservers.add(observer);
+    }
+
+    private void stopWatching() {
+        for (FileObserver observer : mFileObservers) {
+            observer.stopWatching();
+        }
+        mFileObservers.clear();
+        mFolders = Collections.emptyList();
+    }
+
+    /**
+     * Syncthing's own files, which change whenever syncthing syncs or versions a file.
+     */
+    private static boolean isIgnored(String name) {
+        return name.startsWith(".syncthing.") || name.startsWith("~syncthing~")
+                || name.equals(".stfolder") || name.equals(".stversions");
+    }
+
+    /**
+     * Maps a changed MediaStore item to its folder. Called on mThread.
+     */
+    private void onMediaStoreChange(Uri uri) {
+        // Only single items can be mapped to a path, querying a whole collection is expensive.
+        String id = uri.getLastPathSegment();
+        if (id == null || !TextUtils.isDigitsOnly(id)) {
+            return;
+        }
+        String path;
+        try (Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{MediaStore.MediaColumns.DATA}, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                // Deleted meanwhile, which the FileObservers or the next full scan notice.
+                return;
+            }
+            path = cursor.getString(0);
+        } catch (RuntimeException e) {
+            Log.v(TAG, "Failed to query " + uri, e);
+            return;
+        }
+        if (path == null || isIgnored(new File(path).getName())) {
+            return;
+        }
+        for (WatchedFolder folder : mFolders) {
+            String relativePath = folder.relativize(path);
+            if (relativePath != null) {
+                onPathChanged(folder.id, relativePath);
+            }
+        }
+    }
+
+    /**
+     * Collects a changed path and schedules sending it. Called on any thread.
+     */
+    private void onPathChanged(String folderId, String relativePath) {
+        mChangeCount.incrementAndGet();
+        synchronized (mPendingPaths) {
+            Set<String> paths = mPendingPaths.get(folderId);
+            if (paths == null) {
+                paths = new LinkedHashSet<>();
+                mPendingPaths.put(folderId, paths);
+            }
+            paths.add(relativePath);
+            long now = SystemClock.elapsedRealtime();
+            if (mFirstPendingTime == 0) {
+                mFirstPendingTime = now;
+            }
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postDelayed(mFlushRunnable,
+                    Math.max(0, Math.min(DEBOUNCE_DELAY, mFirstPendingTime + MAX_DELAY - now)));
+        }
+    }
+
+    /**
+     * Sends a scan request for each folder with changes. Called on mThread.
+     */
+    private void flush() {
+        Map<String, Set<String>> pending;
+        synchronized (mPendingPaths) {
+            pending = new HashMap<>(mPendingPaths);
+            mPendingPaths.clear();
+            mFirstPendingTime = 0;
+        }
+        for (Map.Entry<String, Set<String>> e : pending.entrySet()) {
+            List<String> changedPaths = new ArrayList<>();
+            for (String path : e.getValue()) {
+                // Written by syncthing, including temporary files renamed to the final name
+                // and the MediaStore updates MediaStoreBatcher caused.
+                if (!mRecentlySyncedItems.contains(e.getKey(), path)) {
+                    changedPaths.add(path);
+                }
+            }
+            if (changedPaths.isEmpty()) {
+                Log.v(TAG, "Folder " + e.getKey() + ": Skipping " + e.getValue().size()
+                        + " changes synced by syncthing");
+                continue;
+            }
+            List<String> paths = mergePaths(changedPaths);
+            mScannedPathCount.addAndGet(paths.size());
+            Log.v(TAG, "Folder " + e.getKey() + ": " + changedPaths.size() + " changes, skipped "
+                    + (e.getValue().size() - changedPaths.size()) + ", scanning " + paths);
+            mMainThreadHandler.post(() -> mApi.scanFolder(e.getKey(), paths));
+        }
+    }
+
+    /**
+     * Returns paths whose scan covers all changed paths. Paths within another path are
+     * dropped, many changes in the same directory are replaced by the directory, and paths
+     * are replaced by their parents until at most {@link #MAX_PATHS_PER_SCAN} remain.
+     *
+     * @return A single empty path if the whole folder needs to be scanned.
+     */
+    private static List<String> mergePaths(Collection<String> changedPaths) {
+        Set<String> paths = removeCovered(changedPaths);
+
+        Map<String, List<String>> byParent = new HashMap<>();
+        for (String path : paths) {
+            String parent = getParent(path);
+            List<String> siblings = byParent.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                byParent.put(parent, siblings);
+            }
+            siblings.add(path);
+        }
+        Set<String> merged = new HashSet<>();
+        for (Map.Entry<String, List<String>> e : byParent.entrySet()) {
+            // Never merge into a full scan just because of many changes in the root.
+            if (!e.getKey().isEmpty() && e.getValue().size() > SIBLING_MERGE_THRESHOLD) {
+                merged.add(e.getKey());
+            } else {
+                merged.addAll(e.getValue());
+            }
+        }
+        paths = removeCovered(merged);
+
+        while (paths.size() > MAX_PATHS_PER_SCAN) {
+            int maxDepth = 0;
+            for (String path : paths) {
+                maxDepth = Math.max(maxDepth, getDepth(path));
+            }
+            Set<String> parents = new HashSet<>();
+            for (String path : paths) {
+                parents.add(getDepth(path) == maxDepth ? getParent(path) : path);
+            }
+            paths = removeCovered(parents);
+        }
+
+        List<String> result = new ArrayList<>(paths);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Removes paths that are within another one of the paths.
+     */
+    private static Set<String> removeCovered(Collection<String> paths) {
+        Set<String> all = new HashSet<>(paths);
+        if (all.contains("")) {
+            return Collections.singleton("");
+        }
+        Set<String> result = new HashSet<>();
+        for (String path : all) {
+            boolean covered = false;
+            for (String parent = getParent(path); !parent.isEmpty(); parent = getParent(parent)) {
+                if (all.contains(parent)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static String getParent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static int getDepth(String path) {
+        if (path.isEmpty()) {
+            return 0;
+        }
+        int depth = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
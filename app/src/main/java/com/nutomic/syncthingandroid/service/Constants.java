@@ -24,6 +24,7 @@ public class Constants {
     public static final String PREF_USE_TOR                     = "use_tor";
     public static final String PREF_SOCKS_PROXY_ADDRESS         = "socks_proxy_address";
     public static final String PREF_HTTP_PROXY_ADDRESS          = "http_proxy_address";
+    public static final String PREF_USE_RESOURCE_GOVERNOR       = "use_resource_governor";
     public static final String PREF_UPGRADED_TO_API_LEVEL_30    = "upgraded_to_api_level_30";
 
     /**
@@ -32,6 +33,14 @@ public class Constants {
      */
     public static final String PREF_DEBUG_FACILITIES_AVAILABLE  = "debug_facilities_available";
 
+    /**
+     * Folder settings the user had before {@link ResourceGovernor} changed them, as
+     * "hashers,copiers,pullerMaxPendingKiB,folderId", and the ids of folders whose settings the
+     * user changed afterwards. Restored when the governor is disabled.
+     */
+    public static final String PREF_RESOURCE_GOVERNOR_USER_SETTINGS = "resource_governor_user_settings";
+    public static final String PREF_RESOURCE_GOVERNOR_USER_FOLDERS  = "resource_governor_user_folders";
+
     /**
      * Available folder types.
      */
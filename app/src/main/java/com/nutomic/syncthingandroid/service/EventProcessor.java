@@ -1,42 +1,45 @@
 package com.nutomic.syncthingandroid.service;
 
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.MediaStore;
 import android.util.Log;
 
 import androidx.core.util.Consumer;
 
-import com.annimon.stream.Stream;
 import com.nutomic.syncthingandroid.BuildConfig;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.activities.DeviceActivity;
 import com.nutomic.syncthingandroid.activities.FolderActivity;
 import com.nutomic.syncthingandroid.model.CompletionInfo;
+import com.nutomic.syncthingandroid.model.Config;
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
 import com.nutomic.syncthingandroid.model.Device;
 import com.nutomic.syncthingandroid.model.Event;
 import com.nutomic.syncthingandroid.model.Folder;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 
 /**
  * Run by the syncthing service to convert syncthing events into local broadcasts.
  *
- * It uses {@link RestApi#getEvents} to read the pending events and wait for new events.
+ * A dedicated thread long-polls {@link RestApi#getEvents}, so Syncthing answers as soon as new
+ * events are available. Received events are queued and processed on the main thread.
  */
 public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener {
 
@@ -44,10 +47,22 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
     private static final String PREF_LAST_SYNC_ID = "last_sync_id";
 
     /**
-     * Minimum interval in seconds at which the events are polled from syncthing and processed.
+     * Time in seconds syncthing holds an event request open while there are no new events.
+     * The poll thread only wakes up once per timeout while syncthing is idle.
+     */
+    private static final int EVENT_POLL_TIMEOUT = 60;
+
+    /**
+     * Interval in ms after which polling is retried if a request to syncthing failed.
      * This intervall will not wake up the device to save battery power.
      */
-    private static final long EVENT_UPDATE_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    private static final long EVENT_RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * Maximum number of received events waiting to be processed on the main thread.
+     * The poll thread blocks while the queue is full.
+     */
+    private static final int EVENT_QUEUE_CAPACITY = 1000;
 
     /**
      * Use the MainThread for all callbacks and message handling
@@ -55,20 +70,41 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
      */
     private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
+    private final BlockingQueue<Event> mEventQueue = new ArrayBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    private final AtomicBoolean mProcessEventsPosted = new AtomicBoolean(false);
+    private final Runnable mProcessEventsRunnable = this::processQueuedEvents;
+
+    /**
+     * Id of the last event processed on the main thread.
+     */
     private volatile long mLastEventId = 0;
+
+    /**
+     * Id of the last event received by the poll thread, used as "since" for the next poll.
+     */
+    private volatile long mLastPolledEventId = 0;
+
     private volatile boolean mShutdown = true;
+    private Thread mPollThread;
 
     private final Context mContext;
     private final RestApi mApi;
+    private final MediaStoreBatcher mMediaStoreBatcher;
+    private final RecentlySyncedItems mRecentlySyncedItems;
     @Inject SharedPreferences mPreferences;
     @Inject NotificationHandler mNotificationHandler;
 
-    public EventProcessor(Context context, RestApi api) {
+    public EventProcessor(Context context, RestApi api, RecentlySyncedItems recentlySyncedItems) {
         ((SyncthingApp) context.getApplicationContext()).component().inject(this);
         mContext = context;
         mApi = api;
+        mRecentlySyncedItems = recentlySyncedItems;
+        mMediaStoreBatcher = new MediaStoreBatcher(context);
     }
 
+    /**
+     * Polls events on {@link #mPollThread} until {@link #stop} is called.
+     */
     @Override
     public void run() {
         // Restore the last event id if the event processor may have been restarted.
@@ -76,9 +112,43 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
             mLastEventId = mPreferences.getLong(PREF_LAST_SYNC_ID, 0);
         }
 
-        // First check if the event number ran backwards.
-        // If that's the case we've to start at zero because syncthing was restarted.
-        mApi.getEvents(0, 1, new RestApi.OnReceiveEventListener() {
+        boolean resumed = false;
+        boolean reconnected = false;
+        while (!mShutdown && !Thread.currentThread().isInterrupted()) {
+            try {
+                if (!resumed) {
+                    resumeFromLastEventId();
+                    resumed = true;
+                    if (reconnected) {
+                        // Folder status is only updated by events, which may have been missed.
+                        mMainThreadHandler.post(() -> mApi.syncFolderStatuses(true));
+                    }
+                }
+                mApi.getEvents(mLastPolledEventId, 0, EVENT_POLL_TIMEOUT, this);
+            } catch (InterruptedException e) {
+                break;
+            } catch (ExecutionException | TimeoutException | IOException e) {
+                Log.w(TAG, "Failed to poll events, retrying in " + EVENT_RETRY_INTERVAL + " ms", e);
+                // Syncthing may have been restarted meanwhile.
+                resumed = false;
+                reconnected = true;
+                try {
+                    Thread.sleep(EVENT_RETRY_INTERVAL);
+                } catch (InterruptedException e1) {
+                    break;
+                }
+            }
+        }
+        Log.d(TAG, "Event poll thread finished.");
+    }
+
+    /**
+     * Checks if the event number ran backwards. If that's the case we've to start
+     * at zero because syncthing was restarted.
+     */
+    private void resumeFromLastEventId()
+            throws InterruptedException, ExecutionException, TimeoutException, IOException {
+        mApi.getEvents(0, 1, EVENT_POLL_TIMEOUT, new RestApi.OnReceiveEventListener() {
             @Override
             public void onEvent(Event event) {
             }
@@ -86,58 +156,111 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
             @Override
             public void onDone(long lastId) {
                 if (lastId < mLastEventId) mLastEventId = 0;
+                mLastPolledEventId = mLastEventId;
 
                 Log.d(TAG, "Reading events starting with id " + mLastEventId);
-
-                mApi.getEvents(mLastEventId, 0, EventProcessor.this);
             }
         });
     }
 
     /**
-     * Performs the actual event handling.
+     * Queues an event received by the poll thread for processing on the main thread.
+     * Config changes are applied before, so they are visible to the events that follow.
      */
     @Override
     public void onEvent(Event event) {
-        Map<String,Object> mapData = null;
+        if ("ConfigSaved".equals(event.type)) {
+            // Apply the config on this thread, it may take a while for large configs.
+            Log.v(TAG, "Forwarding ConfigSaved event to RestApi.");
+            mApi.onConfigSaved((Config) event.data);
+        } else if ("ItemFinished".equals(event.type)) {
+            // Recorded right away, the ChangeWatcher may see the write before it is processed.
+            Event.ItemFinished itemFinished = (Event.ItemFinished) event.data;
+            if (itemFinished != null && itemFinished.error == null && itemFinished.item != null) {
+                mRecentlySyncedItems.add(itemFinished.folder, itemFinished.item);
+            }
+        }
         try {
-            mapData = (Map<String,Object>) event.data;
-        } catch (ClassCastException e) { }
+            mEventQueue.put(event);
+        } catch (InterruptedException e) {
+            // Shutting down, the rest of the events is dropped.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (mProcessEventsPosted.compareAndSet(false, true)) {
+            mMainThreadHandler.post(mProcessEventsRunnable);
+        }
+    }
+
+    @Override
+    public void onDone(long lastId) {
+        if (mLastPolledEventId < lastId) {
+            mLastPolledEventId = lastId;
+        }
+    }
+
+    /**
+     * Processes all queued events on the main thread and stores the last processed event id.
+     */
+    private void processQueuedEvents() {
+        mProcessEventsPosted.set(false);
+        long lastId = 0;
+        Event event;
+        while (!mShutdown && (event = mEventQueue.poll()) != null) {
+            processEvent(event);
+            lastId = Math.max(lastId, event.id);
+        }
+
+        if (mLastEventId < lastId) {
+            mLastEventId = lastId;
+
+            // Store the last EventId in case we get killed
+            mPreferences.edit().putLong(PREF_LAST_SYNC_ID, mLastEventId).apply();
+        }
+    }
+
+    /**
+     * Performs the actual event handling.
+     */
+    private void processEvent(Event event) {
         switch (event.type) {
             case "ConfigSaved":
-                if (mApi != null) {
-                    Log.v(TAG, "Forwarding ConfigSaved event to RestApi to get the updated config.");
-                    mApi.reloadConfig();
-                }
+                // Already applied by onEvent.
                 break;
             case "PendingDevicesChanged":
-                mapNullable((List<Map<String,String>>) mapData.get("added"), this::onPendingDevicesChanged);
+                mapNullable(((Event.PendingDevicesChanged) event.data).added, this::onPendingDevicesChanged);
                 break;
             case "FolderCompletion":
+                Event.FolderCompletion folderCompletion = (Event.FolderCompletion) event.data;
                 CompletionInfo completionInfo = new CompletionInfo();
-                completionInfo.completion = (Double) mapData.get("completion");
+                completionInfo.completion = folderCompletion.completion;
+                completionInfo.globalBytes = folderCompletion.globalBytes;
+                completionInfo.needBytes = folderCompletion.needBytes;
                 mApi.setCompletionInfo(
-                    (String) mapData.get("device"),          // deviceId
-                    (String) mapData.get("folder"),          // folderId
+                    folderCompletion.device,
+                    folderCompletion.folder,
                     completionInfo
                 );
                 break;
+            case "FolderSummary":
+                Event.FolderSummary folderSummary = (Event.FolderSummary) event.data;
+                mApi.onFolderSummary(folderSummary.folder, folderSummary.summary);
+                break;
+            case "StateChanged":
+                Event.StateChanged stateChanged = (Event.StateChanged) event.data;
+                mApi.onFolderStateChanged(stateChanged.folder, stateChanged.to, stateChanged.error);
+                break;
             case "PendingFoldersChanged":
-                mapNullable((List<Map<String,String>>) mapData.get("added"), this::onPendingFoldersChanged);
+                mapNullable(((Event.PendingFoldersChanged) event.data).added, this::onPendingFoldersChanged);
                 break;
             case "ItemFinished":
-                String folder = (String) mapData.get("folder");
-                String folderPath = null;
-                for (Folder f : mApi.getFolders()) {
-                    if (f.id.equals(folder)) {
-                        folderPath = f.path;
-                    }
-                }
-                File updatedFile = new File(folderPath, (String) mapData.get("item"));
-                if (!"delete".equals(mapData.get("action"))) {
-                    Log.i(TAG, "Rescanned file via MediaScanner: " + updatedFile.toString());
-                    MediaScannerConnection.scanFile(mContext, new String[]{updatedFile.getPath()},
-                            null, null);
+                Event.ItemFinished itemFinished = (Event.ItemFinished) event.data;
+                Folder folder = mApi.getConfigSnapshot().getFolder(itemFinished.folder);
+                String folderPath = (folder != null) ? folder.path : null;
+                File updatedFile = new File(folderPath, itemFinished.item);
+                if (!"delete".equals(itemFinished.action)) {
+                    Log.v(TAG, "Queued file for MediaScanner: " + updatedFile.toString());
+                    mMediaStoreBatcher.scan(itemFinished.folder, updatedFile);
                 } else {
                     // Starting with Android 10/Q and targeting API level 29/removing legacy storage flag,
                     // reports of files being spuriously deleted came up.
@@ -151,12 +274,8 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                         break;
                     }
-                    // https://stackoverflow.com/a/29881556/1837158
-                    Log.i(TAG, "Deleted file from MediaStore: " + updatedFile.toString());
-                    Uri contentUri = MediaStore.Files.getContentUri("external");
-                    ContentResolver resolver = mContext.getContentResolver();
-                    resolver.delete(contentUri, MediaStore.Images.ImageColumns.DATA + " = ?",
-                            new String[]{updatedFile.getPath()});
+                    Log.v(TAG, "Queued file for deletion from MediaStore: " + updatedFile.toString());
+                    mMediaStoreBatcher.delete(itemFinished.folder, updatedFile);
                 }
                 break;
             case "Ping":
@@ -168,7 +287,6 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
             case "DownloadProgress":
             case "FolderPaused":
             case "FolderScanProgress":
-            case "FolderSummary":
             case "ItemStarted":
             case "LocalIndexUpdated":
             case "LoginAttempt":
@@ -176,7 +294,6 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
             case "RemoteIndexUpdated":
             case "Starting":
             case "StartupComplete":
-            case "StateChanged":
                 if (BuildConfig.DEBUG) {
                     Log.v(TAG, "Ignored event " + event.type + ", data " + event.data);
                 }
@@ -186,32 +303,18 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
         }
     }
 
-    @Override
-    public void onDone(long id) {
-        if (mLastEventId < id) {
-            mLastEventId = id;
-
-            // Store the last EventId in case we get killed
-            mPreferences.edit().putLong(PREF_LAST_SYNC_ID, mLastEventId).apply();
-        }
-
-        synchronized (mMainThreadHandler) {
-            if (!mShutdown) {
-                mMainThreadHandler.removeCallbacks(this);
-                mMainThreadHandler.postDelayed(this, EVENT_UPDATE_INTERVAL);
-            }
-        }
-    }
-
     public void start() {
         Log.d(TAG, "Starting event processor.");
 
-        // Remove all pending callbacks and add a new one. This makes sure that only one
+        // Interrupt a previous poll thread and start a new one. This makes sure that only one
         // event poller is running at any given time.
         synchronized (mMainThreadHandler) {
             mShutdown = false;
-            mMainThreadHandler.removeCallbacks(this);
-            mMainThreadHandler.postDelayed(this, EVENT_UPDATE_INTERVAL);
+            if (mPollThread != null) {
+                mPollThread.interrupt();
+            }
+            mPollThread = new Thread(this, TAG);
+            mPollThread.start();
         }
     }
 
@@ -219,14 +322,21 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
         Log.d(TAG, "Stopping event processor.");
         synchronized (mMainThreadHandler) {
             mShutdown = true;
-            mMainThreadHandler.removeCallbacks(this);
+            if (mPollThread != null) {
+                mPollThread.interrupt();
+                mPollThread = null;
+            }
+            mMainThreadHandler.removeCallbacks(mProcessEventsRunnable);
+            mProcessEventsPosted.set(false);
+            mEventQueue.clear();
         }
+        mMediaStoreBatcher.shutdown();
     }
 
-    private void onPendingDevicesChanged(Map<String, String> added) {
-        String deviceId = added.get("deviceID");
-        String deviceName = added.get("name");
-        String deviceAddress = added.get("address");
+    private void onPendingDevicesChanged(Event.PendingDevice added) {
+        String deviceId = added.deviceID;
+        String deviceName = added.name;
+        String deviceAddress = added.address;
         if (deviceId == null) {
             return;
         }
@@ -259,10 +369,10 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
         mNotificationHandler.showConsentNotification(notificationId, title, piAccept, piIgnore);
     }
 
-    private void onPendingFoldersChanged(Map<String, String> added) {
-        String deviceId = added.get("deviceID");
-        String folderId = added.get("folderID");
-        String folderLabel = added.get("folderLabel");
+    private void onPendingFoldersChanged(Event.PendingFolder added) {
+        String deviceId = added.deviceID;
+        String folderId = added.folderID;
+        String folderLabel = added.folderLabel;
         if (deviceId == null || folderId == null) {
             return;
         }
@@ -270,20 +380,14 @@ public class EventProcessor implements  Runnable, RestApi.OnReceiveEventListener
             folderLabel + " (" + folderId + ")");
 
         // Find the deviceName corresponding to the deviceId
-        String deviceName = null;
-        for (Device d : mApi.getDevices(false)) {
-            if (d.deviceID.equals(deviceId)) {
-                deviceName = d.getDisplayName();
-                break;
-            }
-        }
-        String title = mContext.getString(R.string.folder_rejected, deviceName,
-                folderLabel.isEmpty() ? folderId : folderLabel + " (" + folderId + ")");
+        ConfigSnapshot config = mApi.getConfigSnapshot();
+        Device device = config.getDevice(deviceId);
+        String deviceName = (device != null) ? device.getDisplayName() : null;
+        String title = mNotificationHandler.getFolderConsentText(deviceName, folderId, folderLabel);
         int notificationId = mNotificationHandler.getNotificationIdFromText(title);
 
         // Prepare "accept" action.
-        boolean isNewFolder = Stream.of(mApi.getFolders())
-                .noneMatch(f -> f.id.equals(folderId));
+        boolean isNewFolder = config.getFolder(folderId) == null;
         Intent intentAccept = new Intent(mContext, FolderActivity.class)
                 .putExtra(FolderActivity.EXTRA_NOTIFICATION_ID, notificationId)
                 .putExtra(FolderActivity.EXTRA_IS_CREATE, isNewFolder)
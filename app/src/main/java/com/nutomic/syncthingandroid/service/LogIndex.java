@@ -0,0 +1,231 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the lines in the current log file written by {@link LogPump}.
+ *
+ * For every line the byte offset and length in the file are kept together with its level and
+ * facility, so a viewer can filter the log and read only the lines it displays. Lines are added
+ * by the log writer and become visible once they were flushed to disk, see {@link #commit}. The
+ * index is cleared when the log file is rotated, which increments {@link #getGeneration}.
+ *
+ * All methods are thread safe.
+ */
+public class LogIndex {
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_VERBOSE = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_WARNING = 3;
+
+    /**
+     * Matches the level of a line, e.g. "[ABCDE] 2020/01/02 12:34:56 INFO: message". Device id,
+     * time and source location are optional, depending on the log flags.
+     */
+    private static final Pattern LEVEL_PATTERN = Pattern.compile(
+            "^(?:\\[[0-9A-Z]{5}\\] )?[0-9/:. ]*(?:\\S+\\.go:[0-9]+: )?(DEBUG|VERBOSE|INFO|OK|WARNING|FATAL): ");
+
+    /**
+     * Matches the facility at the start of a debug message, e.g. "model@0x1234: message".
+     * Syncthing does not print facilities explicitly, so this is best effort.
+     */
+    private static final Pattern FACILITY_PATTERN = Pattern.compile("^([a-z]+)(?:@0x[0-9a-f]+)?: ");
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File mLogFile;
+
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    private byte[] mLevels = new byte[INITIAL_CAPACITY];
+    private short[] mFacilities = new short[INITIAL_CAPACITY];
+    private int mSize = 0;
+    private int mWrittenSize = 0;
+    private long mGeneration = 0;
+
+    private final List<String> mFacilityNames = new ArrayList<>();
+    private final Map<String, Short> mFacilityIds = new HashMap<>();
+
+    LogIndex(File logFile) {
+        mLogFile = logFile;
+        // Id 0 stands for lines without facility.
+        mFacilityNames.add("");
+        mFacilityIds.put("", (short) 0);
+    }
+
+    /**
+     * Extracts level and facility of a line.
+     *
+     * @param fallbackLevel Level if the line does not contain one.
+     * @return The level in the lower 8 bits, the facility id above.
+     */
+    synchronized int parse(String text, int fallbackLevel) {
+        int level = fallbackLevel;
+        String message = text;
+        Matcher m = LEVEL_PATTERN.matcher(text);
+        if (m.lookingAt()) {
+            level = toLevel(m.group(1));
+            message = text.substring(m.end());
+        }
+        String facility = "";
+        if (level == LEVEL_DEBUG) {
+            Matcher f = FACILITY_PATTERN.matcher(message);
+            if (f.lookingAt()) {
+                facility = f.group(1);
+            }
+        }
+        Short id = mFacilityIds.get(facility);
+        if (id == null && mFacilityNames.size() < Short.MAX_VALUE) {
+            id = (short) mFacilityNames.size();
+            mFacilityNames.add(facility);
+            mFacilityIds.put(facility, id);
+        }
+        return level | ((id != null ? id : 0) << 8);
+    }
+
+    private static int toLevel(String level) {
+        switch (level) {
+            case "DEBUG":   return LEVEL_DEBUG;
+            case "VERBOSE": return LEVEL_VERBOSE;
+            case "INFO":
+            case "OK":      return LEVEL_INFO;
+            default:        return LEVEL_WARNING;
+        }
+    }
+
+    /**
+     * Returns the level to use for lines without level, based on the stream they came from.
+     */
+    static int fallbackLevel(int priority) {
+        return (priority >= Log.WARN) ? LEVEL_WARNING : LEVEL_INFO;
+    }
+
+    /**
+     * Adds a line that was written to the log file, but not necessarily flushed yet.
+     *
+     * @param parsed Result of {@link #parse}.
+     */
+    synchronized void add(long offset, int length, int parsed) {
+        if (mWrittenSize == mOffsets.length) {
+            int capacity = mWrittenSize * 2;
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+            mLevels = Arrays.copyOf(mLevels, capacity);
+            mFacilities = Arrays.copyOf(mFacilities, capacity);
+        }
+        mOffsets[mWrittenSize] = offset;
+        mLengths[mWrittenSize] = length;
+        mLevels[mWrittenSize] = (byte) (parsed & 0xff);
+        mFacilities[mWrittenSize] = (short) (parsed >> 8);
+        mWrittenSize++;
+    }
+
+    /**
+     * Makes all added lines visible to readers, called after the log file was flushed.
+     */
+    synchronized void commit() {
+        mSize = mWrittenSize;
+    }
+
+    /**
+     * Drops all lines, called when the log file was rotated or reopened.
+     */
+    synchronized void clear() {
+        mSize = 0;
+        mWrittenSize = 0;
+        mGeneration++;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the numbers of the lines in [from, to) with at least the given level.
+     *
+     * @param facility Only return lines of this facility, or all lines if null.
+     * @return The line numbers, or null if the index was cleared meanwhile.
+     */
+    public synchronized int[] filter(int from, int to, long generation, int minLevel,
+                                     String facility) {
+        if (generation != mGeneration) {
+            return null;
+        }
+        to = Math.min(to, mSize);
+        Short facilityId = (facility != null) ? mFacilityIds.get(facility) : null;
+        if (facility != null && facilityId == null) {
+            return new int[0];
+        }
+        int[] lines = new int[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (mLevels[i] >= minLevel && (facilityId == null || mFacilities[i] == facilityId)) {
+                lines[count++] = i;
+            }
+        }
+        return Arrays.copyOf(lines, count);
+    }
+
+    /**
+     * Returns all facilities seen so far, sorted.
+     */
+    public synchronized List<String> getFacilities() {
+        List<String> facilities = new ArrayList<>(mFacilityNames.subList(1, mFacilityNames.size()));
+        Collections.sort(facilities);
+        return facilities;
+    }
+
+    /**
+     * Reads the given lines from the log file. Must not be called on the main thread.
+     *
+     * @param lines Line numbers in ascending order.
+     * @param generation Generation the line numbers belong to.
+     * @return The text of each line, or null if the index was cleared meanwhile.
+     */
+    public String[] readLines(int[] lines, long generation) throws IOException {
+        long[] offsets = new long[lines.length];
+        int[] lengths = new int[lines.length];
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return null;
+            }
+            for (int i = 0; i < lines.length; i++) {
+                offsets[i] = mOffsets[lines[i]];
+                lengths[i] = mLengths[lines[i]];
+            }
+        }
+        String[] texts = new String[lines.length];
+        try (RandomAccessFile file = new RandomAccessFile(mLogFile, "r")) {
+            byte[] buffer = new byte[0];
+            for (int i = 0; i < lines.length; i++) {
+                if (buffer.length < lengths[i]) {
+                    buffer = new byte[lengths[i]];
+                }
+                file.seek(offsets[i]);
+                file.readFully(buffer, 0, lengths[i]);
+                texts[i] = new String(buffer, 0, lengths[i], Charsets.UTF_8);
+            }
+        }
+        // The file may have been rotated while reading.
+        return (generation == getGeneration()) ? texts : null;
+    }
+}
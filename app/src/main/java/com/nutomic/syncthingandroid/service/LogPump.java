@@ -0,0 +1,300 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the output of the syncthing binary in memory and writes it to the log file.
+ *
+ * Lines are appended to a lock-free ring buffer, so the threads reading the binary's output never
+ * wait for the file system. A single writer thread copies new lines from the ring buffer to the
+ * log file in batches and rotates the file by size. The ring buffer is kept for the lifetime of
+ * the process and can be read by {@link #getLines}. The writer also maintains a {@link LogIndex}
+ * of the current log file, which is used to show the log.
+ */
+public class LogPump {
+
+    private static final String TAG = "LogPump";
+
+    /**
+     * Number of lines kept in memory.
+     */
+    private static final int RING_CAPACITY = 4096;
+
+    /**
+     * Time in ms the writer waits for more lines before writing and flushing a batch. This is
+     * also the delay until new lines show up in the log viewer.
+     */
+    private static final long WRITE_DELAY = 250;
+
+    /**
+     * The log file is rotated once it exceeds this size, keeping {@link #MAX_FILES} files.
+     */
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+    private static final int MAX_FILES = 3;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A line of output from the binary.
+     */
+    public static class Line {
+        public final long sequence;
+        public final long time;
+        public final int priority;
+        public final String text;
+
+        private Line(long sequence, long time, int priority, String text) {
+            this.sequence = sequence;
+            this.time = time;
+            this.priority = priority;
+            this.text = text;
+        }
+    }
+
+    private static LogPump sInstance;
+
+    private final File mLogFile;
+    private final LogIndex mIndex;
+    private final AtomicReferenceArray<Line> mRing = new AtomicReferenceArray<>(RING_CAPACITY);
+
+    /**
+     * Sequence number of the next line, the number of lines added so far.
+     */
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    private final Thread mWriterThread;
+    private final AtomicBoolean mWriterParked = new AtomicBoolean(false);
+
+    /**
+     * Sequence number of the next line to write, only accessed by the writer thread.
+     */
+    private long mWriteSequence = 0;
+    private OutputStream mWriter;
+    private long mFileSize;
+    private boolean mWriteErrorLogged = false;
+
+    public static LogPump get(Context context) {
+        synchronized (LogPump.class) {
+            if (sInstance == null) {
+                sInstance = new LogPump(Constants.getLogFile(context.getApplicationContext()));
+            }
+            return sInstance;
+        }
+    }
+
+    private LogPump(File logFile) {
+        mLogFile = logFile;
+        mIndex = new LogIndex(logFile);
+        mWriterThread = new Thread(this::writeLoop, TAG);
+        mWriterThread.setDaemon(true);
+        mWriterThread.setPriority(Thread.MIN_PRIORITY);
+        mWriterThread.start();
+    }
+
+    /**
+     * Adds a line to the ring buffer, to be written to the log file. Never blocks.
+     */
+    public void append(int priority, String text) {
+        long sequence = mNextSequence.getAndIncrement();
+        mRing.set((int) (sequence % RING_CAPACITY),
+                new Line(sequence, System.currentTimeMillis(), priority, text));
+        if (mWriterParked.compareAndSet(true, false)) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * Returns the lines in the ring buffer with a sequence number of at least fromSequence,
+     * oldest first. Pass 0 to get all lines still in memory.
+     */
+    public List<Line> getLines(long fromSequence) {
+        long end = mNextSequence.get();
+        long start = Math.max(fromSequence, end - RING_CAPACITY);
+        List<Line> lines = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Line line = mRing.get((int) (sequence % RING_CAPACITY));
+            // Skip slots that were overwritten or not filled yet.
+            if (line != null && line.sequence == sequence) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the sequence number the next line will get.
+     */
+    public long getNextSequence() {
+        return mNextSequence.get();
+    }
+
+    /**
+     * Returns the index of the current log file. Lines show up in the index once they were
+     * written to the file.
+     */
+    public LogIndex getIndex() {
+        return mIndex;
+    }
+
+    private void writeLoop() {
+        // Index the existing log file right away, so it can be shown before any new output.
+        try {
+            openWriter();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open log file", e);
+            mWriteErrorLogged = true;
+        }
+        while (true) {
+            if (mWriteSequence == mNextSequence.get()) {
+                mWriterParked.set(true);
+                // Check again, a line may have been added before the flag was set.
+                if (mWriteSequence == mNextSequence.get()) {
+                    LockSupport.park(this);
+                }
+                mWriterParked.set(false);
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(WRITE_DELAY));
+            writePending();
+            flush();
+        }
+    }
+
+    private void writePending() {
+        long end = mNextSequence.get();
+        if (end - mWriteSequence > RING_CAPACITY) {
+            long dropped = end - RING_CAPACITY - mWriteSequence;
+            write(Log.WARN, "[" + dropped + " lines not written to the log file]");
+            mWriteSequence = end - RING_CAPACITY;
+        }
+        for (; mWriteSequence < end; mWriteSequence++) {
+            Line line = mRing.get((int) (mWriteSequence % RING_CAPACITY));
+            if (line == null || line.sequence != mWriteSequence) {
+                // Overwritten meanwhile, or the producer did not store it yet.
+                if (line == null || line.sequence < mWriteSequence) {
+                    Thread.yield();
+                    break;
+                }
+                continue;
+            }
+            write(line.priority, line.text);
+        }
+    }
+
+    private void write(int priority, String text) {
+        try {
+            if (mWriter == null || mFileSize > MAX_FILE_SIZE) {
+                flush();
+                openWriter();
+            }
+            byte[] bytes = text.getBytes(Charsets.UTF_8);
+            mWriter.write(bytes);
+            mWriter.write('\n');
+            mIndex.add(mFileSize, bytes.length,
+                    mIndex.parse(text, LogIndex.fallbackLevel(priority)));
+            mFileSize += bytes.length + 1;
+        } catch (IOException e) {
+            // Only log once, this would otherwise repeat for every line.
+            if (!mWriteErrorLogged) {
+                Log.w(TAG, "Failed to write log file", e);
+                mWriteErrorLogged = true;
+            }
+            closeWriter();
+        }
+    }
+
+    private void flush() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.flush();
+            mIndex.commit();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to flush log file", e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Opens the log file for appending, rotating it first if it is too large, and indexes the
+     * lines already in it.
+     */
+    private void openWriter() throws IOException {
+        closeWriter();
+        mIndex.clear();
+        if (mLogFile.length() > MAX_FILE_SIZE) {
+            for (int i = MAX_FILES - 1; i > 0; i--) {
+                File from = (i == 1) ? mLogFile : new File(mLogFile.getPath() + "." + (i - 1));
+                File to = new File(mLogFile.getPath() + "." + i);
+                if (from.exists() && (!to.exists() || to.delete())) {
+                    from.renameTo(to);
+                }
+            }
+        }
+        mFileSize = indexExisting();
+        mWriter = new BufferedOutputStream(new FileOutputStream(mLogFile, true), WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * Adds the lines in the log file to the index.
+     *
+     * @return The size of the log file, up to the end of the last complete line.
+     */
+    private long indexExisting() throws IOException {
+        if (!mLogFile.exists()) {
+            return 0;
+        }
+        long offset = 0;
+        int fallbackLevel = LogIndex.fallbackLevel(Log.INFO);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(mLogFile),
+                WRITE_BUFFER_SIZE)) {
+            int b;
+            while ((b = is.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String text = line.toString(Charsets.UTF_8.name());
+                mIndex.add(offset, line.size(), mIndex.parse(text, fallbackLevel));
+                offset += line.size() + 1;
+                line.reset();
+            }
+        }
+        mIndex.commit();
+        // An incomplete last line, if the process died while writing it, is not indexed.
+        return offset + line.size();
+    }
+
+    private void closeWriter() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close log file", e);
+        }
+        mWriter = null;
+    }
+}
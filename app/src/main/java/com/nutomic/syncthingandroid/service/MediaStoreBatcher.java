@@ -0,0 +1,269 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates the MediaStore for files changed by syncthing in batches.
+ *
+ * Paths reported by "ItemFinished" events are collected per folder and deduplicated for up to
+ * the flush latency, then passed to a single {@link MediaScannerConnection#scanFile} call or
+ * {@link ContentResolver#delete} per batch instead of one binder round trip per file.
+ */
+public class MediaStoreBatcher {
+
+    private static final String TAG = "MediaStoreBatcher";
+
+    /**
+     * Default number of pending paths in a folder that triggers an immediate flush.
+     */
+    public static final int DEFAULT_FLUSH_SIZE = 200;
+
+    /**
+     * Default time in ms paths are collected before they are flushed.
+     */
+    public static final long DEFAULT_FLUSH_LATENCY = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * Upper bound for paths per delete query, SQLite allows at most 999 bound arguments.
+     */
+    private static final int MAX_DELETE_ARGS = 500;
+
+    private final Context mContext;
+    private final int mFlushSize;
+    private final long mFlushLatency;
+
+    /**
+     * MediaStore calls block on binder IPC, so they are made on a separate thread.
+     */
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private final Handler mHandler;
+    private final Runnable mFlushAllRunnable = this::flushAll;
+
+    /**
+     * Object that must be locked upon accessing mPendingScans, mPendingDeletes and
+     * mFlushScheduled.
+     */
+    private final Object mPendingLock = new Object();
+
+    /**
+     * Pending paths by folder id, in the order they were reported.
+     */
+    private final Map<String, Set<String>> mPendingScans = new HashMap<>();
+    private final Map<String, Set<String>> mPendingDeletes = new HashMap<>();
+
+    /**
+     * True while mFlushAllRunnable is posted and has not started yet.
+     */
+    private boolean mFlushScheduled = false;
+
+    private final AtomicLong mQueuedCount = new AtomicLong();
+    private final AtomicLong mFlushedCount = new AtomicLong();
+    private final AtomicLong mDeduplicatedCount = new AtomicLong();
+    private final AtomicLong mFilteredCount = new AtomicLong();
+
+    public MediaStoreBatcher(Context context) {
+        this(context, DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_LATENCY);
+    }
+
+    /**
+     * @param flushSize Number of pending paths in a folder that triggers an immediate flush.
+     * @param flushLatency Maximum time in ms a path is held before it is flushed.
+     */
+    public MediaStoreBatcher(Context context, int flushSize, long flushLatency) {
+        mContext = context.getApplicationContext();
+        mFlushSize = flushSize;
+        mFlushLatency = flushLatency;
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a created or modified file to be added to the MediaStore.
+     * Files without a known MIME type are skipped as the MediaStore would not index them.
+     */
+    public void scan(String folderId, File file) {
+        if (getMimeType(file.getPath()) == null) {
+            mFilteredCount.incrementAndGet();
+            return;
+        }
+        enqueue(folderId, file.getPath(), mPendingScans, mPendingDeletes);
+    }
+
+    /**
+     * Queues a deleted file to be removed from the MediaStore.
+     */
+    public void delete(String folderId, File file) {
+        enqueue(folderId, file.getPath(), mPendingDeletes, mPendingScans);
+    }
+
+    private void enqueue(String folderId, String path, Map<String, Set<String>> target,
+                         Map<String, Set<String>> opposite) {
+        mQueuedCount.incrementAndGet();
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (mPendingLock) {
+            // Paths added while flushAll() runs need a flush of their own.
+            scheduleFlush = !mFlushScheduled;
+            mFlushScheduled = true;
+
+            // Only the latest action for a path matters.
+            Set<String> oppositePaths = opposite.get(folderId);
+            if (oppositePaths != null && oppositePaths.remove(path)) {
+                mDeduplicatedCount.incrementAndGet();
+            }
+
+            Set<String> paths = target.get(folderId);
+            if (paths == null) {
+                paths = new LinkedHashSet<>();
+                target.put(folderId, paths);
+            }
+            if (!paths.add(path)) {
+                mDeduplicatedCount.incrementAndGet();
+            }
+            flushNow = paths.size() >= mFlushSize;
+        }
+
+        if (flushNow) {
+            mHandler.post(() -> flushFolder(folderId));
+        }
+        if (scheduleFlush) {
+            mHandler.postDelayed(mFlushAllRunnable, mFlushLatency);
+        }
+    }
+
+    /**
+     * Flushes all pending paths, then stops the worker thread.
+     */
+    public void shutdown() {
+        mHandler.removeCallbacks(mFlushAllRunnable);
+        mHandler.post(mFlushAllRunnable);
+        mThread.quitSafely();
+    }
+
+    private void flushAll() {
+        List<String> folderIds;
+        synchronized (mPendingLock) {
+            mFlushScheduled = false;
+            Set<String> ids = new LinkedHashSet<>(mPendingScans.keySet());
+            ids.addAll(mPendingDeletes.keySet());
+            folderIds = new ArrayList<>(ids);
+        }
+        for (String folderId : folderIds) {
+            flushFolder(folderId);
+        }
+    }
+
+    private void flushFolder(String folderId) {
+        Set<String> scans;
+        Set<String> deletes;
+        synchronized (mPendingLock) {
+            scans = mPendingScans.remove(folderId);
+            deletes = mPendingDeletes.remove(folderId);
+        }
+        if (scans != null && !scans.isEmpty()) {
+            flushScans(folderId, scans);
+        }
+        if (deletes != null && !deletes.isEmpty()) {
+            flushDeletes(folderId, deletes);
+        }
+    }
+
+    private void flushScans(String folderId, Set<String> scans) {
+        String[] paths = scans.toArray(new String[0]);
+        String[] mimeTypes = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            mimeTypes[i] = getMimeType(paths[i]);
+        }
+        Log.i(TAG, "Rescanning " + paths.length + " files via MediaScanner in folder " + folderId);
+        MediaScannerConnection.scanFile(mContext, paths, mimeTypes, null);
+        mFlushedCount.addAndGet(paths.length);
+        logCounters();
+    }
+
+    /**
+     * Removes deleted files from the MediaStore, see the comment on the caller in
+     * {@link EventProcessor} why this is only done before Android 10.
+     */
+    private void flushDeletes(String folderId, Set<String> deletes) {
+        // https://stackoverflow.com/a/29881556/1837158
+        Uri contentUri = MediaStore.Files.getContentUri("external");
+        ContentResolver resolver = mContext.getContentResolver();
+        Iterator<String> it = deletes.iterator();
+        while (it.hasNext()) {
+            List<String> chunk = new ArrayList<>(MAX_DELETE_ARGS);
+            while (it.hasNext() && chunk.size() < MAX_DELETE_ARGS) {
+                chunk.add(it.next());
+            }
+            String where = MediaStore.Images.ImageColumns.DATA + " IN (" +
+                    TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            int deleted = resolver.delete(contentUri, where, chunk.toArray(new String[0]));
+            Log.i(TAG, "Deleted " + deleted + " of " + chunk.size() +
+                    " files from MediaStore in folder " + folderId);
+            mFlushedCount.addAndGet(chunk.size());
+        }
+        logCounters();
+    }
+
+    private static String getMimeType(String path) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl(Uri.fromFile(new File(path)).toString());
+        if (TextUtils.isEmpty(extension)) {
+            return null;
+        }
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.US));
+    }
+
+    private void logCounters() {
+        Log.v(TAG, "queued=" + getQueuedCount() + ", flushed=" + getFlushedCount() +
+                ", deduplicated=" + getDeduplicatedCount() + ", filtered=" + getFilteredCount());
+    }
+
+    /**
+     * Returns the number of paths passed to {@link #scan} or {@link #delete} with a known MIME type.
+     */
+    public long getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * Returns the number of paths passed to the MediaStore.
+     */
+    public long getFlushedCount() {
+        return mFlushedCount.get();
+    }
+
+    /**
+     * Returns the number of paths that were dropped because they were already pending.
+     */
+    public long getDeduplicatedCount() {
+        return mDeduplicatedCount.get();
+    }
+
+    /**
+     * Returns the number of paths skipped because of an unknown MIME type.
+     */
+    public long getFilteredCount() {
+        return mFilteredCount.get();
+    }
+}
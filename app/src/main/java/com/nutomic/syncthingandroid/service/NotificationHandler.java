@@ -236,6 +236,25 @@ public class NotificationHandler {
         mNotificationManager.cancel(notificationId);
     }
 
+    /**
+     * Returns the text of the notification asking to accept a folder shared by a device.
+     */
+    public String getFolderConsentText(String deviceName, String folderId, String folderLabel) {
+        return mContext.getString(R.string.folder_rejected, deviceName,
+                (folderLabel == null || folderLabel.isEmpty())
+                        ? folderId : folderLabel + " (" + folderId + ")");
+    }
+
+    /**
+     * Closes the notification asking to accept the folder, e.g. after it was accepted in the
+     * web UI.
+     */
+    public void cancelFolderConsentNotification(String deviceName, String folderId,
+                                                String folderLabel) {
+        cancelConsentNotification(getNotificationIdFromText(
+                getFolderConsentText(deviceName, folderId, folderLabel)));
+    }
+
     /**
      * Used by {@link EventProcessor}
      */
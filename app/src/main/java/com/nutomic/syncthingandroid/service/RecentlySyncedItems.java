@@ -0,0 +1,71 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Items that syncthing wrote or deleted recently, as reported by "ItemFinished" events.
+ *
+ * {@link ChangeWatcher} sees these writes too, both from the file system and from the
+ * MediaStore once {@link MediaStoreBatcher} scanned the file. They need no rescan, so it skips
+ * paths found here.
+ *
+ * Thread safe, events are added on the event poll thread.
+ */
+public class RecentlySyncedItems {
+
+    /**
+     * Time in ms an item is kept. Covers the delays of MediaStoreBatcher and ChangeWatcher.
+     */
+    private static final long RETENTION = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Bounds memory while syncthing pulls a large number of files.
+     */
+    private static final int MAX_ITEMS = 10000;
+
+    /**
+     * Time an item was finished by folder id and path, oldest first.
+     */
+    private final LinkedHashMap<String, Long> mItems = new LinkedHashMap<>();
+
+    /**
+     * @param item Path relative to the folder root, as in the event.
+     */
+    public synchronized void add(String folderId, String item) {
+        long now = SystemClock.elapsedRealtime();
+        String key = getKey(folderId, item);
+        // Moves the item to the end, so the map stays ordered by time.
+        mItems.remove(key);
+        mItems.put(key, now);
+        removeExpired(now);
+    }
+
+    /**
+     * Returns true if syncthing finished the item at the given path within
+     * {@link #RETENTION}.
+     */
+    public synchronized boolean contains(String folderId, String path) {
+        removeExpired(SystemClock.elapsedRealtime());
+        return mItems.containsKey(getKey(folderId, path));
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Long>> it = mItems.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> item = it.next();
+            if (mItems.size() <= MAX_ITEMS && now - item.getValue() < RETENTION) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private static String getKey(String folderId, String path) {
+        return folderId + "\u0000" + path;
+    }
+}
@@ -0,0 +1,628 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
+import com.nutomic.syncthingandroid.model.Folder;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how many resources syncthing may use, depending on charging state, battery level,
+ * device temperature and whether the screen is on.
+ *
+ * The chosen {@link Level} sets hashers, copiers and pullerMaxPendingKiB of every folder through
+ * the REST API, and GOMAXPROCS of the binary the next time it is started. Every input has
+ * separate thresholds for entering and leaving a state, and a level is only changed after the
+ * new level was wanted for a while, because each change restarts all folders in syncthing.
+ *
+ * The settings a folder had before are stored and restored when the governor is disabled. A
+ * folder whose settings the user changed after the governor set them is left alone.
+ *
+ * The getters may be called from any thread, all other methods must be called from the main
+ * thread.
+ */
+public class ResourceGovernor {
+
+    private static final String TAG = "ResourceGovernor";
+
+    /**
+     * Time in ms a higher level must be wanted before it is used.
+     */
+    private static final long STEP_UP_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Time in ms a lower level must be wanted before it is used. Short, as it protects the
+     * device.
+     */
+    private static final long STEP_DOWN_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Minimum time in ms between a level change and a change to a higher level.
+     */
+    private static final long MIN_STEP_UP_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+
+    /**
+     * Battery levels in percent, for entering and leaving the low battery state.
+     */
+    private static final int LOW_BATTERY_ENTER = 15;
+    private static final int LOW_BATTERY_EXIT = 25;
+
+    /**
+     * Battery levels in percent, for entering and leaving {@link Level#HIGH} while charging.
+     */
+    private static final int HIGH_BATTERY_ENTER = 50;
+    private static final int HIGH_BATTERY_EXIT = 40;
+
+    /**
+     * Battery temperatures in tenths of a degree Celsius, for entering and leaving the hot
+     * state. Used in addition to the thermal status, which requires API level 29.
+     */
+    private static final int HOT_TEMPERATURE_ENTER = 420;
+    private static final int HOT_TEMPERATURE_EXIT = 390;
+
+    /**
+     * Thermal status for entering and leaving the hot state, same as
+     * PowerManager.THERMAL_STATUS_MODERATE and PowerManager.THERMAL_STATUS_LIGHT.
+     */
+    private static final int HOT_THERMAL_STATUS_ENTER = 2;
+    private static final int HOT_THERMAL_STATUS_EXIT = 1;
+
+    private static final int MAX_DECISIONS = 32;
+
+    private static ResourceGovernor sInstance;
+
+    public enum Level {
+        /** The device is hot or the battery is low. */
+        LOW,
+        /** Syncthing's defaults, except for a single hasher. */
+        NORMAL,
+        /** Charging with the screen off, the device may do heavy work. */
+        HIGH
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final PowerManager mPowerManager;
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mEvaluateRunnable = () -> evaluate("settled");
+    private final int mCpuCount = Runtime.getRuntime().availableProcessors();
+
+    private boolean mStarted = false;
+    private @Nullable RestApi mApi = null;
+
+    /**
+     * Read by SyncthingRunnable on another thread, null until started.
+     */
+    private volatile Level mLevel = null;
+
+    private @Nullable Level mPendingLevel = null;
+    private long mPendingSince = 0;
+    private long mLastChangeTime = 0;
+    private long mAppliedFoldersVersion = -1;
+
+    /**
+     * Settings of each folder before the governor changed them, see
+     * {@link Constants#PREF_RESOURCE_GOVERNOR_USER_SETTINGS}.
+     */
+    private final Map<String, FolderSettings> mUserSettings = new HashMap<>();
+
+    /**
+     * Folders whose settings the user changed after the governor set them.
+     */
+    private final Set<String> mUserFolders = new HashSet<>();
+
+    /**
+     * Settings last sent for each folder to the attached API.
+     */
+    private final Map<String, FolderSettings> mAppliedSettings = new HashMap<>();
+
+    /**
+     * Last known inputs.
+     */
+    private boolean mCharging = false;
+    private int mBatteryLevel = 100;
+    private int mBatteryTemperature = 0;
+    private int mThermalStatus = 0;
+    private boolean mInteractive = true;
+
+    /**
+     * States derived from the inputs with hysteresis.
+     */
+    private boolean mLowBattery = false;
+    private boolean mHot = false;
+    private boolean mHighBattery = false;
+
+    /**
+     * Newest decision first.
+     */
+    private final ArrayDeque<String> mDecisions = new ArrayDeque<>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction() == null) {
+                return;
+            }
+            switch (intent.getAction()) {
+                case Intent.ACTION_BATTERY_CHANGED:
+                    readBatteryState(intent);
+                    evaluate("battery changed");
+                    break;
+                case Intent.ACTION_SCREEN_ON:
+                    mInteractive = true;
+                    evaluate("screen on");
+                    break;
+                case Intent.ACTION_SCREEN_OFF:
+                    mInteractive = false;
+                    evaluate("screen off");
+                    break;
+            }
+        }
+    };
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            (preferences, key) -> {
+                if (Constants.PREF_USE_RESOURCE_GOVERNOR.equals(key)) {
+                    evaluate("preference changed");
+                    // The level may stay the same, but the folders need to be applied or restored.
+                    mAppliedFoldersVersion = -1;
+                    onConfigChanged();
+                }
+            };
+
+    private final RestApi.OnConfigChangedListener mConfigListener = this::onConfigChanged;
+
+    private PowerManager.OnThermalStatusChangedListener mThermalListener;
+
+    /**
+     * Hashers, copiers and pullerMaxPendingKiB of a folder.
+     */
+    private static class FolderSettings {
+        final int hashers;
+        final int copiers;
+        final int pullerMaxPendingKiB;
+
+        FolderSettings(int hashers, int copiers, int pullerMaxPendingKiB) {
+            this.hashers = hashers;
+            this.copiers = copiers;
+            this.pullerMaxPendingKiB = pullerMaxPendingKiB;
+        }
+
+        FolderSettings(Folder folder) {
+            this(folder.hashers, folder.copiers, folder.pullerMaxPendingKiB);
+        }
+
+        void applyTo(Folder folder) {
+            folder.hashers = hashers;
+            folder.copiers = copiers;
+            folder.pullerMaxPendingKiB = pullerMaxPendingKiB;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FolderSettings)) {
+                return false;
+            }
+            FolderSettings other = (FolderSettings) o;
+            return hashers == other.hashers && copiers == other.copiers
+                    && pullerMaxPendingKiB == other.pullerMaxPendingKiB;
+        }
+
+        @Override
+        public int hashCode() {
+            return (hashers * 31 + copiers) * 31 + pullerMaxPendingKiB;
+        }
+
+        @Override
+        public String toString() {
+            return "hashers=" + hashers + ", copiers=" + copiers
+                    + ", pullerMaxPendingKiB=" + pullerMaxPendingKiB;
+        }
+    }
+
+    public static synchronized ResourceGovernor get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResourceGovernor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ResourceGovernor(Context context) {
+        mContext = context;
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        loadUserSettings();
+    }
+
+    /**
+     * Starts watching the device state and chooses the initial level right away.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        // The battery broadcast is sticky, so its current state is returned immediately.
+        Intent battery = mContext.registerReceiver(mReceiver, filter);
+        if (battery != null) {
+            readBatteryState(battery);
+        }
+        mInteractive = mPowerManager.isInteractive();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mThermalStatus = mPowerManager.getCurrentThermalStatus();
+            mThermalListener = status -> {
+                mThermalStatus = status;
+                evaluate("thermal status " + status);
+            };
+            mPowerManager.addThermalStatusListener(mThermalListener);
+        }
+        mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        evaluate("started");
+    }
+
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        detach();
+        mContext.unregisterReceiver(mReceiver);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mThermalListener != null) {
+            mPowerManager.removeThermalStatusListener(mThermalListener);
+            mThermalListener = null;
+        }
+        mPreferences.unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        mMainThreadHandler.removeCallbacks(mEvaluateRunnable);
+        mPendingLevel = null;
+    }
+
+    /**
+     * Applies the current level to the folders of this API, and keeps it applied when the
+     * level or the folders change.
+     */
+    public void attach(RestApi api) {
+        detach();
+        mApi = api;
+        mAppliedFoldersVersion = -1;
+        // Syncthing may have been started with another config, e.g. an imported one.
+        mAppliedSettings.clear();
+        api.addOnConfigChangedListener(mConfigListener);
+        onConfigChanged();
+    }
+
+    public void detach() {
+        if (mApi != null) {
+            mApi.removeOnConfigChangedListener(mConfigListener);
+            mApi = null;
+        }
+    }
+
+    /**
+     * Returns the current level, or {@link Level#NORMAL} before the first decision. May be
+     * called from any thread.
+     */
+    public Level getLevel() {
+        Level level = mLevel;
+        return level != null ? level : Level.NORMAL;
+    }
+
+    /**
+     * Returns the value for GOMAXPROCS at the current level, or 0 to use Go's default of one
+     * thread per core. May be called from any thread.
+     */
+    public int getGoMaxProcs() {
+        return getLevel() == Level.LOW ? Math.min(2, mCpuCount) : 0;
+    }
+
+    private int getHashers(Level level) {
+        return level == Level.HIGH ? Math.max(1, Math.min(mCpuCount / 2, 4)) : 1;
+    }
+
+    private FolderSettings getFolderSettings(Level level) {
+        return new FolderSettings(getHashers(level), getCopiers(level),
+                getPullerMaxPendingKiB(level));
+    }
+
+    /**
+     * 0 selects syncthing's default.
+     */
+    private static int getCopiers(Level level) {
+        switch (level) {
+            case LOW:   return 1;
+            case HIGH:  return 4;
+            default:    return 0;
+        }
+    }
+
+    /**
+     * 0 selects syncthing's default.
+     */
+    private static int getPullerMaxPendingKiB(Level level) {
+        return level == Level.LOW ? 8 * 1024 : 0;
+    }
+
+    /**
+     * Returns the most recent decisions, newest first.
+     */
+    public String getDecisionLog() {
+        if (mDecisions.isEmpty()) {
+            return "No decisions yet";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String decision : mDecisions) {
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(decision);
+        }
+        return sb.toString();
+    }
+
+    private void readBatteryState(Intent intent) {
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        mCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            mBatteryLevel = level * 100 / scale;
+        }
+        mBatteryTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+    }
+
+    /**
+     * Updates the derived states and changes the level once the wanted level settled.
+     */
+    private void evaluate(String trigger) {
+        if (!mStarted) {
+            return;
+        }
+        mLowBattery = !mCharging && mBatteryLevel < (mLowBattery ? LOW_BATTERY_EXIT : LOW_BATTERY_ENTER);
+        mHot = mHot
+                ? mThermalStatus >= HOT_THERMAL_STATUS_EXIT || mBatteryTemperature >= HOT_TEMPERATURE_EXIT
+                : mThermalStatus >= HOT_THERMAL_STATUS_ENTER || mBatteryTemperature >= HOT_TEMPERATURE_ENTER;
+        mHighBattery = mBatteryLevel >= (mHighBattery ? HIGH_BATTERY_EXIT : HIGH_BATTERY_ENTER);
+
+        Level wanted;
+        boolean enabled = isEnabled();
+        if (!enabled) {
+            wanted = Level.NORMAL;
+        } else if (mHot || mLowBattery) {
+            wanted = Level.LOW;
+        } else if (mCharging && mHighBattery && !mInteractive) {
+            wanted = Level.HIGH;
+        } else {
+            wanted = Level.NORMAL;
+        }
+
+        mMainThreadHandler.removeCallbacks(mEvaluateRunnable);
+        if (wanted == mLevel) {
+            mPendingLevel = null;
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (wanted != mPendingLevel) {
+            mPendingLevel = wanted;
+            mPendingSince = now;
+        }
+        long changeTime;
+        if (mLevel == null || !enabled) {
+            // Nothing to protect from flapping yet, or the user wants the defaults back.
+            changeTime = now;
+        } else if (wanted.compareTo(mLevel) > 0) {
+            changeTime = Math.max(mPendingSince + STEP_UP_DELAY,
+                    mLastChangeTime + MIN_STEP_UP_INTERVAL);
+        } else {
+            changeTime = mPendingSince + STEP_DOWN_DELAY;
+        }
+        if (changeTime > now) {
+            mMainThreadHandler.postDelayed(mEvaluateRunnable, changeTime - now);
+            return;
+        }
+        changeLevel(wanted, trigger);
+    }
+
+    private void changeLevel(Level level, String trigger) {
+        Level oldLevel = mLevel;
+        mLevel = level;
+        mPendingLevel = null;
+        mLastChangeTime = SystemClock.elapsedRealtime();
+        String decision = String.format(Locale.US,
+                "%s %s -> %s (%s): %s, battery %d%%%s, %.1f °C, thermal status %d, screen %s",
+                new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date()),
+                oldLevel, level, trigger, mCharging ? "charging" : "discharging",
+                mBatteryLevel, mLowBattery ? " (low)" : "", mBatteryTemperature / 10f,
+                mThermalStatus, mInteractive ? "on" : "off");
+        Log.i(TAG, decision);
+        mDecisions.addFirst(decision);
+        while (mDecisions.size() > MAX_DECISIONS) {
+            mDecisions.removeLast();
+        }
+        if (oldLevel != null && (oldLevel == Level.LOW) != (level == Level.LOW)) {
+            Log.i(TAG, "GOMAXPROCS=" + getGoMaxProcs() + " is used when syncthing starts again");
+        }
+        mAppliedFoldersVersion = -1;
+        onConfigChanged();
+    }
+
+    private boolean isEnabled() {
+        return mPreferences.getBoolean(Constants.PREF_USE_RESOURCE_GOVERNOR, true);
+    }
+
+    /**
+     * Applies the level to new and changed folders, or restores the user's settings once the
+     * governor was disabled.
+     */
+    private void onConfigChanged() {
+        if (mApi == null || mLevel == null) {
+            return;
+        }
+        ConfigSnapshot config = mApi.getConfigSnapshot();
+        if (config == null || config.foldersVersion == mAppliedFoldersVersion) {
+            return;
+        }
+        mAppliedFoldersVersion = config.foldersVersion;
+        if (isEnabled()) {
+            applyToFolders(mApi);
+        } else if (!mUserSettings.isEmpty() || !mUserFolders.isEmpty()) {
+            restoreFolders(mApi);
+        }
+    }
+
+    /**
+     * Sends the settings of the current level for all folders that differ. Updating the
+     * folders publishes a new config, which is then already up to date.
+     */
+    private void applyToFolders(RestApi api) {
+        Level level = getLevel();
+        FolderSettings settings = getFolderSettings(level);
+        List<Folder> folders = api.getFolders();
+        int updated = 0;
+        api.beginConfigTransaction();
+        try {
+            for (Folder folder : folders) {
+                if (mUserFolders.contains(folder.id)) {
+                    continue;
+                }
+                FolderSettings current = new FolderSettings(folder);
+                FolderSettings applied = mAppliedSettings.get(folder.id);
+                if (applied != null && !applied.equals(current)) {
+                    Log.i(TAG, "Settings of folder " + folder.id + " were changed to " + current
+                            + ", no longer changing them");
+                    mAppliedSettings.remove(folder.id);
+                    mUserSettings.remove(folder.id);
+                    mUserFolders.add(folder.id);
+                    continue;
+                }
+                if (!mUserSettings.containsKey(folder.id)) {
+                    mUserSettings.put(folder.id, current);
+                }
+                mAppliedSettings.put(folder.id, settings);
+                if (current.equals(settings)) {
+                    continue;
+                }
+                settings.applyTo(folder);
+                api.updateFolder(folder);
+                updated++;
+            }
+        } finally {
+            api.commitConfigTransaction();
+        }
+        removeMissingFolders(folders);
+        saveUserSettings();
+        if (updated > 0) {
+            Log.i(TAG, "Applied level " + level + " to " + updated + " folders: " + settings);
+        }
+    }
+
+    /**
+     * Restores the settings folders had before the governor changed them, unless they were
+     * changed since, and forgets about all folders.
+     */
+    private void restoreFolders(RestApi api) {
+        Set<FolderSettings> levelSettings = new HashSet<>();
+        for (Level level : Level.values()) {
+            levelSettings.add(getFolderSettings(level));
+        }
+        int restored = 0;
+        api.beginConfigTransaction();
+        try {
+            for (Folder folder : api.getFolders()) {
+                FolderSettings userSettings = mUserSettings.get(folder.id);
+                if (userSettings == null) {
+                    continue;
+                }
+                FolderSettings current = new FolderSettings(folder);
+                FolderSettings applied = mAppliedSettings.get(folder.id);
+                // Without a record of this run, the settings of any level were set by us.
+                boolean changedSince = applied != null
+                        ? !applied.equals(current)
+                        : !levelSettings.contains(current);
+                if (changedSince || current.equals(userSettings)) {
+                    continue;
+                }
+                userSettings.applyTo(folder);
+                api.updateFolder(folder);
+                restored++;
+            }
+        } finally {
+            api.commitConfigTransaction();
+        }
+        mUserSettings.clear();
+        mUserFolders.clear();
+        mAppliedSettings.clear();
+        saveUserSettings();
+        Log.i(TAG, "Disabled, restored the settings of " + restored + " folders");
+    }
+
+    private void removeMissingFolders(List<Folder> folders) {
+        Set<String> ids = new HashSet<>();
+        for (Folder folder : folders) {
+            ids.add(folder.id);
+        }
+        mUserSettings.keySet().retainAll(ids);
+        mUserFolders.retainAll(ids);
+        mAppliedSettings.keySet().retainAll(ids);
+    }
+
+    private void loadUserSettings() {
+        for (String entry : mPreferences.getStringSet(
+                Constants.PREF_RESOURCE_GOVERNOR_USER_SETTINGS, new HashSet<>())) {
+            // The folder id comes last, as it may contain commas.
+            String[] parts = entry.split(",", 4);
+            if (parts.length != 4) {
+                continue;
+            }
+            try {
+                mUserSettings.put(parts[3], new FolderSettings(Integer.parseInt(parts[0]),
+                        Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid stored folder settings " + entry, e);
+            }
+        }
+        mUserFolders.addAll(mPreferences.getStringSet(
+                Constants.PREF_RESOURCE_GOVERNOR_USER_FOLDERS, new HashSet<>()));
+    }
+
+    private void saveUserSettings() {
+        Set<String> entries = new HashSet<>();
+        for (Map.Entry<String, FolderSettings> e : mUserSettings.entrySet()) {
+            FolderSettings settings = e.getValue();
+            entries.add(settings.hashers + "," + settings.copiers + ","
+                    + settings.pullerMaxPendingKiB + "," + e.getKey());
+        }
+        mPreferences.edit()
+                .putStringSet(Constants.PREF_RESOURCE_GOVERNOR_USER_SETTINGS, entries)
+                .putStringSet(Constants.PREF_RESOURCE_GOVERNOR_USER_FOLDERS,
+                        new HashSet<>(mUserFolders))
+                .apply();
+    }
+}
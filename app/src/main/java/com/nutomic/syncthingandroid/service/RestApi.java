@@ -2,44 +2,57 @@ package com.nutomic.syncthingandroid.service;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.android.volley.Request;
 import com.google.common.base.Objects;
-import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.nutomic.syncthingandroid.BuildConfig;
 import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.activities.ShareActivity;
+import com.nutomic.syncthingandroid.http.ConfigRequest;
+import com.nutomic.syncthingandroid.http.EventPollRequest;
 import com.nutomic.syncthingandroid.http.GetRequest;
 import com.nutomic.syncthingandroid.http.PostRequest;
 import com.nutomic.syncthingandroid.http.PostConfigRequest;
 import com.nutomic.syncthingandroid.model.Config;
+import com.nutomic.syncthingandroid.model.ConfigDiff;
+import com.nutomic.syncthingandroid.model.ConfigSnapshot;
 import com.nutomic.syncthingandroid.model.Completion;
 import com.nutomic.syncthingandroid.model.CompletionInfo;
 import com.nutomic.syncthingandroid.model.Connections;
 import com.nutomic.syncthingandroid.model.Device;
 import com.nutomic.syncthingandroid.model.Event;
+import com.nutomic.syncthingandroid.model.EventReader;
 import com.nutomic.syncthingandroid.model.Folder;
 import com.nutomic.syncthingandroid.model.FolderStatus;
 import com.nutomic.syncthingandroid.model.IgnoredFolder;
+import com.nutomic.syncthingandroid.model.ModelGson;
 import com.nutomic.syncthingandroid.model.Options;
 import com.nutomic.syncthingandroid.model.RemoteIgnoredDevice;
 import com.nutomic.syncthingandroid.model.SystemInfo;
 import com.nutomic.syncthingandroid.model.SystemVersion;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Type;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,6 +60,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
@@ -57,6 +76,11 @@ public class RestApi {
 
     private static final String TAG = "RestApi";
 
+    /**
+     * Time in ms to wait for further config changes, so they are sent to syncthing together.
+     */
+    private static final long CONFIG_COMMIT_DELAY = 300;
+
     private static final SimpleDateFormat dateFormat;
     static {
         if (android.os.Build.VERSION.SDK_INT < 24) {
@@ -66,16 +90,6 @@ public class RestApi {
         }
     }
 
-    /**
-     * Compares folders by labels, uses the folder ID as fallback if the label is empty
-     */
-    private final static Comparator<Folder> FOLDERS_COMPARATOR = (lhs, rhs) -> {
-        String lhsLabel = lhs.label != null && !lhs.label.isEmpty() ? lhs.label : lhs.id;
-        String rhsLabel = rhs.label != null && !rhs.label.isEmpty() ? rhs.label : rhs.id;
-
-        return lhsLabel.compareTo(rhsLabel);
-    };
-
     public interface OnConfigChangedListener {
         void onConfigChanged();
     }
@@ -88,29 +102,68 @@ public class RestApi {
         void onResult(T t, R r);
     }
 
+    /**
+     * Shared Gson instance, see {@link ModelGson}. Reused as creating Gson adapters is expensive.
+     */
+    private final Gson mGson = ModelGson.get();
+
     private final Context mContext;
     private final URL mUrl;
     private final String mApiKey;
 
     private String mVersion;
+
+    /**
+     * Working copy of the config modified by the edit functions, guarded by mConfigLock.
+     * Readers use {@link #mConfigSnapshot} instead.
+     */
     private Config mConfig;
 
     /**
-     * Results cached from systemInfo
+     * Immutable copy of mConfig, replaced by {@link #publishConfigSnapshot} on every change.
      */
-    private String mLocalDeviceId;
-    private Integer mUrVersionMax;
+    private final AtomicReference<ConfigSnapshot> mConfigSnapshot = new AtomicReference<>();
+    private long mConfigSnapshotVersion = 0;
 
     /**
-     * Stores the result of the last successful request to {@link GetRequest#URI_CONNECTIONS},
-     * or an empty Map.
+     * Changes to mConfig that were not sent to syncthing yet, guarded by mConfigLock. Folders
+     * and devices are sent by id, other changes require sending the whole config.
      */
-    private Optional<Connections> mPreviousConnections = Optional.absent();
+    private final Set<String> mChangedFolderIds = new HashSet<>();
+    private final Set<String> mChangedDeviceIds = new HashSet<>();
+    private boolean mConfigChanged = false;
 
     /**
-     * Stores the timestamp of the last successful request to {@link GetRequest#URI_CONNECTIONS}.
+     * Number of open {@link #beginConfigTransaction} calls, guarded by mConfigLock.
      */
-    private long mPreviousConnectionTime = 0;
+    private int mConfigTransactionDepth = 0;
+
+    /**
+     * True if mConfig was changed during a transaction and has to be published on commit,
+     * guarded by mConfigLock.
+     */
+    private boolean mConfigSnapshotPending = false;
+
+    private final Runnable mCommitConfigRunnable = this::commitConfigChanges;
+
+    /**
+     * Number of config requests that were sent but not answered yet, and what to run once
+     * all of them were answered. Only changed on the main thread, the count is also read by
+     * {@link #onConfigSaved}.
+     */
+    private final AtomicInteger mConfigRequestsInFlight = new AtomicInteger();
+    private final List<Runnable> mOnConfigRequestsDone = new ArrayList<>();
+
+    /**
+     * True if the config is reloaded once all config requests were answered.
+     */
+    private final AtomicBoolean mReloadWhenConfigSent = new AtomicBoolean();
+
+    /**
+     * Results cached from systemInfo
+     */
+    private String mLocalDeviceId;
+    private Integer mUrVersionMax;
 
     /**
      * In the last-finishing {@link readConfigFromRestApi} callback, we have to call
@@ -131,19 +184,43 @@ public class RestApi {
     private final Object mAsyncQueryCompleteLock = new Object();
 
     /**
-     * Object that must be locked upon accessing mConfig
+     * Object that must be locked upon accessing mConfig, mConfigSnapshotVersion and
+     * mLastAppliedConfigRequest
      */
     private final Object mConfigLock = new Object();
 
     /**
-     * Stores the latest result of {@link #getFolderStatus} for each folder
+     * Numbers config requests, so a response that was parsed late never replaces the config
+     * of a later request.
      */
-    private HashMap<String, FolderStatus> mCachedFolderStatuses = new HashMap<>();
+    private final AtomicLong mConfigRequestCount = new AtomicLong();
+    private long mLastAppliedConfigRequest = 0;
+
+    /**
+     * Latest status of each folder. Fetched once per folder by {@link #syncFolderStatuses},
+     * afterwards kept up to date from FolderSummary and StateChanged events.
+     * Must only be accessed from the main thread.
+     */
+    private final HashMap<String, FolderStatus> mCachedFolderStatuses = new HashMap<>();
+
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPublishFolderStatusesRunnable = this::publishFolderStatuses;
+    private boolean mPublishFolderStatusesPosted = false;
+
+    /**
+     * Notified on the main thread after a new config snapshot was published. Must only be
+     * accessed from the main thread.
+     */
+    private final List<OnConfigChangedListener> mConfigSnapshotListeners = new ArrayList<>();
+    private final Runnable mNotifyConfigSnapshotListenersRunnable =
+            this::notifyConfigSnapshotListeners;
 
     /**
      * Stores the latest result of device and folder completion events.
      */
-    private Completion mCompletion = new Completion();
+    private final Completion mCompletion = new Completion();
+
+    private final StatusRepository mStatusRepository = new StatusRepository(this);
 
     @Inject NotificationHandler mNotificationHandler;
 
@@ -175,9 +252,10 @@ public class RestApi {
             asyncQueryConfigComplete = false;
             asyncQuerySystemInfoComplete = false;
         }
-        new GetRequest(mContext, mUrl, GetRequest.URI_VERSION, mApiKey, null, result -> {
-            JsonObject json = new JsonParser().parse(result).getAsJsonObject();
-            mVersion = json.get("version").getAsString();
+        new GetRequest(mContext, mUrl, GetRequest.URI_VERSION, mApiKey, null, result ->
+                new JsonParser().parse(result).getAsJsonObject().get("version").getAsString(),
+                version -> {
+            mVersion = version;
             Log.i(TAG, "Syncthing version is " + mVersion);
             updateDebugFacilitiesCache();
             synchronized (mAsyncQueryCompleteLock) {
@@ -185,8 +263,10 @@ public class RestApi {
                 checkReadConfigFromRestApiCompleted();
             }
         });
-        new GetRequest(mContext, mUrl, GetRequest.URI_CONFIG, mApiKey, null, result -> {
-            onReloadConfigComplete(result);
+        long configRequest = mConfigRequestCount.incrementAndGet();
+        new GetRequest(mContext, mUrl, GetRequest.URI_CONFIG, mApiKey, null,
+                result -> applyConfig(configRequest, result), snapshot -> {
+            onReloadConfigComplete(snapshot);
             synchronized (mAsyncQueryCompleteLock) {
                 asyncQueryConfigComplete = true;
                 checkReadConfigFromRestApiCompleted();
@@ -210,25 +290,117 @@ public class RestApi {
     }
 
     public void reloadConfig() {
-        new GetRequest(mContext, mUrl, GetRequest.URI_CONFIG, mApiKey, null, this::onReloadConfigComplete);
+        long configRequest = mConfigRequestCount.incrementAndGet();
+        new GetRequest(mContext, mUrl, GetRequest.URI_CONFIG, mApiKey, null,
+                result -> applyConfig(configRequest, result), this::onReloadConfigComplete);
     }
 
-    private void onReloadConfigComplete(String result) {
-        Boolean configParseSuccess;
-        synchronized(mConfigLock) {
-            mConfig = new Gson().fromJson(result, Config.class);
-            configParseSuccess = mConfig != null;
+    /**
+     * Parses the config received for the given request, replaces mConfig and updates the
+     * completion model. Called on a network thread.
+     *
+     * @return The published snapshot, or the current one if a later request was applied already.
+     */
+    private ConfigSnapshot applyConfig(long configRequest, String result) {
+        // Parse twice instead of copying mConfig, which would take longer and hold the lock.
+        Config config = mGson.fromJson(result, Config.class);
+        Config snapshotConfig = mGson.fromJson(result, Config.class);
+        if (config == null || snapshotConfig == null) {
+            throw new JsonParseException("config is null: " + result);
         }
-        if (!configParseSuccess) {
-            throw new RuntimeException("config is null: " + result);
+        ConfigSnapshot snapshot;
+        synchronized (mConfigLock) {
+            if (configRequest < mLastAppliedConfigRequest) {
+                Log.v(TAG, "applyConfig: Dropping config of outdated request " + configRequest);
+                return getConfigSnapshot();
+            }
+            mLastAppliedConfigRequest = configRequest;
+            mConfig = config;
+            mConfigSnapshotVersion++;
+            snapshot = new ConfigSnapshot(snapshotConfig, mConfigSnapshotVersion);
+            setConfigSnapshot(snapshot);
         }
-        Log.v(TAG, "onReloadConfigComplete: Successfully parsed configuration.");
+        Log.v(TAG, "applyConfig: Successfully parsed configuration.");
         if (BuildConfig.DEBUG) {
-            Log.v(TAG, "mConfig.remoteIgnoredDevices = " + new Gson().toJson(mConfig.remoteIgnoredDevices));
+            Log.v(TAG, "mConfig.remoteIgnoredDevices = " + mGson.toJson(snapshotConfig.remoteIgnoredDevices));
         }
+        // Update cached device and folder information stored in the mCompletion model.
+        mCompletion.updateFromConfig(snapshot.getDevices(), snapshot.getFolders());
+        return snapshot;
+    }
+
+    /**
+     * Called on the main thread after {@link #applyConfig} was done.
+     */
+    private void onReloadConfigComplete(ConfigSnapshot snapshot) {
+        syncFolderStatuses(false);
+    }
 
+    /**
+     * Called once syncthing answered all config requests we sent, so it uses mConfig.
+     */
+    private void onConfigApplied() {
         // Update cached device and folder information stored in the mCompletion model.
-        mCompletion.updateFromConfig(getDevices(true), getFolders());
+        ConfigSnapshot snapshot = getConfigSnapshot();
+        mCompletion.updateFromConfig(snapshot.getDevices(), snapshot.getFolders());
+        syncFolderStatuses(false);
+    }
+
+    /**
+     * Publishes a copy of mConfig for lock-free reading. Must be called with mConfigLock held
+     * after every change to mConfig. Deferred until the end of an open transaction.
+     */
+    private void publishConfigSnapshot() {
+        if (mConfigTransactionDepth > 0) {
+            mConfigSnapshotPending = true;
+            return;
+        }
+        mConfigSnapshotPending = false;
+        mConfigSnapshotVersion++;
+        setConfigSnapshot(new ConfigSnapshot(deepCopy(mConfig, Config.class), mConfigSnapshotVersion));
+    }
+
+    /**
+     * Replaces the published snapshot and notifies the listeners added with
+     * {@link #addOnConfigChangedListener}. Called on any thread with mConfigLock held.
+     */
+    private void setConfigSnapshot(ConfigSnapshot snapshot) {
+        mConfigSnapshot.set(snapshot);
+        // Listeners read the latest snapshot, so a single notification covers several changes.
+        mMainThreadHandler.removeCallbacks(mNotifyConfigSnapshotListenersRunnable);
+        mMainThreadHandler.post(mNotifyConfigSnapshotListenersRunnable);
+    }
+
+    private void notifyConfigSnapshotListeners() {
+        for (OnConfigChangedListener listener : new ArrayList<>(mConfigSnapshotListeners)) {
+            listener.onConfigChanged();
+        }
+    }
+
+    /**
+     * Adds a listener that is called on the main thread whenever {@link #getConfigSnapshot}
+     * changed, whether the app or syncthing changed the config. Must be called from the main
+     * thread.
+     */
+    public void addOnConfigChangedListener(OnConfigChangedListener listener) {
+        mConfigSnapshotListeners.add(listener);
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    public void removeOnConfigChangedListener(OnConfigChangedListener listener) {
+        mConfigSnapshotListeners.remove(listener);
+    }
+
+    /**
+     * Returns the latest config, or null if it was not loaded yet.
+     *
+     * This does not lock or copy. The returned objects are shared and must not be modified,
+     * use {@link #getFolders}, {@link #getDevices} etc. to get copies for editing.
+     */
+    public ConfigSnapshot getConfigSnapshot() {
+        return mConfigSnapshot.get();
     }
 
     /**
@@ -242,13 +414,15 @@ public class RestApi {
         if (!mVersion.equals(PreferenceManager.getDefaultSharedPreferences(mContext).getString(PREF_LAST_BINARY_VERSION, ""))) {
             // First binary launch or binary upgraded case.
             new GetRequest(mContext, mUrl, GetRequest.URI_DEBUG, mApiKey, null, result -> {
+                Set<String> facilitiesToStore = new HashSet<String>();
+                JsonObject json = new JsonParser().parse(result).getAsJsonObject();
+                JsonObject jsonFacilities = json.getAsJsonObject("facilities");
+                for (String facilityName : jsonFacilities.keySet()) {
+                    facilitiesToStore.add(facilityName);
+                }
+                return facilitiesToStore;
+            }, facilitiesToStore -> {
                 try {
-                    Set<String> facilitiesToStore = new HashSet<String>();
-                    JsonObject json = new JsonParser().parse(result).getAsJsonObject();
-                    JsonObject jsonFacilities = json.getAsJsonObject("facilities");
-                    for (String facilityName : jsonFacilities.keySet()) {
-                        facilitiesToStore.add(facilityName);
-                    }
                     PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                         .putStringSet(Constants.PREF_DEBUG_FACILITIES_AVAILABLE, facilitiesToStore)
                         .apply();
@@ -259,7 +433,7 @@ public class RestApi {
                         .putString(PREF_LAST_BINARY_VERSION, mVersion)
                         .apply();
                 } catch (Exception e) {
-                    Log.w(TAG, "updateDebugFacilitiesCache: Failed to get debug facilities. result=" + result);
+                    Log.w(TAG, "updateDebugFacilitiesCache: Failed to store debug facilities.", e);
                 }
             });
         }
@@ -287,7 +461,10 @@ public class RestApi {
             remoteIgnoredDevice.name = deviceName;
             remoteIgnoredDevice.time = dateFormat.format(new Date());
             mConfig.remoteIgnoredDevices.add(remoteIgnoredDevice);
-            sendConfig();
+            publishConfigSnapshot();
+            // There is no endpoint for ignored devices alone.
+            mConfigChanged = true;
+            scheduleConfigCommit();
             Log.d(TAG, "Ignored device [" + deviceId + "]");
         }
     }
@@ -322,9 +499,11 @@ public class RestApi {
                     ignoredFolder.time = dateFormat.format(new Date());
                     device.ignoredFolders.add(ignoredFolder);
                     if (BuildConfig.DEBUG) {
-                        Log.v(TAG, "device.ignoredFolders = " + new Gson().toJson(device.ignoredFolders));
+                        Log.v(TAG, "device.ignoredFolders = " + mGson.toJson(device.ignoredFolders));
                     }
-                    sendConfig();
+                    publishConfigSnapshot();
+                    mChangedDeviceIds.add(deviceId);
+                    scheduleConfigCommit();
                     Log.d(TAG, "Ignored folder [" + folderId + "] announced by device [" + deviceId + "]");
 
                     // Given deviceId handled.
@@ -344,6 +523,7 @@ public class RestApi {
             for (Device device : mConfig.devices) {
                 device.ignoredFolders.clear();
             }
+            publishConfigSnapshot();
         }
     }
 
@@ -358,37 +538,441 @@ public class RestApi {
     }
 
     /**
-     * Sends current config to Syncthing.
-     * Will result in a "ConfigSaved" event.
-     * EventProcessor will trigger this.reloadConfig().
+     * Asks syncthing to rescan part of a folder right away, instead of waiting for the
+     * filesystem watcher delay or the next full scan.
+     *
+     * @param subDirectory Path relative to the folder root, or empty to scan the whole folder.
      */
-    private void sendConfig() {
-        String jsonConfig;
+    public void scanFolder(String folderId, String subDirectory) {
+        Log.d(TAG, "scanFolder '" + folderId + "', sub '" + subDirectory + "'");
+        Map<String, String> params = subDirectory.isEmpty()
+                ? ImmutableMap.of("folder", folderId)
+                : ImmutableMap.of("folder", folderId, "sub", subDirectory);
+        new PostRequest(mContext, mUrl, PostRequest.URI_DB_SCAN, mApiKey, params, null);
+    }
+
+    /**
+     * Asks syncthing to rescan several parts of a folder with a single request.
+     *
+     * @param subDirectories Paths relative to the folder root. An empty path scans the whole
+     *                       folder.
+     */
+    public void scanFolder(String folderId, Collection<String> subDirectories) {
+        if (subDirectories.size() == 1 || subDirectories.contains("")) {
+            scanFolder(folderId, subDirectories.contains("") ? "" : subDirectories.iterator().next());
+            return;
+        }
+        Log.d(TAG, "scanFolder '" + folderId + "', subs " + subDirectories);
+        ListMultimap<String, String> params = ArrayListMultimap.create();
+        params.put("folder", folderId);
+        params.putAll("sub", subDirectories);
+        new PostRequest(mContext, mUrl, PostRequest.URI_DB_SCAN, mApiKey, params);
+    }
+
+    /**
+     * Groups config changes until the matching {@link #commitConfigTransaction}, so they are
+     * sent to syncthing together. Calls may be nested.
+     *
+     * The config snapshot is also only published on commit, so getters return the config from
+     * before the transaction until then, and n changes copy the config once instead of n times.
+     */
+    public void beginConfigTransaction() {
+        synchronized (mConfigLock) {
+            mConfigTransactionDepth++;
+        }
+    }
+
+    /**
+     * Sends all config changes since the outermost {@link #beginConfigTransaction} call.
+     */
+    public void commitConfigTransaction() {
         synchronized (mConfigLock) {
-            jsonConfig = new Gson().toJson(mConfig);
+            if (mConfigTransactionDepth == 0) {
+                Log.e(TAG, "commitConfigTransaction: No transaction is open");
+                return;
+            }
+            mConfigTransactionDepth--;
+            if (mConfigTransactionDepth == 0) {
+                if (mConfigSnapshotPending) {
+                    publishConfigSnapshot();
+                }
+                mMainThreadHandler.removeCallbacks(mCommitConfigRunnable);
+                mMainThreadHandler.post(mCommitConfigRunnable);
+            }
+        }
+    }
+
+    /**
+     * Sends pending config changes after {@link #CONFIG_COMMIT_DELAY}, unless more changes
+     * follow or a transaction is open. Must be called with mConfigLock held.
+     */
+    private void scheduleConfigCommit() {
+        mMainThreadHandler.removeCallbacks(mCommitConfigRunnable);
+        if (mConfigTransactionDepth == 0) {
+            mMainThreadHandler.postDelayed(mCommitConfigRunnable, CONFIG_COMMIT_DELAY);
+        }
+    }
+
+    /**
+     * Sends pending config changes to syncthing, each of which will result in a "ConfigSaved"
+     * event. Single folders and devices are sent by id, several of them as a whole list, so a
+     * batch of changes never needs more than one request per list.
+     */
+    private void commitConfigChanges() {
+        synchronized (mConfigLock) {
+            if (mConfigTransactionDepth > 0 ||
+                    (!mConfigChanged && mChangedFolderIds.isEmpty() && mChangedDeviceIds.isEmpty())) {
+                return;
+            }
+            if (mConfigChanged) {
+                Log.v(TAG, "commitConfigChanges: Sending whole config");
+                onConfigSaveSent();
+                new PostConfigRequest(mContext, mUrl, mApiKey, mGson.toJson(mConfig),
+                        result -> onConfigRequestDone(), error -> onConfigSaveFailed());
+            } else {
+                if (mChangedFolderIds.size() > 1) {
+                    sendConfigList(ConfigRequest.URI_CONFIG_FOLDERS, mGson.toJson(mConfig.folders));
+                } else {
+                    for (String id : mChangedFolderIds) {
+                        sendConfigObject(ConfigRequest.URI_CONFIG_FOLDERS, id, findFolder(id));
+                    }
+                }
+                if (mChangedDeviceIds.size() > 1) {
+                    sendConfigList(ConfigRequest.URI_CONFIG_DEVICES, mGson.toJson(mConfig.devices));
+                } else {
+                    for (String id : mChangedDeviceIds) {
+                        sendConfigObject(ConfigRequest.URI_CONFIG_DEVICES, id, findDevice(id));
+                    }
+                }
+            }
+            mConfigChanged = false;
+            mChangedFolderIds.clear();
+            mChangedDeviceIds.clear();
         }
-        new PostConfigRequest(mContext, mUrl, mApiKey, jsonConfig, null);
         mOnConfigChangedListener.onConfigChanged();
     }
 
+    private void sendConfigList(String path, String json) {
+        Log.v(TAG, "commitConfigChanges: Replacing " + path);
+        onConfigSaveSent();
+        new ConfigRequest(mContext, mUrl, path, mApiKey, Request.Method.PUT, json,
+                result -> onConfigRequestDone(), error -> onConfigSaveFailed());
+    }
+
+    /**
+     * Replaces the object with the given id, or deletes it if object is null.
+     */
+    private void sendConfigObject(String path, String id, Object object) {
+        Log.v(TAG, "commitConfigChanges: " + (object != null ? "Replacing " : "Deleting ") +
+                path + "/" + id);
+        onConfigSaveSent();
+        new ConfigRequest(mContext, mUrl, path + "/" + id, mApiKey,
+                object != null ? Request.Method.PUT : Request.Method.DELETE,
+                object != null ? mGson.toJson(object) : null,
+                result -> onConfigRequestDone(), error -> onConfigSaveFailed());
+    }
+
+    private void onConfigSaveSent() {
+        mConfigRequestsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Syncthing did not accept the change, so our config differs from its config.
+     */
+    private void onConfigSaveFailed() {
+        Log.w(TAG, "Failed to send config change, reloading config");
+        reloadConfig();
+        onConfigRequestDone();
+    }
+
+    private void onConfigRequestDone() {
+        if (mConfigRequestsInFlight.decrementAndGet() > 0) {
+            return;
+        }
+        onConfigApplied();
+        List<Runnable> callbacks = new ArrayList<>(mOnConfigRequestsDone);
+        mOnConfigRequestsDone.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Runs callback on the main thread once all config requests sent so far were answered.
+     */
+    private void runWhenConfigSent(Runnable callback) {
+        if (mConfigRequestsInFlight.get() == 0) {
+            callback.run();
+        } else {
+            mOnConfigRequestsDone.add(callback);
+        }
+    }
+
+    /**
+     * Called on the event poll thread for each "ConfigSaved" event, with the config decoded
+     * from the event. Applies the changes to our config. Events caused by changes we sent
+     * ourselves contain no changes, unless syncthing normalized what we sent.
+     */
+    public void onConfigSaved(Config config) {
+        try {
+            applyConfigSaved(config);
+        } catch (RuntimeException e) {
+            // Must not stop the event poll thread. mConfig is only replaced at the end, so
+            // reloading brings everything back in sync.
+            Log.w(TAG, "onConfigSaved: Failed to apply config, reloading it", e);
+            mMainThreadHandler.post(this::reloadConfig);
+        }
+    }
+
+    private void applyConfigSaved(Config config) {
+        ConfigSnapshot snapshot = getConfigSnapshot();
+        if (snapshot == null || config == null || config.folders == null || config.devices == null) {
+            // Not loaded yet, or the event did not contain the config.
+            mMainThreadHandler.post(this::reloadConfig);
+            return;
+        }
+        // Compare outside of the lock, and again if the config was changed meanwhile.
+        ConfigDiff diff = ConfigDiff.compute(snapshot, config);
+        synchronized (mConfigLock) {
+            if (getConfigSnapshot() != snapshot) {
+                snapshot = getConfigSnapshot();
+                diff = ConfigDiff.compute(snapshot, config);
+            }
+            // Reloads requested before may return an older config.
+            mLastAppliedConfigRequest = mConfigRequestCount.incrementAndGet();
+            if (diff.isEmpty()) {
+                Log.v(TAG, "onConfigSaved: Config did not change");
+                return;
+            }
+            if (mConfigRequestsInFlight.get() > 0) {
+                // Might be saved for one of our requests before the others, applying it would
+                // revert their changes until their events arrive.
+                Log.v(TAG, "onConfigSaved: Reloading once our config changes were answered");
+                reloadWhenConfigSent();
+                return;
+            }
+            mConfig = patchConfig(config, diff);
+            if (hasUncommittedChanges()) {
+                // The snapshot must contain our changes too, and is deferred by an open
+                // transaction like any other change.
+                publishConfigSnapshot();
+            } else {
+                mConfigSnapshotVersion++;
+                // The event's config is not used anywhere else, so the snapshot can own it.
+                setConfigSnapshot(new ConfigSnapshot(config, mConfigSnapshotVersion,
+                        diff.hasFolderChanges() ? mConfigSnapshotVersion : snapshot.foldersVersion,
+                        diff.hasDeviceChanges() ? mConfigSnapshotVersion : snapshot.devicesVersion));
+            }
+        }
+        Log.v(TAG, "onConfigSaved: Applied " + diff);
+        mCompletion.applyConfigDiff(diff);
+        final ConfigDiff appliedDiff = diff;
+        mMainThreadHandler.post(() -> onConfigDiffApplied(appliedDiff));
+    }
+
+    /**
+     * Returns true if mConfig contains changes that were not sent to syncthing yet. Must be
+     * called with mConfigLock held.
+     */
+    private boolean hasUncommittedChanges() {
+        return mConfigChanged || !mChangedFolderIds.isEmpty() || !mChangedDeviceIds.isEmpty();
+    }
+
+    /**
+     * Reloads the config once, after all config requests sent so far were answered.
+     */
+    private void reloadWhenConfigSent() {
+        if (mReloadWhenConfigSent.compareAndSet(false, true)) {
+            mMainThreadHandler.post(() -> runWhenConfigSent(() -> {
+                mReloadWhenConfigSent.set(false);
+                reloadConfig();
+            }));
+        }
+    }
+
+    /**
+     * Returns a working copy of the new config that shares the unchanged parts with mConfig,
+     * so only changed parts are copied. Folders, devices and other parts with uncommitted
+     * changes are kept from mConfig, so the commit still sends them. Must be called with
+     * mConfigLock held.
+     */
+    private Config patchConfig(Config config, ConfigDiff diff) {
+        Set<String> changedFolderIds = new HashSet<>();
+        for (Folder folder : diff.addedFolders) {
+            changedFolderIds.add(folder.id);
+        }
+        for (Folder folder : diff.changedFolders) {
+            changedFolderIds.add(folder.id);
+        }
+        Set<String> changedDeviceIds = new HashSet<>();
+        for (Device device : diff.addedDevices) {
+            changedDeviceIds.add(device.deviceID);
+        }
+        for (Device device : diff.changedDevices) {
+            changedDeviceIds.add(device.deviceID);
+        }
+
+        Config patched = new Config();
+        patched.version = config.version;
+        patched.folders = new ArrayList<>();
+        Set<String> folderIds = new HashSet<>();
+        for (Folder folder : config.folders) {
+            folderIds.add(folder.id);
+            if (mChangedFolderIds.contains(folder.id)) {
+                // Deleted by us if not found.
+                Folder localFolder = findFolder(folder.id);
+                if (localFolder != null) {
+                    patched.folders.add(localFolder);
+                }
+            } else {
+                patched.folders.add(changedFolderIds.contains(folder.id)
+                        ? deepCopy(folder, Folder.class) : findFolder(folder.id));
+            }
+        }
+        for (Folder folder : mConfig.folders) {
+            // Added by us.
+            if (mChangedFolderIds.contains(folder.id) && !folderIds.contains(folder.id)) {
+                patched.folders.add(folder);
+            }
+        }
+        patched.devices = new ArrayList<>();
+        Set<String> deviceIds = new HashSet<>();
+        for (Device device : config.devices) {
+            deviceIds.add(device.deviceID);
+            if (mChangedDeviceIds.contains(device.deviceID)) {
+                Device localDevice = findDevice(device.deviceID);
+                if (localDevice != null) {
+                    patched.devices.add(localDevice);
+                }
+            } else {
+                patched.devices.add(changedDeviceIds.contains(device.deviceID)
+                        ? deepCopy(device, Device.class) : findDevice(device.deviceID));
+            }
+        }
+        for (Device device : mConfig.devices) {
+            if (mChangedDeviceIds.contains(device.deviceID) && !deviceIds.contains(device.deviceID)) {
+                patched.devices.add(device);
+            }
+        }
+        // The whole config is sent, so the other parts must stay as we changed them.
+        patched.options = diff.optionsChanged && !mConfigChanged
+                ? deepCopy(config.options, Options.class) : mConfig.options;
+        patched.gui = diff.guiChanged && !mConfigChanged
+                ? deepCopy(config.gui, Config.Gui.class) : mConfig.gui;
+        patched.remoteIgnoredDevices = diff.otherChanged && !mConfigChanged
+                ? deepCopy(config.remoteIgnoredDevices, new TypeToken<List<RemoteIgnoredDevice>>(){}.getType())
+                : mConfig.remoteIgnoredDevices;
+        return patched;
+    }
+
+    /**
+     * Updates what depends on the config on the main thread, after a config diff was applied.
+     */
+    private void onConfigDiffApplied(ConfigDiff diff) {
+        for (Folder folder : diff.removedFolders) {
+            mCachedFolderStatuses.remove(folder.id);
+        }
+        for (Folder folder : diff.addedFolders) {
+            getFolderStatus(folder.id, (folderId, status) -> {});
+            // The folder was accepted somewhere else, e.g. in the web UI.
+            for (Folder.Device device : folder.getDevices()) {
+                mNotificationHandler.cancelFolderConsentNotification(
+                        getDeviceName(device.deviceID), folder.id, folder.label);
+            }
+        }
+        for (Folder folder : diff.changedFolders) {
+            getFolderStatus(folder.id, (folderId, status) -> {});
+        }
+        // Also lets observers pick up the changed config.
+        postPublishFolderStatuses();
+    }
+
+    private String getDeviceName(String deviceId) {
+        Device device = getConfigSnapshot().getDevice(deviceId);
+        return (device != null) ? device.getDisplayName() : null;
+    }
+
+    private Folder findFolder(String id) {
+        for (Folder folder : mConfig.folders) {
+            if (folder.id.equals(id)) {
+                return folder;
+            }
+        }
+        return null;
+    }
+
+    private Device findDevice(String deviceId) {
+        for (Device device : mConfig.devices) {
+            if (device.deviceID.equals(deviceId)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
     /**
      * Sends current config and restarts Syncthing.
      */
     public void saveConfigAndRestart() {
         String jsonConfig;
         synchronized (mConfigLock) {
-            jsonConfig = new Gson().toJson(mConfig);
+            jsonConfig = mGson.toJson(mConfig);
+            // Pending changes are part of the whole config.
+            mMainThreadHandler.removeCallbacks(mCommitConfigRunnable);
+            mConfigChanged = false;
+            mChangedFolderIds.clear();
+            mChangedDeviceIds.clear();
         }
         new PostConfigRequest(mContext, mUrl, mApiKey, jsonConfig, result -> {
             Intent intent = new Intent(mContext, SyncthingService.class)
-                    .setAction(SyncthingService.ACTION_RESTART);
+                    .setAction(SyncthingService.ACTION_APPLY_CONFIG);
             mContext.startService(intent);
-        });
+        }, null);
         mOnConfigChangedListener.onConfigChanged();
     }
 
+    /**
+     * Asks syncthing to restart, e.g. to apply config changes. The binary exits with code 3 and
+     * is launched again by {@link SyncthingRunnable}.
+     *
+     * @param onFailure Called if the request failed, so the binary will not restart.
+     */
+    public void restartSyncthing(Runnable onFailure) {
+        Log.d(TAG, "Requesting syncthing restart");
+        new PostRequest(mContext, mUrl, PostRequest.URI_SYSTEM_RESTART, mApiKey, null, null,
+                error -> onFailure.run());
+    }
+
+    /**
+     * Asks syncthing to shut down gracefully. The binary exits with code 0.
+     *
+     * The request is only sent once all config requests were answered, including those sent
+     * by {@link #shutdown}, so no changes are lost.
+     */
+    public void shutdownSyncthing() {
+        runWhenConfigSent(() -> {
+            Log.d(TAG, "Requesting syncthing shutdown");
+            new PostRequest(mContext, mUrl, PostRequest.URI_SYSTEM_SHUTDOWN, mApiKey, null, null);
+        });
+    }
+
     public void shutdown() {
+        // Don't lose changes that are waiting for CONFIG_COMMIT_DELAY.
+        mMainThreadHandler.removeCallbacks(mCommitConfigRunnable);
+        commitConfigChanges();
         mNotificationHandler.cancelRestartNotification();
+        mMainThreadHandler.removeCallbacks(mPublishFolderStatusesRunnable);
+        mMainThreadHandler.removeCallbacks(mNotifyConfigSnapshotListenersRunnable);
+        mConfigSnapshotListeners.clear();
+        mStatusRepository.shutdown();
+    }
+
+    /**
+     * Returns the shared poller for status information, which should be used instead of
+     * periodically calling {@link #getSystemInfo}, {@link #getConnections} etc.
+     */
+    public StatusRepository getStatusRepository() {
+        return mStatusRepository;
     }
 
     /**
@@ -398,13 +982,12 @@ public class RestApi {
         return mVersion;
     }
 
+    /**
+     * Returns a copy of all folders sorted by label, which may be modified for editing.
+     * Use {@link #getConfigSnapshot} if the folders are only read.
+     */
     public List<Folder> getFolders() {
-        List<Folder> folders;
-        synchronized (mConfigLock) {
-            folders = deepCopy(mConfig.folders, new TypeToken<List<Folder>>(){}.getType());
-        }
-        Collections.sort(folders, FOLDERS_COMPARATOR);
-        return folders;
+        return deepCopy(getConfigSnapshot().getFolders(), new TypeToken<List<Folder>>(){}.getType());
     }
 
     /**
@@ -414,8 +997,10 @@ public class RestApi {
         synchronized (mConfigLock) {
             // Add the new folder to the model.
             mConfig.folders.add(folder);
+            publishConfigSnapshot();
             // Send model changes to syncthing, does not require a restart.
-            sendConfig();
+            mChangedFolderIds.add(folder.id);
+            scheduleConfigCommit();
         }
     }
 
@@ -423,15 +1008,19 @@ public class RestApi {
         synchronized (mConfigLock) {
             removeFolderInternal(newFolder.id);
             mConfig.folders.add(newFolder);
-            sendConfig();
+            publishConfigSnapshot();
+            mChangedFolderIds.add(newFolder.id);
+            scheduleConfigCommit();
         }
     }
 
     public void removeFolder(String id) {
         synchronized (mConfigLock) {
             removeFolderInternal(id);
+            publishConfigSnapshot();
             // mCompletion will be updated after the ConfigSaved event.
-            sendConfig();
+            mChangedFolderIds.add(id);
+            scheduleConfigCommit();
             // Remove saved data from share activity for this folder.
         }
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
@@ -453,15 +1042,14 @@ public class RestApi {
     }
 
     /**
-     * Returns a list of all existing devices.
+     * Returns a copy of all existing devices, which may be modified for editing.
+     * Use {@link #getConfigSnapshot} if the devices are only read.
      *
      * @param includeLocal True if the local device should be included in the result.
      */
     public List<Device> getDevices(boolean includeLocal) {
-        List<Device> devices;
-        synchronized (mConfigLock) {
-            devices = deepCopy(mConfig.devices, new TypeToken<List<Device>>(){}.getType());
-        }
+        List<Device> devices =
+                deepCopy(getConfigSnapshot().getDevices(), new TypeToken<List<Device>>(){}.getType());
 
         Iterator<Device> it = devices.iterator();
         while (it.hasNext()) {
@@ -475,16 +1063,25 @@ public class RestApi {
         return devices;
     }
 
+    /**
+     * Returns the id of the local device, or null if system info was not read yet.
+     */
+    public String getLocalDeviceId() {
+        return mLocalDeviceId;
+    }
+
+    /**
+     * Returns a copy of the local device, which may be modified for editing.
+     */
     public Device getLocalDevice() {
-        List<Device> devices = getDevices(true);
-        if (devices.isEmpty()) {
+        ConfigSnapshot snapshot = getConfigSnapshot();
+        if (snapshot.getDevices().isEmpty()) {
             throw new RuntimeException("RestApi.getLocalDevice: devices is empty.");
         }
         Log.v(TAG, "getLocalDevice: Looking for local device ID " + mLocalDeviceId);
-        for (Device d : devices) {
-            if (d.deviceID.equals(mLocalDeviceId)) {
-                return deepCopy(d, Device.class);
-            }
+        Device localDevice = snapshot.getDevice(mLocalDeviceId);
+        if (localDevice != null) {
+            return deepCopy(localDevice, Device.class);
         }
         throw new RuntimeException("RestApi.getLocalDevice: Failed to get the local device crucial to continuing execution.");
     }
@@ -493,7 +1090,9 @@ public class RestApi {
         normalizeDeviceId(device.deviceID, normalizedId -> {
             synchronized (mConfigLock) {
                 mConfig.devices.add(device);
-                sendConfig();
+                publishConfigSnapshot();
+                mChangedDeviceIds.add(device.deviceID);
+                scheduleConfigCommit();
             }
         }, errorListener);
     }
@@ -502,15 +1101,19 @@ public class RestApi {
         synchronized (mConfigLock) {
             removeDeviceInternal(newDevice.deviceID);
             mConfig.devices.add(newDevice);
-            sendConfig();
+            publishConfigSnapshot();
+            mChangedDeviceIds.add(newDevice.deviceID);
+            scheduleConfigCommit();
         }
     }
 
     public void removeDevice(String deviceId) {
         synchronized (mConfigLock) {
             removeDeviceInternal(deviceId);
+            publishConfigSnapshot();
             // mCompletion will be updated after the ConfigSaved event.
-            sendConfig();
+            mChangedDeviceIds.add(deviceId);
+            scheduleConfigCommit();
         }
     }
 
@@ -527,22 +1130,25 @@ public class RestApi {
         }
     }
 
+    /**
+     * Returns a copy of the options, which may be modified for editing.
+     */
     public Options getOptions() {
-        synchronized (mConfigLock) {
-            return deepCopy(mConfig.options, Options.class);
-        }
+        return deepCopy(getConfigSnapshot().getOptions(), Options.class);
     }
 
+    /**
+     * Returns a copy of the GUI settings, which may be modified for editing.
+     */
     public Config.Gui getGui() {
-        synchronized (mConfigLock) {
-            return deepCopy(mConfig.gui, Config.Gui.class);
-        }
+        return deepCopy(getConfigSnapshot().getGui(), Config.Gui.class);
     }
 
     public void editSettings(Config.Gui newGui, Options newOptions) {
         synchronized (mConfigLock) {
             mConfig.gui = newGui;
             mConfig.options = newOptions;
+            publishConfigSnapshot();
         }
     }
 
@@ -552,32 +1158,27 @@ public class RestApi {
      * This method uses Gson and only works with objects that can be converted with Gson.
      */
     private <T> T deepCopy(T object, Type type) {
-        Gson gson = new Gson();
-        return gson.fromJson(gson.toJson(object, type), type);
+        return mGson.fromJson(mGson.toJson(object, type), type);
     }
 
     /**
      * Requests and parses information about current system status and resource usage.
      */
     public void getSystemInfo(OnResultListener1<SystemInfo> listener) {
-        new GetRequest(mContext, mUrl, GetRequest.URI_SYSTEM, mApiKey, null, result ->
-                listener.onResult(new Gson().fromJson(result, SystemInfo.class)));
+        new GetRequest(mContext, mUrl, GetRequest.URI_SYSTEM, mApiKey, null,
+                result -> mGson.fromJson(result, SystemInfo.class), listener::onResult);
     }
 
     public boolean isConfigLoaded() {
-        synchronized(mConfigLock) {
-            return mConfig != null;
-        }
+        return getConfigSnapshot() != null;
     }
 
     /**
      * Requests and parses system version information.
      */
     public void getSystemVersion(OnResultListener1<SystemVersion> listener) {
-        new GetRequest(mContext, mUrl, GetRequest.URI_VERSION, mApiKey, null, result -> {
-            SystemVersion systemVersion = new Gson().fromJson(result, SystemVersion.class);
-            listener.onResult(systemVersion);
-        });
+        new GetRequest(mContext, mUrl, GetRequest.URI_VERSION, mApiKey, null,
+                result -> mGson.fromJson(result, SystemVersion.class), listener::onResult);
     }
 
     /**
@@ -585,30 +1186,14 @@ public class RestApi {
      */
     public void getConnections(final OnResultListener1<Connections> listener) {
         new GetRequest(mContext, mUrl, GetRequest.URI_CONNECTIONS, mApiKey, null, result -> {
-            Long now = System.currentTimeMillis();
-            Long msElapsed = now - mPreviousConnectionTime;
-            if (msElapsed < Constants.GUI_UPDATE_INTERVAL) {
-                listener.onResult(deepCopy(mPreviousConnections.get(), Connections.class));
-                return;
-            }
-
-            mPreviousConnectionTime = now;
-            Connections connections = new Gson().fromJson(result, Connections.class);
+            Connections connections = mGson.fromJson(result, Connections.class);
             for (Map.Entry<String, Connections.Connection> e : connections.connections.entrySet()) {
-                e.getValue().completion = mCompletion.getDeviceCompletion(e.getKey());
-
-                Connections.Connection prev =
-                        (mPreviousConnections.isPresent() && mPreviousConnections.get().connections.containsKey(e.getKey()))
-                                ? mPreviousConnections.get().connections.get(e.getKey())
-                                : new Connections.Connection();
-                e.getValue().setTransferRate(prev, msElapsed);
+                e.getValue().completion = mCompletion.getDeviceBytesCompletion(e.getKey());
             }
-            Connections.Connection prev =
-                    mPreviousConnections.transform(c -> c.total).or(new Connections.Connection());
-            connections.total.setTransferRate(prev, msElapsed);
-            mPreviousConnections = Optional.of(connections);
-            listener.onResult(deepCopy(connections, Connections.class));
-        });
+            // Works with samples of any interval, so there is no need to rate limit requests.
+            ThroughputSampler.get(mContext).record(connections);
+            return connections;
+        }, listener::onResult);
     }
 
     /**
@@ -616,13 +1201,92 @@ public class RestApi {
      */
     public void getFolderStatus(final String folderId, final OnResultListener2<String, FolderStatus> listener) {
         new GetRequest(mContext, mUrl, GetRequest.URI_STATUS, mApiKey,
-                    ImmutableMap.of("folder", folderId), result -> {
-            FolderStatus m = new Gson().fromJson(result, FolderStatus.class);
-            mCachedFolderStatuses.put(folderId, m);
+                    ImmutableMap.of("folder", folderId),
+                    result -> mGson.fromJson(result, FolderStatus.class), m -> {
+            onFolderStatusChanged(folderId, m);
             listener.onResult(folderId, m);
         });
     }
 
+    /**
+     * Drops the status of removed folders and fetches it for folders that have none.
+     *
+     * This happens once per folder after the config was loaded. Afterwards the status is kept
+     * up to date from events, unless events may have been missed and all is set.
+     *
+     * @param all Fetch the status of all folders, not only those without status.
+     */
+    public void syncFolderStatuses(boolean all) {
+        ConfigSnapshot config = getConfigSnapshot();
+        if (config == null) {
+            return;
+        }
+        Set<String> folderIds = new HashSet<>();
+        for (Folder folder : config.getFolders()) {
+            folderIds.add(folder.id);
+            if (all || !mCachedFolderStatuses.containsKey(folder.id)) {
+                getFolderStatus(folder.id, (folderId, status) -> {});
+            }
+        }
+        mCachedFolderStatuses.keySet().retainAll(folderIds);
+        // Also lets observers pick up the changed config.
+        postPublishFolderStatuses();
+    }
+
+    /**
+     * Stores the folder status received by a FolderSummary event.
+     */
+    public void onFolderSummary(String folderId, FolderStatus status) {
+        onFolderStatusChanged(folderId, status);
+    }
+
+    /**
+     * Updates the folder state received by a StateChanged event. The rest of the status
+     * follows with the next FolderSummary event.
+     */
+    public void onFolderStateChanged(String folderId, String state, String error) {
+        FolderStatus status = mCachedFolderStatuses.get(folderId);
+        if (status == null) {
+            // Not fetched yet, the state will be part of the fetched status.
+            return;
+        }
+        // Observers may still hold the previous object.
+        FolderStatus updated = deepCopy(status, FolderStatus.class);
+        updated.state = state;
+        updated.error = error;
+        onFolderStatusChanged(folderId, updated);
+    }
+
+    private void onFolderStatusChanged(String folderId, FolderStatus status) {
+        if (status == null) {
+            return;
+        }
+        ConfigSnapshot config = getConfigSnapshot();
+        if (config != null && config.getFolder(folderId) == null) {
+            // Folder was removed meanwhile.
+            return;
+        }
+        mCachedFolderStatuses.put(folderId, status);
+        postPublishFolderStatuses();
+    }
+
+    /**
+     * Publishes the folder status at most once per main loop iteration, so a burst of events
+     * results in a single update of observers.
+     */
+    private void postPublishFolderStatuses() {
+        if (!mPublishFolderStatusesPosted) {
+            mPublishFolderStatusesPosted = true;
+            mMainThreadHandler.post(mPublishFolderStatusesRunnable);
+        }
+    }
+
+    private void publishFolderStatuses() {
+        mPublishFolderStatusesPosted = false;
+        mStatusRepository.folderStatuses().publish(
+                Collections.unmodifiableMap(new HashMap<>(mCachedFolderStatuses)));
+    }
+
     /**
      * Listener for {@link #getEvents}.
      */
@@ -633,37 +1297,38 @@ public class RestApi {
         void onEvent(Event event);
 
         /**
-         * Called after all available events have been processed.
-         * @param lastId The id of the last event processed. Should be used as a starting point for
-         *               the next round of event processing.
+         * Called after all available events have been received.
+         * @param lastId The id of the last event received, or 0 if there was none. Should be used
+         *               as a starting point for the next round of event processing.
          */
         void onDone(long lastId);
     }
 
     /**
-     * Retrieves the events that have accumulated since the given event id.
+     * Retrieves the events that have accumulated since the given event id, waiting up to
+     * timeoutS seconds for new events if there are none yet.
      *
-     * The OnReceiveEventListeners onEvent method is called for each event.
+     * Blocks the calling thread, so this must not be called from the main thread.
+     * The OnReceiveEventListeners onEvent method is called on the calling thread for each event
+     * as soon as it has been decoded.
      */
-    public final void getEvents(final long sinceId, final long limit, final OnReceiveEventListener listener) {
-        Map<String, String> params =
-                ImmutableMap.of("since", String.valueOf(sinceId), "limit", String.valueOf(limit));
-        new GetRequest(mContext, mUrl, GetRequest.URI_EVENTS, mApiKey, params, result -> {
-            JsonArray jsonEvents = new JsonParser().parse(result).getAsJsonArray();
-            long lastId = 0;
-
-            for (int i = 0; i < jsonEvents.size(); i++) {
-                JsonElement json = jsonEvents.get(i);
-                Event event = new Gson().fromJson(json, Event.class);
-
+    public final void getEvents(final long sinceId, final long limit, final int timeoutS,
+                                final OnReceiveEventListener listener)
+            throws InterruptedException, ExecutionException, TimeoutException, IOException {
+        InputStream result = new EventPollRequest(mContext, mUrl, mApiKey).poll(sinceId, limit, timeoutS);
+        long lastId = 0;
+
+        try (EventReader reader = new EventReader(result)) {
+            Event event;
+            while ((event = reader.next()) != null) {
                 if (lastId < event.id)
                     lastId = event.id;
 
                 listener.onEvent(event);
             }
+        }
 
-            listener.onDone(lastId);
-        });
+        listener.onDone(lastId);
     }
 
     /**
@@ -672,8 +1337,8 @@ public class RestApi {
     private void normalizeDeviceId(String id, OnResultListener1<String> listener,
                                    OnResultListener1<String> errorListener) {
         new GetRequest(mContext, mUrl, GetRequest.URI_DEVICEID, mApiKey,
-                ImmutableMap.of("id", id), result -> {
-            JsonObject json = new JsonParser().parse(result).getAsJsonObject();
+                ImmutableMap.of("id", id),
+                result -> new JsonParser().parse(result).getAsJsonObject(), json -> {
             JsonElement normalizedId = json.get("id");
             JsonElement error = json.get("error");
             if (normalizedId != null)
@@ -698,8 +1363,8 @@ public class RestApi {
         new GetRequest(mContext, mUrl, GetRequest.URI_REPORT, mApiKey, null, result -> {
             JsonElement json = new JsonParser().parse(result);
             Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            listener.onResult(gson.toJson(json));
-        });
+            return gson.toJson(json);
+        }, listener::onResult);
     }
 
     public URL getUrl() {
@@ -724,6 +1389,7 @@ public class RestApi {
         options.urAccepted = acceptUsageReporting ? mUrVersionMax : Options.USAGE_REPORTING_DENIED;
         synchronized (mConfigLock) {
             mConfig.options = options;
+            publishConfigSnapshot();
         }
     }
 
@@ -0,0 +1,65 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records when each phase of starting the syncthing binary was reached, so the time until the
+ * service becomes active can be compared between versions.
+ *
+ * Only accessed from the main thread.
+ */
+class StartupTimings {
+
+    enum Phase {
+        /** Config has been read and updated, binary is launched. */
+        CONFIG_LOADED,
+        /** The binary printed that the GUI and API are listening. */
+        API_LISTENING,
+        /** The binary printed that it is ready to synchronize. */
+        READY,
+        /** A request to the web GUI succeeded. */
+        WEB_GUI_ONLINE,
+        /** Config was read from the REST API, the service is active. */
+        ACTIVE,
+    }
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final Map<Phase, Long> mTimes = new EnumMap<>(Phase.class);
+
+    /**
+     * Records the time a phase was reached, unless it was reached before.
+     *
+     * @return True if this is the first time the phase was reached.
+     */
+    boolean mark(Phase phase) {
+        if (mTimes.containsKey(phase)) {
+            return false;
+        }
+        mTimes.put(phase, SystemClock.elapsedRealtime() - mStartTime);
+        return true;
+    }
+
+    boolean reached(Phase phase) {
+        return mTimes.containsKey(phase);
+    }
+
+    /**
+     * Returns the time in ms from start to each phase that was reached.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Phase, Long> entry : mTimes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format(Locale.US, "%s=%d ms",
+                    entry.getKey().name().toLowerCase(Locale.US), entry.getValue()));
+        }
+        return sb.toString();
+    }
+}
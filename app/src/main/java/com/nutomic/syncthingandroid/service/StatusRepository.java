@@ -0,0 +1,175 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.model.Connections;
+import com.nutomic.syncthingandroid.model.FolderStatus;
+import com.nutomic.syncthingandroid.model.SystemInfo;
+import com.nutomic.syncthingandroid.model.SystemVersion;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Polls status information from the REST API on behalf of all screens that display it.
+ * Folder status is not polled but published by {@link RestApi} as it changes.
+ *
+ * Each endpoint is requested at most once per {@link Constants#GUI_UPDATE_INTERVAL} no matter
+ * how many observers there are, and the latest result is shared between them. An endpoint is
+ * not polled while nothing observes it. One instance exists per {@link RestApi}, and thus per
+ * start of the syncthing binary.
+ *
+ * All methods must be called from the main thread, observers are notified on the main thread.
+ */
+public class StatusRepository {
+
+    private static final String TAG = "StatusRepository";
+
+    /**
+     * Requests a value from the API.
+     */
+    private interface Fetcher<T> {
+        void fetch(RestApi.OnResultListener1<T> listener);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final RestApi mApi;
+
+    private final Resource<SystemInfo> mSystemInfo;
+    private final Resource<SystemVersion> mSystemVersion;
+    private final Resource<Connections> mConnections;
+    private final Resource<Map<String, FolderStatus>> mFolderStatuses;
+
+    StatusRepository(RestApi api) {
+        mApi = api;
+        mSystemInfo = new Resource<>("system info", false, mApi::getSystemInfo);
+        // The version can only change with a new binary, which comes with a new RestApi.
+        mSystemVersion = new Resource<>("system version", true, mApi::getSystemVersion);
+        mConnections = new Resource<>("connections", false, mApi::getConnections);
+        // Folder status is pushed by RestApi as events arrive, so it is never polled.
+        mFolderStatuses = new Resource<>("folder status", false, null);
+    }
+
+    public Resource<SystemInfo> systemInfo() {
+        return mSystemInfo;
+    }
+
+    public Resource<SystemVersion> systemVersion() {
+        return mSystemVersion;
+    }
+
+    public Resource<Connections> connections() {
+        return mConnections;
+    }
+
+    /**
+     * Status of all configured folders by folder id. Observers are notified whenever the status
+     * of any folder changed, see {@link RestApi#syncFolderStatuses}.
+     */
+    public Resource<Map<String, FolderStatus>> folderStatuses() {
+        return mFolderStatuses;
+    }
+
+    /**
+     * Stops polling and drops all observers.
+     */
+    void shutdown() {
+        mSystemInfo.clear();
+        mSystemVersion.clear();
+        mConnections.clear();
+        mFolderStatuses.clear();
+    }
+
+    /**
+     * A single polled endpoint and its observers.
+     */
+    public class Resource<T> {
+
+        private final String mName;
+        private final boolean mFetchOnce;
+        private final Fetcher<T> mFetcher;
+        private final Set<RestApi.OnResultListener1<T>> mObservers = new LinkedHashSet<>();
+        private final Runnable mPollRunnable = this::poll;
+
+        private T mValue;
+
+        /**
+         * Time of the last request according to {@link SystemClock#elapsedRealtime}, or 0.
+         */
+        private long mLastRequestTime = 0;
+
+        private Resource(String name, boolean fetchOnce, Fetcher<T> fetcher) {
+            mName = name;
+            mFetchOnce = fetchOnce;
+            mFetcher = fetcher;
+        }
+
+        /**
+         * Adds an observer, which immediately receives the latest value if there is one.
+         */
+        public void observe(RestApi.OnResultListener1<T> observer) {
+            if (!mObservers.add(observer)) {
+                return;
+            }
+            if (mValue != null) {
+                observer.onResult(mValue);
+            }
+            if (mObservers.size() == 1) {
+                poll();
+            }
+        }
+
+        public void removeObserver(RestApi.OnResultListener1<T> observer) {
+            if (mObservers.remove(observer) && mObservers.isEmpty()) {
+                mHandler.removeCallbacks(mPollRunnable);
+            }
+        }
+
+        /**
+         * Requests a new value if the last request is older than the update interval, then
+         * schedules the next poll for as long as there are observers.
+         */
+        private void poll() {
+            mHandler.removeCallbacks(mPollRunnable);
+            if (mFetcher == null || mObservers.isEmpty() || (mFetchOnce && mValue != null)) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - mLastRequestTime;
+            if (mLastRequestTime == 0 || elapsed >= Constants.GUI_UPDATE_INTERVAL) {
+                mLastRequestTime = now;
+                elapsed = 0;
+                mFetcher.fetch(this::onResult);
+            }
+            mHandler.postDelayed(mPollRunnable, Constants.GUI_UPDATE_INTERVAL - elapsed);
+        }
+
+        /**
+         * Passes a new value to all observers, for resources that are not polled.
+         */
+        void publish(T value) {
+            onResult(value);
+        }
+
+        private void onResult(T value) {
+            mValue = value;
+            for (RestApi.OnResultListener1<T> observer : new ArrayList<>(mObservers)) {
+                observer.onResult(value);
+            }
+        }
+
+        private void clear() {
+            if (!mObservers.isEmpty()) {
+                Log.v(TAG, "Dropping " + mObservers.size() + " observers of " + mName);
+            }
+            mHandler.removeCallbacks(mPollRunnable);
+            mObservers.clear();
+            mLastRequestTime = 0;
+        }
+    }
+}
@@ -7,26 +7,24 @@ import android.content.SharedPreferences;
 import android.os.Environment;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.common.base.Charsets;
-import com.google.common.io.Files;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.service.Constants;
+import com.nutomic.syncthingandroid.util.ShellSession;
 import com.nutomic.syncthingandroid.util.Util;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -49,17 +47,53 @@ public class SyncthingRunnable implements Runnable {
     private static final String TAG = "SyncthingRunnable";
     private static final String TAG_NATIVE = "SyncthingNativeCode";
     private static final String TAG_NICE = "SyncthingRunnableIoNice";
-    private static final int LOG_FILE_MAX_LINES = 10;
+
+    /**
+     * Printed by the binary once the GUI and REST API accept connections, and once it is
+     * ready to synchronize a folder.
+     */
+    private static final String LINE_API_LISTENING = "GUI and API listening on";
+    private static final String LINE_READY = "Ready to synchronize";
+
+    /**
+     * Exit code of the binary if it should be restarted, e.g. after a restart was requested
+     * through the REST API.
+     */
+    private static final int EXIT_CODE_RESTART = 3;
+
+    /**
+     * Time in ms that processes get to exit after SIGINT, before they are killed.
+     */
+    private static final long KILL_TIMEOUT = 3000;
+
+    private static final long KILL_POLL_INTERVAL = 100;
 
     private static final AtomicReference<Process> mSyncthing = new AtomicReference<>();
     private final Context mContext;
     private final File mSyncthingBinary;
     private String[] mCommand;
-    private final File mLogFile;
+    private final LogPump mLogPump;
     @Inject SharedPreferences mPreferences;
     private final boolean mUseRoot;
+    private final boolean mUseWakeLock;
+
+    /**
+     * Value of {@link Constants#PREF_USE_ROOT} when this instance was constructed, which is
+     * different from mUseRoot if root is not available.
+     */
+    private final boolean mRootRequested;
     @Inject NotificationHandler mNotificationHandler;
 
+    private volatile OnStartupProgressListener mStartupProgressListener;
+
+    /**
+     * Set once the binary should stop, so it is not launched again after exiting with
+     * {@link #EXIT_CODE_RESTART}.
+     */
+    private volatile boolean mStopRequested = false;
+    private boolean mApiListeningSeen = false;
+    private boolean mReadySeen = false;
+
     public enum Command {
         deviceid,           // Output the device ID to the command line.
         generate,           // Generate keys, a config file and immediately exit.
@@ -77,10 +111,12 @@ public class SyncthingRunnable implements Runnable {
         ((SyncthingApp) context.getApplicationContext()).component().inject(this);
         mContext = context;
         mSyncthingBinary = Constants.getSyncthingBinary(mContext);
-        mLogFile = Constants.getLogFile(mContext);
+        mLogPump = LogPump.get(mContext);
 
         // Get preferences relevant to starting syncthing core.
-        mUseRoot = mPreferences.getBoolean(Constants.PREF_USE_ROOT, false) && Shell.SU.available();
+        mRootRequested = mPreferences.getBoolean(Constants.PREF_USE_ROOT, false);
+        mUseRoot = mRootRequested && Shell.SU.available();
+        mUseWakeLock = useWakeLock();
         switch (command) {
             case deviceid:
                 mCommand = new String[]{ mSyncthingBinary.getPath(), "-home", mContext.getFilesDir().toString(), "--device-id" };
@@ -102,6 +138,29 @@ public class SyncthingRunnable implements Runnable {
         }
     }
 
+    /**
+     * Notified from the thread reading the binary's output, at most once per event and start
+     * of the binary.
+     */
+    public interface OnStartupProgressListener {
+        void onApiListening();
+        void onReady();
+
+        /**
+         * The binary exited to be restarted and is about to be launched again. Called from the
+         * thread running the binary.
+         */
+        void onRestarting();
+    }
+
+    /**
+     * Sets a listener that is notified when the binary's output shows startup progress.
+     * Must be called before running.
+     */
+    public void setOnStartupProgressListener(OnStartupProgressListener listener) {
+        mStartupProgressListener = listener;
+    }
+
     @Override
     public void run() {
         run(false);
@@ -109,7 +168,6 @@ public class SyncthingRunnable implements Runnable {
 
     @SuppressLint("WakelockTimeout")
     public String run(boolean returnStdOut) {
-        trimLogFile();
         int ret;
         String capturedStdOut = "";
         // Make sure Syncthing is executable
@@ -124,7 +182,7 @@ public class SyncthingRunnable implements Runnable {
         Process process = null;
         // Potential fix for #498, keep the CPU running while native binary is running
         PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-        PowerManager.WakeLock wakeLock = useWakeLock()
+        PowerManager.WakeLock wakeLock = mUseWakeLock
                 ? pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,  mContext.getString(R.string.app_name) + ":" + TAG)
                 : null;
         try {
@@ -133,53 +191,70 @@ public class SyncthingRunnable implements Runnable {
             increaseInotifyWatches();
 
             HashMap<String, String> targetEnv = buildEnvironment();
-            process = setupAndLaunch(targetEnv);
-
-            mSyncthing.set(process);
-
-            Thread lInfo = null;
-            Thread lWarn = null;
-            if (returnStdOut) {
-                BufferedReader br = null;
-                try {
-                    br = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        Log.println(Log.INFO, TAG_NATIVE, line);
-                        capturedStdOut = capturedStdOut + line + "\n";
+            while (true) {
+                process = setupAndLaunch(targetEnv);
+
+                mSyncthing.set(process);
+
+                Thread lInfo = null;
+                Thread lWarn = null;
+                if (returnStdOut) {
+                    BufferedReader br = null;
+                    try {
+                        br = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            Log.println(Log.INFO, TAG_NATIVE, line);
+                            capturedStdOut = capturedStdOut + line + "\n";
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to read Syncthing's command line output", e);
+                    } finally {
+                        if (br != null)
+                            br.close();
                     }
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to read Syncthing's command line output", e);
-                } finally {
-                    if (br != null)
-                        br.close();
+                } else {
+                    lInfo = log(process.getInputStream(), Log.INFO, true);
+                    lWarn = log(process.getErrorStream(), Log.WARN, true);
                 }
-            } else {
-                lInfo = log(process.getInputStream(), Log.INFO, true);
-                lWarn = log(process.getErrorStream(), Log.WARN, true);
-            }
 
-            niceSyncthing();
+                niceSyncthing();
+
+                ret = process.waitFor();
+                Log.i(TAG, "Syncthing exited with code " + ret);
+                mSyncthing.set(null);
+                if (lInfo != null)
+                    lInfo.join();
+                if (lWarn != null)
+                    lWarn.join();
 
-            ret = process.waitFor();
-            Log.i(TAG, "Syncthing exited with code " + ret);
-            mSyncthing.set(null);
-            if (lInfo != null)
-                lInfo.join();
-            if (lWarn != null)
-                lWarn.join();
+                if (ret != EXIT_CODE_RESTART || returnStdOut || mStopRequested) {
+                    break;
+                }
+                // Restart was requested via Rest API call. Launch the binary again right away,
+                // as the monitor process of syncthing would do, instead of going through a
+                // complete restart of SyncthingService.
+                Log.i(TAG, "Restarting syncthing");
+                process.destroy();
+                mApiListeningSeen = false;
+                mReadySeen = false;
+                OnStartupProgressListener listener = mStartupProgressListener;
+                if (listener != null) {
+                    listener.onRestarting();
+                }
+                // Picks up a GOMAXPROCS chosen by the ResourceGovernor meanwhile.
+                targetEnv = buildEnvironment();
+            }
 
             switch (ret) {
                 case 0:
                 case 137:
-                    // Syncthing was shut down (via API or SIGKILL), do nothing.
+                case EXIT_CODE_RESTART:
+                    // Syncthing was shut down (via API or SIGKILL), or asked to restart while
+                    // we are stopping it, do nothing.
                     break;
                 case 1:
                     Log.w(TAG, "Another Syncthing instance is already running, requesting restart via SyncthingService intent");
-                    //fallthrough
-                case 3:
-                    // Restart was requested via Rest API call.
-                    Log.i(TAG, "Restarting syncthing");
                     mContext.startService(new Intent(mContext, SyncthingService.class)
                             .setAction(SyncthingService.ACTION_RESTART));
                     break;
@@ -217,45 +292,86 @@ public class SyncthingRunnable implements Runnable {
     }
 
     /**
-     * Look for running libsyncthing.so processes and return an array
-     * containing the PIDs of found instances.
+     * Returns true if the settings that are only read when this instance is constructed did not
+     * change since, so the binary can be restarted in place with the same instance.
      */
-    private List<String> getSyncthingPIDs() {
-        List<String> syncthingPIDs = new ArrayList<String>();
-        Process ps = null;
-        DataOutputStream psOut = null;
-        BufferedReader br = null;
-        try {
-            ps = Runtime.getRuntime().exec((mUseRoot) ? "su" : "sh");
-            psOut = new DataOutputStream(ps.getOutputStream());
-            psOut.writeBytes("ps\n");
-            psOut.writeBytes("exit\n");
-            psOut.flush();
-            ps.waitFor();
-            br = new BufferedReader(new InputStreamReader(ps.getInputStream(), "UTF-8"));
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.contains(Constants.FILENAME_SYNCTHING_BINARY)) {
-                    String syncthingPID = line.trim().split("\\s+")[1];
-                    Log.v(TAG, "getSyncthingPIDs: Found process PID [" + syncthingPID + "]");
-                    syncthingPIDs.add(syncthingPID);
-                }
+    public boolean isUpToDate() {
+        return mRootRequested == mPreferences.getBoolean(Constants.PREF_USE_ROOT, false)
+                && mUseWakeLock == useWakeLock();
+    }
+
+    /**
+     * Look for running libsyncthing.so processes and return the PIDs of found instances.
+     */
+    private List<Integer> getSyncthingPIDs() {
+        List<Integer> syncthingPIDs = getSyncthingPIDsFromProc();
+        if (syncthingPIDs.isEmpty() && mUseRoot) {
+            // Recent Android versions mount /proc with hidepid, so processes started by su
+            // are not visible to the app.
+            syncthingPIDs = getSyncthingPIDsFromPs();
+        }
+        return syncthingPIDs;
+    }
+
+    /**
+     * Finds syncthing processes by reading the command line of each process in /proc, which
+     * does not need to start a shell.
+     */
+    private List<Integer> getSyncthingPIDsFromProc() {
+        List<Integer> syncthingPIDs = new ArrayList<>();
+        String[] entries = new File("/proc").list();
+        if (entries == null) {
+            return syncthingPIDs;
+        }
+        byte[] buffer = new byte[512];
+        for (String entry : entries) {
+            if (entry.isEmpty() || !TextUtils.isDigitsOnly(entry)) {
+                continue;
             }
-        } catch (IOException | InterruptedException e) {
-            Log.w(TAG, "Failed to list Syncthing processes", e);
-        } finally {
-            try {
-                if (br != null) {
-                    br.close();
-                }
-                if (psOut != null) {
-                    psOut.close();
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to close psOut stream", e);
+            String executable = readExecutable(new File("/proc/" + entry + "/cmdline"), buffer);
+            if (executable != null && executable.endsWith(Constants.FILENAME_SYNCTHING_BINARY)) {
+                Log.v(TAG, "getSyncthingPIDs: Found process PID [" + entry + "]");
+                syncthingPIDs.add(Integer.parseInt(entry));
+            }
+        }
+        return syncthingPIDs;
+    }
+
+    /**
+     * Returns the first argument of a /proc/[pid]/cmdline file, or null if it can't be read,
+     * e.g. because the process exited meanwhile.
+     */
+    private static String readExecutable(File cmdline, byte[] buffer) {
+        try (FileInputStream in = new FileInputStream(cmdline)) {
+            int length = in.read(buffer);
+            if (length <= 0) {
+                return null;
+            }
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
             }
-            if (ps != null) {
-                ps.destroy();
+            return new String(buffer, 0, end, Charsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds syncthing processes by parsing the output of ps, run as root.
+     */
+    private List<Integer> getSyncthingPIDsFromPs() {
+        List<Integer> syncthingPIDs = new ArrayList<>();
+        ShellSession.Result result = ShellSession.get(true).run("ps", ShellSession.DEFAULT_TIMEOUT);
+        for (String line : result.output) {
+            if (line.contains(Constants.FILENAME_SYNCTHING_BINARY)) {
+                String syncthingPID = line.trim().split("\\s+")[1];
+                Log.v(TAG, "getSyncthingPIDs: Found process PID [" + syncthingPID + "]");
+                try {
+                    syncthingPIDs.add(Integer.parseInt(syncthingPID));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Failed to parse ps output: " + line, e);
+                }
             }
         }
         return syncthingPIDs;
@@ -267,7 +383,7 @@ public class SyncthingRunnable implements Runnable {
      * Manually run "sysctl fs.inotify" in a root shell terminal to check current limit.
      */
     private void increaseInotifyWatches() {
-        if (!mUseRoot || !Shell.SU.available()) {
+        if (!mUseRoot) {
             Log.i(TAG, "increaseInotifyWatches: Root is not available. Cannot increase inotify limit.");
             return;
         }
@@ -279,67 +395,104 @@ public class SyncthingRunnable implements Runnable {
      * Look for a running libsyncthing.so process and nice its IO.
      */
     private void niceSyncthing() {
-        if (!mUseRoot || !Shell.SU.available()) {
+        if (!mUseRoot) {
             Log.i(TAG_NICE, "Root is not available. Cannot nice syncthing.");
             return;
         }
 
-        List<String> syncthingPIDs = getSyncthingPIDs();
+        List<Integer> syncthingPIDs = getSyncthingPIDs();
         if (syncthingPIDs.isEmpty()) {
             Log.i(TAG_NICE, "Found no running instances of " + Constants.FILENAME_SYNCTHING_BINARY);
             return;
         }
 
-        // Ionice all running syncthing processes.
-        for (String syncthingPID : syncthingPIDs) {
+        // Ionice all running syncthing processes with a single command.
+        StringBuilder command = new StringBuilder();
+        for (int syncthingPID : syncthingPIDs) {
             // Set best-effort, low priority using ionice.
-            int exitCode = Util.runShellCommand("/system/bin/ionice " + syncthingPID + " be 7\n", true);
-            Log.i(TAG_NICE, "ionice returned " + Integer.toString(exitCode) +
-                " on " + Constants.FILENAME_SYNCTHING_BINARY);
+            command.append("/system/bin/ionice ").append(syncthingPID).append(" be 7\n");
         }
+        int exitCode = Util.runShellCommand(command.toString(), true);
+        Log.i(TAG_NICE, "ionice returned " + Integer.toString(exitCode) +
+            " on " + Constants.FILENAME_SYNCTHING_BINARY);
     }
 
     public interface OnSyncthingKilled {
         void onKilled();
     }
+
+    /**
+     * Waits up to timeoutMs for the binary launched by this instance to exit, e.g. after a
+     * shutdown was requested through the REST API.
+     *
+     * @param runnableThread The thread running this instance.
+     * @return True if the binary is no longer running.
+     */
+    public boolean waitForExit(Thread runnableThread, long timeoutMs) {
+        mStopRequested = true;
+        try {
+            runnableThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !runnableThread.isAlive();
+    }
+
     /**
      * Look for running libsyncthing.so processes and kill them.
-     * Try a SIGINT first, then try again with SIGKILL.
+     * Try a SIGINT first, then SIGKILL for processes that are still running after
+     * {@link #KILL_TIMEOUT}.
      */
     public void killSyncthing() {
-        for (int i = 0; i < 2; i++) {
-            List<String> syncthingPIDs = getSyncthingPIDs();
-            if (syncthingPIDs.isEmpty()) {
-                Log.d(TAG, "killSyncthing: Found no more running instances of " + Constants.FILENAME_SYNCTHING_BINARY);
-                break;
-            }
+        mStopRequested = true;
+        List<Integer> syncthingPIDs = getSyncthingPIDs();
+        if (syncthingPIDs.isEmpty()) {
+            Log.d(TAG, "killSyncthing: Found no running instances of " + Constants.FILENAME_SYNCTHING_BINARY);
+            return;
+        }
+        sendSignal(syncthingPIDs, OsConstants.SIGINT, "SIGINT");
 
-            int exitCode;
-            for (String syncthingPID : syncthingPIDs) {
-                if (i > 0) {
-                    // Force termination of the process by sending SIGKILL.
-                    SystemClock.sleep(3000);
-                    exitCode = Util.runShellCommand("kill -SIGKILL " + syncthingPID + "\n", mUseRoot);
-                } else {
-                    exitCode = Util.runShellCommand("kill -SIGINT " + syncthingPID + "\n", mUseRoot);
-                    SystemClock.sleep(1000);
-                }
-                if (exitCode == 0) {
-                    Log.d(TAG, "Killed Syncthing process " + syncthingPID);
-                } else {
-                    Log.w(TAG, "Failed to kill Syncthing process " + syncthingPID +
-                        " exit code " + Integer.toString(exitCode));
-                }
+        long deadline = SystemClock.elapsedRealtime() + KILL_TIMEOUT;
+        while (!syncthingPIDs.isEmpty() && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(KILL_POLL_INTERVAL);
+            syncthingPIDs.retainAll(getSyncthingPIDs());
+        }
+        if (syncthingPIDs.isEmpty()) {
+            Log.d(TAG, "killSyncthing: All instances exited after SIGINT");
+            return;
+        }
+        // Force termination of the processes.
+        sendSignal(syncthingPIDs, OsConstants.SIGKILL, "SIGKILL");
+    }
+
+    /**
+     * Sends a signal directly if the processes run as the app's user, otherwise through a root
+     * shell.
+     */
+    private void sendSignal(List<Integer> pids, int signal, String signalName) {
+        if (!mUseRoot) {
+            for (int pid : pids) {
+                android.os.Process.sendSignal(pid, signal);
+                Log.d(TAG, "Sent " + signalName + " to Syncthing process " + pid);
             }
+            return;
+        }
+        int exitCode = Util.runShellCommand(
+                "kill -" + signalName + " " + TextUtils.join(" ", pids) + "\n", true);
+        if (exitCode == 0) {
+            Log.d(TAG, "Sent " + signalName + " to Syncthing processes " + pids);
+        } else {
+            Log.w(TAG, "Failed to send " + signalName + " to Syncthing processes " + pids +
+                " exit code " + Integer.toString(exitCode));
         }
     }
 
     /**
-     * Logs the outputs of a stream to logcat and mNativeLog.
+     * Logs the outputs of a stream to logcat and {@link LogPump}.
      *
      * @param is The stream to log.
      * @param priority The priority level.
-     * @param saveLog True if the log should be stored to {@link #mLogFile}.
+     * @param saveLog True if the log should be stored to the log file.
      */
     private Thread log(final InputStream is, final int priority, final boolean saveLog) {
         Thread t = new Thread(() -> {
@@ -351,7 +504,10 @@ public class SyncthingRunnable implements Runnable {
                     Log.println(priority, TAG_NATIVE, line);
 
                     if (saveLog) {
-                        Files.append(line + "\n", mLogFile, Charsets.UTF_8);
+                        mLogPump.append(priority, line);
+                    }
+                    if (priority == Log.INFO) {
+                        checkStartupProgress(line);
                     }
                 }
             } catch (IOException e) {
@@ -370,36 +526,20 @@ public class SyncthingRunnable implements Runnable {
     }
 
     /**
-     * Only keep last {@link #LOG_FILE_MAX_LINES} lines in log file, to avoid bloat.
+     * Notifies the startup progress listener if the line shows that the API is listening or
+     * that syncthing is ready. Only called from the thread reading stdout.
      */
-    private void trimLogFile() {
-        if (!mLogFile.exists())
+    private void checkStartupProgress(String line) {
+        OnStartupProgressListener listener = mStartupProgressListener;
+        if (listener == null || (mApiListeningSeen && mReadySeen)) {
             return;
-
-        try {
-            LineNumberReader lnr = new LineNumberReader(new FileReader(mLogFile));
-            lnr.skip(Long.MAX_VALUE);
-
-            int lineCount = lnr.getLineNumber();
-            lnr.close();
-
-            File tempFile = new File(mContext.getExternalFilesDir(null), "syncthing.log.tmp");
-
-            BufferedReader reader = new BufferedReader(new FileReader(mLogFile));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-
-            String currentLine;
-            int startFrom = lineCount - LOG_FILE_MAX_LINES;
-            for (int i = 0; (currentLine = reader.readLine()) != null; i++) {
-                if (i > startFrom) {
-                    writer.write(currentLine + "\n");
-                }
-            }
-            writer.close();
-            reader.close();
-            tempFile.renameTo(mLogFile);
-        } catch (IOException e) {
-            Log.w(TAG, "Failed to trim log file", e);
+        }
+        if (!mApiListeningSeen && line.contains(LINE_API_LISTENING)) {
+            mApiListeningSeen = true;
+            listener.onApiListening();
+        } else if (!mReadySeen && line.contains(LINE_READY)) {
+            mReadySeen = true;
+            listener.onReady();
         }
     }
 
@@ -434,6 +574,9 @@ public class SyncthingRunnable implements Runnable {
         }
         if (mPreferences.getBoolean("use_legacy_hashing", false))
             targetEnv.put("STHASHING", "standard");
+        int goMaxProcs = ResourceGovernor.get(mContext).getGoMaxProcs();
+        if (goMaxProcs > 0)
+            targetEnv.put("GOMAXPROCS", Integer.toString(goMaxProcs));
         putCustomEnvironmentVariables(targetEnv, mPreferences);
         return targetEnv;
     }
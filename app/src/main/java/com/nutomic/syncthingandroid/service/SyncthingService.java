@@ -10,6 +10,7 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.SyncthingApp;
 import com.nutomic.syncthingandroid.http.PollWebGuiAvailableTask;
@@ -23,6 +24,12 @@ import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
@@ -33,12 +40,29 @@ public class SyncthingService extends Service {
 
     private static final String TAG = "SyncthingService";
 
+    /**
+     * Time in ms the binary gets to exit after a shutdown request, before it is killed.
+     */
+    private static final long GRACEFUL_SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * Time in ms {@link #onDestroy} waits for the binary to be stopped. Covers
+     * GRACEFUL_SHUTDOWN_TIMEOUT and the time killSyncthing() needs.
+     */
+    private static final long DESTROY_TIMEOUT = GRACEFUL_SHUTDOWN_TIMEOUT + 5000;
+
     /**
      * Intent action to perform a Syncthing restart.
      */
     public static final String ACTION_RESTART =
             "com.nutomic.syncthingandroid.service.SyncthingService.RESTART";
 
+    /**
+     * Intent action to restart only the binary, so it applies config changes.
+     */
+    public static final String ACTION_APPLY_CONFIG =
+            "com.nutomic.syncthingandroid.service.SyncthingService.APPLY_CONFIG";
+
     /**
      * Intent action to reset Syncthing's database.
      */
@@ -140,11 +164,19 @@ public class SyncthingService extends Service {
     private @Nullable PollWebGuiAvailableTask mPollWebGuiAvailableTask = null;
     private @Nullable RestApi mApi = null;
     private @Nullable EventProcessor mEventProcessor = null;
+    private @Nullable ChangeWatcher mChangeWatcher = null;
+    private final RecentlySyncedItems mRecentlySyncedItems = new RecentlySyncedItems();
     private @Nullable SyncthingRunnable mSyncthingRunnable = null;
     private StartupTask mStartupTask = null;
     private Thread mSyncthingRunnableThread = null;
     private Handler mHandler;
 
+    /**
+     * Runs the part of {@link #shutdown} that waits for the binary to exit.
+     */
+    private final ExecutorService mShutdownExecutor = Executors.newSingleThreadExecutor();
+    private StartupTimings mStartupTimings = null;
+
     private final HashSet<OnServiceStateChangeListener> mOnServiceStateChangeListeners = new HashSet<>();
     private final SyncthingServiceBinder mBinder = new SyncthingServiceBinder(this);
 
@@ -162,6 +194,12 @@ public class SyncthingService extends Service {
      */
     private boolean mDestroyScheduled = false;
 
+    /**
+     * True once {@link #onDestroy} was called, listeners of shutdowns still running in the
+     * background are not called anymore. Only accessed on the main thread.
+     */
+    private boolean mDestroyed = false;
+
     /**
      * True if the user granted the storage permission.
      */
@@ -184,6 +222,9 @@ public class SyncthingService extends Service {
          */
         mStoragePermissionGranted = PermissionUtil.haveStoragePermission(this);
 
+        // Chooses the initial level before the config is updated and the binary is launched.
+        ResourceGovernor.get(this).start();
+
         if (mNotificationHandler != null) {
             mNotificationHandler.setAppShutdownInProgress(false);
         }
@@ -232,7 +273,9 @@ public class SyncthingService extends Service {
             return START_STICKY;
 
         if (ACTION_RESTART.equals(intent.getAction()) && mCurrentState == State.ACTIVE) {
-            shutdown(State.INIT, () -> launchStartupTask());
+            shutdown(State.INIT, this::launchStartupTask);
+        } else if (ACTION_APPLY_CONFIG.equals(intent.getAction()) && mCurrentState == State.ACTIVE) {
+            restartSyncthing();
         } else if (ACTION_RESET_DATABASE.equals(intent.getAction())) {
             shutdown(State.INIT, () -> {
                 new SyncthingRunnable(this, SyncthingRunnable.Command.resetdatabase).run();
@@ -257,6 +300,52 @@ public class SyncthingService extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Restarts the running binary through the REST API, so it applies config changes without
+     * stopping this service. Falls back to a complete restart if that is not possible, or if
+     * settings changed that only take effect when a new {@link SyncthingRunnable} is used.
+     *
+     * {@link SyncthingRunnable} launches the binary again once it exited, then
+     * {@link #onSyncthingRestarting} reconnects.
+     */
+    private void restartSyncthing() {
+        if (mApi == null || mSyncthingRunnableThread == null || !mSyncthingRunnableThread.isAlive()
+                || !mSyncthingRunnable.isUpToDate()) {
+            shutdown(State.INIT, this::launchStartupTask);
+            return;
+        }
+        mApi.restartSyncthing(() -> {
+            Log.w(TAG, "Failed to request restart via REST API, restarting service instead");
+            if (mCurrentState == State.ACTIVE) {
+                shutdown(State.INIT, this::launchStartupTask);
+            }
+        });
+    }
+
+    /**
+     * Called when the binary exited to be restarted and is launched again by the same
+     * {@link SyncthingRunnable}. Stops all helpers that talk to the old instance, then
+     * reconnects through {@link StartupTask} without launching another binary.
+     */
+    private void onSyncthingRestarting(SyncthingRunnable syncthingRunnable) {
+        if (syncthingRunnable != mSyncthingRunnable) {
+            return;
+        }
+        synchronized (mStateLock) {
+            if (mCurrentState != State.ACTIVE && mCurrentState != State.STARTING) {
+                return;
+            }
+            onServiceStateChange(State.INIT);
+        }
+        Log.i(TAG, "Syncthing is restarting, reconnecting to it");
+        stopApiHelpers();
+        if (startupTaskIsRunning()) {
+            mStartupTask.cancel(true);
+            mStartupTask = null;
+        }
+        launchStartupTask();
+    }
+
     /**
      * Prepares to launch the syncthing binary.
      */
@@ -274,6 +363,7 @@ public class SyncthingService extends Service {
             Log.w(TAG, "launchStartupTask: StartupTask is still running. Skipped starting it twice.");
             return;
         }
+        mStartupTimings = new StartupTimings();
         onServiceStateChange(State.STARTING);
         mStartupTask = new StartupTask(this);
         mStartupTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -303,7 +393,10 @@ public class SyncthingService extends Service {
              }
              try {
                  syncthingService.mConfig = new ConfigXml(syncthingService);
-                 syncthingService.mConfig.updateIfNeeded();
+                 // Only change the config while the binary is not running, it owns the file.
+                 if (syncthingService.mSyncthingRunnable == null) {
+                     syncthingService.mConfig.updateIfNeeded();
+                 }
              } catch (ConfigXml.OpenConfigException e) {
                  syncthingService.mNotificationHandler.showCrashedNotification(R.string.config_create_failed, true);
                  synchronized (syncthingService.mStateLock) {
@@ -334,17 +427,37 @@ public class SyncthingService extends Service {
              Log.i(TAG, "Web GUI will be available at " + mConfig.getWebGuiUrl());
          }
 
-         // Start the syncthing binary.
-         if (mSyncthingRunnable != null || mSyncthingRunnableThread != null) {
-             Log.e(TAG, "onStartupTaskCompleteListener: Syncthing binary lifecycle violated");
-             return;
+         mStartupTimings.mark(StartupTimings.Phase.CONFIG_LOADED);
+         // Start the syncthing binary, unless it restarted itself and is still running.
+         if (mSyncthingRunnable != null) {
+             Log.v(TAG, "onStartupTaskCompleteListener: Reconnecting to restarted binary");
+         } else {
+             SyncthingRunnable syncthingRunnable = new SyncthingRunnable(this, SyncthingRunnable.Command.main);
+             syncthingRunnable.setOnStartupProgressListener(new SyncthingRunnable.OnStartupProgressListener() {
+                 @Override
+                 public void onApiListening() {
+                     mHandler.post(() -> onSyncthingApiListening(syncthingRunnable));
+                 }
+
+                 @Override
+                 public void onReady() {
+                     mHandler.post(() -> onSyncthingReady(syncthingRunnable));
+                 }
+
+                 @Override
+                 public void onRestarting() {
+                     mHandler.post(() -> onSyncthingRestarting(syncthingRunnable));
+                 }
+             });
+             mSyncthingRunnable = syncthingRunnable;
+             mSyncthingRunnableThread = new Thread(mSyncthingRunnable);
+             mSyncthingRunnableThread.start();
          }
-         mSyncthingRunnable = new SyncthingRunnable(this, SyncthingRunnable.Command.main);
-         mSyncthingRunnableThread = new Thread(mSyncthingRunnable);
-         mSyncthingRunnableThread.start();
 
          /**
-          * Wait for the web-gui of the native syncthing binary to come online.
+          * Wait for the web-gui of the native syncthing binary to come online. The binary's
+          * output tells when it does, see {@link #onSyncthingApiListening}, polling is a
+          * fallback in case that line is missed.
           *
           * In case the binary is to be stopped, also be aware that another thread could request
           * to stop the binary in the time while waiting for the GUI to become active. See the comment
@@ -354,6 +467,7 @@ public class SyncthingService extends Service {
              mPollWebGuiAvailableTask = new PollWebGuiAvailableTask(
                 this, getWebGuiUrl(), mConfig.getApiKey(), result -> {
                     Log.i(TAG, "Web GUI has come online at " + mConfig.getWebGuiUrl());
+                    mStartupTimings.mark(StartupTimings.Phase.WEB_GUI_ONLINE);
                     if (mApi != null) {
                         mApi.readConfigFromRestApi();
                     }
@@ -362,6 +476,33 @@ public class SyncthingService extends Service {
          }
      }
 
+    /**
+     * Called when the binary printed that the GUI and API are listening.
+     */
+    private void onSyncthingApiListening(SyncthingRunnable syncthingRunnable) {
+        if (syncthingRunnable != mSyncthingRunnable) {
+            return;
+        }
+        mStartupTimings.mark(StartupTimings.Phase.API_LISTENING);
+        if (mPollWebGuiAvailableTask != null) {
+            mPollWebGuiAvailableTask.pollNow();
+        }
+    }
+
+    /**
+     * Called when the binary printed that it is ready to synchronize, which may be before or
+     * after the API becomes available.
+     */
+    private void onSyncthingReady(SyncthingRunnable syncthingRunnable) {
+        if (syncthingRunnable != mSyncthingRunnable) {
+            return;
+        }
+        mStartupTimings.mark(StartupTimings.Phase.READY);
+        if (mStartupTimings.reached(StartupTimings.Phase.ACTIVE)) {
+            Log.i(TAG, "Startup timings: " + mStartupTimings);
+        }
+    }
+
     /**
      * Called when {@link RestApi#checkReadConfigFromRestApiCompleted} detects
      * the RestApi class has been fully initialized.
@@ -380,6 +521,8 @@ public class SyncthingService extends Service {
             }
             onServiceStateChange(State.ACTIVE);
         }
+        mStartupTimings.mark(StartupTimings.Phase.ACTIVE);
+        Log.i(TAG, "Startup timings: " + mStartupTimings);
 
         /**
          * If the service instance got an onDestroy() event while being in
@@ -393,9 +536,16 @@ public class SyncthingService extends Service {
         }
 
         if (mEventProcessor == null) {
-            mEventProcessor = new EventProcessor(SyncthingService.this, mApi);
+            mEventProcessor = new EventProcessor(SyncthingService.this, mApi, mRecentlySyncedItems);
             mEventProcessor.start();
         }
+
+        if (mChangeWatcher == null) {
+            mChangeWatcher = new ChangeWatcher(SyncthingService.this, mApi, mRecentlySyncedItems);
+            mChangeWatcher.start();
+        }
+
+        ResourceGovernor.get(this).attach(mApi);
     }
 
     @Override
@@ -410,6 +560,7 @@ public class SyncthingService extends Service {
     @Override
     public void onDestroy() {
         Log.v(TAG, "onDestroy");
+        mDestroyed = true;
         if (mNotificationHandler != null) {
             mNotificationHandler.setAppShutdownInProgress(true);
         }
@@ -420,29 +571,122 @@ public class SyncthingService extends Service {
                     mDestroyScheduled = true;
                 } else {
                     Log.i(TAG, "Shutting down syncthing binary immediately");
-                    shutdown(State.DISABLED, () -> {});
+                    shutdownAndWait();
                 }
             }
         } else {
             // If the storage permission got revoked, we did not start the binary and
             // are in State.INIT requiring an immediate shutdown of this service class.
             Log.i(TAG, "Shutting down syncthing binary due to missing storage permission.");
-            shutdown(State.DISABLED, () -> {});
+            shutdownAndWait();
         }
+        ResourceGovernor.get(this).stop();
         super.onDestroy();
     }
 
+    /**
+     * Shuts down and blocks until the binary was stopped, as Android may kill the process
+     * once the service is destroyed, which would leave the binary running.
+     *
+     * The main thread is blocked, so config requests are not answered and the shutdown
+     * request may not be sent. The binary is then stopped by SIGINT, which is graceful too.
+     */
+    private void shutdownAndWait() {
+        Future<?> shutdown = shutdown(State.DISABLED, () -> {});
+        // This is the last shutdown of this instance.
+        mShutdownExecutor.shutdown();
+        try {
+            shutdown.get(DESTROY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Failed to wait for syncthing to stop", e);
+        }
+    }
+
     /**
      * Stop Syncthing and all helpers like event processor and api handler.
      *
-     * Sets {@link #mCurrentState} to newState, and calls onKilledListener once Syncthing is killed.
+     * Sets {@link #mCurrentState} to newState, and calls onKilledListener on the main thread
+     * once Syncthing is killed, unless the service was destroyed meanwhile.
+     *
+     * @return Completes once Syncthing is killed.
      */
-    private void shutdown(State newState, SyncthingRunnable.OnSyncthingKilled onKilledListener) {
+    private Future<?> shutdown(State newState, SyncthingRunnable.OnSyncthingKilled onKilledListener) {
+        if (mShutdownExecutor.isShutdown()) {
+            // Callbacks that arrive after onDestroy(), which stopped everything already.
+            Log.w(TAG, "shutdown: Service was destroyed already");
+            return Futures.immediateFuture(null);
+        }
         Log.i(TAG, "Shutting down background service");
+        boolean apiAvailable;
         synchronized(mStateLock) {
+            apiAvailable = mCurrentState == State.ACTIVE;
             onServiceStateChange(newState);
         }
 
+        RestApi api = mApi;
+        // Also commits pending config changes, which shutdownSyncthing() sends first.
+        stopApiHelpers();
+
+        SyncthingRunnable syncthingRunnable = mSyncthingRunnable;
+        Thread syncthingRunnableThread = mSyncthingRunnableThread;
+        mSyncthingRunnable = null;
+        mSyncthingRunnableThread = null;
+
+        // Ask the binary to exit, so it can close its database.
+        boolean shutdownRequested = false;
+        if (apiAvailable && api != null && syncthingRunnableThread != null
+                && syncthingRunnableThread.isAlive()) {
+            api.shutdownSyncthing();
+            shutdownRequested = true;
+        }
+
+        StartupTask startupTask = null;
+        if (startupTaskIsRunning()) {
+            startupTask = mStartupTask;
+            startupTask.cancel(true);
+            mStartupTask = null;
+        }
+
+        // Waiting for the binary to exit takes up to seconds, so it is done in the background.
+        // Shutdowns run one after another, and listeners are called in the same order.
+        final boolean waitForExit = shutdownRequested;
+        final StartupTask cancelledStartupTask = startupTask;
+        return mShutdownExecutor.submit(() -> {
+            if (syncthingRunnable != null) {
+                if (waitForExit && syncthingRunnable.waitForExit(
+                        syncthingRunnableThread, GRACEFUL_SHUTDOWN_TIMEOUT)) {
+                    Log.v(TAG, "Syncthing exited after shutdown request");
+                }
+                // Also catches instances left over from previous runs.
+                syncthingRunnable.killSyncthing();
+                if (syncthingRunnableThread != null) {
+                    Log.v(TAG, "Waiting for mSyncthingRunnableThread to finish after killSyncthing ...");
+                    try {
+                        syncthingRunnableThread.join();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "mSyncthingRunnableThread InterruptedException");
+                    }
+                    Log.v(TAG, "Finished mSyncthingRunnableThread.");
+                }
+            }
+            if (cancelledStartupTask != null) {
+                Log.v(TAG, "Waiting for mStartupTask to finish after cancelling ...");
+                try {
+                    cancelledStartupTask.get();
+                } catch (Exception e) { }
+            }
+            mHandler.post(() -> {
+                if (!mDestroyed) {
+                    onKilledListener.onKilled();
+                }
+            });
+        });
+    }
+
+    /**
+     * Stops everything that talks to the binary through the REST API.
+     */
+    private void stopApiHelpers() {
         if (mPollWebGuiAvailableTask != null) {
             mPollWebGuiAvailableTask.cancelRequestsAndCallback();
             mPollWebGuiAvailableTask = null;
@@ -453,34 +697,17 @@ public class SyncthingService extends Service {
             mEventProcessor = null;
         }
 
+        if (mChangeWatcher != null) {
+            mChangeWatcher.stop();
+            mChangeWatcher = null;
+        }
+
+        ResourceGovernor.get(this).detach();
+
         if (mApi != null) {
             mApi.shutdown();
             mApi = null;
         }
-
-        if (mSyncthingRunnable != null) {
-            mSyncthingRunnable.killSyncthing();
-            if (mSyncthingRunnableThread != null) {
-                Log.v(TAG, "Waiting for mSyncthingRunnableThread to finish after killSyncthing ...");
-                try {
-                    mSyncthingRunnableThread.join();
-                } catch (InterruptedException e) {
-                    Log.w(TAG, "mSyncthingRunnableThread InterruptedException");
-                }
-                Log.v(TAG, "Finished mSyncthingRunnableThread.");
-                mSyncthingRunnableThread = null;
-            }
-            mSyncthingRunnable = null;
-        }
-        if (startupTaskIsRunning()) {
-            mStartupTask.cancel(true);
-            Log.v(TAG, "Waiting for mStartupTask to finish after cancelling ...");
-            try {
-                mStartupTask.get();
-            } catch (Exception e) { }
-            mStartupTask = null;
-        }
-        onKilledListener.onKilled();
     }
 
     public @Nullable RestApi getApi() {
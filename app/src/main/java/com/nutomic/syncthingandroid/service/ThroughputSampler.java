@@ -0,0 +1,408 @@
+package com.nutomic.syncthingandroid.service;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.model.Connections;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives transfer rates from the byte counters in {@link Connections}, and keeps a history of
+ * the bytes transferred per device and in total.
+ *
+ * Rates are smoothed with an exponentially weighted moving average over the time between
+ * samples, measured with a monotonic clock. Recent samples are kept in a ring buffer in memory.
+ * Bytes transferred are summed up per minute for the last hour and per hour for the last day,
+ * and saved to a file at most once per minute so the history survives restarts.
+ *
+ * Samples are only taken when connections are requested anyway, so there are gaps while no
+ * screen shows them. Bytes transferred during a gap are added to the bucket of the next sample.
+ *
+ * Samples are recorded on the network thread that decoded the connections, and read on the main
+ * thread, so all methods are synchronized.
+ */
+public class ThroughputSampler {
+
+    private static final String TAG = "ThroughputSampler";
+
+    /**
+     * Key for the total of all devices.
+     */
+    public static final String TOTAL = "";
+
+    /**
+     * Time constant of the moving average in ms. A rate change is 63% reflected after this time.
+     */
+    private static final double RATE_TIME_CONSTANT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Samples closer than this in ns to the previous one are ignored, e.g. when several callers
+     * shared the same response.
+     */
+    private static final long MIN_SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Number of samples kept in memory per device, 30 minutes at the usual poll interval.
+     */
+    private static final int SAMPLE_CAPACITY = 360;
+
+    public static final int MINUTES = 60;
+    public static final int HOURS = 24;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final String FILE_NAME = "throughput.bin";
+    private static final int FILE_MAGIC = 0x53544850;
+    private static final int FILE_VERSION = 1;
+
+    private static ThroughputSampler sInstance;
+
+    private final File mFile;
+    private final Map<String, Series> mSeries = new HashMap<>();
+    private long mLastSaveMinute;
+
+    public static synchronized ThroughputSampler get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThroughputSampler(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private ThroughputSampler(File file) {
+        mFile = file;
+        mLastSaveMinute = System.currentTimeMillis() / MINUTE;
+        load();
+    }
+
+    /**
+     * Takes a sample from the byte counters, and sets the smoothed transfer rates in each
+     * connection.
+     */
+    public synchronized void record(Connections connections) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long wallTime = System.currentTimeMillis();
+        if (connections.total != null) {
+            getSeries(TOTAL).record(connections.total, now, wallTime);
+        }
+        if (connections.connections != null) {
+            for (Map.Entry<String, Connections.Connection> e : connections.connections.entrySet()) {
+                getSeries(e.getKey()).record(e.getValue(), now, wallTime);
+            }
+        }
+
+        if (wallTime / MINUTE != mLastSaveMinute) {
+            mLastSaveMinute = wallTime / MINUTE;
+            save(wallTime);
+        }
+    }
+
+    /**
+     * Fills the arrays with the bytes received and sent in each of the last {@link #MINUTES}
+     * minutes, oldest first.
+     *
+     * @param deviceId The device, or {@link #TOTAL}.
+     */
+    public synchronized void getLastHour(String deviceId, long[] inBytes, long[] outBytes) {
+        Series series = mSeries.get(deviceId);
+        long now = System.currentTimeMillis();
+        if (series != null) {
+            series.mMinutes.get(now, inBytes, outBytes);
+        } else {
+            Rollup.clear(inBytes, outBytes);
+        }
+    }
+
+    /**
+     * Fills the arrays with the bytes received and sent in each of the last {@link #HOURS}
+     * hours, oldest first.
+     *
+     * @param deviceId The device, or {@link #TOTAL}.
+     */
+    public synchronized void getLastDay(String deviceId, long[] inBytes, long[] outBytes) {
+        Series series = mSeries.get(deviceId);
+        long now = System.currentTimeMillis();
+        if (series != null) {
+            series.mHours.get(now, inBytes, outBytes);
+        } else {
+            Rollup.clear(inBytes, outBytes);
+        }
+    }
+
+    /**
+     * Returns the highest receive and send rates in bits per second of the samples kept in
+     * memory, which cover up to the last 30 minutes.
+     *
+     * @param deviceId The device, or {@link #TOTAL}.
+     * @param rates Set to the receive rate at index 0 and the send rate at index 1.
+     */
+    public synchronized void getPeakRates(String deviceId, long[] rates) {
+        rates[0] = 0;
+        rates[1] = 0;
+        Series series = mSeries.get(deviceId);
+        if (series == null) {
+            return;
+        }
+        long since = SystemClock.elapsedRealtime() - TimeUnit.MINUTES.toMillis(30);
+        for (int i = 0; i < SAMPLE_CAPACITY; i++) {
+            if (series.mSampleTimes[i] > since) {
+                rates[0] = Math.max(rates[0], (long) series.mSampleInRates[i]);
+                rates[1] = Math.max(rates[1], (long) series.mSampleOutRates[i]);
+            }
+        }
+    }
+
+    private Series getSeries(String deviceId) {
+        Series series = mSeries.get(deviceId);
+        if (series == null) {
+            series = new Series();
+            mSeries.put(deviceId, series);
+        }
+        return series;
+    }
+
+    /**
+     * Samples and history of a single device, or the total.
+     */
+    private static class Series {
+
+        /**
+         * Counters of the previous sample, and its time in ns, or -1.
+         */
+        private long mLastTime = -1;
+        private long mLastInBytes;
+        private long mLastOutBytes;
+
+        /**
+         * Smoothed rates in bits per second.
+         */
+        private double mInRate = 0;
+        private double mOutRate = 0;
+
+        private final long[] mSampleTimes = new long[SAMPLE_CAPACITY];
+        private final float[] mSampleInRates = new float[SAMPLE_CAPACITY];
+        private final float[] mSampleOutRates = new float[SAMPLE_CAPACITY];
+        private int mSampleNext = 0;
+
+        private final Rollup mMinutes = new Rollup(MINUTES, MINUTE);
+        private final Rollup mHours = new Rollup(HOURS, HOUR);
+
+        void record(Connections.Connection connection, long now, long wallTime) {
+            long inBytes = connection.inBytesTotal;
+            long outBytes = connection.outBytesTotal;
+            boolean counterReset = inBytes < mLastInBytes || outBytes < mLastOutBytes;
+            if (mLastTime < 0 || counterReset || now <= mLastTime) {
+                // First sample, or the device reconnected or syncthing restarted.
+                if (counterReset) {
+                    mInRate = 0;
+                    mOutRate = 0;
+                }
+                setLast(now, inBytes, outBytes);
+                connection.inBits = (long) mInRate;
+                connection.outBits = (long) mOutRate;
+                return;
+            }
+
+            if (now - mLastTime < MIN_SAMPLE_INTERVAL) {
+                connection.inBits = (long) mInRate;
+                connection.outBits = (long) mOutRate;
+                return;
+            }
+
+            long deltaIn = inBytes - mLastInBytes;
+            long deltaOut = outBytes - mLastOutBytes;
+            double seconds = (now - mLastTime) / 1e9;
+            double inRate = 8 * deltaIn / seconds;
+            double outRate = 8 * deltaOut / seconds;
+            double alpha = 1 - Math.exp(-seconds * 1000 / RATE_TIME_CONSTANT);
+            mInRate += alpha * (inRate - mInRate);
+            mOutRate += alpha * (outRate - mOutRate);
+
+            mSampleTimes[mSampleNext] = now / 1000000;
+            mSampleInRates[mSampleNext] = (float) inRate;
+            mSampleOutRates[mSampleNext] = (float) outRate;
+            mSampleNext = (mSampleNext + 1) % SAMPLE_CAPACITY;
+
+            mMinutes.add(wallTime, deltaIn, deltaOut);
+            mHours.add(wallTime, deltaIn, deltaOut);
+
+            setLast(now, inBytes, outBytes);
+            connection.inBits = (long) mInRate;
+            connection.outBits = (long) mOutRate;
+        }
+
+        private void setLast(long now, long inBytes, long outBytes) {
+            mLastTime = now;
+            mLastInBytes = inBytes;
+            mLastOutBytes = outBytes;
+        }
+    }
+
+    /**
+     * Bytes transferred per time bucket, for a fixed number of the most recent buckets.
+     */
+    private static class Rollup {
+        private final long mBucketLength;
+        private final long[] mBuckets;
+        private final long[] mInBytes;
+        private final long[] mOutBytes;
+
+        Rollup(int size, long bucketLength) {
+            mBucketLength = bucketLength;
+            mBuckets = new long[size];
+            mInBytes = new long[size];
+            mOutBytes = new long[size];
+        }
+
+        void add(long wallTime, long inBytes, long outBytes) {
+            long bucket = wallTime / mBucketLength;
+            int slot = (int) (bucket % mBuckets.length);
+            if (mBuckets[slot] != bucket) {
+                mBuckets[slot] = bucket;
+                mInBytes[slot] = 0;
+                mOutBytes[slot] = 0;
+            }
+            mInBytes[slot] += inBytes;
+            mOutBytes[slot] += outBytes;
+        }
+
+        void get(long wallTime, long[] inBytes, long[] outBytes) {
+            long last = wallTime / mBucketLength;
+            for (int i = 0; i < mBuckets.length; i++) {
+                long bucket = last - mBuckets.length + 1 + i;
+                int slot = (int) (bucket % mBuckets.length);
+                boolean valid = mBuckets[slot] == bucket;
+                inBytes[i] = valid ? mInBytes[slot] : 0;
+                outBytes[i] = valid ? mOutBytes[slot] : 0;
+            }
+        }
+
+        /**
+         * Returns true if any bucket is within the range of buckets kept at the given time.
+         */
+        boolean isRecent(long wallTime) {
+            long first = wallTime / mBucketLength - mBuckets.length + 1;
+            for (long bucket : mBuckets) {
+                if (bucket >= first) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static void clear(long[] inBytes, long[] outBytes) {
+            for (int i = 0; i < inBytes.length; i++) {
+                inBytes[i] = 0;
+                outBytes[i] = 0;
+            }
+        }
+
+        void write(DataOutputStream out, long wallTime) throws IOException {
+            long first = wallTime / mBucketLength - mBuckets.length + 1;
+            int count = 0;
+            for (long bucket : mBuckets) {
+                if (bucket >= first) {
+                    count++;
+                }
+            }
+            out.writeShort(count);
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] >= first) {
+                    out.writeLong(mBuckets[i]);
+                    out.writeLong(mInBytes[i]);
+                    out.writeLong(mOutBytes[i]);
+                }
+            }
+        }
+
+        void read(DataInputStream in) throws IOException {
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                long bucket = in.readLong();
+                long inBytes = in.readLong();
+                long outBytes = in.readLong();
+                int slot = (int) (bucket % mBuckets.length);
+                if (bucket > mBuckets[slot]) {
+                    mBuckets[slot] = bucket;
+                    mInBytes[slot] = inBytes;
+                    mOutBytes[slot] = outBytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the history of all devices with recent transfers to the file, in the background.
+     */
+    private void save(long wallTime) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            // Forget devices without transfers in the last day.
+            for (Iterator<Series> it = mSeries.values().iterator(); it.hasNext(); ) {
+                Series series = it.next();
+                if (series.mLastTime < 0 && !series.mHours.isRecent(wallTime)) {
+                    it.remove();
+                }
+            }
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mSeries.size());
+            for (Map.Entry<String, Series> e : mSeries.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().mMinutes.write(out, wallTime);
+                e.getValue().mHours.write(out, wallTime);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialize throughput history", e);
+            return;
+        }
+        byte[] data = bytes.toByteArray();
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> {
+            File tempFile = new File(mFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(data);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save throughput history", e);
+                return;
+            }
+            if (!tempFile.renameTo(mFile)) {
+                Log.w(TAG, "Failed to rename throughput history file");
+            }
+        });
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring throughput history with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Series series = getSeries(in.readUTF());
+                series.mMinutes.read(in);
+                series.mHours.read(in);
+            }
+        } catch (FileNotFoundException e) {
+            // No history yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load throughput history", e);
+        }
+    }
+}
@@ -5,44 +5,47 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Environment;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
+
+import com.google.common.base.Strings;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.service.Constants;
 import com.nutomic.syncthingandroid.service.SyncthingRunnable;
 
 import org.mindrot.jbcrypt.BCrypt;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.inject.Inject;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 /**
  * Provides direct access to the config.xml file in the file system.
  *
+ * The file is read with a streaming parser in a single pass, which extracts the GUI settings
+ * and checks whether {@link #updateIfNeeded} has anything to change. The file is only
+ * rewritten if it does, again streaming it through with the changed elements patched.
+ *
  * This class should only be used if the syncthing API is not available (usually during startup).
  */
 public class ConfigXml {
@@ -57,12 +60,41 @@ public class ConfigXml {
     @Inject SharedPreferences mPreferences;
 
     private final File mConfigFile;
+    private final File mConfigTempFile;
+
+    /**
+     * The number of hashers set on folders that use syncthing's default. Folders the user
+     * configured are kept, the ResourceGovernor changes them through the REST API.
+     */
+    private static final String DEFAULT_HASHERS = "1";
+
+    /**
+     * Values read from the config file.
+     */
+    private int mConfigVersion;
+    private String mGuiAddress;
+    private String mApiKey;
+    private String mUserName;
 
-    private Document mConfig;
+    /**
+     * True if {@link #updateIfNeeded} has to change the config file.
+     */
+    private boolean mUpdateNeeded;
+
+    /**
+     * The new password if the current one does not match the API key, set while reading.
+     */
+    private String mNewPasswordHash;
+
+    /**
+     * Set on first start, the device ID whose name should be changed.
+     */
+    private String mLocalDeviceID;
 
     public ConfigXml(Context context) throws OpenConfigException {
         mContext = context;
         mConfigFile = Constants.getConfigFile(mContext);
+        mConfigTempFile = Constants.getConfigTempFile(mContext);
         boolean isFirstStart = !mConfigFile.exists();
         if (isFirstStart) {
             Log.i(TAG, "App started for the first time. Generating keys and config.");
@@ -72,255 +104,413 @@ public class ConfigXml {
         readConfig();
 
         if (isFirstStart) {
-            boolean changed = false;
-
             Log.i(TAG, "Starting syncthing to retrieve local device id.");
             String logOutput = new SyncthingRunnable(context, SyncthingRunnable.Command.deviceid).run(true);
             String localDeviceID = logOutput.replace("\n", "");
             // Verify local device ID is correctly formatted.
             if (localDeviceID.matches("^([A-Z0-9]{7}-){7}[A-Z0-9]{7}$")) {
-                changed = changeLocalDeviceName(localDeviceID) || changed;
-            }
-            changed = changeDefaultFolder() || changed;
-
-            // Save changes if we made any.
-            if (changed) {
-                saveChanges();
+                mLocalDeviceID = localDeviceID;
             }
+            // The default folder is always changed.
+            saveChanges(true, false);
         }
     }
 
+    /**
+     * Reads the given config file without a Context, so nothing is done on first start.
+     */
+    @VisibleForTesting
+    ConfigXml(File configFile, File configTempFile) throws OpenConfigException {
+        mContext = null;
+        mConfigFile = configFile;
+        mConfigTempFile = configTempFile;
+        readConfig();
+    }
+
     private void readConfig() {
         if (!mConfigFile.canRead() && !Util.fixAppDataPermissions(mContext)) {
             throw new OpenConfigException();
         }
-        try {
-            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Log.d(TAG, "Trying to read '" + mConfigFile + "'");
-            mConfig = db.parse(mConfigFile);
-        } catch (SAXException | ParserConfigurationException | IOException e) {
+        Log.d(TAG, "Trying to read '" + mConfigFile + "'");
+        try (InputStream is = new BufferedInputStream(new FileInputStream(mConfigFile))) {
+            XmlPullParser parser = newPullParser();
+            parser.setInput(is, null);
+            mUpdateNeeded = transform(parser, null, false, true);
+        } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "Cannot read '" + mConfigFile + "'", e);
             throw new OpenConfigException();
         }
+        if (mGuiAddress == null || mApiKey == null) {
+            Log.w(TAG, "Missing gui address or api key in '" + mConfigFile + "'");
+            throw new OpenConfigException();
+        }
         Log.i(TAG, "Loaded Syncthing config file");
     }
 
     public URL getWebGuiUrl() {
         String urlProtocol = Constants.osSupportsTLS12() ? "https" : "http";
         try {
-            return new URL(urlProtocol + "://" + getGuiElement().getElementsByTagName("address").item(0).getTextContent());
+            return new URL(urlProtocol + "://" + mGuiAddress);
         } catch (MalformedURLException e) {
             throw new RuntimeException("Failed to parse web interface URL", e);
         }
     }
 
     public String getApiKey() {
-        return getGuiElement().getElementsByTagName("apikey").item(0).getTextContent();
+        return mApiKey;
     }
 
     public String getUserName() {
-        return getGuiElement().getElementsByTagName("user").item(0).getTextContent();
+        return mUserName;
     }
 
     /**
      * Updates the config file.
      *
      * Sets ignorePerms flag to true on every folder, force enables TLS, sets the
-     * username/password, and disables weak hash checking.
+     * username/password, and disables weak hash checking. Migrates options when coming from
+     * an older config version. Nothing is written if all of this is already the case.
      */
-    @SuppressWarnings("SdCardPath")
     public void updateIfNeeded() {
-        boolean changed = false;
+        if (!mUpdateNeeded) {
+            Log.d(TAG, "Config file is up to date");
+            return;
+        }
+        if (saveChanges(false, true)) {
+            mUpdateNeeded = false;
+            mUserName = "syncthing";
+        }
+    }
 
-        /* Perform one-time migration tasks on syncthing's config file when coming from an older config version. */
-        changed = migrateSyncthingOptions() || changed;
-
-        /* Get refs to important config objects */
-        NodeList folders = mConfig.getDocumentElement().getElementsByTagName("folder");
-
-        /* Section - folders */
-        for (int i = 0; i < folders.getLength(); i++) {
-            Element r = (Element) folders.item(i);
-            // Set ignorePerms attribute.
-            if (!r.hasAttribute("ignorePerms") ||
-                    !Boolean.parseBoolean(r.getAttribute("ignorePerms"))) {
-                Log.i(TAG, "Set 'ignorePerms' on folder " + r.getAttribute("id"));
-                r.setAttribute("ignorePerms", Boolean.toString(true));
-                changed = true;
+    /**
+     * Copies the config from parser to serializer, changing what needs to be changed.
+     *
+     * With a null serializer, only reads the values and checks whether anything would change.
+     *
+     * @param firstStart Rename the local device and set up the default folder.
+     * @param update Apply the changes of {@link #updateIfNeeded}.
+     * @return True if the config was or would be changed.
+     */
+    private boolean transform(XmlPullParser in, XmlSerializer out, boolean firstStart,
+                              boolean update) throws XmlPullParserException, IOException {
+        boolean changed = false;
+        boolean migrateFsWatcher = false;
+        boolean defaultFolderChanged = false;
+        boolean folderHasHashers = false;
+        boolean guiRead = false;
+        boolean guiHasUser = false;
+        boolean guiHasPassword = false;
+        boolean optionsHasWeakHash = false;
+        String password = null;
+        List<String> path = new ArrayList<>();
+
+        if (out != null) {
+            out.startDocument("UTF-8", null);
+        }
+        int event = in.nextToken();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            switch (event) {
+                case XmlPullParser.START_TAG: {
+                    String name = in.getName();
+                    String parent = path.isEmpty() ? null : path.get(path.size() - 1);
+                    boolean inGui = "gui".equals(parent) && path.size() == 2 && !guiRead;
+                    boolean inOptions = "options".equals(parent) && path.size() == 2;
+                    Map<String, String> attributes = new LinkedHashMap<>();
+                    for (int i = 0; i < in.getAttributeCount(); i++) {
+                        attributes.put(in.getAttributeName(i), in.getAttributeValue(i));
+                    }
+
+                    if (path.isEmpty()) {
+                        mConfigVersion = Integer.parseInt(attributes.get("version"));
+                        if (update) {
+                            migrateFsWatcher = migrateSyncthingOptions(attributes);
+                            changed = migrateFsWatcher || changed;
+                        }
+                    } else if (name.equals("folder")) {
+                        folderHasHashers = false;
+                        if (update) {
+                            changed = updateFolder(attributes, migrateFsWatcher) || changed;
+                        }
+                        if (firstStart && !defaultFolderChanged) {
+                            changed = changeDefaultFolder(attributes) || changed;
+                            defaultFolderChanged = true;
+                        }
+                    } else if (name.equals("device") && path.size() == 1) {
+                        if (firstStart) {
+                            changed = changeLocalDeviceName(attributes) || changed;
+                        }
+                    } else if (name.equals("gui") && path.size() == 1 && !guiRead) {
+                        // Platform-specific: Force REST API and Web UI access to use TLS 1.2 or not.
+                        String forceHttps = Constants.osSupportsTLS12() ? "true" : "false";
+                        if (update && !forceHttps.equals(attributes.get("tls"))) {
+                            attributes.put("tls", forceHttps);
+                            changed = true;
+                        }
+                    }
+
+                    // Elements whose text is read or replaced.
+                    String replacement = null;
+                    boolean replaceDefaultOnly = false;
+                    boolean isTextElement = true;
+                    if (name.equals("hashers") && path.contains("folder")) {
+                        // Set 'hashers' (see https://github.com/syncthing/syncthing-android/issues/384)
+                        // unless the user chose a value.
+                        folderHasHashers = true;
+                        replacement = update ? DEFAULT_HASHERS : null;
+                        replaceDefaultOnly = true;
+                    } else if (inGui && name.equals("user")) {
+                        // Set user to "syncthing"
+                        guiHasUser = true;
+                        replacement = update ? "syncthing" : null;
+                    } else if (inGui && name.equals("password")) {
+                        // Set password to the API key
+                        guiHasPassword = true;
+                        replacement = update ? mNewPasswordHash : null;
+                    } else if (inOptions && name.equals("weakHashSelectionMethod")) {
+                        // Disable weak hash benchmark for faster startup.
+                        // https://github.com/syncthing/syncthing/issues/4348
+                        optionsHasWeakHash = true;
+                        replacement = update ? "never" : null;
+                    } else if (!(inGui && (name.equals("address") || name.equals("apikey")))
+                            && !(inOptions && name.equals("unackedNotificationID"))) {
+                        isTextElement = false;
+                    }
+                    if (!isTextElement) {
+                        path.add(name);
+                        startTag(out, name, attributes);
+                        break;
+                    }
+
+                    // Consumes the end tag.
+                    String text = in.nextText();
+                    if (inGui) {
+                        switch (name) {
+                            case "address":  mGuiAddress = text;  break;
+                            case "apikey":   mApiKey = text;      break;
+                            case "user":     mUserName = text;    break;
+                            case "password": password = text;     break;
+                        }
+                    }
+                    if (inOptions && name.equals("unackedNotificationID")
+                            && text.equals("fsWatcherNotification")) {
+                        // Dismiss "fsWatcherNotification" according to https://github.com/syncthing/syncthing-android/pull/1051
+                        if (update) {
+                            Log.i(TAG, "Remove found unackedNotificationID 'fsWatcherNotification'.");
+                            changed = true;
+                            break;
+                        }
+                    }
+                    if (replaceDefaultOnly && !text.isEmpty() && !text.equals("0")) {
+                        replacement = null;
+                    }
+                    if (replacement != null && !replacement.equals(text)) {
+                        text = replacement;
+                        changed = true;
+                    }
+                    startTag(out, name, attributes);
+                    textTag(out, null, text);
+                    break;
+                }
+                case XmlPullParser.END_TAG: {
+                    String name = in.getName();
+                    path.remove(path.size() - 1);
+                    if (name.equals("folder") && update && !folderHasHashers) {
+                        textTag(out, "hashers", DEFAULT_HASHERS);
+                        changed = true;
+                    } else if (name.equals("gui") && path.size() == 1 && !guiRead) {
+                        guiRead = true;
+                        if (update && !guiHasUser) {
+                            textTag(out, "user", "syncthing");
+                            changed = true;
+                        }
+                        if (update && out == null && !isPasswordOk(password)) {
+                            Log.i(TAG, "Updating password");
+                            mNewPasswordHash = BCrypt.hashpw(mApiKey, BCrypt.gensalt(4));
+                        }
+                        if (update && mNewPasswordHash != null) {
+                            if (!guiHasPassword) {
+                                textTag(out, "password", mNewPasswordHash);
+                            }
+                            changed = true;
+                        }
+                    } else if (name.equals("options") && path.size() == 1 && update
+                            && !optionsHasWeakHash) {
+                        textTag(out, "weakHashSelectionMethod", "never");
+                        changed = true;
+                    }
+                    if (out != null) {
+                        out.endTag(null, name);
+                    }
+                    break;
+                }
+                default:
+                    copyToken(in, out, event);
+                    break;
             }
-
-            // Set 'hashers' (see https://github.com/syncthing/syncthing-android/issues/384) on the
-            // given folder.
-            changed = setConfigElement(r, "hashers", "1") || changed;
+            event = in.nextToken();
         }
+        if (out != null) {
+            out.endDocument();
+        }
+        return changed;
+    }
 
-        /* Section - GUI */
-        Element gui = getGuiElement();
+    /**
+     * Creates a parser configured like the one returned by android.util.Xml.
+     */
+    private static XmlPullParser newPullParser() throws XmlPullParserException {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newPullParser();
+    }
 
-        // Platform-specific: Force REST API and Web UI access to use TLS 1.2 or not.
-        Boolean forceHttps = Constants.osSupportsTLS12();
-        if (!gui.hasAttribute("tls") ||
-                Boolean.parseBoolean(gui.getAttribute("tls")) != forceHttps) {
-            gui.setAttribute("tls", forceHttps ? "true" : "false");
-            changed = true;
+    private static void startTag(XmlSerializer out, String name, Map<String, String> attributes)
+            throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.startTag(null, name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            out.attribute(null, attribute.getKey(), attribute.getValue());
         }
+    }
 
-        // Set user to "syncthing"
-        changed = setConfigElement(gui, "user", "syncthing") || changed;
+    /**
+     * Writes the text and end tag of an element, and the start tag if name is not null.
+     */
+    private static void textTag(XmlSerializer out, String name, String text)
+            throws IOException {
+        if (out == null) {
+            return;
+        }
+        if (name != null) {
+            out.startTag(null, name);
+        }
+        out.text(text);
+        out.endTag(null, out.getName());
+    }
 
-        // Set password to the API key
-        Node password = gui.getElementsByTagName("password").item(0);
-        if (password == null) {
-            password = mConfig.createElement("password");
-            gui.appendChild(password);
+    /**
+     * Copies whitespace, comments and other tokens outside of elements unchanged.
+     */
+    private static void copyToken(XmlPullParser in, XmlSerializer out, int event)
+            throws IOException {
+        if (out == null) {
+            return;
+        }
+        switch (event) {
+            case XmlPullParser.TEXT:
+            case XmlPullParser.ENTITY_REF:
+                out.text(in.getText());
+                break;
+            case XmlPullParser.IGNORABLE_WHITESPACE:
+                out.ignorableWhitespace(in.getText());
+                break;
+            case XmlPullParser.CDSECT:
+                out.cdsect(in.getText());
+                break;
+            case XmlPullParser.COMMENT:
+                out.comment(in.getText());
+                break;
+            case XmlPullParser.PROCESSING_INSTRUCTION:
+                out.processingInstruction(in.getText());
+                break;
+            case XmlPullParser.DOCDECL:
+                out.docdecl(in.getText());
+                break;
         }
-        String apikey = getApiKey();
-        String pw = password.getTextContent();
-        boolean passwordOk;
+    }
+
+    private boolean isPasswordOk(String password) {
         try {
-            passwordOk = !TextUtils.isEmpty(pw) && BCrypt.checkpw(apikey, pw);
+            return !Strings.isNullOrEmpty(password) && BCrypt.checkpw(mApiKey, password);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, "Malformed password", e);
-            passwordOk = false;
-        }
-        if (!passwordOk) {
-            Log.i(TAG, "Updating password");
-            password.setTextContent(BCrypt.hashpw(apikey, BCrypt.gensalt(4)));
-            changed = true;
+            return false;
         }
+    }
 
-        /* Section - options */
-        // Disable weak hash benchmark for faster startup.
-        // https://github.com/syncthing/syncthing/issues/4348
-        Element options = (Element) mConfig.getDocumentElement()
-                .getElementsByTagName("options").item(0);
-        changed = setConfigElement(options, "weakHashSelectionMethod", "never") || changed;
-
-        /* Dismiss "fsWatcherNotification" according to https://github.com/syncthing/syncthing-android/pull/1051 */
-        NodeList childNodes = options.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node node = childNodes.item(i);
-            if (node.getNodeName().equals("unackedNotificationID")) {
-                if (node.equals("fsWatcherNotification")) {
-                    Log.i(TAG, "Remove found unackedNotificationID 'fsWatcherNotification'.");
-                    options.removeChild(node);
-                    changed = true;
-                    break;
-                }
-            }
+    /**
+     * Sets ignorePerms flag on a folder, and enables the filesystem watcher if migrating.
+     * Returns if changes to the folder have been made.
+     */
+    private boolean updateFolder(Map<String, String> folder, boolean migrateFsWatcher) {
+        boolean changed = false;
+        if (!Boolean.parseBoolean(folder.get("ignorePerms"))) {
+            Log.i(TAG, "Set 'ignorePerms' on folder " + folder.get("id"));
+            folder.put("ignorePerms", Boolean.toString(true));
+            changed = true;
         }
-
-        // Save changes if we made any.
-        if (changed) {
-            saveChanges();
+        if (migrateFsWatcher) {
+            // Enable "fsWatcherEnabled" attribute and set default delay.
+            Log.i(TAG, "Set 'fsWatcherEnabled', 'fsWatcherDelayS' on folder " + folder.get("id"));
+            folder.put("fsWatcherEnabled", "true");
+            folder.put("fsWatcherDelayS", "10");
+            changed = true;
         }
+        return changed;
     }
 
     /**
      * Updates syncthing options to a version specific target setting in the config file.
      *
      * Used for one-time config migration from a lower syncthing version to the current version.
-     * Enables filesystem watcher.
-     * Returns if changes to the config have been made.
+     * Returns if the filesystem watcher has to be enabled on all folders.
      */
-    private boolean migrateSyncthingOptions () {
-        /* Read existing config version */
-        int iConfigVersion = Integer.parseInt(mConfig.getDocumentElement().getAttribute("version"));
-        int iOldConfigVersion = iConfigVersion;
-        Log.i(TAG, "Found existing config version " + Integer.toString(iConfigVersion));
+    private boolean migrateSyncthingOptions(Map<String, String> configuration) {
+        Log.i(TAG, "Found existing config version " + Integer.toString(mConfigVersion));
 
         /* Check if we have to do manual migration from version X to Y */
-        if (iConfigVersion == 27) {
+        if (mConfigVersion == 27) {
             /* fsWatcher transition - https://github.com/syncthing/syncthing/issues/4882 */
-            Log.i(TAG, "Migrating config version " + Integer.toString(iConfigVersion) + " to 28 ...");
-
-            /* Enable fsWatcher for all folders */
-            NodeList folders = mConfig.getDocumentElement().getElementsByTagName("folder");
-            for (int i = 0; i < folders.getLength(); i++) {
-                Element r = (Element) folders.item(i);
-
-                // Enable "fsWatcherEnabled" attribute and set default delay.
-                Log.i(TAG, "Set 'fsWatcherEnabled', 'fsWatcherDelayS' on folder " + r.getAttribute("id"));
-                r.setAttribute("fsWatcherEnabled", "true");
-                r.setAttribute("fsWatcherDelayS", "10");
-            }
+            Log.i(TAG, "Migrating config version " + Integer.toString(mConfigVersion) + " to 28 ...");
 
             /**
             * Set config version to 28 after manual config migration
             * This prevents "unackedNotificationID" getting populated
             * with the fsWatcher GUI notification.
             */
-            iConfigVersion = 28;
-        }
-
-        if (iConfigVersion != iOldConfigVersion) {
-            mConfig.getDocumentElement().setAttribute("version", Integer.toString(iConfigVersion));
-            Log.i(TAG, "New config version is " + Integer.toString(iConfigVersion));
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    private boolean setConfigElement(Element parent, String tagName, String textContent) {
-        Node element = parent.getElementsByTagName(tagName).item(0);
-        if (element == null) {
-            element = mConfig.createElement(tagName);
-            parent.appendChild(element);
-        }
-        if (!textContent.equals(element.getTextContent())) {
-            element.setTextContent(textContent);
+            configuration.put("version", "28");
+            Log.i(TAG, "New config version is 28");
             return true;
         }
         return false;
     }
 
-    private Element getGuiElement() {
-        return (Element) mConfig.getDocumentElement().getElementsByTagName("gui").item(0);
-    }
-
     /**
      * Set device model name as device name for Syncthing.
      *
-     * We need to iterate through XML nodes manually, as mConfig.getDocumentElement() will also
-     * return nested elements inside folder element. We have to check that we only rename the
-     * device corresponding to the local device ID.
+     * Only top level device elements are passed here, as device elements nested inside folder
+     * elements have no name. We have to check that we only rename the device corresponding to
+     * the local device ID.
      * Returns if changes to the config have been made.
      */
-    private boolean changeLocalDeviceName(String localDeviceID) {
-        NodeList childNodes = mConfig.getDocumentElement().getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node node = childNodes.item(i);
-            if (node.getNodeName().equals("device")) {
-                if (((Element) node).getAttribute("id").equals(localDeviceID)) {
-                    Log.i(TAG, "changeLocalDeviceName: Rename device ID " + localDeviceID + " to " + Build.MODEL);
-                    ((Element) node).setAttribute("name", Build.MODEL);
-                    return true;
-                }
-            }
+    private boolean changeLocalDeviceName(Map<String, String> device) {
+        if (mLocalDeviceID == null || !mLocalDeviceID.equals(device.get("id"))) {
+            return false;
         }
-        return false;
+        Log.i(TAG, "changeLocalDeviceName: Rename device ID " + mLocalDeviceID + " to " + Build.MODEL);
+        device.put("name", Build.MODEL);
+        return true;
     }
 
     /**
      * Change default folder id to camera and path to camera folder path.
      * Returns if changes to the config have been made.
      */
-    private boolean changeDefaultFolder() {
-        Element folder = (Element) mConfig.getDocumentElement()
-                .getElementsByTagName("folder").item(0);
+    private boolean changeDefaultFolder(Map<String, String> folder) {
         String deviceModel = Build.MODEL
                 .replace(" ", "_")
                 .toLowerCase(Locale.US)
                 .replaceAll("[^a-z0-9_-]", "");
         String defaultFolderId = deviceModel + "_" + generateRandomString(FOLDER_ID_APPENDIX_LENGTH);
-        folder.setAttribute("label", mContext.getString(R.string.default_folder_label));
-        folder.setAttribute("id", mContext.getString(R.string.default_folder_id, defaultFolderId));
-        folder.setAttribute("path", Environment
+        folder.put("label", mContext.getString(R.string.default_folder_label));
+        folder.put("id", mContext.getString(R.string.default_folder_id, defaultFolderId));
+        folder.put("path", Environment
                 .getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsolutePath());
-        folder.setAttribute("type", Constants.FOLDER_TYPE_SEND_ONLY);
-        folder.setAttribute("fsWatcherEnabled", "true");
-        folder.setAttribute("fsWatcherDelayS", "10");
+        folder.put("type", Constants.FOLDER_TYPE_SEND_ONLY);
+        folder.put("fsWatcherEnabled", "true");
+        folder.put("fsWatcherDelayS", "10");
         return true;
     }
 
@@ -338,30 +528,36 @@ public class ConfigXml {
     }
 
     /**
-     * Writes updated mConfig back to file.
+     * Streams the config file to a temporary file with the given changes, then replaces the
+     * config file with it.
+     *
+     * @return True if the config file was written.
      */
-    private void saveChanges() {
+    private boolean saveChanges(boolean firstStart, boolean update) {
         if (!mConfigFile.canWrite() && !Util.fixAppDataPermissions(mContext)) {
             Log.w(TAG, "Failed to save updated config. Cannot change the owner of the config file.");
-            return;
+            return false;
         }
 
         Log.i(TAG, "Writing updated config file");
-        File mConfigTempFile = Constants.getConfigTempFile(mContext);
-        try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource domSource = new DOMSource(mConfig);
-            StreamResult streamResult = new StreamResult(mConfigTempFile);
-            transformer.transform(domSource, streamResult);
-        } catch (TransformerException e) {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(mConfigFile));
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(mConfigTempFile))) {
+            XmlPullParser parser = newPullParser();
+            parser.setInput(is, null);
+            XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
+            serializer.setOutput(os, "UTF-8");
+            transform(parser, serializer, firstStart, update);
+            serializer.flush();
+        } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "Failed to save temporary config file", e);
-            return;
+            return false;
         }
         try {
             mConfigTempFile.renameTo(mConfigFile);
         } catch (Exception e) {
             Log.w(TAG, "Failed to rename temporary config file to original file");
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,184 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lists directory contents on a background thread, directories first and both sorted by name.
+ *
+ * The type of each entry is read exactly once, and entries are delivered to the main thread in
+ * batches while the listing is still running. Complete listings of recently visited directories
+ * are cached, and reused as long as the modification time of the directory did not change.
+ */
+public class DirectoryLister {
+
+    /**
+     * Number of entries delivered per batch.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Shared between all instances, so reopening the folder picker is fast.
+     */
+    private static final LruCache<String, Listing> sCache = new LruCache<>(CACHE_SIZE);
+
+    /**
+     * A directory entry together with its type.
+     */
+    public static class Entry {
+        public final File file;
+        public final boolean isDirectory;
+
+        Entry(File file, boolean isDirectory) {
+            this.file = file;
+            this.isDirectory = isDirectory;
+        }
+    }
+
+    public interface OnEntriesListener {
+        /**
+         * Called on the main thread for each batch of entries. All directories in a batch sort
+         * after directories of previous batches, and the same holds for files.
+         *
+         * @param complete True if this is the last batch of the listing.
+         */
+        void onEntries(List<Entry> directories, List<Entry> files, boolean complete);
+    }
+
+    private static class Listing {
+        final long lastModified;
+        final boolean directoriesOnly;
+        final List<Entry> directories;
+        final List<Entry> files;
+
+        Listing(long lastModified, boolean directoriesOnly, List<Entry> directories,
+                List<Entry> files) {
+            this.lastModified = lastModified;
+            this.directoriesOnly = directoriesOnly;
+            this.directories = directories;
+            this.files = files;
+        }
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private Future<?> mCurrentListing;
+
+    /**
+     * Incremented for each listing, so batches of an abandoned listing are dropped.
+     */
+    private int mGeneration = 0;
+
+    /**
+     * Starts listing the directory, cancelling any listing that is still running. Must be
+     * called from the main thread.
+     *
+     * @param directoriesOnly If true, files are not returned.
+     */
+    public void list(File directory, boolean directoriesOnly, OnEntriesListener listener) {
+        cancel();
+        int generation = mGeneration;
+        mCurrentListing = mExecutor.submit(() ->
+                listInBackground(directory, directoriesOnly, generation, listener));
+    }
+
+    /**
+     * Stops delivering results of the current listing. Must be called from the main thread.
+     */
+    public void cancel() {
+        mGeneration++;
+        if (mCurrentListing != null) {
+            mCurrentListing.cancel(true);
+            mCurrentListing = null;
+        }
+    }
+
+    /**
+     * Cancels the current listing and stops the background thread.
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Removes the cached listing of the directory, for changes that may happen within the
+     * resolution of the modification time.
+     */
+    public static void invalidate(File directory) {
+        sCache.remove(directory.getAbsolutePath());
+    }
+
+    private void listInBackground(File directory, boolean directoriesOnly, int generation,
+                                  OnEntriesListener listener) {
+        String key = directory.getAbsolutePath();
+        long lastModified = directory.lastModified();
+        Listing cached = sCache.get(key);
+        if (cached != null && cached.lastModified == lastModified
+                && (directoriesOnly || !cached.directoriesOnly)) {
+            deliver(generation, listener, cached.directories,
+                    directoriesOnly ? Collections.emptyList() : cached.files, true);
+            return;
+        }
+
+        // In case we don't have read access to the folder, just display nothing.
+        String[] names = directory.list();
+        if (names == null) {
+            names = new String[]{};
+        }
+        // Sort before reading types, so entries can be delivered in order as they are read.
+        Arrays.sort(names);
+
+        List<Entry> directories = new ArrayList<>();
+        List<Entry> files = new ArrayList<>();
+        int batchStart = 0;
+        int directoriesDelivered = 0;
+        int filesDelivered = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            File file = new File(directory, names[i]);
+            if (file.isDirectory()) {
+                directories.add(new Entry(file, true));
+            } else if (!directoriesOnly) {
+                files.add(new Entry(file, false));
+            }
+            if (i + 1 - batchStart == BATCH_SIZE && i + 1 < names.length) {
+                deliver(generation, listener,
+                        new ArrayList<>(directories.subList(directoriesDelivered, directories.size())),
+                        new ArrayList<>(files.subList(filesDelivered, files.size())), false);
+                batchStart = i + 1;
+                directoriesDelivered = directories.size();
+                filesDelivered = files.size();
+            }
+        }
+        deliver(generation, listener,
+                new ArrayList<>(directories.subList(directoriesDelivered, directories.size())),
+                new ArrayList<>(files.subList(filesDelivered, files.size())), true);
+        sCache.put(key, new Listing(lastModified, directoriesOnly,
+                Collections.unmodifiableList(directories), Collections.unmodifiableList(files)));
+    }
+
+    private void deliver(int generation, OnEntriesListener listener, List<Entry> directories,
+                         List<Entry> files, boolean complete) {
+        mMainHandler.post(() -> {
+            if (generation == mGeneration) {
+                listener.onEntries(directories, files, complete);
+            }
+        });
+    }
+}
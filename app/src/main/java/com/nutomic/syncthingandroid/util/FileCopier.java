@@ -0,0 +1,329 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies content URIs into a directory, several files at a time.
+ *
+ * Sources that are backed by a real file are copied with {@link FileChannel#transferFrom},
+ * everything else is copied through pooled buffers. Files are written to a temporary name that
+ * syncthing ignores and renamed once complete, so the binary never picks up partial files.
+ *
+ * A target that already exists is skipped if it has the same size and content as the source,
+ * otherwise the source is copied under a new name.
+ */
+public class FileCopier {
+
+    private static final String TAG = "FileCopier";
+
+    /**
+     * Copying is limited by storage, more parallel copies only make each of them slower.
+     */
+    private static final int MAX_PARALLEL_COPIES = 3;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of bytes per call to {@link FileChannel#transferFrom}, so progress is
+     * reported and cancellation is checked regularly.
+     */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Fast non-cryptographic hash, files are only compared to detect accidental duplicates.
+     */
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    public interface OnProgressListener {
+        /**
+         * Called on a worker thread whenever more bytes were copied.
+         *
+         * @param totalBytes Sum of all known source sizes, may be smaller than copiedBytes if
+         *                   some sources do not report their size.
+         */
+        void onProgress(long copiedBytes, long totalBytes);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final OnProgressListener mListener;
+
+    private final BlockingQueue<byte[]> mBuffers = new ArrayBlockingQueue<>(MAX_PARALLEL_COPIES);
+
+    /**
+     * Names of files that are being copied, so parallel copies never pick the same target.
+     * Must be locked upon access.
+     */
+    private final Set<String> mReservedNames = new HashSet<>();
+
+    private final AtomicLong mCopiedBytes = new AtomicLong();
+    private final AtomicInteger mCopied = new AtomicInteger();
+    private final AtomicInteger mSkipped = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private volatile long mTotalBytes = 0;
+    private volatile boolean mCancelled = false;
+
+    public FileCopier(ContentResolver contentResolver, OnProgressListener listener) {
+        mContentResolver = contentResolver;
+        mListener = listener;
+    }
+
+    /**
+     * Copies all files and blocks until they are done. Must not be called on the main thread.
+     *
+     * @param files     Source URIs and the file name to use for each of them.
+     * @param directory Directory to copy the files into.
+     */
+    public void copy(Map<Uri, String> files, File directory) throws InterruptedException {
+        long totalBytes = 0;
+        for (Uri uri : files.keySet()) {
+            totalBytes += Math.max(0, querySize(uri));
+        }
+        mTotalBytes = totalBytes;
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARALLEL_COPIES, files.size())));
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<Uri, String> entry : files.entrySet()) {
+            futures.add(executor.submit(() -> copyFile(entry.getKey(), directory, entry.getValue())));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            executor.shutdownNow();
+            throw e;
+        } catch (ExecutionException e) {
+            // copyFile() handles all checked exceptions, so this is a programming error.
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops all copies as soon as possible and removes partially copied files.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public int getCopiedCount() {
+        return mCopied.get();
+    }
+
+    public int getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    public int getFailedCount() {
+        return mFailed.get();
+    }
+
+    private void copyFile(Uri source, File directory, String name) {
+        if (mCancelled) {
+            return;
+        }
+        File target = null;
+        File temp = null;
+        try {
+            target = reserveTarget(source, directory, name);
+            if (target == null) {
+                Log.d(TAG, "Skipping " + source + ", identical file " + name + " exists");
+                mSkipped.incrementAndGet();
+                return;
+            }
+            temp = new File(directory, ".syncthing." + target.getName() + ".tmp");
+            copyToFile(source, temp);
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to rename " + temp + " to " + target);
+            }
+            mCopied.incrementAndGet();
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "Copy of " + source + " was cancelled");
+        } catch (IOException e) {
+            if (!mCancelled) {
+                Log.e(TAG, "Failed to copy " + source + " to " + directory, e);
+                mFailed.incrementAndGet();
+            }
+        } finally {
+            if (temp != null && temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Failed to delete " + temp);
+            }
+            if (target != null) {
+                synchronized (mReservedNames) {
+                    mReservedNames.remove(target.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file the source should be copied to and reserves its name, or null if an
+     * identical file already exists.
+     */
+    private File reserveTarget(Uri source, File directory, String name) throws IOException {
+        File target = new File(directory, name);
+        // Hash outside of the lock, it may take a while for large files.
+        if (target.isFile() && isSameContent(source, target)) {
+            return null;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        synchronized (mReservedNames) {
+            for (int i = 1; target.exists() || mReservedNames.contains(target.getName()); i++) {
+                target = new File(directory, base + " (" + i + ")" + extension);
+            }
+            mReservedNames.add(target.getName());
+        }
+        return target;
+    }
+
+    private boolean isSameContent(Uri source, File target) throws IOException {
+        long size = querySize(source);
+        if (size >= 0 && size != target.length()) {
+            return false;
+        }
+        ByteSource sourceBytes = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return openInputStream(source);
+            }
+        };
+        HashCode sourceHash = sourceBytes.hash(HASH_FUNCTION);
+        return sourceHash.equals(Files.asByteSource(target).hash(HASH_FUNCTION));
+    }
+
+    private void copyToFile(Uri source, File target) throws IOException {
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = mContentResolver.openFileDescriptor(source, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            // Some providers only serve streams.
+            descriptor = null;
+        }
+        if (descriptor == null) {
+            try (InputStream in = openInputStream(source);
+                 OutputStream out = new FileOutputStream(target)) {
+                copyStream(in, out);
+            }
+            return;
+        }
+        try (ParcelFileDescriptor.AutoCloseInputStream in =
+                     new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+             FileOutputStream out = new FileOutputStream(target)) {
+            long size = descriptor.getStatSize();
+            if (size < 0) {
+                // Pipe or socket, the size is unknown.
+                copyStream(in, out);
+            } else {
+                copyChannel(in.getChannel(), out.getChannel(), size);
+            }
+        }
+    }
+
+    private void copyChannel(FileChannel in, FileChannel out, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            checkCancelled();
+            long transferred = out.transferFrom(in, position,
+                    Math.min(TRANSFER_CHUNK_SIZE, size - position));
+            if (transferred <= 0) {
+                // The source became shorter while copying.
+                break;
+            }
+            position += transferred;
+            reportProgress(transferred);
+        }
+    }
+
+    private void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkCancelled();
+                out.write(buffer, 0, read);
+                reportProgress(read);
+            }
+        } finally {
+            mBuffers.offer(buffer);
+        }
+    }
+
+    private InputStream openInputStream(Uri uri) throws IOException {
+        InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Failed to open " + uri);
+        }
+        return in;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mCancelled || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void reportProgress(long bytes) {
+        mListener.onProgress(mCopiedBytes.addAndGet(bytes), mTotalBytes);
+    }
+
+    /**
+     * Returns the size of the source in bytes, or -1 if it is unknown.
+     */
+    private long querySize(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            return file.isFile() ? file.length() : -1;
+        }
+        try (Cursor cursor = mContentResolver.query(
+                uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query size of " + uri, e);
+        }
+        return -1;
+    }
+}
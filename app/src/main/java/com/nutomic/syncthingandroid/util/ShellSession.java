@@ -0,0 +1,243 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived sh or su process that runs commands one after another, so a shell does not have
+ * to be spawned for every command. Starting su is slow and may show a toast on each start.
+ *
+ * The exit code of each command is captured by printing a marker line after it. If the shell
+ * dies or a command times out, the shell is stopped and started again for the next command.
+ *
+ * Commands are run in the order callers arrive, from any thread except the main thread.
+ */
+public class ShellSession {
+
+    private static final String TAG = "ShellSession";
+
+    /**
+     * Exit code returned if the command could not be run or timed out.
+     */
+    public static final int EXIT_CODE_FAILED = 255;
+
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private static final String MARKER = "__syncthing_shell_session_";
+
+    /**
+     * Queued instead of a line when the shell's output ended.
+     */
+    private static final String END_OF_OUTPUT = new String("end of output");
+
+    private static ShellSession sShell;
+    private static ShellSession sRootShell;
+
+    public static class Result {
+        public final int exitCode;
+        /**
+         * Lines printed to stdout and stderr.
+         */
+        public final List<String> output;
+
+        Result(int exitCode, List<String> output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Returns the shared session running as root, or as the app's user.
+     */
+    public static synchronized ShellSession get(boolean useRoot) {
+        if (useRoot) {
+            if (sRootShell == null) {
+                sRootShell = new ShellSession("su");
+            }
+            return sRootShell;
+        }
+        if (sShell == null) {
+            sShell = new ShellSession("sh");
+        }
+        return sShell;
+    }
+
+    private final String mShell;
+
+    /**
+     * Fair, so waiting commands run in the order they were submitted.
+     */
+    private final ReentrantLock mLock = new ReentrantLock(true);
+
+    /**
+     * Running shell and its output, guarded by mLock.
+     */
+    private Process mProcess;
+    private Writer mInput;
+    private BlockingQueue<String> mOutput;
+    private int mCommandCount = 0;
+
+    /**
+     * @param shell Command that starts a POSIX shell, e.g. "sh" or "su".
+     */
+    public ShellSession(String shell) {
+        mShell = shell;
+    }
+
+    /**
+     * Runs a command with {@link #DEFAULT_TIMEOUT} and returns its exit code.
+     */
+    public int run(String command) {
+        return run(command, DEFAULT_TIMEOUT).exitCode;
+    }
+
+    /**
+     * Runs a command and waits until it finished or the timeout elapsed.
+     *
+     * @param command May contain several lines, the exit code of the last one is returned.
+     */
+    public Result run(String command, long timeoutMs) {
+        command = command.trim();
+        mLock.lock();
+        try {
+            if (!isAlive() && !start()) {
+                return new Result(EXIT_CODE_FAILED, Collections.emptyList());
+            }
+            String marker = MARKER + (mCommandCount++) + "__";
+            Log.d(TAG, mShell + ": " + command);
+            try {
+                // The echo before the marker ends the last line of output in case the command
+                // did not, so the marker always starts a line.
+                mInput.write(command + "\nSTATUS=$?; echo; echo " + marker + "$STATUS\n");
+                mInput.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write to " + mShell + ", restarting it", e);
+                stop();
+                return new Result(EXIT_CODE_FAILED, Collections.emptyList());
+            }
+            return readResult(marker, timeoutMs);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the shell. It is started again by the next command.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            stop();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Result readResult(String marker, long timeoutMs) {
+        List<String> output = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                String line = remaining > 0 ? mOutput.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (line == null) {
+                    Log.w(TAG, mShell + ": Command timed out after " + timeoutMs + " ms, restarting shell");
+                    stop();
+                    return new Result(EXIT_CODE_FAILED, output);
+                }
+                if (line == END_OF_OUTPUT) {
+                    Log.w(TAG, mShell + ": Shell exited, it will be restarted for the next command");
+                    stop();
+                    return new Result(EXIT_CODE_FAILED, output);
+                }
+                if (line.startsWith(marker)) {
+                    // Remove the line added by the echo before the marker.
+                    if (!output.isEmpty() && output.get(output.size() - 1).isEmpty()) {
+                        output.remove(output.size() - 1);
+                    }
+                    return new Result(parseExitCode(line.substring(marker.length())), output);
+                }
+                output.add(line);
+            }
+        } catch (InterruptedException e) {
+            // The rest of the output would be mistaken for the next command's, so start over.
+            Thread.currentThread().interrupt();
+            stop();
+            return new Result(EXIT_CODE_FAILED, output);
+        }
+    }
+
+    private static int parseExitCode(String exitCode) {
+        try {
+            return Integer.parseInt(exitCode.trim());
+        } catch (NumberFormatException e) {
+            return EXIT_CODE_FAILED;
+        }
+    }
+
+    private boolean isAlive() {
+        if (mProcess == null) {
+            return false;
+        }
+        try {
+            mProcess.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private boolean start() {
+        stop();
+        try {
+            mProcess = new ProcessBuilder(mShell).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start " + mShell, e);
+            return false;
+        }
+        Log.i(TAG, "Started " + mShell);
+        mInput = new OutputStreamWriter(mProcess.getOutputStream(), Charsets.UTF_8);
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        mOutput = output;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(mProcess.getInputStream(), Charsets.UTF_8));
+        Thread readerThread = new Thread(() -> {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.add(line);
+                }
+            } catch (IOException e) {
+                // The shell was stopped.
+            } finally {
+                output.add(END_OF_OUTPUT);
+            }
+        }, TAG + " " + mShell);
+        readerThread.setDaemon(true);
+        readerThread.start();
+        return true;
+    }
+
+    private void stop() {
+        if (mProcess != null) {
+            mProcess.destroy();
+        }
+        mProcess = null;
+        mInput = null;
+        mOutput = null;
+    }
+}
@@ -17,11 +17,7 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.service.Constants;
 
-import java.io.BufferedWriter;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
 
 import eu.chainfire.libsuperuser.Shell;
@@ -174,37 +170,12 @@ public class Util {
 
     /**
      * Run command in a shell and return the exit code.
+     *
+     * The command runs in a shell that is kept open for later commands, see
+     * {@link ShellSession}.
      */
     public static int runShellCommand(String cmd, Boolean useRoot) {
-        // Assume "failure" exit code if an error is caught.
-        int exitCode = 255;
-        Process shellProc = null;
-        DataOutputStream shellOut = null;
-        try {
-            shellProc = Runtime.getRuntime().exec((useRoot) ? "su" : "sh");
-            shellOut = new DataOutputStream(shellProc.getOutputStream());
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(shellOut));
-            Log.d(TAG, "runShellCommand: " + cmd);
-            bufferedWriter.write(cmd);
-            bufferedWriter.flush();
-            shellOut.close();
-            shellOut = null;
-            exitCode = shellProc.waitFor();
-        } catch (IOException | InterruptedException e) {
-            Log.w(TAG, "runShellCommand: Exception", e);
-        } finally {
-            try {
-                if (shellOut != null) {
-                    shellOut.close();
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to close shell stream", e);
-            }
-            if (shellProc != null) {
-                shellProc.destroy();
-            }
-        }
-        return exitCode;
+        return ShellSession.get(useRoot).run(cmd);
     }
 
     /**
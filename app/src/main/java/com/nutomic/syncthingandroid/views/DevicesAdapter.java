@@ -16,7 +16,7 @@ import com.google.android.material.color.MaterialColors;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.model.Connections;
 import com.nutomic.syncthingandroid.model.Device;
-import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.util.Util;
 
 /**
@@ -92,15 +92,9 @@ public class DevicesAdapter extends ArrayAdapter<Device> {
     }
 
     /**
-     * Requests new connection info for all devices visible in listView.
+     * Displays connection info received via {@link StatusRepository#connections}.
      */
-    public void updateConnections(RestApi api) {
-        for (int i = 0; i < getCount(); i++) {
-            api.getConnections(this::onReceiveConnections);
-        }
-    }
-
-    private void onReceiveConnections(Connections connections) {
+    public void setConnections(Connections connections) {
         mConnections = connections;
         notifyDataSetChanged();
     }
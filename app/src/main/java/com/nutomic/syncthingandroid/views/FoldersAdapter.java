@@ -23,12 +23,13 @@ import com.nutomic.syncthingandroid.databinding.ItemFolderListBinding;
 import com.nutomic.syncthingandroid.model.Folder;
 import com.nutomic.syncthingandroid.model.FolderStatus;
 import com.nutomic.syncthingandroid.service.Constants;
-import com.nutomic.syncthingandroid.service.RestApi;
+import com.nutomic.syncthingandroid.service.StatusRepository;
 import com.nutomic.syncthingandroid.service.SyncthingService;
 import com.nutomic.syncthingandroid.util.Util;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.Map;
 
 import static android.view.View.GONE;
 import static android.view.View.VISIBLE;
@@ -164,16 +165,11 @@ public class FoldersAdapter extends ArrayAdapter<Folder> {
     }
 
     /**
-     * Requests updated folder status from the api for all visible items.
+     * Displays folder status received via {@link StatusRepository#folderStatuses}.
      */
-    public void updateFolderStatus(RestApi api) {
-        for (int i = 0; i < getCount(); i++) {
-            api.getFolderStatus(getItem(i).id, this::onReceiveFolderStatus);
-        }
-    }
-
-    private void onReceiveFolderStatus(String folderId, FolderStatus folderStatus) {
-        mLocalFolderStatuses.put(folderId, folderStatus);
+    public void setFolderStatuses(Map<String, FolderStatus> folderStatuses) {
+        mLocalFolderStatuses.clear();
+        mLocalFolderStatuses.putAll(folderStatuses);
         notifyDataSetChanged();
     }
 
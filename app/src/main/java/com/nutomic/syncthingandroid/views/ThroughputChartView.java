@@ -0,0 +1,76 @@
+package com.nutomic.syncthingandroid.views;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import com.nutomic.syncthingandroid.R;
+
+/**
+ * Shows bytes received and sent per time bucket as pairs of bars, oldest on the left.
+ */
+public class ThroughputChartView extends View {
+
+    private final Paint mInPaint = new Paint();
+    private final Paint mOutPaint = new Paint();
+
+    private long[] mInBytes = new long[0];
+    private long[] mOutBytes = new long[0];
+
+    public ThroughputChartView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public ThroughputChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public ThroughputChartView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init(context);
+    }
+
+    private void init(Context context) {
+        mInPaint.setColor(ContextCompat.getColor(context, R.color.text_blue));
+        mOutPaint.setColor(ContextCompat.getColor(context, R.color.text_green));
+    }
+
+    /**
+     * Sets the values to show. Both arrays must have the same length, they are not copied.
+     */
+    public void setData(long[] inBytes, long[] outBytes) {
+        mInBytes = inBytes;
+        mOutBytes = outBytes;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int count = mInBytes.length;
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, Math.max(mInBytes[i], mOutBytes[i]));
+        }
+        if (count == 0 || max == 0) {
+            return;
+        }
+        float left = getPaddingLeft();
+        float bottom = getHeight() - getPaddingBottom();
+        float height = bottom - getPaddingTop();
+        float slot = (getWidth() - getPaddingLeft() - getPaddingRight()) / (float) count;
+        float bar = slot * 0.4f;
+        for (int i = 0; i < count; i++) {
+            float x = left + i * slot;
+            canvas.drawRect(x, bottom - height * mInBytes[i] / max, x + bar, bottom, mInPaint);
+            canvas.drawRect(x + bar, bottom - height * mOutBytes[i] / max, x + 2 * bar, bottom,
+                    mOutPaint);
+        }
+    }
+}
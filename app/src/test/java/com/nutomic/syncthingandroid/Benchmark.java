@@ -0,0 +1,93 @@
+package com.nutomic.syncthingandroid;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Minimal harness for benchmarks that run as unit tests. Like JMH, each case is warmed up
+ * before it is timed, and results are kept alive so the JIT can't drop the work. Results are
+ * printed, so they show up in the test report.
+ *
+ * Timings depend on the machine, so benchmarks only assert that the compared implementations
+ * produce the same result.
+ *
+ * Benchmarks are annotated with {@code @Category(Benchmark.class)}, which excludes them from
+ * the default test run. Run them with {@code ./gradlew testDebugUnitTest -Pbenchmarks}.
+ */
+public final class Benchmark {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * Keeps results reachable.
+     */
+    @SuppressWarnings("unused")
+    private static volatile Object sSink;
+
+    public static class Result {
+        public final String name;
+        public final double medianMs;
+        /**
+         * Bytes allocated by a single run, or -1 if the JVM can't tell.
+         */
+        public final long allocatedBytes;
+
+        Result(String name, double medianMs, long allocatedBytes) {
+            this.name = name;
+            this.medianMs = medianMs;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %10.2f ms %12s", name, medianMs,
+                    allocatedBytes >= 0 ? (allocatedBytes / 1024) + " KiB" : "n/a");
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    public static Result measure(String name, Callable<?> benchmarkCase) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            sSink = benchmarkCase.call();
+        }
+        double[] times = new double[MEASURED_RUNS];
+        long allocated = -1;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            sSink = benchmarkCase.call();
+            times[i] = (System.nanoTime() - start) / 1e6;
+            long allocatedAfter = getAllocatedBytes();
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                allocated = allocatedAfter - allocatedBefore;
+            }
+        }
+        Arrays.sort(times);
+        Result result = new Result(name, times[MEASURED_RUNS / 2], allocated);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Prints how the second result compares to the first.
+     */
+    public static void compare(Result before, Result after) {
+        System.out.println(String.format(Locale.US, "%s vs %s: %.2fx time", after.name,
+                before.name, after.medianMs / before.medianMs));
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
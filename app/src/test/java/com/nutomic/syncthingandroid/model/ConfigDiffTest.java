@@ -0,0 +1,174 @@
+package com.nutomic.syncthingandroid.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDiffTest {
+
+    @Test
+    public void sameConfigIsEmpty() {
+        Config config = createConfig(Arrays.asList("a", "b"), Arrays.asList("A", "B"));
+        ConfigDiff diff = compute(config, createConfig(Arrays.asList("a", "b"), Arrays.asList("A", "B")));
+        assertTrue(diff.isEmpty());
+        assertFalse(diff.hasFolderChanges());
+        assertFalse(diff.hasDeviceChanges());
+    }
+
+    @Test
+    public void orderDoesNotMatter() {
+        Config config = createConfig(Arrays.asList("a", "b"), Arrays.asList("A", "B"));
+        Config reordered = createConfig(Arrays.asList("b", "a"), Arrays.asList("A", "B"));
+        Collections.reverse(reordered.devices);
+        assertTrue(compute(config, reordered).isEmpty());
+    }
+
+    @Test
+    public void folders() {
+        Config oldConfig = createConfig(Arrays.asList("unchanged", "changed", "removed"),
+                Collections.singletonList("A"));
+        Config newConfig = createConfig(Arrays.asList("unchanged", "changed", "added"),
+                Collections.singletonList("A"));
+        newConfig.folders.get(1).label = "New label";
+
+        ConfigDiff diff = compute(oldConfig, newConfig);
+        assertEquals(Collections.singletonList("added"), folderIds(diff.addedFolders));
+        assertEquals(Collections.singletonList("changed"), folderIds(diff.changedFolders));
+        assertEquals(Collections.singletonList("removed"), folderIds(diff.removedFolders));
+        // Added and changed folders are those of the new config, removed ones of the old one.
+        assertSame(newConfig.folders.get(2), diff.addedFolders.get(0));
+        assertSame(newConfig.folders.get(1), diff.changedFolders.get(0));
+        assertSame(oldConfig.folders.get(2), diff.removedFolders.get(0));
+
+        assertTrue(diff.hasFolderChanges());
+        assertFalse(diff.hasDeviceChanges());
+        assertFalse(diff.optionsChanged);
+        assertFalse(diff.guiChanged);
+        assertFalse(diff.otherChanged);
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void devices() {
+        Config oldConfig = createConfig(Collections.singletonList("a"),
+                Arrays.asList("UNCHANGED", "CHANGED", "REMOVED"));
+        Config newConfig = createConfig(Collections.singletonList("a"),
+                Arrays.asList("UNCHANGED", "CHANGED", "ADDED"));
+        newConfig.devices.get(1).name = "New name";
+
+        ConfigDiff diff = compute(oldConfig, newConfig);
+        assertEquals(Collections.singletonList("ADDED"), deviceIds(diff.addedDevices));
+        assertEquals(Collections.singletonList("CHANGED"), deviceIds(diff.changedDevices));
+        assertEquals(Collections.singletonList("REMOVED"), deviceIds(diff.removedDevices));
+        assertSame(oldConfig.devices.get(2), diff.removedDevices.get(0));
+
+        assertTrue(diff.hasDeviceChanges());
+        assertFalse(diff.hasFolderChanges());
+        assertFalse(diff.optionsChanged);
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void sharingAFolderChangesIt() {
+        Config oldConfig = createConfig(Collections.singletonList("a"), Arrays.asList("A", "B"));
+        Config newConfig = createConfig(Collections.singletonList("a"), Arrays.asList("A", "B"));
+        newConfig.folders.get(0).addDevice("B");
+
+        ConfigDiff diff = compute(oldConfig, newConfig);
+        assertEquals(Collections.singletonList("a"), folderIds(diff.changedFolders));
+        assertFalse(diff.hasDeviceChanges());
+    }
+
+    @Test
+    public void optionsOnly() {
+        Config oldConfig = createConfig(Collections.singletonList("a"), Collections.singletonList("A"));
+        Config newConfig = createConfig(Collections.singletonList("a"), Collections.singletonList("A"));
+        newConfig.options.maxSendKbps = 100;
+
+        ConfigDiff diff = compute(oldConfig, newConfig);
+        assertTrue(diff.optionsChanged);
+        assertFalse(diff.hasFolderChanges());
+        assertFalse(diff.hasDeviceChanges());
+        assertFalse(diff.guiChanged);
+        assertFalse(diff.otherChanged);
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void guiAndOther() {
+        Config oldConfig = createConfig(Collections.singletonList("a"), Collections.singletonList("A"));
+        Config newConfig = createConfig(Collections.singletonList("a"), Collections.singletonList("A"));
+        newConfig.gui.address = "127.0.0.1:8385";
+        ConfigDiff diff = compute(oldConfig, newConfig);
+        assertTrue(diff.guiChanged);
+        assertFalse(diff.optionsChanged);
+        assertFalse(diff.otherChanged);
+
+        newConfig = createConfig(Collections.singletonList("a"), Collections.singletonList("A"));
+        newConfig.version++;
+        diff = compute(oldConfig, newConfig);
+        assertTrue(diff.otherChanged);
+        assertFalse(diff.guiChanged);
+        assertFalse(diff.hasFolderChanges());
+        assertFalse(diff.isEmpty());
+    }
+
+    private static ConfigDiff compute(Config oldConfig, Config newConfig) {
+        return ConfigDiff.compute(new ConfigSnapshot(oldConfig, 1), newConfig);
+    }
+
+    private static List<String> folderIds(List<Folder> folders) {
+        List<String> ids = new ArrayList<>();
+        for (Folder folder : folders) {
+            ids.add(folder.id);
+        }
+        return ids;
+    }
+
+    private static List<String> deviceIds(List<Device> devices) {
+        List<String> ids = new ArrayList<>();
+        for (Device device : devices) {
+            ids.add(device.deviceID);
+        }
+        return ids;
+    }
+
+    /**
+     * Creates a config with the given folders, each shared with the first device, as it would
+     * be decoded from /rest/config.
+     */
+    private static Config createConfig(List<String> folderIds, List<String> deviceIds) {
+        StringBuilder sb = new StringBuilder("{\"version\":37,\"folders\":[");
+        for (int i = 0; i < folderIds.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String id = folderIds.get(i);
+            sb.append("{\"id\":\"").append(id).append("\",\"label\":\"Folder ").append(id)
+                    .append("\",\"path\":\"/storage/emulated/0/").append(id)
+                    .append("\",\"type\":\"sendreceive\",\"devices\":[{\"deviceID\":\"")
+                    .append(deviceIds.get(0)).append("\"}],\"rescanIntervalS\":3600}");
+        }
+        sb.append("],\"devices\":[");
+        for (int i = 0; i < deviceIds.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String id = deviceIds.get(i);
+            sb.append("{\"deviceID\":\"").append(id).append("\",\"name\":\"Device ").append(id)
+                    .append("\",\"addresses\":[\"dynamic\"],\"compression\":\"metadata\"}");
+        }
+        sb.append("],\"gui\":{\"enabled\":true,\"address\":\"127.0.0.1:8384\"},")
+                .append("\"options\":{\"maxSendKbps\":0,\"globalAnnounceEnabled\":true},")
+                .append("\"remoteIgnoredDevices\":[]}");
+        return ModelGson.get().fromJson(sb.toString(), Config.class);
+    }
+}
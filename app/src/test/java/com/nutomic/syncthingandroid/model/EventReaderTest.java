@@ -0,0 +1,149 @@
+package com.nutomic.syncthingandroid.model;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.nutomic.syncthingandroid.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventReaderTest {
+
+    private static final int REPLAY_EVENTS = 50_000;
+
+    @Test
+    public void decodesTypedEvents() throws IOException {
+        List<Event> events = readAll(createPayload(4));
+        assertEquals(4, events.size());
+        assertTrue(events.get(0).data instanceof Event.ItemFinished);
+        assertEquals("photos", ((Event.ItemFinished) events.get(0).data).folder);
+        assertTrue(events.get(1).data instanceof Event.FolderCompletion);
+        assertTrue(events.get(2).data instanceof Event.StateChanged);
+        // Types without a model class keep a generic payload.
+        assertEquals("LocalIndexUpdated", events.get(3).type);
+        assertEquals(4, events.get(3).id);
+    }
+
+    @Test
+    public void emptyArray() throws IOException {
+        assertTrue(readAll("[]").isEmpty());
+    }
+
+    @Test
+    public void malformedResponsesThrowIOException() {
+        String[] responses = {
+                "{\"error\": \"not an array\"}",
+                "[{\"id\": \"seven\", \"type\": \"Ping\"}]",
+                "[{\"id\": 1, \"type\": \"ItemFinished\", \"data\": [1, 2]}]",
+                "[{\"id\": 1",
+        };
+        for (String response : responses) {
+            try {
+                readAll(response);
+                fail("No IOException for " + response);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Replays a backlog like the one received after reconnecting to a large photo folder,
+     * comparing the streaming reader with the previous JsonArray based decoding.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkReplay() throws Exception {
+        byte[] payload = createPayload(REPLAY_EVENTS).getBytes(Charsets.UTF_8);
+        System.out.println(String.format(Locale.US, "Replaying %d events, %d KiB",
+                REPLAY_EVENTS, payload.length / 1024));
+
+        Benchmark.Result before = Benchmark.measure("JsonArray + new Gson per event", () -> {
+            // The decoding RestApi.getEvents used before EventReader.
+            JsonArray json = new JsonParser().parse(new String(payload, Charsets.UTF_8))
+                    .getAsJsonArray();
+            List<Event> events = new ArrayList<>();
+            for (int i = 0; i < json.size(); i++) {
+                events.add(new Gson().fromJson(json.get(i), Event.class));
+            }
+            return events.size();
+        });
+        Benchmark.Result after = Benchmark.measure("EventReader", () -> {
+            int count = 0;
+            try (EventReader reader = new EventReader(new ByteArrayInputStream(payload))) {
+                while (reader.next() != null) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        Benchmark.compare(before, after);
+
+        assertEquals(REPLAY_EVENTS, readAll(new String(payload, Charsets.UTF_8)).size());
+    }
+
+    private static List<Event> readAll(String payload) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (EventReader reader = new EventReader(
+                new ByteArrayInputStream(payload.getBytes(Charsets.UTF_8)))) {
+            Event event;
+            while ((event = reader.next()) != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Creates a /rest/events response that is mostly ItemFinished events, interleaved with the
+     * other events syncthing sends while pulling.
+     */
+    private static String createPayload(int count) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int id = 1; id <= count; id++) {
+            if (id > 1) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(id).append(",\"globalID\":").append(id + 1000)
+                    .append(",\"time\":\"2024-05-01T12:00:00.").append(id % 1000)
+                    .append("+02:00\",");
+            switch (id % 4) {
+                case 1:
+                    sb.append("\"type\":\"ItemFinished\",\"data\":{\"item\":\"DCIM/Camera/IMG_")
+                            .append(id).append(".jpg\",\"folder\":\"photos\",\"error\":null,")
+                            .append("\"type\":\"file\",\"action\":\"update\"}}");
+                    break;
+                case 2:
+                    sb.append("\"type\":\"FolderCompletion\",\"data\":{\"completion\":")
+                            .append(id % 100).append(".5,\"device\":\"MFZWI3D-BONSGYC-YLTMRWG-")
+                            .append("C43ENR5-QXGZDMM-FZWI3DP-BONSGYY-LTMRWAD\",\"folder\":\"photos\",")
+                            .append("\"globalBytes\":123456789,\"needBytes\":").append(id)
+                            .append(",\"needDeletes\":0,\"needItems\":3}}");
+                    break;
+                case 3:
+                    sb.append("\"type\":\"StateChanged\",\"data\":{\"folder\":\"photos\",")
+                            .append("\"from\":\"syncing\",\"to\":\"idle\",\"duration\":0.25}}");
+                    break;
+                default:
+                    sb.append("\"type\":\"LocalIndexUpdated\",\"data\":{\"folder\":\"photos\",")
+                            .append("\"items\":1,\"filenames\":[\"DCIM/Camera/IMG_").append(id)
+                            .append(".jpg\"],\"sequence\":").append(id).append("}}");
+                    break;
+            }
+        }
+        return sb.append(']').toString();
+    }
+}
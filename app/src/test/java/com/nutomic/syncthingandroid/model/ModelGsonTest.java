@@ -0,0 +1,202 @@
+package com.nutomic.syncthingandroid.model;
+
+import com.google.gson.Gson;
+import com.nutomic.syncthingandroid.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+public class ModelGsonTest {
+
+    private static final int FOLDERS = 200;
+    private static final int DEVICES = 50;
+    private static final int DEVICES_PER_FOLDER = 10;
+
+    /**
+     * The hand-written adapters must decode the same values as reflection.
+     */
+    @Test
+    public void adaptersMatchReflection() {
+        Gson reflective = new Gson();
+        Gson shared = ModelGson.get();
+        String connections = createConnections();
+        assertEquals(reflective.toJsonTree(reflective.fromJson(connections, Connections.class)),
+                reflective.toJsonTree(shared.fromJson(connections, Connections.class)));
+        String status = createFolderStatus(7);
+        assertEquals(reflective.toJsonTree(reflective.fromJson(status, FolderStatus.class)),
+                reflective.toJsonTree(shared.fromJson(status, FolderStatus.class)));
+        String config = createConfig();
+        Config decoded = shared.fromJson(config, Config.class);
+        assertEquals(FOLDERS, decoded.folders.size());
+        assertEquals(DEVICES, decoded.devices.size());
+        assertEquals(DEVICES_PER_FOLDER, decoded.folders.get(0).getDevices().size());
+        assertEquals(reflective.toJsonTree(reflective.fromJson(config, Config.class)),
+                reflective.toJsonTree(decoded));
+    }
+
+    /**
+     * Compares decoding /rest/config with 200 folders and 50 devices through a new Gson per
+     * call, as RestApi did before, with the shared instance.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkConfig() throws Exception {
+        String config = createConfig();
+        System.out.println(String.format(Locale.US, "Config with %d folders, %d devices, %d KiB",
+                FOLDERS, DEVICES, config.length() / 1024));
+        Benchmark.Result before = Benchmark.measure("Config, new Gson",
+                () -> new Gson().fromJson(config, Config.class));
+        Benchmark.Result after = Benchmark.measure("Config, ModelGson",
+                () -> ModelGson.get().fromJson(config, Config.class));
+        Benchmark.compare(before, after);
+    }
+
+    /**
+     * Compares decoding what the GUI polls every 5 seconds: connections to 50 devices and the
+     * status of 200 folders.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkPolledModels() throws Exception {
+        String connections = createConnections();
+        List<String> statuses = new ArrayList<>();
+        for (int i = 0; i < FOLDERS; i++) {
+            statuses.add(createFolderStatus(i));
+        }
+        Benchmark.Result before = Benchmark.measure("Poll cycle, new Gson", () -> {
+            List<Object> results = new ArrayList<>();
+            results.add(new Gson().fromJson(connections, Connections.class));
+            for (String status : statuses) {
+                results.add(new Gson().fromJson(status, FolderStatus.class));
+            }
+            return results;
+        });
+        Benchmark.Result after = Benchmark.measure("Poll cycle, ModelGson", () -> {
+            Gson gson = ModelGson.get();
+            List<Object> results = new ArrayList<>();
+            results.add(gson.fromJson(connections, Connections.class));
+            for (String status : statuses) {
+                results.add(gson.fromJson(status, FolderStatus.class));
+            }
+            return results;
+        });
+        Benchmark.compare(before, after);
+    }
+
+    private static String deviceId(int i) {
+        return String.format(Locale.US, "AAAAAAA-BBBBBBB-CCCCCCC-DDDDDDD-EEEEEEE-FFFFFFF-GGGGGGG-%07d", i);
+    }
+
+    /**
+     * Creates a /rest/config response, including fields the app does not model.
+     */
+    private static String createConfig() {
+        StringBuilder sb = new StringBuilder("{\"version\":37,\"folders\":[");
+        for (int f = 0; f < FOLDERS; f++) {
+            if (f > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":\"folder-").append(f).append("\",\"label\":\"Folder ").append(f)
+                    .append("\",\"filesystemType\":\"basic\",\"path\":\"/storage/emulated/0/Sync/")
+                    .append(f).append("\",\"type\":\"sendreceive\",\"devices\":[");
+            for (int d = 0; d < DEVICES_PER_FOLDER; d++) {
+                if (d > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"deviceID\":\"").append(deviceId((f + d) % DEVICES))
+                        .append("\",\"introducedBy\":\"\",\"encryptionPassword\":\"\"}");
+            }
+            sb.append("],\"rescanIntervalS\":3600,\"fsWatcherEnabled\":true,\"fsWatcherDelayS\":10,")
+                    .append("\"ignorePerms\":true,\"autoNormalize\":true,")
+                    .append("\"minDiskFree\":{\"value\":1,\"unit\":\"%\"},")
+                    .append("\"versioning\":{\"type\":\"simple\",\"params\":{\"keep\":\"5\"},")
+                    .append("\"cleanupIntervalS\":3600,\"fsPath\":\"\",\"fsType\":\"basic\"},")
+                    .append("\"copiers\":0,\"pullerMaxPendingKiB\":0,\"hashers\":1,")
+                    .append("\"order\":\"random\",\"ignoreDelete\":false,\"scanProgressIntervalS\":0,")
+                    .append("\"pullerPauseS\":0,\"maxConflicts\":10,\"disableSparseFiles\":false,")
+                    .append("\"disableTempIndexes\":false,\"paused\":false,\"weakHashThresholdPct\":25,")
+                    .append("\"markerName\":\".stfolder\",\"copyOwnershipFromParent\":false,")
+                    .append("\"modTimeWindowS\":0,\"maxConcurrentWrites\":2,")
+                    .append("\"disableFsync\":false,\"blockPullOrder\":\"standard\",")
+                    .append("\"copyRangeMethod\":\"standard\",\"caseSensitiveFS\":false,")
+                    .append("\"junctionsAsDirs\":false}");
+        }
+        sb.append("],\"devices\":[");
+        for (int d = 0; d < DEVICES; d++) {
+            if (d > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"deviceID\":\"").append(deviceId(d)).append("\",\"name\":\"Device ")
+                    .append(d).append("\",\"addresses\":[\"dynamic\",\"tcp://192.168.1.")
+                    .append(d).append(":22000\"],\"compression\":\"metadata\",")
+                    .append("\"certName\":\"\",\"introducer\":false,\"skipIntroductionRemovals\":false,")
+                    .append("\"introducedBy\":\"\",\"paused\":false,\"allowedNetworks\":[],")
+                    .append("\"autoAcceptFolders\":false,\"maxSendKbps\":0,\"maxRecvKbps\":0,")
+                    .append("\"ignoredFolders\":[{\"time\":\"2024-05-01T12:00:00Z\",\"id\":\"ignored-")
+                    .append(d).append("\",\"label\":\"Ignored\"}],\"maxRequestKiB\":0,")
+                    .append("\"untrusted\":false,\"remoteGUIPort\":0}");
+        }
+        sb.append("],\"gui\":{\"enabled\":true,\"address\":\"127.0.0.1:8384\",\"user\":\"syncthing\",")
+                .append("\"password\":\"$2a$04$abcdefghijklmnopqrstuv\",\"useTLS\":true,")
+                .append("\"apiKey\":\"0123456789abcdef\",\"insecureAdminAccess\":false,")
+                .append("\"theme\":\"default\"},")
+                .append("\"options\":{\"listenAddresses\":[\"default\"],")
+                .append("\"globalAnnounceServers\":[\"default\"],\"globalAnnounceEnabled\":true,")
+                .append("\"localAnnounceEnabled\":true,\"localAnnouncePort\":21027,")
+                .append("\"maxSendKbps\":0,\"maxRecvKbps\":0,\"reconnectionIntervalS\":60,")
+                .append("\"relaysEnabled\":true,\"relayReconnectIntervalM\":10,")
+                .append("\"startBrowser\":false,\"natEnabled\":true,\"urAccepted\":-1,")
+                .append("\"urSeen\":3,\"urUniqueId\":\"\",\"autoUpgradeIntervalH\":12,")
+                .append("\"keepTemporariesH\":24,\"cacheIgnoredFiles\":false,")
+                .append("\"progressUpdateIntervalS\":5,\"limitBandwidthInLan\":false,")
+                .append("\"minHomeDiskFree\":{\"value\":1,\"unit\":\"%\"},")
+                .append("\"releasesURL\":\"https://upgrades.syncthing.net/meta.json\",")
+                .append("\"alwaysLocalNets\":[],\"overwriteRemoteDeviceNamesOnConnect\":false,")
+                .append("\"tempIndexMinBlocks\":10,\"unackedNotificationIDs\":[],")
+                .append("\"trafficClass\":0,\"setLowPriority\":true,\"maxFolderConcurrency\":0,")
+                .append("\"crashReportingEnabled\":true},")
+                .append("\"remoteIgnoredDevices\":[],\"defaults\":{}}");
+        return sb.toString();
+    }
+
+    private static String createConnections() {
+        StringBuilder sb = new StringBuilder("{\"total\":{\"at\":\"2024-05-01T12:00:00Z\",")
+                .append("\"inBytesTotal\":123456789,\"outBytesTotal\":987654321},\"connections\":{");
+        for (int d = 0; d < DEVICES; d++) {
+            if (d > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(deviceId(d)).append("\":{\"at\":\"2024-05-01T12:00:00Z\",")
+                    .append("\"inBytesTotal\":").append(d * 1000L).append(",\"outBytesTotal\":")
+                    .append(d * 2000L).append(",\"startedAt\":\"2024-05-01T11:00:00Z\",")
+                    .append("\"connected\":").append(d % 2 == 0).append(",\"paused\":false,")
+                    .append("\"clientVersion\":\"v1.27.7\",\"address\":\"192.168.1.").append(d)
+                    .append(":22000\",\"type\":\"tcp-client\",\"isLocal\":true,")
+                    .append("\"crypto\":\"TLS1.3-TLS_AES_128_GCM_SHA256\"}");
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String createFolderStatus(int i) {
+        return "{\"errors\":0,\"pullErrors\":0,\"invalid\":\"\",\"globalFiles\":" + (i * 100)
+                + ",\"globalDirectories\":" + i + ",\"globalSymlinks\":0,\"globalDeleted\":3,"
+                + "\"globalBytes\":" + (i * 1048576L) + ",\"globalTotalItems\":" + (i * 101)
+                + ",\"localFiles\":" + (i * 100) + ",\"localDirectories\":" + i
+                + ",\"localSymlinks\":0,\"localDeleted\":3,\"localBytes\":" + (i * 1048576L)
+                + ",\"localTotalItems\":" + (i * 101) + ",\"needFiles\":0,\"needDirectories\":0,"
+                + "\"needSymlinks\":0,\"needDeletes\":0,\"needBytes\":0,\"needTotalItems\":0,"
+                + "\"receiveOnlyChangedFiles\":0,\"receiveOnlyChangedDirectories\":0,"
+                + "\"receiveOnlyChangedSymlinks\":0,\"receiveOnlyChangedDeletes\":0,"
+                + "\"receiveOnlyChangedBytes\":0,\"receiveOnlyTotalItems\":0,"
+                + "\"inSyncFiles\":" + (i * 100) + ",\"inSyncBytes\":" + (i * 1048576L) + ","
+                + "\"state\":\"idle\",\"stateChanged\":\"2024-05-01T12:00:00Z\",\"error\":\"\","
+                + "\"version\":" + i + ",\"sequence\":" + (i * 7) + ",\"ignorePatterns\":false,"
+                + "\"watchError\":\"\"}";
+    }
+}
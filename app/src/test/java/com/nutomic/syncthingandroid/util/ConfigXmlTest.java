@@ -0,0 +1,256 @@
+package com.nutomic.syncthingandroid.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.nutomic.syncthingandroid.Benchmark;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mindrot.jbcrypt.BCrypt;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.Locale;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigXmlTest {
+
+    private static final int FOLDERS = 1000;
+    private static final int DEVICES = 20;
+    private static final int DEVICES_PER_FOLDER = 3;
+    /**
+     * Folders with this index keep the hashers the user chose.
+     */
+    private static final int USER_HASHERS_FOLDER = 7;
+    private static final int USER_HASHERS = 3;
+    private static final String API_KEY = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mConfigFile;
+    private File mConfigTempFile;
+    private byte[] mOriginalConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        mConfigFile = mTemporaryFolder.newFile("config.xml");
+        mConfigTempFile = new File(mTemporaryFolder.getRoot(), "config.xml.tmp");
+        mOriginalConfig = createConfig().getBytes(Charsets.UTF_8);
+        Files.write(mOriginalConfig, mConfigFile);
+    }
+
+    @Test
+    public void readsGuiValues() {
+        ConfigXml config = new ConfigXml(mConfigFile, mConfigTempFile);
+        assertEquals(API_KEY, config.getApiKey());
+        assertEquals("admin", config.getUserName());
+        assertEquals("127.0.0.1", config.getWebGuiUrl().getHost());
+        assertEquals(8384, config.getWebGuiUrl().getPort());
+    }
+
+    @Test
+    public void updateIfNeeded() throws Exception {
+        ConfigXml config = new ConfigXml(mConfigFile, mConfigTempFile);
+        config.updateIfNeeded();
+        assertEquals("syncthing", config.getUserName());
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(mConfigFile);
+        NodeList folders = document.getElementsByTagName("folder");
+        assertEquals(FOLDERS, folders.getLength());
+        for (int i = 0; i < folders.getLength(); i++) {
+            Element folder = (Element) folders.item(i);
+            assertEquals("true", folder.getAttribute("ignorePerms"));
+            assertEquals(i == USER_HASHERS_FOLDER ? Integer.toString(USER_HASHERS) : "1",
+                    getText(folder, "hashers"));
+            // Everything else is kept.
+            assertEquals("folder-" + i, folder.getAttribute("id"));
+            assertEquals(DEVICES_PER_FOLDER, folder.getElementsByTagName("device").getLength());
+        }
+        Element gui = (Element) document.getElementsByTagName("gui").item(0);
+        assertEquals("syncthing", getText(gui, "user"));
+        assertTrue(BCrypt.checkpw(API_KEY, getText(gui, "password")));
+        assertEquals("never", getText(document.getDocumentElement(), "weakHashSelectionMethod"));
+        assertEquals(FOLDERS * DEVICES_PER_FOLDER + DEVICES,
+                document.getElementsByTagName("device").getLength());
+    }
+
+    @Test
+    public void upToDateConfigIsNotWritten() throws Exception {
+        new ConfigXml(mConfigFile, mConfigTempFile).updateIfNeeded();
+        byte[] updated = Files.toByteArray(mConfigFile);
+        assertFalse(mConfigTempFile.exists());
+
+        new ConfigXml(mConfigFile, mConfigTempFile).updateIfNeeded();
+        assertFalse(mConfigTempFile.exists());
+        assertArrayEquals(updated, Files.toByteArray(mConfigFile));
+    }
+
+    /**
+     * Compares the startup work on a config.xml with 1,000 folders, for the DOM based
+     * implementation ConfigXml used before and the streaming one, once for a config that has to
+     * be updated and once for one that is already up to date.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkStartup() throws Exception {
+        System.out.println(String.format(Locale.US, "config.xml with %d folders, %d KiB",
+                FOLDERS, mOriginalConfig.length / 1024));
+
+        Benchmark.Result before = Benchmark.measure("Update, DOM", () -> {
+            Files.write(mOriginalConfig, mConfigFile);
+            return updateWithDom();
+        });
+        Benchmark.Result after = Benchmark.measure("Update, streaming", () -> {
+            Files.write(mOriginalConfig, mConfigFile);
+            ConfigXml config = new ConfigXml(mConfigFile, mConfigTempFile);
+            config.updateIfNeeded();
+            return config;
+        });
+        Benchmark.compare(before, after);
+
+        Files.write(mOriginalConfig, mConfigFile);
+        new ConfigXml(mConfigFile, mConfigTempFile).updateIfNeeded();
+        before = Benchmark.measure("Up to date, DOM", this::updateWithDom);
+        after = Benchmark.measure("Up to date, streaming", () -> {
+            ConfigXml config = new ConfigXml(mConfigFile, mConfigTempFile);
+            config.updateIfNeeded();
+            return config;
+        });
+        Benchmark.compare(before, after);
+    }
+
+    /**
+     * What ConfigXml did before it streamed the file: parse the whole document, look up
+     * elements by tag name and write it back through a Transformer if anything changed.
+     */
+    private Document updateWithDom() throws Exception {
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(mConfigFile);
+        Element gui = (Element) config.getDocumentElement().getElementsByTagName("gui").item(0);
+        String apiKey = getText(gui, "apikey");
+        getText(gui, "address");
+        getText(gui, "user");
+
+        boolean changed = false;
+        NodeList folders = config.getDocumentElement().getElementsByTagName("folder");
+        for (int i = 0; i < folders.getLength(); i++) {
+            Element r = (Element) folders.item(i);
+            if (!Boolean.parseBoolean(r.getAttribute("ignorePerms"))) {
+                r.setAttribute("ignorePerms", Boolean.toString(true));
+                changed = true;
+            }
+            changed = setConfigElement(config, r, "hashers", "1") || changed;
+        }
+        if (!"true".equals(gui.getAttribute("tls"))) {
+            gui.setAttribute("tls", "true");
+            changed = true;
+        }
+        changed = setConfigElement(config, gui, "user", "syncthing") || changed;
+        String password = getText(gui, "password");
+        if (password == null || password.isEmpty() || !BCrypt.checkpw(apiKey, password)) {
+            setConfigElement(config, gui, "password", BCrypt.hashpw(apiKey, BCrypt.gensalt(4)));
+            changed = true;
+        }
+        Element options = (Element) config.getDocumentElement()
+                .getElementsByTagName("options").item(0);
+        changed = setConfigElement(config, options, "weakHashSelectionMethod", "never") || changed;
+
+        if (changed) {
+            TransformerFactory.newInstance().newTransformer()
+                    .transform(new DOMSource(config), new StreamResult(mConfigTempFile));
+            assertTrue(mConfigTempFile.renameTo(mConfigFile));
+        }
+        return config;
+    }
+
+    private static boolean setConfigElement(Document config, Element parent, String tagName,
+                                            String textContent) {
+        Node element = parent.getElementsByTagName(tagName).item(0);
+        if (element == null) {
+            element = config.createElement(tagName);
+            parent.appendChild(element);
+        }
+        if (!textContent.equals(element.getTextContent())) {
+            element.setTextContent(textContent);
+            return true;
+        }
+        return false;
+    }
+
+    private static String getText(Element parent, String tagName) {
+        Node element = parent.getElementsByTagName(tagName).item(0);
+        return element == null ? null : element.getTextContent();
+    }
+
+    private static String deviceId(int i) {
+        return String.format(Locale.US, "AAAAAAA-BBBBBBB-CCCCCCC-DDDDDDD-EEEEEEE-FFFFFFF-GGGGGGG-%07d", i);
+    }
+
+    /**
+     * Creates a config.xml as written by syncthing, which ConfigXml has not updated yet.
+     */
+    private static String createConfig() {
+        StringBuilder sb = new StringBuilder("<configuration version=\"37\">\n");
+        for (int f = 0; f < FOLDERS; f++) {
+            sb.append("    <folder id=\"folder-").append(f).append("\" label=\"Folder ").append(f)
+                    .append("\" path=\"/storage/emulated/0/Sync/").append(f)
+                    .append("\" type=\"sendreceive\" rescanIntervalS=\"3600\"")
+                    .append(" fsWatcherEnabled=\"true\" fsWatcherDelayS=\"10\"")
+                    .append(" ignorePerms=\"false\" autoNormalize=\"true\">\n")
+                    .append("        <filesystemType>basic</filesystemType>\n");
+            for (int d = 0; d < DEVICES_PER_FOLDER; d++) {
+                sb.append("        <device id=\"").append(deviceId((f + d) % DEVICES))
+                        .append("\" introducedBy=\"\">\n")
+                        .append("            <encryptionPassword></encryptionPassword>\n")
+                        .append("        </device>\n");
+            }
+            sb.append("        <minDiskFree unit=\"%\">1</minDiskFree>\n")
+                    .append("        <versioning></versioning>\n")
+                    .append("        <copiers>0</copiers>\n")
+                    .append("        <pullerMaxPendingKiB>0</pullerMaxPendingKiB>\n")
+                    .append("        <hashers>").append(f == USER_HASHERS_FOLDER ? USER_HASHERS : 0)
+                    .append("</hashers>\n")
+                    .append("        <order>random</order>\n")
+                    .append("        <ignoreDelete>false</ignoreDelete>\n")
+                    .append("        <markerName>.stfolder</markerName>\n")
+                    .append("    </folder>\n");
+        }
+        for (int d = 0; d < DEVICES; d++) {
+            sb.append("    <device id=\"").append(deviceId(d)).append("\" name=\"Device ").append(d)
+                    .append("\" compression=\"metadata\" introducer=\"false\">\n")
+                    .append("        <address>dynamic</address>\n")
+                    .append("        <paused>false</paused>\n")
+                    .append("    </device>\n");
+        }
+        sb.append("    <gui enabled=\"true\" tls=\"false\" debugging=\"false\">\n")
+                .append("        <address>127.0.0.1:8384</address>\n")
+                .append("        <user>admin</user>\n")
+                .append("        <apikey>").append(API_KEY).append("</apikey>\n")
+                .append("        <theme>default</theme>\n")
+                .append("    </gui>\n")
+                .append("    <options>\n")
+                .append("        <listenAddress>default</listenAddress>\n")
+                .append("        <globalAnnounceEnabled>true</globalAnnounceEnabled>\n")
+                .append("        <weakHashSelectionMethod>auto</weakHashSelectionMethod>\n")
+                .append("    </options>\n")
+                .append("</configuration>\n");
+        return sb.toString();
+    }
+}
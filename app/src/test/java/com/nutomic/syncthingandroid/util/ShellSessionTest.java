@@ -0,0 +1,97 @@
+package com.nutomic.syncthingandroid.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShellSessionTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private ShellSession mShell;
+
+    @Before
+    public void setUp() {
+        mShell = new ShellSession("/bin/sh");
+    }
+
+    @After
+    public void tearDown() {
+        mShell.close();
+    }
+
+    @Test
+    public void exitCodes() {
+        assertEquals(0, mShell.run("true"));
+        assertEquals(1, mShell.run("false"));
+        assertEquals(42, mShell.run("sh -c 'exit 42'"));
+        // The exit code of the last line is returned.
+        assertEquals(0, mShell.run("false\ntrue"));
+        assertEquals(1, mShell.run("true\nfalse"));
+    }
+
+    @Test
+    public void multiLineOutput() {
+        ShellSession.Result result = mShell.run("echo one\necho two; echo three >&2", TIMEOUT);
+        assertEquals(0, result.exitCode);
+        assertEquals(Arrays.asList("one", "two", "three"), result.output);
+
+        result = mShell.run("printf 'no newline'", TIMEOUT);
+        assertEquals(0, result.exitCode);
+        assertEquals(Collections.singletonList("no newline"), result.output);
+
+        result = mShell.run("echo; echo after empty line", TIMEOUT);
+        assertEquals(Arrays.asList("", "after empty line"), result.output);
+    }
+
+    @Test
+    public void stateIsKeptBetweenCommands() {
+        assertEquals(0, mShell.run("SHELL_SESSION_TEST=kept"));
+        assertEquals(Collections.singletonList("kept"),
+                mShell.run("echo $SHELL_SESSION_TEST", TIMEOUT).output);
+    }
+
+    @Test
+    public void timeoutThenFreshCommand() {
+        long start = System.nanoTime();
+        ShellSession.Result result = mShell.run("echo started; sleep 10; echo finished", 300);
+        assertTrue("Took too long to time out", System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(ShellSession.EXIT_CODE_FAILED, result.exitCode);
+        assertEquals(Collections.singletonList("started"), result.output);
+
+        // Runs in a new shell, without output of the command that timed out.
+        result = mShell.run("echo fresh", TIMEOUT);
+        assertEquals(0, result.exitCode);
+        assertEquals(Collections.singletonList("fresh"), result.output);
+    }
+
+    @Test
+    public void shellExitsMidCommand() {
+        ShellSession.Result result = mShell.run("echo before; exit 3; echo after", TIMEOUT);
+        assertEquals(ShellSession.EXIT_CODE_FAILED, result.exitCode);
+        assertEquals(Collections.singletonList("before"), result.output);
+
+        result = mShell.run("echo again", TIMEOUT);
+        assertEquals(0, result.exitCode);
+        assertEquals(Collections.singletonList("again"), result.output);
+    }
+
+    @Test
+    public void closeThenRun() {
+        assertEquals(0, mShell.run("true"));
+        mShell.close();
+        assertEquals(0, mShell.run("true"));
+    }
+
+    @Test
+    public void shellThatCannotStart() {
+        ShellSession shell = new ShellSession("/nonexistent/shell");
+        assertEquals(ShellSession.EXIT_CODE_FAILED, shell.run("true"));
+    }
+}